@@ -67,7 +67,8 @@ public abstract class AbstractJerseyClient {
 
                     if (entityRequest.getContentType() != null) contentType = entityRequest.getContentType();
 
-                    if (entityRequest.getEntity() != null) entity = entityRequest.getEntity();
+                    if (entityRequest.getEntity() != null)
+                        entity = serializeEntity(entityRequest.getEntity(), contentType);
 
                     // if content-length is set (perhaps by user), force jersey to use it
                     if (entityRequest.getContentLength() != null) {
@@ -112,6 +113,14 @@ public abstract class AbstractJerseyClient {
         }
     }
 
+    /**
+     * Gives subclasses a chance to serialize an entity themselves before it is handed to Jersey. The default
+     * implementation returns the entity unchanged
+     */
+    protected Object serializeEntity(Object entity, String contentType) {
+        return entity;
+    }
+
     protected <T> T executeRequest(Client client, ObjectRequest request, Class<T> responseType) {
         ClientResponse response = executeRequest(client, request);
         T responseEntity = response.getEntity(responseType);
@@ -0,0 +1,688 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.AccessControlList;
+import com.emc.object.s3.bean.EncodingType;
+import com.emc.object.s3.bean.S3Object;
+import com.emc.object.s3.request.CopyObjectRequest;
+import com.emc.object.util.RestUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies all objects (under an optional prefix) from one bucket to another bucket on the same system using
+ * server-side copies, so no object data passes through the client. The source is listed with a
+ * {@link ParallelBucketLister} (in key order) and its objects are copied by a pool of workers. Objects below the
+ * {@link #setMpuThreshold(long) MPU threshold} are copied with a single copy (which keeps their metadata); larger
+ * objects are copied in parts with a {@link LargeObjectCopier}. Object ACLs are read and re-applied unless
+ * {@link #setPreserveAcl(boolean) preserveAcl} is turned off.
+ * <p>
+ * When {@link #setSkipExisting(boolean) skipExisting} is on (the default), the target is listed alongside the source
+ * (also in key order) and objects that already exist in the target with the same size and ETag are skipped, without
+ * a request per object. Objects copied in parts get a different (multipart) ETag in the target, so they record the
+ * source's ETag in the {@link #SOURCE_ETAG_METADATA} user metadata; a target with the same size and a multipart ETag
+ * is checked against that with a HEAD request (see {@link #isCopyOf(S3Object, S3Object)}).
+ * <p>
+ * If a {@link #setCheckpointFile(File) checkpoint file} is set, the last key before which every object has been
+ * migrated is saved to it periodically. A later migration with the same file (and buckets and prefix) resumes listing
+ * after that key. The checkpoint does not advance past an object that failed, and it is deleted when the migration
+ * succeeds. Failed objects are recorded (see {@link #getFailures()}) and do not stop the migration; {@link #run()}
+ * throws at the end if any object failed.
+ * <p>
+ * Example:
+ * <pre><code>
+ * BucketMigrator migrator = new BucketMigrator(s3Client, "old-bucket", "new-bucket")
+ *         .withThreads(64).withCheckpointFile(new File("migration.checkpoint"));
+ * migrator.run();
+ * </code></pre>
+ */
+public class BucketMigrator implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(BucketMigrator.class);
+
+    public static final int DEFAULT_THREADS = 32;
+    public static final int DEFAULT_LIST_THREADS = ParallelBucketLister.DEFAULT_THREADS;
+    public static final int DEFAULT_PART_THREADS = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 1000; // ms
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 10000; // ms
+
+    /**
+     * User metadata that records the source ETag on objects copied in parts
+     */
+    public static final String SOURCE_ETAG_METADATA = "migrated-source-etag";
+
+    private static final String ENCODING = "UTF-8";
+    private static final String PROP_SOURCE_BUCKET = "sourceBucket";
+    private static final String PROP_TARGET_BUCKET = "targetBucket";
+    private static final String PROP_PREFIX = "prefix";
+    private static final String PROP_LAST_KEY = "lastKey";
+
+    private S3Client s3Client;
+    private String sourceBucket;
+    private String targetBucket;
+    private String prefix;
+    private boolean skipExisting = true;
+    private boolean preserveAcl = true;
+    private long mpuThreshold = LargeObjectCopier.DEFAULT_MPU_THRESHOLD;
+    private long partSize = LargeObjectCopier.DEFAULT_PART_SIZE;
+    private int threads = DEFAULT_THREADS;
+    private int listThreads = DEFAULT_LIST_THREADS;
+    private int partThreads = DEFAULT_PART_THREADS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private File checkpointFile;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    private AtomicLong objectsCopied = new AtomicLong();
+    private AtomicLong objectsSkipped = new AtomicLong();
+    private AtomicLong bytesCopied = new AtomicLong();
+    private Map<String, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<String, Throwable>());
+    private long startTime;
+    private long endTime;
+
+    // checkpoint state (sequence numbers follow source key order)
+    private final SortedMap<Long, String> outstanding = new TreeMap<Long, String>(); // submitted, not finished
+    private final TreeMap<Long, String> finished = new TreeMap<Long, String>(); // finished, not yet checkpointed
+    private long firstFailure = Long.MAX_VALUE; // the checkpoint never passes a failed object
+    private String checkpointKey;
+
+    public BucketMigrator(S3Client s3Client, String sourceBucket, String targetBucket) {
+        this.s3Client = s3Client;
+        this.sourceBucket = sourceBucket;
+        this.targetBucket = targetBucket;
+    }
+
+    @Override
+    public void run() {
+        migrate();
+    }
+
+    public void migrate() {
+        if (sourceBucket.equals(targetBucket))
+            throw new IllegalArgumentException("source and target bucket must be different");
+
+        String startAfter = readCheckpoint();
+        checkpointKey = startAfter;
+        if (startAfter != null) log.info("resuming migration after {}", startAfter);
+
+        ParallelBucketLister sourceLister = new ParallelBucketLister(s3Client, sourceBucket).withPrefix(prefix)
+                .withStartAfter(startAfter).withThreads(listThreads).withEncodingType(EncodingType.url)
+                .withOrdered(true);
+        ParallelBucketLister targetLister = null;
+        if (skipExisting) targetLister = new ParallelBucketLister(s3Client, targetBucket).withPrefix(prefix)
+                .withStartAfter(startAfter).withThreads(listThreads).withEncodingType(EncodingType.url)
+                .withOrdered(true);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        // bound the number of objects queued at once
+        Semaphore window = new Semaphore(threads * 2);
+
+        startTime = System.currentTimeMillis();
+        long objectCount = 0, lastCheckpoint = startTime;
+        try {
+            Iterator<S3Object> targetObjects = targetLister != null ? targetLister.iterator() : null;
+            S3Object target = null;
+            for (S3Object source : sourceLister) {
+                long sequence = objectCount++;
+
+                // advance the target listing to the source key
+                S3Object existing = null;
+                if (targetObjects != null) {
+                    while ((target == null || ParallelBucketLister.KEY_ORDER.compare(target.getKey(), source.getKey()) < 0)
+                            && targetObjects.hasNext()) {
+                        target = targetObjects.next();
+                    }
+                    if (target != null && target.getKey().equals(source.getKey())) {
+                        if (isUpToDate(source, target)) {
+                            objectsSkipped.incrementAndGet();
+                            submitted(sequence, source.getKey());
+                            finished(sequence, true);
+                            continue;
+                        }
+                        existing = target;
+                    }
+                }
+
+                window.acquire();
+                submitted(sequence, source.getKey());
+                executorService.submit(new ObjectMigration(sequence, source, existing, window));
+
+                if (checkpointFile != null && System.currentTimeMillis() - lastCheckpoint > checkpointInterval) {
+                    writeCheckpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            }
+
+            // wait for the remaining objects
+            window.acquire(threads * 2);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted during migration", e);
+        } finally {
+            endTime = System.currentTimeMillis();
+            executorService.shutdownNow();
+            sourceLister.close();
+            if (targetLister != null) targetLister.close();
+            if (checkpointFile != null) writeCheckpoint();
+        }
+
+        log.info(String.format("migration complete: %,d objects copied (%,dk), %,d skipped in %,dms (%,.1f objects/s)",
+                objectsCopied.get(), bytesCopied.get() / 1024, objectsSkipped.get(), getDuration(),
+                getObjectsPerSecond()));
+
+        if (!failures.isEmpty())
+            throw new RuntimeException(String.format("%d of %d objects failed to migrate", failures.size(), objectCount),
+                    failures.values().iterator().next());
+
+        if (checkpointFile != null && !checkpointFile.delete())
+            log.warn("could not delete checkpoint file {}", checkpointFile.getPath());
+    }
+
+    /**
+     * Copies one object to the target
+     */
+    protected void migrateObject(S3Object source) {
+        String key = source.getKey();
+        AccessControlList acl = preserveAcl ? s3Client.getObjectAcl(sourceBucket, key) : null;
+
+        if (source.getSize() != null && source.getSize() >= mpuThreshold) {
+            LargeObjectCopier copier = new LargeObjectCopier(s3Client, sourceBucket, key, targetBucket, key)
+                    .withMpuThreshold(mpuThreshold).withPartSize(partSize).withThreads(partThreads).withAcl(acl);
+            copier.configure(); // reads the source metadata and ETag
+
+            // the copy gets a multipart ETag, so record the source ETag for later migrations
+            S3ObjectMetadata metadata = copier.getSourceMetadata()
+                    .addUserMetadata(SOURCE_ETAG_METADATA, RestUtil.stripQuotes(copier.getSourceETag()));
+            copier.withObjectMetadata(metadata).copy();
+        } else {
+            // a single copy keeps the metadata
+            s3Client.copyObject(new CopyObjectRequest(sourceBucket, key, targetBucket, key)
+                    .withIfMatch(source.getRawETag()).withAcl(acl));
+        }
+    }
+
+    /**
+     * Returns true if the listing shows that <code>target</code> is already a copy of <code>source</code> (the size
+     * and ETag match)
+     */
+    protected boolean isUpToDate(S3Object source, S3Object target) {
+        if (source.getSize() == null || !source.getSize().equals(target.getSize())) return false;
+        String sourceETag = source.getRawETag();
+        return sourceETag != null && sourceETag.equals(target.getRawETag());
+    }
+
+    /**
+     * Returns true if <code>target</code> was copied in parts from this version of <code>source</code>, according to
+     * the source ETag it recorded (reads the target metadata if the size matches and the target has a multipart ETag)
+     */
+    protected boolean isCopyOf(S3Object source, S3Object target) {
+        if (source.getSize() == null || !source.getSize().equals(target.getSize())) return false;
+        if (source.getRawETag() == null || !isMultipartETag(target.getRawETag())) return false;
+        try {
+            S3ObjectMetadata metadata = s3Client.getObjectMetadata(targetBucket, target.getKey());
+            return source.getRawETag().equals(metadata.getUserMetadata(SOURCE_ETAG_METADATA));
+        } catch (S3Exception e) {
+            if (e.getHttpCode() == 404) return false;
+            throw e;
+        }
+    }
+
+    private static boolean isMultipartETag(String eTag) {
+        return eTag != null && eTag.indexOf('-') > 0;
+    }
+
+    /**
+     * Returns true if a migration that failed with <code>t</code> might succeed if retried (see
+     * {@link RetryingTask#isRetryableError(Throwable)})
+     */
+    protected boolean isRetryable(Throwable t) {
+        return RetryingTask.isRetryableError(t);
+    }
+
+    private void submitted(long sequence, String key) {
+        if (checkpointFile == null) return; // nothing would ever drain the maps
+        synchronized (outstanding) {
+            outstanding.put(sequence, key);
+        }
+    }
+
+    private void finished(long sequence, boolean success) {
+        if (checkpointFile == null) return;
+        synchronized (outstanding) {
+            String key = outstanding.remove(sequence);
+            if (!success) {
+                // nothing after the first failure can be checkpointed, so don't keep it
+                firstFailure = Math.min(firstFailure, sequence);
+                finished.tailMap(firstFailure).clear();
+            } else if (sequence < firstFailure) {
+                finished.put(sequence, key);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of finished objects held for the next checkpoint
+     */
+    int getCheckpointBacklog() {
+        synchronized (outstanding) {
+            return finished.size();
+        }
+    }
+
+    /**
+     * Returns the last key before which every object has been migrated (null if none)
+     */
+    protected String currentCheckpointKey() {
+        synchronized (outstanding) {
+            long first = Math.min(firstFailure, outstanding.isEmpty() ? Long.MAX_VALUE : outstanding.firstKey());
+            Map.Entry<Long, String> last = finished.lowerEntry(first);
+            if (last != null) {
+                checkpointKey = last.getValue();
+                finished.headMap(first).clear();
+            }
+            return checkpointKey;
+        }
+    }
+
+    /**
+     * Reads the checkpoint file. Returns the key to resume after, or null to start from the beginning
+     */
+    protected String readCheckpoint() {
+        if (checkpointFile == null || !checkpointFile.exists()) return null;
+        Map<String, String> properties = new HashMap<String, String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), ENCODING));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int eq = line.indexOf('=');
+                    if (eq < 0) continue;
+                    properties.put(line.substring(0, eq), URLDecoder.decode(line.substring(eq + 1), ENCODING));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.warn("could not read checkpoint file " + checkpointFile.getPath(), e);
+            return null;
+        }
+        if (!sourceBucket.equals(properties.get(PROP_SOURCE_BUCKET))
+                || !targetBucket.equals(properties.get(PROP_TARGET_BUCKET))
+                || !(prefix == null ? "" : prefix).equals(properties.get(PROP_PREFIX))) {
+            log.warn("checkpoint file {} does not match this migration and will be replaced", checkpointFile.getPath());
+            return null;
+        }
+        return properties.get(PROP_LAST_KEY);
+    }
+
+    /**
+     * Writes the checkpoint file (to a temporary file that then replaces it, so it is never left partially written)
+     */
+    protected void writeCheckpoint() {
+        String key = currentCheckpointKey();
+        if (key == null) return;
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            StringBuilder data = new StringBuilder();
+            data.append(line(PROP_SOURCE_BUCKET, sourceBucket));
+            data.append(line(PROP_TARGET_BUCKET, targetBucket));
+            data.append(line(PROP_PREFIX, prefix == null ? "" : prefix));
+            data.append(line(PROP_LAST_KEY, key));
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(data.toString().getBytes(ENCODING));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(checkpointFile)) {
+                // rename does not replace an existing file on some platforms
+                if (!checkpointFile.delete() || !tempFile.renameTo(checkpointFile))
+                    throw new IOException("could not replace " + checkpointFile.getPath());
+            }
+            log.debug("checkpoint: {}", key);
+        } catch (IOException e) {
+            log.warn("could not write checkpoint file " + checkpointFile.getPath(), e);
+        }
+    }
+
+    private String line(String name, String value) throws UnsupportedEncodingException {
+        return name + "=" + URLEncoder.encode(value, ENCODING) + "\n";
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getSourceBucket() {
+        return sourceBucket;
+    }
+
+    public String getTargetBucket() {
+        return targetBucket;
+    }
+
+    public long getObjectsCopied() {
+        return objectsCopied.get();
+    }
+
+    /**
+     * Returns the number of objects that were already up to date in the target
+     */
+    public long getObjectsSkipped() {
+        return objectsSkipped.get();
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     * Returns the keys that failed to migrate, and why
+     */
+    public Map<String, Throwable> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<String, Throwable>(failures);
+        }
+    }
+
+    /**
+     * Returns the elapsed time of the migration in milliseconds (so far, if it is still running)
+     */
+    public long getDuration() {
+        if (startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public double getObjectsPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? (objectsCopied.get() + objectsSkipped.get()) * 1000.0 / duration : 0;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Migrates only keys that start with <code>prefix</code>
+     */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public boolean isSkipExisting() {
+        return skipExisting;
+    }
+
+    /**
+     * Whether to list the target and skip objects that are already up to date there. Default is true
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
+    public boolean isPreserveAcl() {
+        return preserveAcl;
+    }
+
+    /**
+     * Whether to copy each object's ACL (costs a request per object). Default is true
+     */
+    public void setPreserveAcl(boolean preserveAcl) {
+        this.preserveAcl = preserveAcl;
+    }
+
+    public long getMpuThreshold() {
+        return mpuThreshold;
+    }
+
+    /**
+     * Sets the size at which objects are copied in parts. Default is {@link LargeObjectCopier#DEFAULT_MPU_THRESHOLD}
+     */
+    public void setMpuThreshold(long mpuThreshold) {
+        this.mpuThreshold = mpuThreshold;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the part size for objects copied in parts. Default is {@link LargeObjectCopier#DEFAULT_PART_SIZE}
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of objects copied concurrently. Default is {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getListThreads() {
+        return listThreads;
+    }
+
+    /**
+     * Sets the number of concurrent listings (for each of the source and target). Default is
+     * {@link #DEFAULT_LIST_THREADS}
+     */
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    public int getPartThreads() {
+        return partThreads;
+    }
+
+    /**
+     * Sets the number of parts copied concurrently for each object copied in parts. Default is
+     * {@link #DEFAULT_PART_THREADS}
+     */
+    public void setPartThreads(int partThreads) {
+        this.partThreads = partThreads;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a failed object is retried. Default is {@link #DEFAULT_MAX_RETRIES}
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the delay before the first retry in milliseconds (doubled for each further retry). Default is
+     * {@link #DEFAULT_RETRY_DELAY}
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Sets a file to save progress to (and resume from)
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets how often the checkpoint file is written, in milliseconds. Default is {@link #DEFAULT_CHECKPOINT_INTERVAL}
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public BucketMigrator withPrefix(String prefix) {
+        setPrefix(prefix);
+        return this;
+    }
+
+    public BucketMigrator withSkipExisting(boolean skipExisting) {
+        setSkipExisting(skipExisting);
+        return this;
+    }
+
+    public BucketMigrator withPreserveAcl(boolean preserveAcl) {
+        setPreserveAcl(preserveAcl);
+        return this;
+    }
+
+    public BucketMigrator withMpuThreshold(long mpuThreshold) {
+        setMpuThreshold(mpuThreshold);
+        return this;
+    }
+
+    public BucketMigrator withPartSize(long partSize) {
+        setPartSize(partSize);
+        return this;
+    }
+
+    public BucketMigrator withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public BucketMigrator withListThreads(int listThreads) {
+        setListThreads(listThreads);
+        return this;
+    }
+
+    public BucketMigrator withPartThreads(int partThreads) {
+        setPartThreads(partThreads);
+        return this;
+    }
+
+    public BucketMigrator withMaxRetries(int maxRetries) {
+        setMaxRetries(maxRetries);
+        return this;
+    }
+
+    public BucketMigrator withRetryDelay(long retryDelay) {
+        setRetryDelay(retryDelay);
+        return this;
+    }
+
+    public BucketMigrator withCheckpointFile(File checkpointFile) {
+        setCheckpointFile(checkpointFile);
+        return this;
+    }
+
+    public BucketMigrator withCheckpointInterval(long checkpointInterval) {
+        setCheckpointInterval(checkpointInterval);
+        return this;
+    }
+
+    private class ObjectMigration implements Runnable {
+        private long sequence;
+        private S3Object source;
+        private S3Object existing;
+        private Semaphore window;
+
+        /**
+         * @param existing the listed target object with the same key (null if there is none)
+         */
+        ObjectMigration(long sequence, S3Object source, S3Object existing, Semaphore window) {
+            this.sequence = sequence;
+            this.source = source;
+            this.existing = existing;
+            this.window = window;
+        }
+
+        @Override
+        public void run() {
+            boolean success = false;
+            try {
+                boolean copied = new RetryingTask<Boolean>(maxRetries, retryDelay) {
+                    @Override
+                    protected Boolean attempt() {
+                        if (existing != null && isCopyOf(source, existing)) return false;
+                        migrateObject(source);
+                        return true;
+                    }
+
+                    @Override
+                    protected boolean isRetryable(Throwable t) {
+                        return BucketMigrator.this.isRetryable(t);
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "migrating " + source.getKey();
+                    }
+                }.call();
+                if (copied) {
+                    objectsCopied.incrementAndGet();
+                    if (source.getSize() != null) bytesCopied.addAndGet(source.getSize());
+                } else {
+                    objectsSkipped.incrementAndGet();
+                }
+                success = true;
+            } catch (InterruptedException e) {
+                log.warn("interrupted while retrying migration of {}", source.getKey());
+            } catch (Throwable t) {
+                log.warn("failed to migrate " + sourceBucket + "/" + source.getKey(), t);
+                failures.put(source.getKey(), t);
+            } finally {
+                finished(sequence, success);
+                window.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.*;
+import com.emc.object.s3.request.DeleteObjectsRequest;
+import com.emc.object.s3.request.ListObjectsRequest;
+import com.emc.object.s3.request.ListVersionsRequest;
+import com.emc.object.util.ProgressListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes a large number of keys using multi-object delete requests. Keys are read lazily from a key source (a
+ * listing, an iterator or a file), packed into batches of up to {@link #MAX_BATCH_SIZE} keys and sent by a pool of
+ * workers, so several batches are in flight at once while the source is still being read. Requests are sent in quiet
+ * mode, so responses only contain the keys that failed; only those keys are retried (with an increasing delay) in
+ * the next batch attempt, and only if the error is retryable (see {@link #isRetryable(DeleteError)}). Keys that fail
+ * with a permanent error (i.e. access denied) or still fail after {@link #setMaxRetries(int) maxRetries} are recorded
+ * (see {@link #getFailures()}) and do not stop the remaining batches; {@link #run()} throws at the end if any key
+ * failed.
+ * <p>
+ * To empty a versioned bucket, use {@link #forAllVersions(S3Client, String, String)}, which deletes every version and
+ * delete marker. Progress is reported to an optional {@link ProgressListener} (in keys rather than bytes) and
+ * keys/sec is available during or after the run.
+ * <p>
+ * Example:
+ * <pre><code>
+ * BulkDeleter deleter = BulkDeleter.forPrefix(s3Client, "my-bucket", "logs/2016/").withThreads(16);
+ * deleter.run();
+ * </code></pre>
+ */
+public class BulkDeleter implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkDeleter.class);
+
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 500; // ms
+
+    // HTTP status of the server-side error codes a multi-object delete can report per key
+    private static final Map<String, Integer> SERVER_ERROR_STATUS = new HashMap<String, Integer>();
+
+    static {
+        SERVER_ERROR_STATUS.put(S3Constants.ERROR_INTERNAL, 500);
+        SERVER_ERROR_STATUS.put("ServiceUnavailable", 503);
+        SERVER_ERROR_STATUS.put("SlowDown", 503);
+    }
+
+    /**
+     * Returns a deleter for all (current) objects in <code>bucket</code> under <code>prefix</code> (may be null)
+     */
+    public static BulkDeleter forPrefix(S3Client s3Client, String bucket, String prefix) {
+        ListObjectsRequest request = new ListObjectsRequest(bucket).withPrefix(prefix)
+                .withEncodingType(EncodingType.url);
+        final Iterator<S3Object> objects = PagedIterable.objects(s3Client, request).iterator();
+        return new BulkDeleter(s3Client, bucket, new KeyIterator<S3Object>(objects) {
+            @Override
+            protected ObjectKey toKey(S3Object object) {
+                return new ObjectKey(object.getKey());
+            }
+        });
+    }
+
+    /**
+     * Returns a deleter for all versions and delete markers in <code>bucket</code> under <code>prefix</code> (may be
+     * null)
+     */
+    public static BulkDeleter forAllVersions(S3Client s3Client, String bucket, String prefix) {
+        ListVersionsRequest request = new ListVersionsRequest(bucket).withPrefix(prefix)
+                .withEncodingType(EncodingType.url);
+        final Iterator<AbstractVersion> versions = PagedIterable.versions(s3Client, request).iterator();
+        return new BulkDeleter(s3Client, bucket, new KeyIterator<AbstractVersion>(versions) {
+            @Override
+            protected ObjectKey toKey(AbstractVersion version) {
+                return new ObjectKey(version.getKey(), version.getVersionId());
+            }
+        });
+    }
+
+    /**
+     * Returns a deleter for the keys listed in <code>file</code> (UTF-8, one key per line, optionally followed by a
+     * tab and a version ID). Blank lines are ignored.
+     */
+    public static BulkDeleter fromFile(S3Client s3Client, String bucket, File file) throws IOException {
+        return new BulkDeleter(s3Client, bucket, new KeyFileIterator(file));
+    }
+
+    private S3Client s3Client;
+    private String bucket;
+    private Iterator<ObjectKey> keys;
+    private int threads = DEFAULT_THREADS;
+    private int batchSize = MAX_BATCH_SIZE;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private ProgressListener progressListener;
+
+    private AtomicLong keysDeleted = new AtomicLong();
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong retryCount = new AtomicLong();
+    private List<DeleteError> failures = Collections.synchronizedList(new ArrayList<DeleteError>());
+    private long startTime;
+    private long endTime;
+
+    /**
+     * Creates a new BulkDeleter that will delete the keys returned by <code>keys</code> from <code>bucket</code>
+     */
+    public BulkDeleter(S3Client s3Client, String bucket, Iterator<ObjectKey> keys) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.keys = keys;
+    }
+
+    @Override
+    public void run() {
+        delete();
+    }
+
+    public void delete() {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        // bound the number of batches queued at once (each holds up to batchSize keys)
+        Semaphore window = new Semaphore(threads * 2);
+
+        startTime = System.currentTimeMillis();
+        long keyCount = 0;
+        try {
+            List<ObjectKey> batch = new ArrayList<ObjectKey>(batchSize);
+            while (keys.hasNext()) {
+                batch.add(keys.next());
+                keyCount++;
+                if (batch.size() == batchSize) {
+                    window.acquire();
+                    executorService.submit(new Batch(batch, window));
+                    batch = new ArrayList<ObjectKey>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                window.acquire();
+                executorService.submit(new Batch(batch, window));
+            }
+
+            // wait for the remaining batches
+            window.acquire(threads * 2);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted during bulk delete", e);
+        } finally {
+            endTime = System.currentTimeMillis();
+            executorService.shutdownNow();
+        }
+
+        log.info(String.format("bulk delete complete: %,d keys in %,d requests (%,d retries) in %,dms (%,.1f keys/s)",
+                keysDeleted.get(), requestCount.get(), retryCount.get(), getDuration(), getKeysPerSecond()));
+
+        if (!failures.isEmpty()) {
+            DeleteError first = failures.get(0);
+            throw new RuntimeException(String.format("%d of %d keys failed to delete (first: %s - %s: %s)",
+                    failures.size(), keyCount, first.getKey(), first.getCode(), first.getMessage()));
+        }
+    }
+
+    /**
+     * Returns true if a key that failed with <code>error</code> might be deleted if retried. Per-key errors only carry
+     * an S3 error code; server-side codes are checked with their HTTP status against
+     * {@link RetryingTask#isRetryableError(Throwable)}, and any other code is a permanent (client) error.
+     */
+    protected boolean isRetryable(DeleteError error) {
+        if (error.getCode() == null) return true;
+        Integer status = SERVER_ERROR_STATUS.get(error.getCode());
+        return status != null && RetryingTask.isRetryableError(
+                new S3Exception(error.getMessage(), status, error.getCode(), null));
+    }
+
+    /**
+     * Sends one delete request and returns the errors for the keys that were not deleted
+     */
+    protected List<DeleteError> deleteKeys(List<ObjectKey> keys) {
+        DeleteObjects deleteObjects = new DeleteObjects();
+        deleteObjects.setQuiet(true);
+        deleteObjects.setKeys(keys);
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucket);
+        request.setDeleteObjects(deleteObjects);
+
+        DeleteObjectsResult result = s3Client.deleteObjects(request);
+
+        List<DeleteError> errors = new ArrayList<DeleteError>();
+        for (AbstractDeleteResult deleteResult : result.getResults()) {
+            if (deleteResult instanceof DeleteError) errors.add((DeleteError) deleteResult);
+        }
+        return errors;
+    }
+
+    private void keysDeleted(int count) {
+        long total = keysDeleted.addAndGet(count);
+        if (progressListener != null) {
+            progressListener.transferred(count);
+            progressListener.progress(total, -1);
+        }
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public long getKeysDeleted() {
+        return keysDeleted.get();
+    }
+
+    /**
+     * Returns the number of delete requests sent (including retries)
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of retried requests
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Returns the keys that could not be deleted (after all retries), and why
+     */
+    public List<DeleteError> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<DeleteError>(failures);
+        }
+    }
+
+    /**
+     * Returns the elapsed time of the delete in milliseconds (so far, if it is still running)
+     */
+    public long getDuration() {
+        if (startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public double getKeysPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? keysDeleted.get() * 1000.0 / duration : 0;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of concurrent delete requests. Default is {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of keys per delete request. Default (and maximum) is {@link #MAX_BATCH_SIZE}
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times failed keys (or a failed request) are retried. Default is {@link #DEFAULT_MAX_RETRIES}
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the delay before the first retry in milliseconds (doubled for each further retry). Default is
+     * {@link #DEFAULT_RETRY_DELAY}
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Sets a listener to receive progress in keys (<code>total</code> is -1, since the key source is read lazily)
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public BulkDeleter withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public BulkDeleter withBatchSize(int batchSize) {
+        setBatchSize(batchSize);
+        return this;
+    }
+
+    public BulkDeleter withMaxRetries(int maxRetries) {
+        setMaxRetries(maxRetries);
+        return this;
+    }
+
+    public BulkDeleter withRetryDelay(long retryDelay) {
+        setRetryDelay(retryDelay);
+        return this;
+    }
+
+    public BulkDeleter withProgressListener(ProgressListener progressListener) {
+        setProgressListener(progressListener);
+        return this;
+    }
+
+    private class Batch implements Runnable {
+        private List<ObjectKey> keys;
+        private Semaphore window;
+
+        Batch(List<ObjectKey> keys, Semaphore window) {
+            this.keys = keys;
+            this.window = window;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<ObjectKey> remaining = keys;
+                for (int attempt = 0; !remaining.isEmpty(); attempt++) {
+                    if (attempt > 0) {
+                        retryCount.incrementAndGet();
+                        Thread.sleep(retryDelay << Math.min(attempt - 1, 10));
+                    }
+                    List<DeleteError> errors;
+                    RuntimeException requestFailure = null;
+                    try {
+                        requestCount.incrementAndGet();
+                        errors = deleteKeys(remaining);
+                        keysDeleted(remaining.size() - errors.size());
+                    } catch (RuntimeException e) {
+                        // the whole request failed; all of its keys failed with the same error
+                        log.warn("delete request for " + remaining.size() + " keys failed", e);
+                        requestFailure = e;
+                        errors = new ArrayList<DeleteError>();
+                        for (ObjectKey key : remaining) {
+                            errors.add(toError(key, e));
+                        }
+                    }
+
+                    // retry only the keys that failed with a retryable error
+                    remaining = new ArrayList<ObjectKey>();
+                    for (DeleteError error : errors) {
+                        log.debug("failed to delete {} (version {}): {}",
+                                error.getKey(), error.getVersionId(), error.getCode());
+                        boolean retryable = requestFailure != null
+                                ? RetryingTask.isRetryableError(requestFailure) : isRetryable(error);
+                        if (retryable && attempt < maxRetries)
+                            remaining.add(new ObjectKey(error.getKey(), error.getVersionId()));
+                        else failures.add(error);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.warn("interrupted while retrying delete of {} keys", keys.size());
+            } finally {
+                window.release();
+            }
+        }
+
+        private DeleteError toError(ObjectKey key, RuntimeException e) {
+            DeleteError error = new DeleteError();
+            error.setKey(key.getKey());
+            error.setVersionId(key.getVersionId());
+            error.setCode(e instanceof S3Exception ? ((S3Exception) e).getErrorCode() : e.getClass().getSimpleName());
+            error.setMessage(e.getMessage());
+            return error;
+        }
+    }
+
+    /**
+     * Adapts an iterator of listing entries to object keys
+     */
+    abstract static class KeyIterator<T> implements Iterator<ObjectKey> {
+        private Iterator<T> delegate;
+
+        KeyIterator(Iterator<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        protected abstract ObjectKey toKey(T entry);
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public ObjectKey next() {
+            return toKey(delegate.next());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads keys from a file, one per line (optionally followed by a tab and a version ID)
+     */
+    static class KeyFileIterator implements Iterator<ObjectKey> {
+        private BufferedReader reader;
+        private ObjectKey next;
+
+        KeyFileIterator(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            try {
+                String line;
+                while (next == null && (line = reader.readLine()) != null) {
+                    if (line.trim().length() == 0) continue;
+                    int tab = line.indexOf('\t');
+                    next = tab < 0 ? new ObjectKey(line) : new ObjectKey(line.substring(0, tab), line.substring(tab + 1));
+                }
+                if (next == null) reader.close();
+            } catch (IOException e) {
+                throw new RuntimeException("error reading key file", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ObjectKey next() {
+            if (next == null) throw new NoSuchElementException();
+            ObjectKey key = next;
+            advance();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
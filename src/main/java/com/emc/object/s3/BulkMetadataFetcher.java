@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.ObjectKey;
+import com.emc.object.s3.request.GetObjectMetadataRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches the metadata (HEAD) of many objects concurrently. Keys are read lazily from a key source and up to
+ * {@link #setMaxInFlight(int) maxInFlight} HEAD requests are kept outstanding; results are returned by the iterator
+ * in the order they complete (not the order of the keys). Each {@link Result} holds either the metadata or the error
+ * for its key, so a missing object does not stop the remaining keys.
+ * <p>
+ * When only a few fields are needed, set {@link #setFields(Set) fields} to skip parsing the rest of the headers.
+ * <p>
+ * Example:
+ * <pre><code>
+ * BulkMetadataFetcher fetcher = new BulkMetadataFetcher(s3Client, "my-bucket", keys)
+ *         .withMaxInFlight(64).withFields(EnumSet.of(S3ObjectMetadata.Field.ETag, S3ObjectMetadata.Field.ContentLength));
+ * for (BulkMetadataFetcher.Result result : fetcher) {
+ *     if (result.getError() != null) ...
+ * }
+ * </code></pre>
+ * Iterating to the end releases all resources; call {@link #close()} to stop early.
+ */
+public class BulkMetadataFetcher implements Iterable<BulkMetadataFetcher.Result> {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkMetadataFetcher.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    private S3Client s3Client;
+    private String bucket;
+    private Iterator<ObjectKey> keys;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private Set<S3ObjectMetadata.Field> fields;
+
+    private ExecutorService executorService;
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong errorCount = new AtomicLong();
+    private long startTime;
+    private long endTime;
+
+    /**
+     * Creates a new BulkMetadataFetcher for the (current versions of the) keys returned by <code>keys</code>
+     */
+    public BulkMetadataFetcher(S3Client s3Client, String bucket, Collection<String> keys) {
+        this(s3Client, bucket, toObjectKeys(keys.iterator()));
+    }
+
+    /**
+     * Creates a new BulkMetadataFetcher for the keys (and versions, if specified) returned by <code>keys</code>
+     */
+    public BulkMetadataFetcher(S3Client s3Client, String bucket, Iterator<ObjectKey> keys) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.keys = keys;
+    }
+
+    private static Iterator<ObjectKey> toObjectKeys(final Iterator<String> keys) {
+        return new Iterator<ObjectKey>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public ObjectKey next() {
+                return new ObjectKey(keys.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Starts fetching and returns an iterator over the results (in completion order). Can only be called once.
+     */
+    @Override
+    public synchronized Iterator<Result> iterator() {
+        if (executorService != null) throw new IllegalStateException("fetcher has already been started");
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+        executorService = Executors.newFixedThreadPool(maxInFlight);
+        startTime = System.currentTimeMillis();
+        return new ResultIterator(new ExecutorCompletionService<Result>(executorService));
+    }
+
+    /**
+     * Stops fetching (if still running)
+     */
+    public void close() {
+        if (executorService != null) executorService.shutdownNow();
+        if (endTime == 0) endTime = System.currentTimeMillis();
+    }
+
+    protected Result fetch(ObjectKey key) {
+        try {
+            GetObjectMetadataRequest request = new GetObjectMetadataRequest(bucket, key.getKey())
+                    .withVersionId(key.getVersionId()).withFields(fields);
+            requestCount.incrementAndGet();
+            return new Result(key, s3Client.getObjectMetadata(request), null);
+        } catch (Throwable t) {
+            log.debug("HEAD failed for {}/{}: {}", bucket, key.getKey(), t.toString());
+            errorCount.incrementAndGet();
+            return new Result(key, null, t);
+        }
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Returns the number of HEAD requests sent so far
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of keys that failed so far
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Returns the elapsed time in milliseconds (so far, if still running)
+     */
+    public long getDuration() {
+        if (startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public double getRequestsPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? requestCount.get() * 1000.0 / duration : 0;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of concurrent HEAD requests. Default is {@link #DEFAULT_MAX_IN_FLIGHT}
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Set<S3ObjectMetadata.Field> getFields() {
+        return fields;
+    }
+
+    /**
+     * Sets the metadata fields to parse from each response (default is all fields)
+     */
+    public void setFields(Set<S3ObjectMetadata.Field> fields) {
+        this.fields = fields;
+    }
+
+    public BulkMetadataFetcher withMaxInFlight(int maxInFlight) {
+        setMaxInFlight(maxInFlight);
+        return this;
+    }
+
+    public BulkMetadataFetcher withFields(Set<S3ObjectMetadata.Field> fields) {
+        setFields(fields);
+        return this;
+    }
+
+    /**
+     * The metadata (or the error) for one key
+     */
+    public static class Result {
+        private ObjectKey key;
+        private S3ObjectMetadata metadata;
+        private Throwable error;
+
+        public Result(ObjectKey key, S3ObjectMetadata metadata, Throwable error) {
+            this.key = key;
+            this.metadata = metadata;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key.getKey();
+        }
+
+        /**
+         * Returns the requested version ID (null if the current version was requested)
+         */
+        public String getVersionId() {
+            return key.getVersionId();
+        }
+
+        /**
+         * Returns the metadata, or null if the request failed
+         */
+        public S3ObjectMetadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * Returns the error, or null if the request succeeded
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Returns true if the request failed because the object (or version) does not exist
+         */
+        public boolean isNotFound() {
+            return error instanceof S3Exception && ((S3Exception) error).getHttpCode() == 404;
+        }
+    }
+
+    private class ResultIterator implements Iterator<Result> {
+        private CompletionService<Result> completionService;
+        private int inFlight;
+        private Result next;
+
+        ResultIterator(CompletionService<Result> completionService) {
+            this.completionService = completionService;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) next = take();
+            return next != null;
+        }
+
+        @Override
+        public Result next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Result result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Result take() {
+            // top up the window from the key source
+            while (inFlight < maxInFlight && keys.hasNext()) {
+                final ObjectKey key = keys.next();
+                completionService.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return fetch(key);
+                    }
+                });
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                close();
+                return null;
+            }
+            try {
+                Result result = completionService.take().get();
+                inFlight--;
+                return result;
+            } catch (InterruptedException e) {
+                close();
+                throw new RuntimeException("interrupted while fetching metadata", e);
+            } catch (ExecutionException e) {
+                close();
+                throw new RuntimeException("unexpected error fetching metadata", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.AccessControlList;
+import com.emc.object.s3.bean.CannedAcl;
+import com.emc.object.s3.bean.EncodingType;
+import com.emc.object.s3.bean.S3Object;
+import com.emc.object.s3.request.CopyObjectRequest;
+import com.emc.object.s3.request.ListObjectsRequest;
+import com.emc.object.s3.request.SetObjectAclRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites the metadata and/or ACL of many objects in place, with several objects in flight at once. Metadata is
+ * changed with a self-copy (replacing the metadata); when only the ACL changes, it is set directly.
+ * <p>
+ * The number of round-trips per object depends on what the update needs to know:
+ * <ul>
+ * <li>fixed {@link #setMetadata(S3ObjectMetadata) metadata}: one copy (no HEAD)</li>
+ * <li>a {@link #setMetadataTransform(MetadataTransform) metadata transform}: a HEAD to read the current metadata, then
+ * a copy (conditional on the ETag read, so a concurrent write is not overwritten; the key is then retried)</li>
+ * <li>a copy keeps the object's ACL by reading it first, as {@link S3Client#setObjectMetadata(String, String,
+ * S3ObjectMetadata)} does. That GET is skipped when an {@link #setAcl(AccessControlList) ACL} or
+ * {@link #setCannedAcl(CannedAcl) canned ACL} is provided, or when {@link #setPreserveAcl(boolean) preserveAcl} is
+ * turned off (the copy then gets the default ACL)</li>
+ * <li>an {@link #setAclTransform(AclTransform) ACL transform} always reads the current ACL</li>
+ * </ul>
+ * Transforms may return null to leave the metadata (or ACL) of an object unchanged; objects with no change are
+ * skipped. Failed keys are retried (see {@link #isRetryable(Throwable)}); keys that still fail are recorded (see
+ * {@link #getFailures()}) and {@link #run()} throws at the end if any key failed.
+ * <p>
+ * Example:
+ * <pre><code>
+ * BulkMetadataUpdater updater = BulkMetadataUpdater.forPrefix(s3Client, "my-bucket", "images/")
+ *         .withMetadataTransform(new BulkMetadataUpdater.MetadataTransform() {
+ *             public S3ObjectMetadata transform(String key, S3ObjectMetadata metadata) {
+ *                 return metadata.addUserMetadata("reviewed", "true");
+ *             }
+ *         }).withPreserveAcl(false).withThreads(32);
+ * updater.run();
+ * </code></pre>
+ */
+public class BulkMetadataUpdater implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkMetadataUpdater.class);
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 500; // ms
+
+    /**
+     * Computes the new metadata of an object from its current metadata
+     */
+    public interface MetadataTransform {
+        /**
+         * Returns the new metadata for <code>key</code> (may modify and return <code>metadata</code>), or null to
+         * leave it unchanged
+         */
+        S3ObjectMetadata transform(String key, S3ObjectMetadata metadata);
+    }
+
+    /**
+     * Computes the new ACL of an object from its current ACL
+     */
+    public interface AclTransform {
+        /**
+         * Returns the new ACL for <code>key</code> (may modify and return <code>acl</code>), or null to leave it
+         * unchanged
+         */
+        AccessControlList transform(String key, AccessControlList acl);
+    }
+
+    /**
+     * Returns an updater for all objects in <code>bucket</code> under <code>prefix</code> (may be null)
+     */
+    public static BulkMetadataUpdater forPrefix(S3Client s3Client, String bucket, String prefix) {
+        ListObjectsRequest request = new ListObjectsRequest(bucket).withPrefix(prefix)
+                .withEncodingType(EncodingType.url);
+        final Iterator<S3Object> objects = PagedIterable.objects(s3Client, request).iterator();
+        return new BulkMetadataUpdater(s3Client, bucket, new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return objects.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return objects.next().getKey();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    private S3Client s3Client;
+    private String bucket;
+    private Iterator<String> keys;
+    private S3ObjectMetadata metadata;
+    private MetadataTransform metadataTransform;
+    private AccessControlList acl;
+    private CannedAcl cannedAcl;
+    private AclTransform aclTransform;
+    private boolean preserveAcl = true;
+    private int threads = DEFAULT_THREADS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private AtomicLong objectsUpdated = new AtomicLong();
+    private AtomicLong objectsSkipped = new AtomicLong();
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong retryCount = new AtomicLong();
+    private Map<String, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<String, Throwable>());
+    private long startTime;
+    private long endTime;
+
+    /**
+     * Creates a new BulkMetadataUpdater for the keys returned by <code>keys</code>
+     */
+    public BulkMetadataUpdater(S3Client s3Client, String bucket, Iterator<String> keys) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.keys = keys;
+    }
+
+    @Override
+    public void run() {
+        update();
+    }
+
+    public void update() {
+        if (metadata == null && metadataTransform == null && acl == null && cannedAcl == null && aclTransform == null)
+            throw new IllegalArgumentException("no metadata or ACL update specified");
+        if (metadata != null && metadataTransform != null)
+            throw new IllegalArgumentException("metadata and metadataTransform are mutually exclusive");
+        if ((acl != null ? 1 : 0) + (cannedAcl != null ? 1 : 0) + (aclTransform != null ? 1 : 0) > 1)
+            throw new IllegalArgumentException("acl, cannedAcl and aclTransform are mutually exclusive");
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        // bound the number of keys queued at once
+        Semaphore window = new Semaphore(threads * 2);
+
+        startTime = System.currentTimeMillis();
+        long keyCount = 0;
+        try {
+            while (keys.hasNext()) {
+                String key = keys.next();
+                window.acquire();
+                executorService.submit(new KeyUpdate(key, window));
+                keyCount++;
+            }
+
+            // wait for the remaining keys
+            window.acquire(threads * 2);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted during bulk update", e);
+        } finally {
+            endTime = System.currentTimeMillis();
+            executorService.shutdownNow();
+        }
+
+        log.info(String.format("bulk update complete: %,d objects updated, %,d skipped in %,dms (%,.1f objects/s, %,d requests)",
+                objectsUpdated.get(), objectsSkipped.get(), getDuration(), getObjectsPerSecond(), requestCount.get()));
+
+        if (!failures.isEmpty())
+            throw new RuntimeException(String.format("%d of %d objects failed to update", failures.size(), keyCount),
+                    failures.values().iterator().next());
+    }
+
+    /**
+     * Updates one object. Returns false if there was nothing to change
+     */
+    protected boolean updateObject(String key) {
+        S3ObjectMetadata newMetadata = metadata;
+        String eTag = null;
+        if (metadataTransform != null) {
+            requestCount.incrementAndGet();
+            S3ObjectMetadata current = s3Client.getObjectMetadata(bucket, key);
+            eTag = current.getETag();
+            newMetadata = metadataTransform.transform(key, current);
+        }
+
+        AccessControlList newAcl = acl;
+        AccessControlList copyAcl = acl;
+        if (aclTransform != null || (newMetadata != null && preserveAcl && acl == null && cannedAcl == null)) {
+            requestCount.incrementAndGet();
+            copyAcl = s3Client.getObjectAcl(bucket, key);
+            if (aclTransform != null) {
+                newAcl = aclTransform.transform(key, copyAcl);
+                if (newAcl != null) copyAcl = newAcl;
+            }
+        }
+
+        if (newMetadata != null) {
+            CopyObjectRequest request = new CopyObjectRequest(bucket, key, bucket, key)
+                    .withObjectMetadata(newMetadata).withIfMatch(eTag);
+            if (cannedAcl != null) request.setCannedAcl(cannedAcl);
+            else request.setAcl(copyAcl);
+            requestCount.incrementAndGet();
+            s3Client.copyObject(request);
+        } else if (newAcl != null || cannedAcl != null) {
+            requestCount.incrementAndGet();
+            s3Client.setObjectAcl(new SetObjectAclRequest(bucket, key).withAcl(newAcl).withCannedAcl(cannedAcl));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if an update that failed with <code>t</code> might succeed if retried. Besides the errors retried by
+     * {@link RetryingTask#isRetryableError(Throwable)}, a failed condition (412) is retried, since a transformed copy
+     * is conditional on the ETag read and the retry reads the concurrently written version.
+     */
+    protected boolean isRetryable(Throwable t) {
+        if (RetryingTask.isRetryableError(t)) return true;
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof S3Exception) return ((S3Exception) t).getHttpCode() == 412;
+        }
+        return false;
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public long getObjectsUpdated() {
+        return objectsUpdated.get();
+    }
+
+    /**
+     * Returns the number of objects the transforms left unchanged
+     */
+    public long getObjectsSkipped() {
+        return objectsSkipped.get();
+    }
+
+    /**
+     * Returns the number of requests sent (HEAD, ACL GET, copy and ACL PUT, including retries)
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Returns the keys that failed to update, and why
+     */
+    public Map<String, Throwable> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<String, Throwable>(failures);
+        }
+    }
+
+    /**
+     * Returns the elapsed time of the update in milliseconds (so far, if it is still running)
+     */
+    public long getDuration() {
+        if (startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public double getObjectsPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? (objectsUpdated.get() + objectsSkipped.get()) * 1000.0 / duration : 0;
+    }
+
+    public S3ObjectMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Sets the metadata to apply to every object (replacing its existing metadata)
+     */
+    public void setMetadata(S3ObjectMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    public MetadataTransform getMetadataTransform() {
+        return metadataTransform;
+    }
+
+    /**
+     * Sets a transform to compute each object's new metadata from its current metadata (requires a HEAD per object)
+     */
+    public void setMetadataTransform(MetadataTransform metadataTransform) {
+        this.metadataTransform = metadataTransform;
+    }
+
+    public AccessControlList getAcl() {
+        return acl;
+    }
+
+    /**
+     * Sets the ACL to apply to every object
+     */
+    public void setAcl(AccessControlList acl) {
+        this.acl = acl;
+    }
+
+    public CannedAcl getCannedAcl() {
+        return cannedAcl;
+    }
+
+    /**
+     * Sets the canned ACL to apply to every object
+     */
+    public void setCannedAcl(CannedAcl cannedAcl) {
+        this.cannedAcl = cannedAcl;
+    }
+
+    public AclTransform getAclTransform() {
+        return aclTransform;
+    }
+
+    /**
+     * Sets a transform to compute each object's new ACL from its current ACL (requires an ACL GET per object)
+     */
+    public void setAclTransform(AclTransform aclTransform) {
+        this.aclTransform = aclTransform;
+    }
+
+    public boolean isPreserveAcl() {
+        return preserveAcl;
+    }
+
+    /**
+     * Whether to read and re-apply each object's ACL when its metadata is rewritten (and no ACL is provided).
+     * Turning this off saves a request per object, but the objects get the default ACL. Default is true.
+     */
+    public void setPreserveAcl(boolean preserveAcl) {
+        this.preserveAcl = preserveAcl;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of objects updated concurrently. Default is {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a failed object is retried. Default is {@link #DEFAULT_MAX_RETRIES}
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Sets the delay before the first retry in milliseconds (doubled for each further retry). Default is
+     * {@link #DEFAULT_RETRY_DELAY}
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public BulkMetadataUpdater withMetadata(S3ObjectMetadata metadata) {
+        setMetadata(metadata);
+        return this;
+    }
+
+    public BulkMetadataUpdater withMetadataTransform(MetadataTransform metadataTransform) {
+        setMetadataTransform(metadataTransform);
+        return this;
+    }
+
+    public BulkMetadataUpdater withAcl(AccessControlList acl) {
+        setAcl(acl);
+        return this;
+    }
+
+    public BulkMetadataUpdater withCannedAcl(CannedAcl cannedAcl) {
+        setCannedAcl(cannedAcl);
+        return this;
+    }
+
+    public BulkMetadataUpdater withAclTransform(AclTransform aclTransform) {
+        setAclTransform(aclTransform);
+        return this;
+    }
+
+    public BulkMetadataUpdater withPreserveAcl(boolean preserveAcl) {
+        setPreserveAcl(preserveAcl);
+        return this;
+    }
+
+    public BulkMetadataUpdater withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public BulkMetadataUpdater withMaxRetries(int maxRetries) {
+        setMaxRetries(maxRetries);
+        return this;
+    }
+
+    public BulkMetadataUpdater withRetryDelay(long retryDelay) {
+        setRetryDelay(retryDelay);
+        return this;
+    }
+
+    private class KeyUpdate implements Runnable {
+        private String key;
+        private Semaphore window;
+
+        KeyUpdate(String key, Semaphore window) {
+            this.key = key;
+            this.window = window;
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean updated = new RetryingTask<Boolean>(maxRetries, retryDelay) {
+                    private int attempts;
+
+                    @Override
+                    protected Boolean attempt() {
+                        if (attempts++ > 0) retryCount.incrementAndGet();
+                        return updateObject(key);
+                    }
+
+                    @Override
+                    protected boolean isRetryable(Throwable t) {
+                        return BulkMetadataUpdater.this.isRetryable(t);
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "updating " + bucket + "/" + key;
+                    }
+                }.call();
+                if (updated) objectsUpdated.incrementAndGet();
+                else objectsSkipped.incrementAndGet();
+            } catch (InterruptedException e) {
+                log.warn("interrupted while retrying update of {}/{}", bucket, key);
+            } catch (Throwable t) {
+                log.warn("failed to update " + bucket + "/" + key, t);
+                failures.put(key, t);
+            } finally {
+                window.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.request.PutObjectRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a directory tree (or a list of files) to a bucket. Files are streamed through a shared pool of workers
+ * rather than uploaded one at a time. Each file is routed by size: files below the MPU threshold are sent with a single
+ * PUT that runs as a task on the workers of a {@link TransferManager} (no per-file uploader or thread pool setup), and
+ * larger files are uploaded with a {@link LargeFileUploader} whose parts share the same workers. All small PUTs of a
+ * bulk upload are scheduled as one transfer, so they get a fair share of the workers at the upload's priority. Small
+ * PUTs are issued back-to-back on each worker, so they reuse the client's persistent (keep-alive) connections.
+ * <p>
+ * Directories are walked lazily and at most a bounded number of files are queued at a time, so trees with millions
+ * of files do not need to be listed up front. Symbolic links are followed, but each directory is walked only once, so
+ * a link back to an ancestor does not loop forever. Failed files are recorded (see {@link #getFailures()}) and do not
+ * stop the remaining files; {@link #run()} throws at the end if any file failed. Aggregate throughput and objects/sec
+ * are available after (or during) the upload.
+ * <p>
+ * Object keys are <code>prefix</code> + the path of the file relative to the source directory (using '/' as the
+ * separator), or <code>prefix</code> + the file name when uploading a list of files.
+ */
+public class BulkUploader implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkUploader.class);
+
+    public static final int DEFAULT_THREADS = 16;
+
+    private S3Client s3Client;
+    private String bucket;
+    private File directory;
+    private List<File> files;
+    private String prefix = "";
+    private int threads = DEFAULT_THREADS;
+    private long mpuThreshold = LargeFileUploader.DEFAULT_MPU_THRESHOLD;
+    private long partSize = LargeFileUploader.DEFAULT_PART_SIZE;
+    private TransferManager transferManager;
+    private TransferManager.Priority priority = TransferManager.Priority.BULK;
+
+    private AtomicLong filesUploaded = new AtomicLong();
+    private AtomicLong bytesUploaded = new AtomicLong();
+    private Map<File, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<File, Throwable>());
+    private long startTime;
+    private long endTime;
+
+    /**
+     * Creates a new BulkUploader that will upload all files under <code>directory</code> (recursively) to
+     * <code>bucket</code>
+     */
+    public BulkUploader(S3Client s3Client, String bucket, File directory) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a new BulkUploader that will upload the specified files to <code>bucket</code>
+     */
+    public BulkUploader(S3Client s3Client, String bucket, List<File> files) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.files = files;
+    }
+
+    @Override
+    public void run() {
+        upload();
+    }
+
+    public void upload() {
+        if (directory != null && !directory.isDirectory())
+            throw new IllegalArgumentException(directory + " is not a directory");
+        if (prefix == null) prefix = "";
+
+        TransferManager manager = transferManager;
+        if (manager == null) manager = new TransferManager(threads, threads);
+
+        // small PUTs run directly on the workers
+        ExecutorService putExecutor = manager.newTransferExecutor(priority);
+
+        // bound the number of files queued at once
+        int windowSize = Math.max(manager.getMaxActiveTransfers(), manager.getThreads()) * 2;
+        Semaphore window = new Semaphore(windowSize);
+
+        startTime = System.currentTimeMillis();
+        int fileCount = 0;
+        try {
+            Iterator<File> fileIterator = directory != null ? new DirectoryWalker(directory) : files.iterator();
+            while (fileIterator.hasNext()) {
+                File file = fileIterator.next();
+                long size = file.length();
+                window.acquire();
+                FileUpload upload = new FileUpload(manager, file, size, getKey(file), window);
+                if (size >= mpuThreshold) manager.submit(upload, priority);
+                else putExecutor.execute(upload);
+                fileCount++;
+            }
+
+            // wait for the remaining files
+            window.acquire(windowSize);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted during bulk upload", e);
+        } finally {
+            endTime = System.currentTimeMillis();
+            if (transferManager == null) manager.shutdownNow();
+        }
+
+        log.info(String.format("bulk upload complete: %,d files (%,dk) in %,dms (%,.1f objects/s, %,dk/s)",
+                filesUploaded.get(), bytesUploaded.get() / 1024, getDuration(), getObjectsPerSecond(),
+                getBytesPerSecond() / 1024));
+
+        if (!failures.isEmpty())
+            throw new RuntimeException(String.format("%d of %d files failed to upload", failures.size(), fileCount),
+                    failures.values().iterator().next());
+    }
+
+    protected String getKey(File file) {
+        if (directory == null) return prefix + file.getName();
+        return prefix + directory.toURI().relativize(file.toURI()).getPath();
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+    public long getFilesUploaded() {
+        return filesUploaded.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    /**
+     * Returns the files that failed to upload, and why
+     */
+    public Map<File, Throwable> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<File, Throwable>(failures);
+        }
+    }
+
+    /**
+     * Returns the elapsed time of the upload in milliseconds (so far, if it is still running)
+     */
+    public long getDuration() {
+        if (startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public double getObjectsPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? filesUploaded.get() * 1000.0 / duration : 0;
+    }
+
+    public long getBytesPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? bytesUploaded.get() * 1000 / duration : 0;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Sets a prefix to prepend to every object key (e.g. "backup/2017/")
+     */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of worker threads. Up to <code>threads</code> small files and <code>threads</code> parts of
+     * large files may be transferred at once. Ignored if a {@link TransferManager} is provided. Default is
+     * {@link #DEFAULT_THREADS}.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public long getMpuThreshold() {
+        return mpuThreshold;
+    }
+
+    /**
+     * Sets the size at or above which files are uploaded with MPU. Default is
+     * {@link LargeFileUploader#DEFAULT_MPU_THRESHOLD}
+     */
+    public void setMpuThreshold(long mpuThreshold) {
+        this.mpuThreshold = mpuThreshold;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the part size for files uploaded with MPU. Default is {@link LargeFileUploader#DEFAULT_PART_SIZE}
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    public TransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    /**
+     * Uses an existing transfer manager (shared with other transfers) instead of creating one. The manager will not be
+     * shut down after the upload.
+     */
+    public void setTransferManager(TransferManager transferManager) {
+        this.transferManager = transferManager;
+    }
+
+    public TransferManager.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of this upload's files within the transfer manager. Default is
+     * {@link TransferManager.Priority#BULK}
+     */
+    public void setPriority(TransferManager.Priority priority) {
+        this.priority = priority;
+    }
+
+    public BulkUploader withPrefix(String prefix) {
+        setPrefix(prefix);
+        return this;
+    }
+
+    public BulkUploader withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public BulkUploader withMpuThreshold(long mpuThreshold) {
+        setMpuThreshold(mpuThreshold);
+        return this;
+    }
+
+    public BulkUploader withPartSize(long partSize) {
+        setPartSize(partSize);
+        return this;
+    }
+
+    public BulkUploader withTransferManager(TransferManager transferManager) {
+        setTransferManager(transferManager);
+        return this;
+    }
+
+    public BulkUploader withPriority(TransferManager.Priority priority) {
+        setPriority(priority);
+        return this;
+    }
+
+    private class FileUpload implements Runnable {
+        private TransferManager manager;
+        private File file;
+        private long size;
+        private String key;
+        private Semaphore window;
+
+        FileUpload(TransferManager manager, File file, long size, String key, Semaphore window) {
+            this.manager = manager;
+            this.file = file;
+            this.size = size;
+            this.key = key;
+            this.window = window;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (size >= mpuThreshold) {
+                    LargeFileUploader uploader = new LargeFileUploader(s3Client, bucket, key, file);
+                    uploader.setPartSize(partSize);
+                    uploader.setExecutorService(manager.newTransferExecutor(priority));
+                    uploader.doMultipartUpload();
+                } else {
+                    s3Client.putObject(new PutObjectRequest(bucket, key, file));
+                }
+                filesUploaded.incrementAndGet();
+                bytesUploaded.addAndGet(size);
+            } catch (Throwable t) {
+                log.warn("failed to upload " + file + " to " + bucket + "/" + key, t);
+                failures.put(file, t);
+            } finally {
+                window.release();
+            }
+        }
+    }
+
+    /**
+     * Iterates the regular files under a directory depth-first, listing each directory only when it is reached.
+     * Directories are identified by their canonical path, so one reached again through a symbolic link is skipped.
+     */
+    static class DirectoryWalker implements Iterator<File> {
+        private LinkedList<File> stack = new LinkedList<File>();
+        private Set<String> visited = new HashSet<String>();
+        private File next;
+
+        DirectoryWalker(File directory) {
+            stack.push(directory);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !stack.isEmpty()) {
+                File file = stack.pop();
+                if (file.isDirectory()) {
+                    if (!visited.add(canonicalPath(file))) {
+                        log.info("skipping {}; directory was already walked", file);
+                        continue;
+                    }
+                    File[] children = file.listFiles();
+                    if (children == null) continue;
+                    Arrays.sort(children);
+                    for (int i = children.length - 1; i >= 0; i--) {
+                        stack.push(children[i]);
+                    }
+                } else if (file.isFile()) {
+                    next = file;
+                }
+            }
+        }
+
+        private String canonicalPath(File directory) {
+            try {
+                return directory.getCanonicalPath();
+            } catch (IOException e) {
+                log.warn("could not resolve canonical path of " + directory, e);
+                return directory.getAbsolutePath();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public File next() {
+            if (next == null) throw new NoSuchElementException();
+            File file = next;
+            advance();
+            return file;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
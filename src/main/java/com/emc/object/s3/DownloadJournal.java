@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A local checkpoint file that records the state of a parallel download (object size, ETag and each byte range that has
+ * been written to the target file) so that a failed download can be resumed later by fetching only the missing ranges.
+ * Like {@link MultipartUploadJournal}, this is a simple line-based text file; each completed range is appended (and
+ * synced to disk) as soon as its data has been flushed to the target file.
+ */
+public class DownloadJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadJournal.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String PROP_BUCKET = "bucket";
+    private static final String PROP_KEY = "key";
+    private static final String PROP_ETAG = "eTag";
+    private static final String PROP_OBJECT_SIZE = "objectSize";
+    private static final String PROP_RANGE = "range";
+
+    /**
+     * Reads an existing journal. Returns <code>null</code> if the file does not exist or cannot be parsed.
+     */
+    public static DownloadJournal read(File file) throws IOException {
+        if (!file.exists()) return null;
+
+        DownloadJournal journal = new DownloadJournal(file);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int eq = line.indexOf('=');
+                if (eq < 0) continue; // partial (torn) line
+                String name = line.substring(0, eq), value = URLDecoder.decode(line.substring(eq + 1), ENCODING);
+
+                if (PROP_BUCKET.equals(name)) journal.bucket = value;
+                else if (PROP_KEY.equals(name)) journal.key = value;
+                else if (PROP_ETAG.equals(name)) journal.eTag = value;
+                else if (PROP_OBJECT_SIZE.equals(name)) journal.objectSize = Long.parseLong(value);
+                else if (PROP_RANGE.equals(name)) {
+                    int dash = value.indexOf('-');
+                    if (dash < 0) continue;
+                    journal.addRange(Long.parseLong(value.substring(0, dash)), Long.parseLong(value.substring(dash + 1)));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("could not parse download journal " + file.getPath(), e);
+            return null;
+        } finally {
+            reader.close();
+        }
+
+        if (journal.eTag == null || journal.objectSize <= 0) {
+            log.warn("download journal {} is incomplete and will be ignored", file.getPath());
+            return null;
+        }
+        return journal;
+    }
+
+    private File file;
+    private String bucket;
+    private String key;
+    private String eTag;
+    private long objectSize;
+    // completed ranges (first byte to last byte), merged when adjacent
+    private final SortedMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    private DownloadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates a new journal for the specified download, overwriting any existing file.
+     */
+    public DownloadJournal(File file, String bucket, String key, String eTag, long objectSize) throws IOException {
+        this.file = file;
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = eTag;
+        this.objectSize = objectSize;
+
+        StringBuilder header = new StringBuilder();
+        header.append(line(PROP_BUCKET, bucket));
+        header.append(line(PROP_KEY, key));
+        header.append(line(PROP_ETAG, eTag));
+        header.append(line(PROP_OBJECT_SIZE, Long.toString(objectSize)));
+        write(header.toString(), false);
+    }
+
+    /**
+     * Returns whether this journal describes a download of the same version (ETag and size) of the same object.
+     */
+    public boolean matches(String bucket, String key, String eTag, long objectSize) {
+        return bucket.equals(this.bucket) && key.equals(this.key) && eTag != null && eTag.equals(this.eTag)
+                && objectSize == this.objectSize;
+    }
+
+    /**
+     * Records a completed range. The range's data must already be flushed to the target file. This is synchronized
+     * and the journal is synced to disk before returning.
+     */
+    public synchronized void rangeCompleted(Range range) throws IOException {
+        write(line(PROP_RANGE, range.getFirst() + "-" + range.getLast()), true);
+        addRange(range.getFirst(), range.getLast());
+    }
+
+    /**
+     * Returns the ranges of the object that have not been completed, in order
+     */
+    public synchronized List<Range> getMissingRanges() {
+        List<Range> missing = new ArrayList<Range>();
+        long next = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() > next) missing.add(new Range(next, range.getKey() - 1));
+            next = Math.max(next, range.getValue() + 1);
+        }
+        if (next < objectSize) missing.add(new Range(next, objectSize - 1));
+        return missing;
+    }
+
+    /**
+     * Returns the number of bytes already completed
+     */
+    public synchronized long getCompletedSize() {
+        long size = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            size += range.getValue() - range.getKey() + 1;
+        }
+        return size;
+    }
+
+    /**
+     * Deletes the journal file (after the download is complete or is abandoned)
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) log.warn("could not delete download journal {}", file.getPath());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public long getObjectSize() {
+        return objectSize;
+    }
+
+    private void addRange(long first, long last) {
+        // merge with any overlapping or adjacent ranges
+        SortedMap<Long, Long> before = ranges.headMap(first + 1);
+        if (!before.isEmpty() && before.get(before.lastKey()) >= first - 1) {
+            first = before.lastKey();
+            last = Math.max(last, before.get(first));
+        }
+        while (true) {
+            SortedMap<Long, Long> after = ranges.tailMap(first + 1);
+            if (after.isEmpty() || after.firstKey() > last + 1) break;
+            last = Math.max(last, ranges.remove(after.firstKey()));
+        }
+        ranges.put(first, last);
+    }
+
+    private String line(String name, String value) throws UnsupportedEncodingException {
+        return name + "=" + URLEncoder.encode(value, ENCODING) + "\n";
+    }
+
+    private void write(String data, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(data.getBytes(ENCODING));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
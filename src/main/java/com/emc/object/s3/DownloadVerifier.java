@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies a parallel (ranged) download against the object's ETag using the data as it is downloaded (the target file
+ * is never read back):
+ * <ul>
+ * <li>for single-part objects (ETag is the MD5 of the object), the object digest is updated in order as data streams
+ * through the part tasks (see {@link #update(long, byte[], int, int)}). Data that arrives ahead of the digest is
+ * buffered in memory up to <code>maxBufferSize</code>; beyond that, the part that is ahead waits for the parts before
+ * it</li>
+ * <li>for multipart objects (ETag <code>{md5-of-part-md5s}-{partCount}</code>), the digest of each upload part is
+ * computed as it is downloaded (see {@link #rangeCompleted(Range, byte[])}), and the part digests are combined into the
+ * ETag. This requires the part size of the upload, which is not recorded anywhere, so it must be known by the caller;
+ * each downloaded range must be exactly one upload part</li>
+ * </ul>
+ */
+public class DownloadVerifier {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadVerifier.class);
+
+    private static final Pattern ETAG_PATTERN = Pattern.compile("^([0-9a-fA-F]{32})(?:-([0-9]+))?$");
+
+    /**
+     * Returns a verifier for the specified ETag, or <code>null</code> if the ETag cannot be verified. That is the case if
+     * it is not an MD5-based value (i.e. encrypted objects or unknown formats), or if it is a multipart ETag and
+     * <code>uploadPartSize</code> is unknown (0) or does not produce the ETag's part count.
+     *
+     * @param uploadPartSize the part size used to upload a multipart object (all parts but the last are this size)
+     * @param maxBufferSize  the most data of a single-part object that may be buffered ahead of the object digest
+     */
+    public static DownloadVerifier forETag(String eTag, long objectSize, long uploadPartSize, long maxBufferSize) {
+        if (eTag == null) return null;
+        Matcher matcher = ETAG_PATTERN.matcher(eTag);
+        if (!matcher.matches()) return null;
+
+        if (matcher.group(2) == null) return new DownloadVerifier(eTag, objectSize, 0, maxBufferSize);
+
+        if (uploadPartSize <= 0) {
+            log.debug("upload part size of multipart ETag {} is unknown", eTag);
+            return null;
+        }
+        long partCount = Long.parseLong(matcher.group(2));
+        if (partCount != Math.max(1, (objectSize + uploadPartSize - 1) / uploadPartSize)) {
+            log.debug(String.format("upload part size %,dk does not match the part count of ETag %s",
+                    uploadPartSize / 1024, eTag));
+            return null;
+        }
+        return new DownloadVerifier(eTag, objectSize, uploadPartSize, maxBufferSize);
+    }
+
+    private String eTag;
+    private long objectSize;
+    private long partSize;
+    private long maxBufferSize;
+    private String actualETag;
+
+    // digests of completed parts (first byte -> digest; multipart objects only)
+    private Map<Long, RangeDigest> rangeDigests = new ConcurrentHashMap<Long, RangeDigest>();
+
+    // sequential object digest (single-part objects only)
+    private MessageDigest objectDigest;
+    private SortedMap<Long, byte[]> buffered = new TreeMap<Long, byte[]>();
+    private long bufferedSize;
+    private long cursor;
+
+    protected DownloadVerifier(String eTag, long objectSize, long partSize, long maxBufferSize) {
+        this.eTag = eTag;
+        this.objectSize = objectSize;
+        this.partSize = partSize;
+        this.maxBufferSize = maxBufferSize;
+        if (!isMultipart()) objectDigest = newMd5();
+    }
+
+    /**
+     * Adds downloaded data of a single-part object to the object digest. Data at the digest's position is digested
+     * right away (along with any buffered data that follows it); data further ahead is copied into a buffer. If the
+     * buffer is full, this waits until the data before <code>position</code> has been digested. Data that was already
+     * digested (i.e. by a failed attempt of the same range) is ignored. This may be called concurrently from multiple
+     * threads.
+     */
+    public synchronized void update(long position, byte[] data, int offset, int length) throws InterruptedException {
+        if (isMultipart()) throw new IllegalStateException("multipart objects are verified per part");
+
+        while (position > cursor && bufferedSize + length > maxBufferSize) {
+            wait();
+        }
+
+        if (position > cursor) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            byte[] replaced = buffered.put(position, copy);
+            bufferedSize += length - (replaced != null ? replaced.length : 0);
+            return;
+        }
+
+        digest(position, data, offset, length);
+
+        // digest any buffered data that is now in order
+        while (!buffered.isEmpty() && buffered.firstKey() <= cursor) {
+            long first = buffered.firstKey();
+            byte[] next = buffered.remove(first);
+            bufferedSize -= next.length;
+            digest(first, next, 0, next.length);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records the MD5 of a completed part of a multipart object. The range must be exactly one upload part. This may be
+     * called concurrently from multiple threads.
+     */
+    public void rangeCompleted(Range range, byte[] md5) {
+        if (!isMultipart()) throw new IllegalStateException("single-part objects are verified in order");
+        rangeDigests.put(range.getFirst(), new RangeDigest(range.getLast(), md5));
+    }
+
+    /**
+     * Returns the digest recorded for the specified range, or <code>null</code> if none was recorded
+     */
+    public byte[] getRangeDigest(Range range) {
+        RangeDigest digest = rangeDigests.get(range.getFirst());
+        return digest != null && digest.last == range.getLast() ? digest.md5 : null;
+    }
+
+    /**
+     * Returns whether all downloaded data matches the ETag. All ranges must be completed first.
+     *
+     * @throws IllegalStateException if some of the data was never provided
+     */
+    public boolean verify() {
+        actualETag = computeETag();
+        if (eTag.equalsIgnoreCase(actualETag)) return true;
+        log.warn("checksum of downloaded data ({}) does not match object ETag ({})", actualETag, eTag);
+        return false;
+    }
+
+    /**
+     * Computes the ETag of the downloaded data
+     */
+    protected String computeETag() {
+        if (isMultipart()) {
+            MessageDigest combined = newMd5();
+            int partCount = 0;
+            for (long offset = 0; offset < objectSize || partCount == 0; offset += partSize) {
+                Range part = new Range(offset, Math.min(offset + partSize, objectSize) - 1);
+                byte[] md5 = getRangeDigest(part);
+                if (md5 == null) throw new IllegalStateException("no digest for part " + (partCount + 1));
+                combined.update(md5);
+                partCount++;
+            }
+            return DatatypeConverter.printHexBinary(combined.digest()).toLowerCase() + "-" + partCount;
+        } else {
+            synchronized (this) {
+                if (cursor != objectSize)
+                    throw new IllegalStateException(String.format("only %d of %d bytes were digested", cursor, objectSize));
+                return DatatypeConverter.printHexBinary(objectDigest.digest()).toLowerCase();
+            }
+        }
+    }
+
+    // lock must be held; skips data before the cursor
+    private void digest(long position, byte[] data, int offset, int length) {
+        long end = position + length;
+        if (end <= cursor) return;
+        int skip = (int) (cursor - position);
+        objectDigest.update(data, offset + skip, length - skip);
+        cursor = end;
+    }
+
+    private MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("fatal: MD5 algorithm not found");
+        }
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Returns the ETag computed from the downloaded data by the last call to {@link #verify()}
+     */
+    public String getActualETag() {
+        return actualETag;
+    }
+
+    public long getObjectSize() {
+        return objectSize;
+    }
+
+    /**
+     * Returns whether the object is a multipart object (whose ETag is a combination of the part digests)
+     */
+    public boolean isMultipart() {
+        return partSize > 0;
+    }
+
+    /**
+     * Returns the upload part size of a multipart object, or 0 for single-part objects. Each downloaded range must be
+     * exactly one part of this size.
+     */
+    public long getPartSize() {
+        return partSize;
+    }
+
+    private static class RangeDigest {
+        private long last;
+        private byte[] md5;
+
+        RangeDigest(long last, byte[] md5) {
+            this.last = last;
+            this.md5 = md5;
+        }
+    }
+}
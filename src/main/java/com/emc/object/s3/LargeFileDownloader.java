@@ -27,9 +27,13 @@
 package com.emc.object.s3;
 
 import com.emc.object.Range;
+import com.emc.object.s3.bean.GetObjectResult;
+import com.emc.object.s3.request.GetObjectRequest;
+import com.emc.object.util.ChecksumError;
 import com.emc.object.util.ProgressInputStream;
 import com.emc.object.util.ProgressListener;
 import com.emc.object.util.ProgressOutputStream;
+import com.emc.object.util.TaskWindow;
 import com.emc.rest.util.StreamUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +41,13 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -48,6 +56,18 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Convenience class to facilitate multi-threaded download for large objects. This class will split the object
  * and download it in parts, transferring several parts simultaneously to maximize efficiency.
+ * <p>
+ * Each part is retried independently if it fails (see {@link #setPartRetries(int)}). When a
+ * {@link #setJournalFile(File) journal file} is set, completed ranges are recorded as they are written, so a failed
+ * download can be resumed later by fetching only the missing ranges.
+ * <p>
+ * Parallel downloads can be {@link #setVerifyChecksum(boolean) verified} against the object's ETag (when it is
+ * MD5-based) using digests computed from the data as it is downloaded (see {@link DownloadVerifier}), so the target
+ * file is not read a second time.
+ * <p>
+ * To save a round-trip per download, {@link #setSkipHead(boolean) skipHead} can be enabled, in which case the first
+ * range is requested immediately (instead of a HEAD request) and the object size is read from its
+ * <code>Content-Range</code>.
  */
 public class LargeFileDownloader implements Runnable, ProgressListener {
 
@@ -60,19 +80,48 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
 
     public static final int DEFAULT_THREADS = 8;
 
+    public static final int DEFAULT_AUTO_TUNE_MAX_THREADS = 32;
+    public static final long DEFAULT_AUTO_TUNE_MEMORY_CAP = 2L * 1024 * 1024 * 1024; // 2GB
+
+    public static final int DEFAULT_WRITE_BUFFER_SIZE = 256 * 1024; // 256KB
+
+    public static final long DEFAULT_VERIFY_BUFFER_SIZE = 64 * 1024 * 1024; // 64MB
+
+    public static final int DEFAULT_PART_RETRIES = 3;
+    public static final long DEFAULT_PART_RETRY_DELAY = 1000; // 1 second
+
     private S3Client s3Client;
     private String bucket;
     private String key;
     private File file;
     private Long objectSize;
+    private String eTag;
     private AtomicLong bytesTransferred = new AtomicLong();
 
     private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
     private long partSize = DEFAULT_PART_SIZE;
     private int threads = DEFAULT_THREADS;
+    private int writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
+    private int partRetries = DEFAULT_PART_RETRIES;
+    private boolean verifyChecksum;
+    private long uploadPartSize;
+    private long verifyBufferSize = DEFAULT_VERIFY_BUFFER_SIZE;
+    private boolean skipHead;
+    private long partRetryDelay = DEFAULT_PART_RETRY_DELAY;
+    private boolean autoTune;
+    private int autoTuneMaxThreads = DEFAULT_AUTO_TUNE_MAX_THREADS;
+    private long autoTuneMemoryCap = DEFAULT_AUTO_TUNE_MEMORY_CAP;
+    private TransferTuner tuner;
     private ExecutorService executorService;
     private ProgressListener progressListener;
 
+    private File journalFile;
+    private DownloadJournal journal;
+    private DownloadVerifier verifier;
+    private Range firstRange;
+    private InputStream firstRangeStream;
+    private Queue<byte[]> writeBuffers = new ConcurrentLinkedQueue<byte[]>();
+
     /**
      * Creates a new LargeFileDownloader instance that will use <code>s3Client</code> to download
      * <code>bucket/key</code> to <code>file</code>.
@@ -108,20 +157,119 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
      * Note the default threshold is {@link #DEFAULT_PARALLEL_THRESHOLD}. Also note that the defaults in this class are
      * optimized for high-speed LAN connectivity. When operating over a WAN or a slower connection, you should reduce
      * the {@link #setParallelThreshold(long)} parallel threshold} and {@link #setPartSize(long) part size}
-     * proportionately.
+     * proportionately, or enable {@link #setAutoTune(boolean) auto-tuning}.
      */
     public void download() {
         try {
-            // get object metadata (for size)
-            S3ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
-            objectSize = metadata.getContentLength();
-            if (objectSize >= parallelThreshold)
+            boolean complete = callOnExecutor(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (skipHead) {
+                        // get the first range (for size)
+                        return readFirstRange();
+                    } else {
+                        // get object metadata (for size)
+                        S3ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+                        objectSize = metadata.getContentLength();
+                        eTag = metadata.getETag();
+                        return false;
+                    }
+                }
+            });
+            if (complete) return;
+
+            if (objectSize >= parallelThreshold) {
                 doParallelDownload();
-            else
-                doSingleDownload();
+            } else {
+                callOnExecutor(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        doSingleDownload();
+                        return null;
+                    }
+                });
+            }
         } catch (Exception e) {
             throw new RuntimeException("error downloading file", e);
+        } finally {
+            closeFirstRange();
+        }
+    }
+
+    /**
+     * Runs a single request on the provided executor (i.e. a transfer manager's workers), so it counts against the
+     * executor's thread budget instead of the calling thread's. If no executor is provided, the request runs in the
+     * calling thread.
+     */
+    protected <T> T callOnExecutor(Callable<T> request) throws Exception {
+        if (executorService == null) return request.call();
+        Future<T> future = executorService.submit(request);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Requests the first range of the object (instead of a HEAD request) and reads the object size and ETag from the
+     * response. The open response is kept and used for the first range of the download. Returns true if the download
+     * is already complete (an empty object, or a server that ignored the range and sent the whole object).
+     */
+    protected boolean readFirstRange() throws IOException {
+        // a multipart ETag is verified per upload part, so the first range must then be exactly the first upload part
+        long firstLength = verifyChecksum && uploadPartSize > 0 ? uploadPartSize : partSize;
+        GetObjectResult<InputStream> result;
+        try {
+            GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(new Range(0L, firstLength - 1));
+            result = s3Client.getObject(request, InputStream.class);
+        } catch (S3Exception e) {
+            if (e.getHttpCode() != 416) throw e;
+            // range not satisfiable means the object is empty
+            objectSize = 0L;
+            new FileOutputStream(file).close();
+            return true;
+        }
+
+        S3ObjectMetadata metadata = result.getObjectMetadata();
+        eTag = metadata.getETag();
+        objectSize = result.getObjectSize();
+        if (objectSize == null) {
+            // not a ranged response; this is the whole object
+            objectSize = metadata.getContentLength();
+            StreamUtil.copy(result.getObject(), new ProgressOutputStream(new FileOutputStream(file), this),
+                    objectSize);
+            return true;
+        }
+
+        firstRange = new Range(0L, Math.min(firstLength, objectSize) - 1);
+        firstRangeStream = result.getObject();
+        return false;
+    }
+
+    /**
+     * Returns the already-open stream of the first range if <code>range</code> starts with it (the caller then owns the
+     * stream), otherwise <code>null</code>
+     */
+    protected InputStream takeFirstRange(Range range) {
+        if (firstRangeStream == null || range.getFirst() != 0 || range.getLast() < firstRange.getLast()) return null;
+        InputStream stream = firstRangeStream;
+        firstRangeStream = null;
+        return stream;
+    }
+
+    protected void closeFirstRange() {
+        if (firstRangeStream == null) return;
+        try {
+            firstRangeStream.close();
+        } catch (Throwable t) {
+            log.warn("could not close object stream", t);
         }
+        firstRangeStream = null;
     }
 
     protected void doSingleDownload() throws IOException {
@@ -129,6 +277,25 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
 
         os = new ProgressOutputStream(os, this);
 
+        InputStream first = takeFirstRange(new Range(0L, objectSize - 1));
+        if (first != null) {
+            // we already have the first range; get the rest (if any) with a second request
+            long firstLength = firstRange.getLast() + 1;
+            try {
+                StreamUtil.copy(first, new NonClosingOutputStream(os), firstLength);
+                if (firstLength < objectSize) {
+                    GetObjectRequest request = new GetObjectRequest(bucket, key)
+                            .withRange(new Range(firstLength, objectSize - 1)).withIfMatch(eTag);
+                    GetObjectResult<InputStream> result = s3Client.getObject(request, InputStream.class);
+                    if (result == null) throw new S3Exception("object " + bucket + "/" + key + " has changed", 412);
+                    StreamUtil.copy(result.getObject(), new NonClosingOutputStream(os), objectSize - firstLength);
+                }
+            } finally {
+                os.close();
+            }
+            return;
+        }
+
         StreamUtil.copy(s3Client.readObjectStream(bucket, key, null), os, objectSize);
     }
 
@@ -143,43 +310,137 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
             partSize = MIN_PART_SIZE;
         }
 
+        // set up auto-tuning
+        if (autoTune) {
+            tuner = new TransferTuner("download " + bucket + "/" + key, Math.min(threads, autoTuneMaxThreads),
+                    autoTuneMaxThreads, partSize, MIN_PART_SIZE, Math.max(MIN_PART_SIZE, autoTuneMemoryCap),
+                    autoTuneMemoryCap);
+        }
+
         // set up thread pool
         boolean shutdownThreadPool = false;
         if (executorService == null) {
-            executorService = Executors.newFixedThreadPool(threads);
+            executorService = Executors.newFixedThreadPool(autoTune ? autoTuneMaxThreads : threads);
             shutdownThreadPool = true;
         }
-        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        TaskWindow<Void> tasks = new TaskWindow<Void>(executorService);
+
+        // resume or start the journal (if enabled)
+        boolean resuming = resumeJournal();
 
+        // open file for random write
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
         try {
-            // open file for random write
-            RandomAccessFile raFile = new RandomAccessFile(file, "rw");
-            raFile.setLength(objectSize);
+            if (!resuming) raFile.setLength(objectSize);
             FileChannel channel = raFile.getChannel();
 
+            List<Range> ranges;
+            if (journal != null) ranges = journal.getMissingRanges();
+            else ranges = Collections.singletonList(new Range(0L, objectSize - 1));
+
+            // set up verification
+            if (verifyChecksum) createVerifier(resuming);
+
+            // generate download tasks (only a bounded window of parts is queued or in flight at any time)
+            for (Range range : ranges) {
+                long offset = range.getFirst(), end = range.getLast() + 1, length;
+
+                // use the first range if we already have it open
+                InputStream first = takeFirstRange(range);
+                if (first != null) {
+                    tasks.submit(new DownloadPartTask(firstRange, channel, first));
+                    offset = firstRange.getLast() + 1;
+                }
+
+                while (offset < end) {
+                    length = tuner != null && tuner.isTunePartSize() ? tuner.getPartSize() : partSize;
+                    if (verifier != null && verifier.isMultipart())
+                        length = uploadPartSize - offset % uploadPartSize; // one upload part per range
+                    if (offset + length > end) length = end - offset;
 
-            // submit all download tasks
-            long offset = 0, length = partSize;
-            while (offset < objectSize) {
-                if (offset + length > objectSize) length = objectSize - offset;
-                futures.add(executorService.submit(new DownloadPartTask(Range.fromOffsetLength(offset, length), channel)));
-                offset += length;
+                    // limit the number of parts in flight (the first failure is thrown immediately)
+                    tasks.awaitCapacity(tuner != null ? tuner.getConcurrency() : threads * 2);
+
+                    tasks.submit(new DownloadPartTask(Range.fromOffsetLength(offset, length), channel));
+                    offset += length;
+                }
             }
 
             // wait for threads to finish
-            for (Future<Void> future : futures) {
-                future.get();
-            }
+            tasks.awaitAll();
+
+            // verify the data
+            if (verifier != null && !verifier.verify())
+                throw new ChecksumError("checksum of " + bucket + "/" + key + " does not match its ETag ", eTag,
+                        verifier.getActualETag());
+
+            if (journal != null) journal.delete();
+
+            if (tuner != null) log.info("download complete; final auto-tune settings: {}", tuner);
+        } catch (Exception e) {
+
+            // stop any parts that are still queued or in flight
+            tasks.cancelAll();
+
+            // a changed (or corrupt) object cannot be resumed
+            if (journal != null && (isPreconditionFailure(e) || e instanceof ChecksumError)) journal.delete();
+            throw e;
+        } finally {
 
             // close file
             raFile.close();
-        } finally {
 
             // make sure all spawned threads are shut down
             if (shutdownThreadPool) executorService.shutdown();
         }
     }
 
+    /**
+     * Reads the journal (if enabled) and checks that it matches this object and the existing target file. Returns
+     * whether the download is being resumed (in which case the target file must not be truncated).
+     */
+    protected boolean resumeJournal() throws IOException {
+        if (journalFile == null) return false;
+        if (eTag == null) throw new IllegalStateException("object ETag is required to resume downloads");
+
+        journal = DownloadJournal.read(journalFile);
+        if (journal != null) {
+            if (journal.matches(bucket, key, eTag, objectSize) && file.exists() && file.length() == objectSize) {
+                long completed = journal.getCompletedSize();
+                log.info(String.format("resuming download of %s/%s; %,dk of %,dk already complete",
+                        bucket, key, completed / 1024, objectSize / 1024));
+                transferred(completed);
+                return true;
+            }
+            log.info("download journal {} does not match object {}/{} (or target file); starting over",
+                    journalFile.getPath(), bucket, key);
+        }
+        journal = new DownloadJournal(journalFile, bucket, key, eTag, objectSize);
+        return false;
+    }
+
+    /**
+     * Creates the verifier for this download, if the ETag can be verified from the data downloaded in this attempt.
+     * A resumed download is not verified, because the ranges completed earlier would have to be read back from the
+     * target file.
+     */
+    protected void createVerifier(boolean resuming) {
+        if (resuming) {
+            log.info("resumed download of {}/{} will not be verified", bucket, key);
+            return;
+        }
+        verifier = DownloadVerifier.forETag(eTag, objectSize, uploadPartSize, verifyBufferSize);
+        if (verifier == null) log.info("ETag {} of {}/{} cannot be verified", eTag, bucket, key);
+        else if (verifier.isMultipart() && tuner != null) tuner.setTunePartSize(false);
+    }
+
+    protected boolean isPreconditionFailure(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof S3Exception) return ((S3Exception) t).getHttpCode() == 412;
+        }
+        return false;
+    }
+
     public S3Client getS3Client() {
         return s3Client;
     }
@@ -200,6 +461,13 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
         return objectSize;
     }
 
+    /**
+     * Returns the ETag of the object (available after the download starts)
+     */
+    public String getETag() {
+        return eTag;
+    }
+
     public long getBytesTransferred() {
         return bytesTransferred.get();
     }
@@ -241,6 +509,165 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
         this.threads = threads;
     }
 
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * Sets the size of the buffer each part is read into before it is written to the file. Larger buffers mean fewer
+     * (larger) positional writes. Buffers are pooled and reused across parts, so there is one per concurrent part.
+     * Note the default is {@link #DEFAULT_WRITE_BUFFER_SIZE}
+     */
+    public void setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public boolean isSkipHead() {
+        return skipHead;
+    }
+
+    /**
+     * When enabled, {@link #download()} requests the first range (of {@link #setPartSize(long) partSize} bytes)
+     * right away instead of making a HEAD request first. The object size is read from the response's
+     * <code>Content-Range</code>, and the bytes already received are used as the first part of the download, whether it
+     * continues as a single-GET (one more request for the rest, if any) or in parallel. This saves a round-trip per
+     * download, which matters most for many medium-size objects. Disabled by default.
+     */
+    public void setSkipHead(boolean skipHead) {
+        this.skipHead = skipHead;
+    }
+
+    public boolean isVerifyChecksum() {
+        return verifyChecksum;
+    }
+
+    /**
+     * Enables or disables verification of parallel downloads against the object's ETag. Disabled by default. Objects
+     * uploaded with a single PUT are always verifiable. Multipart objects are only verified if the
+     * {@link #setUploadPartSize(long) upload part size} is known (otherwise they are downloaded without verification),
+     * in which case each range is one upload part (the part size is not used or auto-tuned). Resumed downloads are not
+     * verified. A download whose data does not match fails with a {@link ChecksumError}.
+     *
+     * @see DownloadVerifier
+     */
+    public void setVerifyChecksum(boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    public long getUploadPartSize() {
+        return uploadPartSize;
+    }
+
+    /**
+     * Sets the part size that was used to upload the object (i.e. the part size of the {@link LargeFileUploader} that
+     * created it), so a multipart object can be verified. Ignored if the object's part count does not match.
+     */
+    public void setUploadPartSize(long uploadPartSize) {
+        this.uploadPartSize = uploadPartSize;
+    }
+
+    public long getVerifyBufferSize() {
+        return verifyBufferSize;
+    }
+
+    /**
+     * Sets how much data may be buffered in memory while verifying an object uploaded with a single PUT. Its digest
+     * must be computed in order, so data downloaded ahead of it is buffered; when the buffer is full, parts wait for
+     * the data before them. Note the default is {@link #DEFAULT_VERIFY_BUFFER_SIZE}
+     */
+    public void setVerifyBufferSize(long verifyBufferSize) {
+        this.verifyBufferSize = verifyBufferSize;
+    }
+
+    public int getPartRetries() {
+        return partRetries;
+    }
+
+    /**
+     * Sets the number of times a failed part will be retried before the download fails. Note that these retries are
+     * in addition to any retries done by the client itself. Note the default is {@link #DEFAULT_PART_RETRIES}.
+     */
+    public void setPartRetries(int partRetries) {
+        this.partRetries = partRetries;
+    }
+
+    public long getPartRetryDelay() {
+        return partRetryDelay;
+    }
+
+    /**
+     * Sets the initial delay (in milliseconds) before retrying a failed part. The delay doubles with each retry. Note
+     * the default is {@link #DEFAULT_PART_RETRY_DELAY}
+     */
+    public void setPartRetryDelay(long partRetryDelay) {
+        this.partRetryDelay = partRetryDelay;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Enables resumable parallel downloads. The object's ETag and size and each completed byte range are recorded in
+     * <code>journalFile</code> (typically next to the target file, e.g. <code>file.getPath() + ".journal"</code>). If
+     * the download fails, the partially written target file is kept, and calling {@link #download()} again (with the
+     * same journal and target file) will fetch only the missing ranges. Every range is requested with
+     * <code>If-Match</code> on the ETag, so if the object changes the download fails, and the journal is discarded so
+     * the next attempt starts over. The journal is deleted after a successful download.
+     */
+    public void setJournalFile(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public boolean isAutoTune() {
+        return autoTune;
+    }
+
+    /**
+     * Enables auto-tuning. When enabled, the throughput and latency of each part is measured during the download, and
+     * the number of parts in flight (starting at {@link #setThreads(int) threads}, up to
+     * {@link #setAutoTuneMaxThreads(int) autoTuneMaxThreads}) and the size of later parts (starting at
+     * {@link #setPartSize(long) partSize}) are adjusted to maximize aggregate throughput while keeping
+     * <code>concurrency * partSize</code> under {@link #setAutoTuneMemoryCap(long) autoTuneMemoryCap}. Settings
+     * are logged as they change.
+     *
+     * @see TransferTuner
+     */
+    public void setAutoTune(boolean autoTune) {
+        this.autoTune = autoTune;
+    }
+
+    public int getAutoTuneMaxThreads() {
+        return autoTuneMaxThreads;
+    }
+
+    /**
+     * Sets the maximum concurrency (thread pool size) when auto-tuning. Note the default is
+     * {@link #DEFAULT_AUTO_TUNE_MAX_THREADS}
+     */
+    public void setAutoTuneMaxThreads(int autoTuneMaxThreads) {
+        this.autoTuneMaxThreads = autoTuneMaxThreads;
+    }
+
+    public long getAutoTuneMemoryCap() {
+        return autoTuneMemoryCap;
+    }
+
+    /**
+     * Sets the maximum number of bytes in flight (<code>concurrency * partSize</code>) when auto-tuning. Note the
+     * default is {@link #DEFAULT_AUTO_TUNE_MEMORY_CAP}
+     */
+    public void setAutoTuneMemoryCap(long autoTuneMemoryCap) {
+        this.autoTuneMemoryCap = autoTuneMemoryCap;
+    }
+
+    /**
+     * Returns the tuner used for this download (only if auto-tuning is enabled)
+     */
+    public TransferTuner getTuner() {
+        return tuner;
+    }
+
     public ExecutorService getExecutorService() {
         return executorService;
     }
@@ -276,6 +703,61 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
         return this;
     }
 
+    public LargeFileDownloader withWriteBufferSize(int writeBufferSize) {
+        setWriteBufferSize(writeBufferSize);
+        return this;
+    }
+
+    public LargeFileDownloader withSkipHead(boolean skipHead) {
+        setSkipHead(skipHead);
+        return this;
+    }
+
+    public LargeFileDownloader withVerifyChecksum(boolean verifyChecksum) {
+        setVerifyChecksum(verifyChecksum);
+        return this;
+    }
+
+    public LargeFileDownloader withUploadPartSize(long uploadPartSize) {
+        setUploadPartSize(uploadPartSize);
+        return this;
+    }
+
+    public LargeFileDownloader withVerifyBufferSize(long verifyBufferSize) {
+        setVerifyBufferSize(verifyBufferSize);
+        return this;
+    }
+
+    public LargeFileDownloader withPartRetries(int partRetries) {
+        setPartRetries(partRetries);
+        return this;
+    }
+
+    public LargeFileDownloader withPartRetryDelay(long partRetryDelay) {
+        setPartRetryDelay(partRetryDelay);
+        return this;
+    }
+
+    public LargeFileDownloader withJournalFile(File journalFile) {
+        setJournalFile(journalFile);
+        return this;
+    }
+
+    public LargeFileDownloader withAutoTune(boolean autoTune) {
+        setAutoTune(autoTune);
+        return this;
+    }
+
+    public LargeFileDownloader withAutoTuneMaxThreads(int autoTuneMaxThreads) {
+        setAutoTuneMaxThreads(autoTuneMaxThreads);
+        return this;
+    }
+
+    public LargeFileDownloader withAutoTuneMemoryCap(long autoTuneMemoryCap) {
+        setAutoTuneMemoryCap(autoTuneMemoryCap);
+        return this;
+    }
+
     public LargeFileDownloader withExecutorService(ExecutorService executorService) {
         setExecutorService(executorService);
         return this;
@@ -286,31 +768,98 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
         return this;
     }
 
-    protected class DownloadPartTask implements Callable<Void> {
+    /**
+     * Opens a stream for the specified range (conditional on the ETag when resuming or verifying)
+     */
+    protected InputStream openRange(Range range) {
+        GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(range);
+        if (journal != null || verifier != null) request.withIfMatch(eTag);
+        GetObjectResult<InputStream> result = s3Client.getObject(request, InputStream.class);
+        if (result == null) throw new S3Exception("object " + bucket + "/" + key + " has changed", 412);
+        return result.getObject();
+    }
+
+    /**
+     * Downloads a single range into the target file. A failed range is retried independently (rewriting the same
+     * region of the file), so one failure does not fail the whole download.
+     */
+    protected class DownloadPartTask extends RetryingTask<Void> implements ProgressListener {
         private Range range;
         private FileChannel channel;
+        private InputStream openStream;
+        private long attemptBytes;
 
         public DownloadPartTask(Range range, FileChannel channel) {
+            this(range, channel, null);
+        }
+
+        /**
+         * @param openStream an already-open response for this range, used for the first attempt only
+         */
+        public DownloadPartTask(Range range, FileChannel channel, InputStream openStream) {
+            super(partRetries, partRetryDelay);
             this.range = range;
             this.channel = channel;
+            this.openStream = openStream;
         }
 
         @Override
-        public Void call() throws Exception {
-            InputStream is = s3Client.readObjectStream(bucket, key, range);
+        protected Void attempt() throws Exception {
+            attemptBytes = 0;
+            long start = System.currentTimeMillis();
+            transfer();
+            if (tuner != null) tuner.partCompleted(range.getLast() - range.getFirst() + 1,
+                    System.currentTimeMillis() - start);
+            return null;
+        }
 
+        @Override
+        protected void attemptFailed(Exception e) {
+            // roll back progress for this attempt
+            bytesTransferred.addAndGet(-attemptBytes);
+        }
+
+        protected void transfer() throws Exception {
+            InputStream is = openStream != null ? openStream : openRange(range);
+            openStream = null;
+            MessageDigest md5 = verifier != null && verifier.isMultipart() ? MessageDigest.getInstance("MD5") : null;
+
+            byte[] buffer = writeBuffers.poll();
+            if (buffer == null || buffer.length != writeBufferSize) buffer = new byte[writeBufferSize];
             try {
-                is = new ProgressInputStream(is, LargeFileDownloader.this);
+                is = new ProgressInputStream(is, this);
 
-                byte[] buffer = new byte[32 * 1024];
+                // fill the whole buffer before each write, so we make fewer, larger writes to the channel
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
                 long pos = range.getFirst();
-                for (int r = 0; r != -1; r = is.read(buffer)) {
-                    channel.write(ByteBuffer.wrap(buffer, 0, r), pos);
-                    pos += r;
+                int r = 0;
+                while (r != -1) {
+                    int filled = 0;
+                    while (filled < buffer.length && (r = is.read(buffer, filled, buffer.length - filled)) != -1) {
+                        filled += r;
+                    }
+                    if (md5 != null) md5.update(buffer, 0, filled);
+                    else if (verifier != null) verifier.update(pos, buffer, 0, filled);
+                    byteBuffer.clear();
+                    byteBuffer.limit(filled);
+                    while (byteBuffer.hasRemaining()) {
+                        pos += channel.write(byteBuffer, pos);
+                    }
                 }
 
-                return null;
+                // a short range is retried
+                if (pos != range.getLast() + 1)
+                    throw new IOException(String.format("premature end of range %s (read %d bytes)", range,
+                            pos - range.getFirst()));
+
+                if (journal != null) {
+                    // data must be on disk before the range is journaled
+                    channel.force(false);
+                    journal.rangeCompleted(range);
+                }
+                if (md5 != null) verifier.rangeCompleted(range, md5.digest());
             } finally {
+                writeBuffers.offer(buffer);
                 try {
                     is.close();
                 } catch (Throwable t) {
@@ -318,5 +867,39 @@ public class LargeFileDownloader implements Runnable, ProgressListener {
                 }
             }
         }
+
+        @Override
+        public String toString() {
+            return "transferring range " + range;
+        }
+
+        @Override
+        public void progress(long completed, long total) {
+        }
+
+        @Override
+        public void transferred(long size) {
+            attemptBytes += size;
+            LargeFileDownloader.this.transferred(size);
+        }
+    }
+
+    /**
+     * Lets us copy several ranges into the same output stream
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
 }
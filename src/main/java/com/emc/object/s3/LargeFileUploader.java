@@ -29,30 +29,42 @@ package com.emc.object.s3;
 import com.emc.object.Range;
 import com.emc.object.s3.bean.*;
 import com.emc.object.s3.request.*;
-import com.emc.object.util.InputStreamSegment;
+import com.emc.object.util.FileChannelSegment;
 import com.emc.object.util.ProgressInputStream;
 import com.emc.object.util.ProgressListener;
-import com.emc.rest.util.SizedInputStream;
+import com.emc.object.util.TaskWindow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Convenience class to facilitate multipart upload for large files. This class will split the file
  * and upload it in parts, transferring several parts simultaneously to maximize efficiency.
+ * <p>
+ * When uploading from a stream, parts are read sequentially from the stream into a pool of reusable buffers (one per
+ * thread) and then uploaded in parallel. Memory usage in this case is roughly <code>threads * partSize</code>.
  */
 public class LargeFileUploader implements Runnable, ProgressListener {
 
@@ -66,6 +78,14 @@ public class LargeFileUploader implements Runnable, ProgressListener {
     public static final long DEFAULT_PART_SIZE = 128 * 1024 * 1024; // 128MB
     public static final int MAX_PARTS = 10000;
 
+    public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024; // 5GB
+
+    public static final int DEFAULT_AUTO_TUNE_MAX_THREADS = 32;
+    public static final long DEFAULT_AUTO_TUNE_MEMORY_CAP = 2L * 1024 * 1024 * 1024; // 2GB
+
+    public static final int DEFAULT_PART_RETRIES = 3;
+    public static final long DEFAULT_PART_RETRY_DELAY = 1000; // 1 second
+
     private S3Client s3Client;
     private String bucket;
     private String key;
@@ -82,9 +102,21 @@ public class LargeFileUploader implements Runnable, ProgressListener {
     private long mpuThreshold = DEFAULT_MPU_THRESHOLD;
     private Long partSize = DEFAULT_PART_SIZE;
     private int threads = DEFAULT_THREADS;
+    private int partRetries = DEFAULT_PART_RETRIES;
+    private long partRetryDelay = DEFAULT_PART_RETRY_DELAY;
+    private boolean autoTune;
+    private int autoTuneMaxThreads = DEFAULT_AUTO_TUNE_MAX_THREADS;
+    private long autoTuneMemoryCap = DEFAULT_AUTO_TUNE_MEMORY_CAP;
+    private TransferTuner tuner;
     private ExecutorService executorService;
     private ProgressListener progressListener;
 
+    private File journalFile;
+    private MultipartUploadJournal journal;
+    private FileChannel fileChannel;
+    private BlockingQueue<byte[]> bufferPool;
+    private int buffersAllocated;
+
     /**
      * Creates a new LargeFileUpload instance using the specified <code>s3Client</code> to upload
      * <code>file</code> to <code>bucket/key</code>.
@@ -127,15 +159,38 @@ public class LargeFileUploader implements Runnable, ProgressListener {
      * This method will automatically choose between MPU and single-PUT operations based on a configured threshold.
      * Note the default threshold is {@link #DEFAULT_MPU_THRESHOLD}. Also note that the defaults in this class are
      * optimized for high-speed LAN connectivity. When operating over a WAN or a slower connection, you should reduce
-     * the {@link #setMpuThreshold(long) MPU threshold} and {@link #setPartSize(long) part size} proportionately.
+     * the {@link #setMpuThreshold(long) MPU threshold} and {@link #setPartSize(long) part size} proportionately, or
+     * enable {@link #setAutoTune(boolean) auto-tuning}.
      */
     public void upload() {
+        boolean transferExecutor = TransferManager.isTransferExecutor(executorService);
         configure();
 
-        if (fullSize >= mpuThreshold)
+        if (fullSize >= mpuThreshold) {
             doMultipartUpload();
-        else
+        } else if (transferExecutor) {
+            // run the request on the transfer manager's workers so it counts against their thread budget instead of
+            // the calling thread's; the executor is a per-transfer view, so it is shut down like after an MPU
+            Future<?> future = executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    doSinglePut();
+                }
+            });
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                throw new RuntimeException("interrupted during upload", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new RuntimeException("error during upload", e.getCause());
+            } finally {
+                executorService.shutdown();
+            }
+        } else {
             doSinglePut();
+        }
     }
 
     public void doSinglePut() {
@@ -172,39 +227,86 @@ public class LargeFileUploader implements Runnable, ProgressListener {
     public void doMultipartUpload() {
         configure();
 
-        // initiate MP upload
-        InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key);
-        initRequest.setObjectMetadata(objectMetadata);
-        initRequest.setAcl(acl);
-        initRequest.setCannedAcl(cannedAcl);
-        String uploadId = s3Client.initiateMultipartUpload(initRequest).getUploadId();
+        // resume a previous upload if possible
+        journal = null;
+        SortedMap<Integer, String> completedParts = new TreeMap<Integer, String>();
+        if (journalFile != null) {
+            journal = resumeJournal();
+            if (journal != null) completedParts = journal.getParts();
+        }
+
+        String uploadId;
+        if (journal != null) {
+            uploadId = journal.getUploadId();
+        } else {
+            // initiate MP upload
+            InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key);
+            initRequest.setObjectMetadata(objectMetadata);
+            initRequest.setAcl(acl);
+            initRequest.setCannedAcl(cannedAcl);
+            uploadId = s3Client.initiateMultipartUpload(initRequest).getUploadId();
+        }
 
-        List<Future<MultipartPartETag>> futures = new ArrayList<Future<MultipartPartETag>>();
+        TaskWindow<MultipartPartETag> tasks = new TaskWindow<MultipartPartETag>(executorService);
         try {
-            // submit all upload tasks
+            if (journalFile != null && journal == null)
+                journal = new MultipartUploadJournal(journalFile, bucket, key, uploadId, fullSize, partSize);
+
+            openFileChannel();
+
+            // generate upload tasks (only a bounded window of parts is queued or in flight at any time)
+            SortedSet<MultipartPartETag> parts = new TreeSet<MultipartPartETag>();
             int partNumber = 1;
-            long offset = 0, length = partSize;
+            long offset = 0, length;
             while (offset < fullSize) {
+                length = currentPartSize();
                 if (offset + length > fullSize) length = fullSize - offset;
 
-                futures.add(executorService.submit(new UploadPartTask(uploadId, partNumber++, offset, length)));
+                // limit the number of parts in flight (the first failure is thrown immediately)
+                if (!completedParts.containsKey(partNumber)) parts.addAll(tasks.awaitCapacity(windowSize()));
+
+                if (completedParts.containsKey(partNumber)) {
+                    // part was already uploaded (resumed)
+                    parts.add(new MultipartPartETag(partNumber, completedParts.get(partNumber)));
+                    partNumber++;
+                    if (file == null) skipStream(length);
+                    transferred(length);
+                } else if (file != null) {
+                    tasks.submit(new UploadPartTask(uploadId, partNumber++, offset, length));
+                } else {
+                    // read the next part from the stream (blocks until a buffer is free)
+                    byte[] buffer = readPart(length);
+                    tasks.submit(new UploadPartTask(uploadId, partNumber++, buffer, length));
+                }
 
                 offset += length;
             }
 
             // wait for threads to finish and gather parts
-            SortedSet<MultipartPartETag> parts = new TreeSet<MultipartPartETag>();
-            for (Future<MultipartPartETag> future : futures) {
-                parts.add(future.get());
-            }
+            parts.addAll(tasks.awaitAll());
 
             // complete MP upload
             CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(bucket, key, uploadId).withParts(parts);
             CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(compRequest);
             eTag = result.getETag();
 
+            if (journal != null) journal.delete();
+
+            if (tuner != null) log.info("upload complete; final auto-tune settings: {}", tuner);
+
         } catch (Exception e) {
 
+            // stop any parts that are still queued or in flight
+            tasks.cancelAll();
+
+            // keep the upload (and journal) so it can be resumed
+            if (journal != null) {
+                log.warn("upload failed; it can be resumed using journal {} (upload ID {})",
+                        journalFile.getPath(), uploadId);
+                if (e instanceof RuntimeException) throw (RuntimeException) e;
+                throw new RuntimeException("error during upload", e);
+            }
+
             // abort MP upload
             try {
                 s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
@@ -217,6 +319,8 @@ public class LargeFileUploader implements Runnable, ProgressListener {
             // make sure all spawned threads are shut down
             executorService.shutdown();
 
+            closeFileChannel();
+
             // make sure we close the input stream if necessary
             if (stream != null && closeStream) {
                 try {
@@ -238,24 +342,41 @@ public class LargeFileUploader implements Runnable, ProgressListener {
         request.setCannedAcl(cannedAcl);
         s3Client.putObject(request);
 
-        List<Future<String>> futures = new ArrayList<Future<String>>();
+        TaskWindow<String> tasks = new TaskWindow<String>(executorService);
         try {
-            // submit all upload tasks
-            long offset = 0, length = partSize;
+            openFileChannel();
+
+            // generate upload tasks (only a bounded window of ranges is queued or in flight at any time)
+            List<String> eTags = new ArrayList<String>();
+            long offset = 0, length;
             while (offset < fullSize) {
+                length = currentPartSize();
                 if (offset + length > fullSize) length = fullSize - offset;
 
-                futures.add(executorService.submit(new PutObjectTask(offset, length)));
+                // limit the number of ranges in flight (the first failure is thrown immediately)
+                eTags.addAll(tasks.awaitCapacity(windowSize()));
+
+                if (file != null) {
+                    tasks.submit(new PutObjectTask(offset, length));
+                } else {
+                    // read the next part from the stream (blocks until a buffer is free)
+                    byte[] buffer = readPart(length);
+                    tasks.submit(new PutObjectTask(offset, buffer, length));
+                }
 
                 offset += length;
             }
 
-            // wait for threads to finish
-            for (Future<String> future : futures) {
-                eTag = future.get();
-            }
+            // wait for threads to finish (the last range to finish has the final etag)
+            eTags.addAll(tasks.awaitAll());
+            if (!eTags.isEmpty()) eTag = eTags.get(eTags.size() - 1);
+
+            if (tuner != null) log.info("upload complete; final auto-tune settings: {}", tuner);
         } catch (Exception e) {
 
+            // stop any ranges that are still queued or in flight
+            tasks.cancelAll();
+
             // delete object
             try {
                 s3Client.deleteObject(bucket, key);
@@ -268,6 +389,8 @@ public class LargeFileUploader implements Runnable, ProgressListener {
             // make sure all spawned threads are shut down
             executorService.shutdown();
 
+            closeFileChannel();
+
             // make sure we close the input stream if necessary
             if (stream != null && closeStream) {
                 try {
@@ -297,10 +420,6 @@ public class LargeFileUploader implements Runnable, ProgressListener {
             // make sure size is set
             if (fullSize <= 0)
                 throw new IllegalArgumentException("size must be specified for stream");
-
-            // must read stream sequentially
-            executorService = null;
-            threads = 1;
         }
 
         // make sure content-length isn't set
@@ -316,8 +435,182 @@ public class LargeFileUploader implements Runnable, ProgressListener {
             partSize = minPartSize;
         }
 
+        // stream parts are buffered in memory (one buffer per thread)
+        if (file == null) {
+            if (partSize > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(String.format("part size (%,dk) is too large to buffer from a stream",
+                        partSize / 1024));
+            if (bufferPool == null) bufferPool = new LinkedBlockingQueue<byte[]>();
+        }
+
+        // set up auto-tuning (part size can only change if all parts don't have to be the same size)
+        if (autoTune && tuner == null) {
+            tuner = new TransferTuner("upload " + bucket + "/" + key, Math.min(threads, autoTuneMaxThreads),
+                    autoTuneMaxThreads, partSize, minPartSize, Math.max(minPartSize, MAX_PART_SIZE), autoTuneMemoryCap);
+            tuner.setTunePartSize(file != null && journalFile == null);
+        }
+
         // set up thread pool
-        if (executorService == null) executorService = Executors.newFixedThreadPool(threads);
+        if (executorService == null) executorService = Executors.newFixedThreadPool(autoTune ? autoTuneMaxThreads : threads);
+    }
+
+    /**
+     * Returns the size to use for the next part
+     */
+    protected long currentPartSize() {
+        return tuner != null && tuner.isTunePartSize() ? tuner.getPartSize() : partSize;
+    }
+
+    /**
+     * Returns the maximum number of parts that may be queued or in flight. When auto-tuning, this is the tuned
+     * concurrency; otherwise it is twice the thread count (so each thread always has a part ready to go).
+     */
+    protected int windowSize() {
+        return tuner != null ? tuner.getConcurrency() : threads * 2;
+    }
+
+    /**
+     * Reads the journal file and reconciles it with the parts actually stored on the server. Returns the journal if the
+     * upload can be resumed, or <code>null</code> if a new upload should be started. Any part that is not present on
+     * the server with the expected size will be uploaded again.
+     */
+    protected MultipartUploadJournal resumeJournal() {
+        MultipartUploadJournal journal;
+        try {
+            journal = MultipartUploadJournal.read(journalFile);
+        } catch (IOException e) {
+            log.warn("could not read upload journal " + journalFile.getPath(), e);
+            return null;
+        }
+        if (journal == null) return null;
+
+        if (!journal.matches(bucket, key, fullSize)) {
+            log.warn("upload journal {} does not match this upload and will be replaced", journalFile.getPath());
+            abortStaleUpload(journal);
+            return null;
+        }
+
+        // the part size must match the original upload
+        if (journal.getPartSize() != partSize) {
+            log.info(String.format("using part size from upload journal (%,dk)", journal.getPartSize() / 1024));
+            partSize = journal.getPartSize();
+        }
+
+        // get the parts that actually made it to the server
+        Map<Integer, MultipartPart> serverParts = new HashMap<Integer, MultipartPart>();
+        try {
+            ListPartsResult result = null;
+            do {
+                ListPartsRequest request = new ListPartsRequest(bucket, key, journal.getUploadId());
+                if (result != null) request.setMarker(result.getNextPartNumberMarker());
+                result = s3Client.listParts(request);
+                for (MultipartPart part : result.getParts()) {
+                    serverParts.put(part.getPartNumber(), part);
+                }
+            } while (result.isTruncated());
+        } catch (S3Exception e) {
+            if (e.getHttpCode() != 404) throw e;
+            log.warn("upload {} from journal no longer exists; starting a new upload", journal.getUploadId());
+            return null;
+        }
+
+        // only keep parts that are on the server with the expected size (server wins on the ETag)
+        SortedMap<Integer, String> verifiedParts = new TreeMap<Integer, String>();
+        for (MultipartPart part : serverParts.values()) {
+            long expectedSize = Math.min(partSize, fullSize - (part.getPartNumber() - 1) * partSize);
+            if (part.getSize() != null && part.getSize() == expectedSize)
+                verifiedParts.put(part.getPartNumber(), part.getETag());
+        }
+        try {
+            journal.setParts(verifiedParts);
+        } catch (IOException e) {
+            throw new RuntimeException("could not write upload journal", e);
+        }
+
+        log.info("resuming upload {} with {} completed parts", journal.getUploadId(), journal.getParts().size());
+        return journal;
+    }
+
+    /**
+     * Aborts the upload recorded in a journal that cannot be resumed, so its parts are not left orphaned on the server
+     */
+    protected void abortStaleUpload(MultipartUploadJournal journal) {
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(journal.getBucket(), journal.getKey(),
+                    journal.getUploadId()));
+            log.info("aborted stale upload {} from journal", journal.getUploadId());
+        } catch (Throwable t) {
+            log.warn("could not abort stale upload " + journal.getUploadId() + " from journal", t);
+        }
+    }
+
+    /**
+     * Skips <code>length</code> bytes in the stream (used for parts that were already uploaded)
+     */
+    protected void skipStream(long length) throws IOException {
+        long skipped = 0;
+        byte[] buffer = null;
+        while (skipped < length) {
+            long c = stream.skip(length - skipped);
+            if (c <= 0) {
+                // some streams cannot skip; read instead
+                if (buffer == null) buffer = new byte[64 * 1024];
+                c = stream.read(buffer, 0, (int) Math.min(buffer.length, length - skipped));
+                if (c < 0) throw new IOException("stream ended before specified size");
+            }
+            skipped += c;
+        }
+    }
+
+    /**
+     * Opens a single channel on the source file that is shared by all part tasks (parts are read using positional
+     * reads, so only one file descriptor is needed no matter how many parts are in flight)
+     */
+    protected void openFileChannel() throws IOException {
+        if (file != null) fileChannel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    protected void closeFileChannel() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (Throwable t) {
+                log.warn("could not close file channel", t);
+            }
+            fileChannel = null;
+        }
+    }
+
+    /**
+     * Reads the next <code>length</code> bytes from the stream into a pooled buffer. Only <code>threads</code> buffers
+     * will ever be allocated, so this will block until a part has finished uploading and its buffer is released.
+     */
+    protected byte[] readPart(long length) throws IOException, InterruptedException {
+        byte[] buffer;
+        synchronized (this) {
+            buffer = bufferPool.poll();
+            if (buffer == null && buffersAllocated < (tuner != null ? autoTuneMaxThreads : threads)) {
+                buffer = new byte[partSize.intValue()];
+                buffersAllocated++;
+            }
+        }
+        if (buffer == null) buffer = bufferPool.take();
+
+        int read = 0, c;
+        while (read < length) {
+            c = stream.read(buffer, read, (int) length - read);
+            if (c < 0) {
+                releaseBuffer(buffer);
+                throw new IOException(String.format("stream ended before specified size (%d of %d bytes read)",
+                        read, length));
+            }
+            read += c;
+        }
+        return buffer;
+    }
+
+    protected void releaseBuffer(byte[] buffer) {
+        bufferPool.offer(buffer);
     }
 
     public S3Client getS3Client() {
@@ -416,12 +709,103 @@ public class LargeFileUploader implements Runnable, ProgressListener {
 
     /**
      * Sets the number of threads to use for transferring parts. <code>thread</code> parts will be
-     * transferred in parallel. Default is 6
+     * transferred in parallel. Default is 6. Note that when uploading from a stream, each thread will buffer one part
+     * in memory.
      */
     public void setThreads(int threads) {
         this.threads = threads;
     }
 
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Enables resumable multipart uploads. The state of the upload (upload ID, part size and completed part ETags) will
+     * be recorded in <code>journalFile</code> as parts complete. If the upload fails, it is <em>not</em> aborted, and
+     * calling {@link #doMultipartUpload()} again (with the same journal file and source data) will reconcile the
+     * journal with the parts on the server, upload only the missing parts and complete the upload. The journal is
+     * deleted after a successful upload. Note that stream sources must be provided again from the beginning (completed
+     * parts will be skipped).
+     */
+    public void setJournalFile(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public int getPartRetries() {
+        return partRetries;
+    }
+
+    /**
+     * Sets the number of times a single part will be retried (from its own source) before the upload fails. Retries
+     * are in addition to any retries done by the client itself. Note the default is {@link #DEFAULT_PART_RETRIES}.
+     * When an upload does fail, all remaining parts are cancelled immediately.
+     */
+    public void setPartRetries(int partRetries) {
+        this.partRetries = partRetries;
+    }
+
+    public long getPartRetryDelay() {
+        return partRetryDelay;
+    }
+
+    /**
+     * Sets the initial delay (in milliseconds) before retrying a failed part. The delay doubles with each retry. Note
+     * the default is {@link #DEFAULT_PART_RETRY_DELAY}
+     */
+    public void setPartRetryDelay(long partRetryDelay) {
+        this.partRetryDelay = partRetryDelay;
+    }
+
+    public boolean isAutoTune() {
+        return autoTune;
+    }
+
+    /**
+     * Enables auto-tuning. When enabled, the throughput and latency of each part is measured during the upload, and
+     * the number of parts in flight (starting at {@link #setThreads(int) threads}, up to
+     * {@link #setAutoTuneMaxThreads(int) autoTuneMaxThreads}) and the size of later parts (starting at
+     * {@link #setPartSize(long) partSize}) are adjusted to maximize aggregate throughput while keeping
+     * <code>concurrency * partSize</code> under {@link #setAutoTuneMemoryCap(long) autoTuneMemoryCap}. Settings
+     * are logged as they change. Part size is not changed for stream uploads or when a journal is used.
+     *
+     * @see TransferTuner
+     */
+    public void setAutoTune(boolean autoTune) {
+        this.autoTune = autoTune;
+    }
+
+    public int getAutoTuneMaxThreads() {
+        return autoTuneMaxThreads;
+    }
+
+    /**
+     * Sets the maximum concurrency (thread pool size) when auto-tuning. Note the default is
+     * {@link #DEFAULT_AUTO_TUNE_MAX_THREADS}
+     */
+    public void setAutoTuneMaxThreads(int autoTuneMaxThreads) {
+        this.autoTuneMaxThreads = autoTuneMaxThreads;
+    }
+
+    public long getAutoTuneMemoryCap() {
+        return autoTuneMemoryCap;
+    }
+
+    /**
+     * Sets the maximum number of bytes in flight (<code>concurrency * partSize</code>) when auto-tuning. Note the
+     * default is {@link #DEFAULT_AUTO_TUNE_MEMORY_CAP}
+     */
+    public void setAutoTuneMemoryCap(long autoTuneMemoryCap) {
+        this.autoTuneMemoryCap = autoTuneMemoryCap;
+    }
+
+    /**
+     * Returns the tuner used for this upload (only if auto-tuning is enabled)
+     */
+    public TransferTuner getTuner() {
+        return tuner;
+    }
+
     public ExecutorService getExecutorService() {
         return executorService;
     }
@@ -477,6 +861,36 @@ public class LargeFileUploader implements Runnable, ProgressListener {
         return this;
     }
 
+    public LargeFileUploader withJournalFile(File journalFile) {
+        setJournalFile(journalFile);
+        return this;
+    }
+
+    public LargeFileUploader withPartRetries(int partRetries) {
+        setPartRetries(partRetries);
+        return this;
+    }
+
+    public LargeFileUploader withPartRetryDelay(long partRetryDelay) {
+        setPartRetryDelay(partRetryDelay);
+        return this;
+    }
+
+    public LargeFileUploader withAutoTune(boolean autoTune) {
+        setAutoTune(autoTune);
+        return this;
+    }
+
+    public LargeFileUploader withAutoTuneMaxThreads(int autoTuneMaxThreads) {
+        setAutoTuneMaxThreads(autoTuneMaxThreads);
+        return this;
+    }
+
+    public LargeFileUploader withAutoTuneMemoryCap(long autoTuneMemoryCap) {
+        setAutoTuneMemoryCap(autoTuneMemoryCap);
+        return this;
+    }
+
     public LargeFileUploader withExecutorService(ExecutorService executorService) {
         setExecutorService(executorService);
         return this;
@@ -487,61 +901,128 @@ public class LargeFileUploader implements Runnable, ProgressListener {
         return this;
     }
 
-    private class UploadPartTask implements Callable<MultipartPartETag> {
-        private String uploadId;
-        private int partNumber;
-        private long offset;
-        private long length;
-
-        public UploadPartTask(String uploadId, int partNumber, long offset, long length) {
-            this.uploadId = uploadId;
-            this.partNumber = partNumber;
+    /**
+     * Base class for tasks that transfer a single part (or range) of the source. Each part is read from its own
+     * replayable source (a segment of the shared file channel or a pooled buffer), so a failed part can be retried
+     * independently without affecting the rest of the upload.
+     */
+    protected abstract class PartTask<T> extends RetryingTask<T> implements ProgressListener {
+        protected long offset;
+        protected byte[] buffer;
+        protected long length;
+        private long attemptBytes;
+
+        protected PartTask(long offset, byte[] buffer, long length) {
+            super(partRetries, partRetryDelay);
             this.offset = offset;
+            this.buffer = buffer;
             this.length = length;
         }
 
+        /**
+         * Transfers the part using the provided stream
+         */
+        protected abstract T transfer(InputStream partStream) throws Exception;
+
+        @Override
+        public T call() throws Exception {
+            try {
+                return super.call();
+            } finally {
+                if (buffer != null) releaseBuffer(buffer);
+            }
+        }
+
         @Override
-        public MultipartPartETag call() throws Exception {
-            InputStream is = file != null ? new FileInputStream(file) : stream;
+        protected T attempt() throws Exception {
+            attemptBytes = 0;
+            long start = System.currentTimeMillis();
+            T result = transfer(new ProgressInputStream(openPartStream(), this));
+            if (tuner != null) tuner.partCompleted(length, System.currentTimeMillis() - start);
+            return result;
+        }
 
-            is = new ProgressInputStream(is, LargeFileUploader.this);
+        @Override
+        protected void attemptFailed(Exception e) {
+            // roll back progress for this attempt
+            bytesTransferred.addAndGet(-attemptBytes);
+        }
 
-            SizedInputStream segmentStream;
-            if (file != null) {
-                segmentStream = new InputStreamSegment(is, offset, length);
+        protected InputStream openPartStream() {
+            if (buffer != null) {
+                // buffered stream part (supports mark/reset for retries)
+                return new ByteArrayInputStream(buffer, 0, (int) length);
             } else {
-                segmentStream = new SizedInputStream(is, length);
+                // positional reads on the shared channel (supports mark/reset for retries)
+                return new FileChannelSegment(fileChannel, offset, length);
             }
+        }
 
-            UploadPartRequest request = new UploadPartRequest(bucket, key, uploadId, partNumber++, segmentStream);
-            request.setContentLength(length);
+        @Override
+        public String toString() {
+            return "transferring part at offset " + offset;
+        }
 
-            return s3Client.uploadPart(request);
+        @Override
+        public void progress(long completed, long total) {
+        }
+
+        @Override
+        public void transferred(long size) {
+            attemptBytes += size;
+            LargeFileUploader.this.transferred(size);
         }
     }
 
-    protected class PutObjectTask implements Callable<String> {
-        private long offset;
-        private long length;
+    private class UploadPartTask extends PartTask<MultipartPartETag> {
+        private String uploadId;
+        private int partNumber;
 
-        public PutObjectTask(long offset, long length) {
-            this.offset = offset;
-            this.length = length;
+        public UploadPartTask(String uploadId, int partNumber, long offset, long length) {
+            super(offset, null, length);
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+        }
+
+        /**
+         * Uploads a part that has already been read from the stream into <code>buffer</code>. The buffer is released
+         * back to the pool when the part is finished.
+         */
+        public UploadPartTask(String uploadId, int partNumber, byte[] buffer, long length) {
+            super(0, buffer, length);
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
         }
 
         @Override
-        public String call() throws Exception {
-            Range range = Range.fromOffsetLength(offset, length);
+        protected MultipartPartETag transfer(InputStream partStream) throws Exception {
+            UploadPartRequest request = new UploadPartRequest(bucket, key, uploadId, partNumber, partStream);
+            request.setContentLength(length);
 
-            InputStream is = file != null ? new FileInputStream(file) : stream;
+            MultipartPartETag etag = s3Client.uploadPart(request);
+            if (journal != null) journal.partCompleted(etag);
+            return etag;
+        }
+    }
 
-            is = new ProgressInputStream(is, LargeFileUploader.this);
+    protected class PutObjectTask extends PartTask<String> {
+        public PutObjectTask(long offset, long length) {
+            super(offset, null, length);
+        }
 
-            SizedInputStream segmentStream = file != null
-                    ? new InputStreamSegment(is, offset, length)
-                    : new SizedInputStream(is, length);
+        /**
+         * Writes a range that has already been read from the stream into <code>buffer</code>. The buffer is released
+         * back to the pool when the range is finished.
+         */
+        public PutObjectTask(long offset, byte[] buffer, long length) {
+            super(offset, buffer, length);
+        }
 
-            PutObjectRequest request = new PutObjectRequest(bucket, key, segmentStream).withRange(range);
+        @Override
+        protected String transfer(InputStream partStream) throws Exception {
+            PutObjectRequest request = new PutObjectRequest(bucket, key, partStream)
+                    .withRange(Range.fromOffsetLength(offset, length))
+                    .withObjectMetadata(new S3ObjectMetadata().withContentLength(length));
 
             return s3Client.putObject(request).getETag();
         }
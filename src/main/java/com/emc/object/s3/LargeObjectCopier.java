@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import com.emc.object.s3.bean.*;
+import com.emc.object.s3.request.*;
+import com.emc.object.util.ProgressListener;
+import com.emc.object.util.TaskWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a large object server-side using multipart upload. The source is split into byte ranges that are copied into
+ * the parts of a new upload on the target with {@link S3Client#copyPart(CopyPartRequest)}, several parts at a time, so
+ * no object data passes through the client. Objects smaller than the {@link #setMpuThreshold(long) MPU threshold} are
+ * copied with a single {@link S3Client#copyObject(CopyObjectRequest)}.
+ * <p>
+ * The source is read with a HEAD first (for its size, ETag and metadata). Every part copy is conditional on that ETag,
+ * so a source that changes during the copy fails the copy instead of producing a mix of two versions. Unless
+ * {@link #setObjectMetadata(S3ObjectMetadata) metadata} is provided, the source's metadata is copied to the target (as
+ * a single copy does). Threads, part retries and progress work as they do in {@link LargeFileUploader}. If the copy
+ * fails, the upload is aborted.
+ */
+public class LargeObjectCopier implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(LargeObjectCopier.class);
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final long DEFAULT_MPU_THRESHOLD = LargeFileUploader.DEFAULT_MPU_THRESHOLD;
+    public static final long DEFAULT_PART_SIZE = LargeFileUploader.DEFAULT_PART_SIZE;
+    public static final int DEFAULT_PART_RETRIES = LargeFileUploader.DEFAULT_PART_RETRIES;
+    public static final long DEFAULT_PART_RETRY_DELAY = LargeFileUploader.DEFAULT_PART_RETRY_DELAY;
+
+    private S3Client s3Client;
+    private String sourceBucket;
+    private String sourceKey;
+    private String sourceVersionId;
+    private String bucket;
+    private String key;
+
+    private S3ObjectMetadata objectMetadata;
+    private AccessControlList acl;
+    private CannedAcl cannedAcl;
+    private long mpuThreshold = DEFAULT_MPU_THRESHOLD;
+    private long partSize = DEFAULT_PART_SIZE;
+    private int threads = DEFAULT_THREADS;
+    private int partRetries = DEFAULT_PART_RETRIES;
+    private long partRetryDelay = DEFAULT_PART_RETRY_DELAY;
+    private ExecutorService executorService;
+    private ProgressListener progressListener;
+
+    private S3ObjectMetadata sourceMetadata;
+    private long fullSize;
+    private String sourceETag;
+    private String eTag;
+    private AtomicLong bytesCopied = new AtomicLong();
+    private AtomicLong partCount = new AtomicLong();
+
+    /**
+     * Creates a new LargeObjectCopier that will copy <code>sourceBucket/sourceKey</code> to <code>bucket/key</code>
+     */
+    public LargeObjectCopier(S3Client s3Client, String sourceBucket, String sourceKey, String bucket, String key) {
+        this.s3Client = s3Client;
+        this.sourceBucket = sourceBucket;
+        this.sourceKey = sourceKey;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    @Override
+    public void run() {
+        copy();
+    }
+
+    /**
+     * Copies the object, choosing between a multipart copy and a single copy based on the
+     * {@link #setMpuThreshold(long) MPU threshold}
+     */
+    public void copy() {
+        configure();
+
+        if (fullSize >= mpuThreshold)
+            doMultipartCopy();
+        else
+            doSingleCopy();
+    }
+
+    public void doSingleCopy() {
+        configure();
+
+        CopyObjectRequest request = new CopyObjectRequest(sourceBucket, sourceKey, bucket, key)
+                .withSourceVersionId(sourceVersionId).withIfMatch(sourceETag);
+        if (objectMetadata != null) request.setObjectMetadata(objectMetadata);
+        request.setAcl(acl);
+        request.setCannedAcl(cannedAcl);
+
+        eTag = s3Client.copyObject(request).getRawETag();
+        transferred(fullSize);
+    }
+
+    public void doMultipartCopy() {
+        configure();
+
+        // MPU does not copy the source metadata, so send it with the initiate request
+        S3ObjectMetadata metadata = objectMetadata != null ? objectMetadata : sourceMetadata;
+        InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key);
+        initRequest.setObjectMetadata(metadata);
+        initRequest.setAcl(acl);
+        initRequest.setCannedAcl(cannedAcl);
+        String uploadId = s3Client.initiateMultipartUpload(initRequest).getUploadId();
+
+        // set up thread pool
+        boolean shutdownThreadPool = false;
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(threads);
+            shutdownThreadPool = true;
+        }
+        TaskWindow<MultipartPartETag> tasks = new TaskWindow<MultipartPartETag>(executorService);
+        try {
+            // generate copy tasks (only a bounded window of parts is queued or in flight at any time)
+            SortedSet<MultipartPartETag> parts = new TreeSet<MultipartPartETag>();
+            int partNumber = 1;
+            long offset = 0, length;
+            while (offset < fullSize) {
+                length = Math.min(partSize, fullSize - offset);
+
+                // limit the number of parts in flight (the first failure is thrown immediately)
+                parts.addAll(tasks.awaitCapacity(threads * 2));
+
+                tasks.submit(new CopyPartTask(uploadId, partNumber++, offset, length));
+                offset += length;
+            }
+
+            // wait for threads to finish and gather parts
+            parts.addAll(tasks.awaitAll());
+
+            // complete MP upload
+            CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(bucket, key, uploadId).withParts(parts);
+            eTag = s3Client.completeMultipartUpload(compRequest).getRawETag();
+
+            log.debug(String.format("copied %s/%s to %s/%s in %d parts", sourceBucket, sourceKey, bucket, key,
+                    parts.size()));
+        } catch (Exception e) {
+
+            // stop any parts that are still queued or in flight
+            tasks.cancelAll();
+
+            // abort MP upload
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (Throwable t) {
+                log.warn("could not abort upload after failure", t);
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException("error during copy", e);
+        } finally {
+            // make sure all spawned threads are shut down
+            if (shutdownThreadPool) executorService.shutdown();
+        }
+    }
+
+    /**
+     * Reads the source metadata (once) and sets up the part size. This method should be idempotent
+     */
+    protected void configure() {
+        if (sourceMetadata == null) {
+            sourceMetadata = s3Client.getObjectMetadata(new GetObjectMetadataRequest(sourceBucket, sourceKey)
+                    .withVersionId(sourceVersionId));
+            fullSize = sourceMetadata.getContentLength();
+            sourceETag = sourceMetadata.getETag();
+
+            // these describe the source entity, not the metadata to copy
+            sourceMetadata.setContentLength(null);
+            sourceMetadata.setContentMd5(null);
+        }
+
+        // make sure content-length isn't set
+        if (objectMetadata != null) objectMetadata.setContentLength(null);
+
+        long minPartSize = Math.max(LargeFileUploader.MIN_PART_SIZE, fullSize / LargeFileUploader.MAX_PARTS + 1);
+        if (partSize < minPartSize) {
+            log.warn(String.format("%,dk is below the minimum part size (%,dk). the minimum will be used instead",
+                    partSize / 1024, minPartSize / 1024));
+            partSize = minPartSize;
+        }
+        if (partSize > LargeFileUploader.MAX_PART_SIZE)
+            throw new IllegalArgumentException(String.format("part size (%,dk) is larger than the maximum (%,dk)",
+                    partSize / 1024, LargeFileUploader.MAX_PART_SIZE / 1024));
+    }
+
+    protected void transferred(long size) {
+        long totalCopied = bytesCopied.addAndGet(size);
+
+        if (progressListener != null) {
+            progressListener.transferred(size);
+            progressListener.progress(totalCopied, fullSize);
+        }
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getSourceBucket() {
+        return sourceBucket;
+    }
+
+    public String getSourceKey() {
+        return sourceKey;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the size of the source object (available after the copy starts)
+     */
+    public long getFullSize() {
+        return fullSize;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     * Returns the number of parts copied (0 for a single copy)
+     */
+    public long getPartCount() {
+        return partCount.get();
+    }
+
+    /**
+     * Returns the metadata read from the source object (available after {@link #configure()}). This is what the new
+     * object gets unless {@link #setObjectMetadata(S3ObjectMetadata) metadata} is set.
+     */
+    public S3ObjectMetadata getSourceMetadata() {
+        return sourceMetadata;
+    }
+
+    /**
+     * Returns the ETag of the source object that was copied
+     */
+    public String getSourceETag() {
+        return sourceETag;
+    }
+
+    /**
+     * Returns the ETag of the new object
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getSourceVersionId() {
+        return sourceVersionId;
+    }
+
+    /**
+     * Copies this version of the source object (default is the current version)
+     */
+    public void setSourceVersionId(String sourceVersionId) {
+        this.sourceVersionId = sourceVersionId;
+    }
+
+    public S3ObjectMetadata getObjectMetadata() {
+        return objectMetadata;
+    }
+
+    /**
+     * Sets the metadata of the new object (default is the metadata of the source object)
+     */
+    public void setObjectMetadata(S3ObjectMetadata objectMetadata) {
+        this.objectMetadata = objectMetadata;
+    }
+
+    public AccessControlList getAcl() {
+        return acl;
+    }
+
+    public void setAcl(AccessControlList acl) {
+        this.acl = acl;
+    }
+
+    public CannedAcl getCannedAcl() {
+        return cannedAcl;
+    }
+
+    public void setCannedAcl(CannedAcl cannedAcl) {
+        this.cannedAcl = cannedAcl;
+    }
+
+    public long getMpuThreshold() {
+        return mpuThreshold;
+    }
+
+    /**
+     * Sets the size at which a multipart copy is used instead of a single copy. Default is
+     * {@link #DEFAULT_MPU_THRESHOLD}
+     */
+    public void setMpuThreshold(long mpuThreshold) {
+        this.mpuThreshold = mpuThreshold;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the size of each copied range. Default is {@link #DEFAULT_PART_SIZE}
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of parts copied concurrently. Ignored if an executor service is provided. Default is
+     * {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getPartRetries() {
+        return partRetries;
+    }
+
+    /**
+     * Sets the number of times a failed part is retried. Default is {@link #DEFAULT_PART_RETRIES}
+     */
+    public void setPartRetries(int partRetries) {
+        this.partRetries = partRetries;
+    }
+
+    public long getPartRetryDelay() {
+        return partRetryDelay;
+    }
+
+    /**
+     * Sets the delay before the first retry of a part in milliseconds (doubled for each further retry). Default is
+     * {@link #DEFAULT_PART_RETRY_DELAY}
+     */
+    public void setPartRetryDelay(long partRetryDelay) {
+        this.partRetryDelay = partRetryDelay;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Allows for providing a custom thread executor (i.e. for custom thread factories). Note that if you
+     * set a custom executor service, the <code>threads</code> property will be ignored.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Sets a listener for copy progress (reported as each part completes)
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public LargeObjectCopier withSourceVersionId(String sourceVersionId) {
+        setSourceVersionId(sourceVersionId);
+        return this;
+    }
+
+    public LargeObjectCopier withObjectMetadata(S3ObjectMetadata objectMetadata) {
+        setObjectMetadata(objectMetadata);
+        return this;
+    }
+
+    public LargeObjectCopier withAcl(AccessControlList acl) {
+        setAcl(acl);
+        return this;
+    }
+
+    public LargeObjectCopier withCannedAcl(CannedAcl cannedAcl) {
+        setCannedAcl(cannedAcl);
+        return this;
+    }
+
+    public LargeObjectCopier withMpuThreshold(long mpuThreshold) {
+        setMpuThreshold(mpuThreshold);
+        return this;
+    }
+
+    public LargeObjectCopier withPartSize(long partSize) {
+        setPartSize(partSize);
+        return this;
+    }
+
+    public LargeObjectCopier withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public LargeObjectCopier withPartRetries(int partRetries) {
+        setPartRetries(partRetries);
+        return this;
+    }
+
+    public LargeObjectCopier withPartRetryDelay(long partRetryDelay) {
+        setPartRetryDelay(partRetryDelay);
+        return this;
+    }
+
+    public LargeObjectCopier withExecutorService(ExecutorService executorService) {
+        setExecutorService(executorService);
+        return this;
+    }
+
+    public LargeObjectCopier withProgressListener(ProgressListener progressListener) {
+        setProgressListener(progressListener);
+        return this;
+    }
+
+    protected class CopyPartTask extends RetryingTask<MultipartPartETag> {
+        private String uploadId;
+        private int partNumber;
+        private long offset;
+        private long length;
+
+        public CopyPartTask(String uploadId, int partNumber, long offset, long length) {
+            super(partRetries, partRetryDelay);
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        protected MultipartPartETag attempt() {
+            CopyPartRequest request = new CopyPartRequest(sourceBucket, sourceKey, bucket, key, uploadId, partNumber)
+                    .withSourceRange(Range.fromOffsetLength(offset, length));
+            request.setSourceVersionId(sourceVersionId);
+            request.setIfSourceMatch(sourceETag);
+            CopyPartResult result = s3Client.copyPart(request);
+
+            partCount.incrementAndGet();
+            transferred(length);
+            return new MultipartPartETag(partNumber, result.getRawETag());
+        }
+
+        @Override
+        public String toString() {
+            return "copying part " + partNumber + " at offset " + offset;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.*;
+import com.emc.object.util.Iso8601DateTimeAdapter;
+import com.emc.object.util.RestUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming (StAX) parser for listing responses (list-objects, list-versions, list-multipart-uploads and
+ * query-objects). Compared to unmarshalling the whole page with JAXB, this avoids building the intermediate object
+ * graph and reflective property access, and it can hand each entry to a {@link ListingHandler} as soon as it is
+ * read, so the entries never have to be held in memory all at once.
+ * <p>
+ * When a handler is given, entries are passed to it and are <em>not</em> added to the returned result. The returned
+ * result always holds the page's header fields (markers, truncation, etc.) and common prefixes. When no handler is
+ * given, the result is the same as the JAXB unmarshalled bean, including URL-decoding when
+ * <code>EncodingType</code> is <code>url</code>. Entry keys are decoded wherever <code>EncodingType</code> appears
+ * in the page, except that entries passed to a handler are decoded only if it comes before them (as it does in S3 and
+ * ECS responses).
+ * <p>
+ * If the root element is not the one expected for the response (i.e. an <code>Error</code> document sent with a 200
+ * status), an {@link UnexpectedRootException} is thrown.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class ListingParser {
+    private static final Iso8601DateTimeAdapter dateAdapter = new Iso8601DateTimeAdapter();
+
+    private final XMLInputFactory inputFactory;
+
+    public ListingParser() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Parses a list-objects response. If the result is truncated and has no next-marker (which is the case when no
+     * delimiter is used), the key of the last object is used as the next-marker.
+     */
+    public ListObjectsResult parseListObjects(InputStream in, ListingHandler<S3Object> handler)
+            throws XMLStreamException {
+        XMLStreamReader reader = open(in, "ListBucketResult");
+        try {
+            ListObjectsResult result = new ListObjectsResult();
+            List<String> prefixes = new ArrayList<String>();
+            String lastKey = null;
+            boolean lastKeyDecoded = false;
+            while (nextChild(reader)) {
+                String name = reader.getLocalName();
+                if ("Contents".equals(name)) {
+                    boolean decodeNow = decodeNow(handler, result.getEncodingType());
+                    S3Object object = parseObject(reader, decodeNow);
+                    lastKey = object.getKey();
+                    lastKeyDecoded = decodeNow;
+                    if (handler == null) result.getObjects().add(object);
+                    else handler.handle(object);
+                } else if ("CommonPrefixes".equals(name)) prefixes.add(parseCommonPrefix(reader));
+                else if ("Name".equals(name)) result.setBucketName(reader.getElementText());
+                else if ("Prefix".equals(name)) result.setPrefix(reader.getElementText());
+                else if ("Delimiter".equals(name)) result.setDelimiter(reader.getElementText());
+                else if ("MaxKeys".equals(name)) result.setMaxKeys(parseInteger(reader.getElementText()));
+                else if ("EncodingType".equals(name)) result.setEncodingType(parseEncodingType(reader.getElementText()));
+                else if ("Marker".equals(name)) result.setMarker(reader.getElementText());
+                else if ("NextMarker".equals(name)) result.setNextMarker(reader.getElementText());
+                else if ("IsTruncated".equals(name)) result.setTruncated(parseBoolean(reader.getElementText()));
+                else skip(reader);
+            }
+            if (result.getEncodingType() == EncodingType.url) {
+                result.setBucketName(decode(result.getBucketName()));
+                result.setPrefix(decode(result.getPrefix()));
+                result.setDelimiter(decode(result.getDelimiter()));
+                result.setMarker(decode(result.getMarker()));
+                result.setNextMarker(decode(result.getNextMarker()));
+                decodeAll(prefixes);
+                for (S3Object object : result.getObjects()) {
+                    object.setKey(decode(object.getKey()));
+                }
+                if (!lastKeyDecoded) lastKey = decode(lastKey);
+            }
+            result.setCommonPrefixes(prefixes);
+            if (result.isTruncated() && result.getNextMarker() == null) result.setNextMarker(lastKey);
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a list-versions response. Entries are either {@link Version}s or {@link DeleteMarker}s.
+     */
+    public ListVersionsResult parseListVersions(InputStream in, ListingHandler<AbstractVersion> handler)
+            throws XMLStreamException {
+        XMLStreamReader reader = open(in, "ListVersionsResult");
+        try {
+            ListVersionsResult result = new ListVersionsResult();
+            List<String> prefixes = new ArrayList<String>();
+            while (nextChild(reader)) {
+                String name = reader.getLocalName();
+                if ("Version".equals(name) || "DeleteMarker".equals(name)) {
+                    AbstractVersion version = parseVersion(reader, "Version".equals(name) ? new Version() : new DeleteMarker(),
+                            decodeNow(handler, result.getEncodingType()));
+                    if (handler == null) result.getVersions().add(version);
+                    else handler.handle(version);
+                } else if ("CommonPrefixes".equals(name)) prefixes.add(parseCommonPrefix(reader));
+                else if ("Name".equals(name)) result.setBucketName(reader.getElementText());
+                else if ("Prefix".equals(name)) result.setPrefix(reader.getElementText());
+                else if ("Delimiter".equals(name)) result.setDelimiter(reader.getElementText());
+                else if ("MaxKeys".equals(name)) result.setMaxKeys(parseInteger(reader.getElementText()));
+                else if ("EncodingType".equals(name)) result.setEncodingType(parseEncodingType(reader.getElementText()));
+                else if ("KeyMarker".equals(name)) result.setKeyMarker(reader.getElementText());
+                else if ("VersionIdMarker".equals(name)) result.setVersionIdMarker(reader.getElementText());
+                else if ("NextKeyMarker".equals(name)) result.setNextKeyMarker(reader.getElementText());
+                else if ("NextVersionIdMarker".equals(name)) result.setNextVersionIdMarker(reader.getElementText());
+                else if ("IsTruncated".equals(name)) result.setTruncated(parseBoolean(reader.getElementText()));
+                else skip(reader);
+            }
+            if (result.getEncodingType() == EncodingType.url) {
+                result.setBucketName(decode(result.getBucketName()));
+                result.setPrefix(decode(result.getPrefix()));
+                result.setDelimiter(decode(result.getDelimiter()));
+                result.setKeyMarker(decode(result.getKeyMarker()));
+                result.setNextKeyMarker(decode(result.getNextKeyMarker()));
+                decodeAll(prefixes);
+                for (AbstractVersion version : result.getVersions()) {
+                    version.setKey(decode(version.getKey()));
+                }
+            }
+            result.setCommonPrefixes(prefixes);
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a list-multipart-uploads response.
+     */
+    public ListMultipartUploadsResult parseListMultipartUploads(InputStream in, ListingHandler<Upload> handler)
+            throws XMLStreamException {
+        XMLStreamReader reader = open(in, "ListMultipartUploadsResult");
+        try {
+            ListMultipartUploadsResult result = new ListMultipartUploadsResult();
+            List<String> prefixes = new ArrayList<String>();
+            while (nextChild(reader)) {
+                String name = reader.getLocalName();
+                if ("Upload".equals(name)) {
+                    Upload upload = parseUpload(reader, decodeNow(handler, result.getEncodingType()));
+                    if (handler == null) result.getUploads().add(upload);
+                    else handler.handle(upload);
+                } else if ("CommonPrefixes".equals(name)) prefixes.add(parseCommonPrefix(reader));
+                else if ("Bucket".equals(name)) result.setBucketName(reader.getElementText());
+                else if ("Prefix".equals(name)) result.setPrefix(reader.getElementText());
+                else if ("Delimiter".equals(name)) result.setDelimiter(reader.getElementText());
+                else if ("MaxUploads".equals(name)) result.setMaxUploads(parseInteger(reader.getElementText()));
+                else if ("EncodingType".equals(name)) result.setEncodingType(parseEncodingType(reader.getElementText()));
+                else if ("KeyMarker".equals(name)) result.setKeyMarker(reader.getElementText());
+                else if ("UploadIdMarker".equals(name)) result.setUploadIdMarker(reader.getElementText());
+                else if ("NextKeyMarker".equals(name) || "NextsKeyMarker".equals(name))
+                    result.setNextKeyMarker(reader.getElementText());
+                else if ("NextUploadIdMarker".equals(name)) result.setNextUploadIdMarker(reader.getElementText());
+                else if ("IsTruncated".equals(name)) result.setTruncated(parseBoolean(reader.getElementText()));
+                else skip(reader);
+            }
+            if (result.getEncodingType() == EncodingType.url) {
+                result.setBucketName(decode(result.getBucketName()));
+                result.setPrefix(decode(result.getPrefix()));
+                result.setDelimiter(decode(result.getDelimiter()));
+                result.setKeyMarker(decode(result.getKeyMarker()));
+                result.setNextKeyMarker(decode(result.getNextKeyMarker()));
+                decodeAll(prefixes);
+                for (Upload upload : result.getUploads()) {
+                    upload.setKey(decode(upload.getKey()));
+                }
+            }
+            result.setCommonPrefixes(prefixes);
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a query-objects (metadata search) response. Note that the query parameters (query, attributes, etc.)
+     * are not part of the response and must be set by the caller.
+     */
+    public QueryObjectsResult parseQueryObjects(InputStream in, ListingHandler<QueryObject> handler)
+            throws XMLStreamException {
+        XMLStreamReader reader = open(in, "BucketQueryResult");
+        try {
+            QueryObjectsResult result = new QueryObjectsResult();
+            while (nextChild(reader)) {
+                String name = reader.getLocalName();
+                if ("ObjectMatches".equals(name)) {
+                    while (nextChild(reader)) {
+                        if ("object".equals(reader.getLocalName())) {
+                            QueryObject object = parseQueryObject(reader);
+                            if (handler == null) result.getObjects().add(object);
+                            else handler.handle(object);
+                        } else skip(reader);
+                    }
+                } else if ("Name".equals(name)) result.setBucketName(reader.getElementText());
+                else if ("Marker".equals(name)) result.setMarker(reader.getElementText());
+                else if ("NextMarker".equals(name)) result.setNextMarker(reader.getElementText());
+                else if ("MaxKeys".equals(name)) result.setMaxKeys(parseInteger(reader.getElementText()));
+                else skip(reader);
+            }
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    protected S3Object parseObject(XMLStreamReader reader, boolean urlDecode) throws XMLStreamException {
+        S3Object object = new S3Object();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("Key".equals(name)) object.setKey(urlDecode ? decode(reader.getElementText()) : reader.getElementText());
+            else if ("LastModified".equals(name)) object.setLastModified(parseDate(reader.getElementText()));
+            else if ("ETag".equals(name)) object.setETag(reader.getElementText());
+            else if ("Size".equals(name)) object.setSize(parseLong(reader.getElementText()));
+            else if ("StorageClass".equals(name)) object.setStorageClass(parseStorageClass(reader.getElementText()));
+            else if ("Owner".equals(name)) object.setOwner(parseUser(reader));
+            else skip(reader);
+        }
+        return object;
+    }
+
+    protected AbstractVersion parseVersion(XMLStreamReader reader, AbstractVersion version, boolean urlDecode)
+            throws XMLStreamException {
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("Key".equals(name)) version.setKey(urlDecode ? decode(reader.getElementText()) : reader.getElementText());
+            else if ("VersionId".equals(name)) version.setVersionId(reader.getElementText());
+            else if ("IsLatest".equals(name)) version.setLatest(parseBoolean(reader.getElementText()));
+            else if ("LastModified".equals(name)) version.setLastModified(parseDate(reader.getElementText()));
+            else if ("Owner".equals(name)) version.setOwner(parseUser(reader));
+            else if (version instanceof Version && "ETag".equals(name))
+                ((Version) version).setETag(reader.getElementText());
+            else if (version instanceof Version && "Size".equals(name))
+                ((Version) version).setSize(parseLong(reader.getElementText()));
+            else if (version instanceof Version && "StorageClass".equals(name))
+                ((Version) version).setStorageClass(parseStorageClass(reader.getElementText()));
+            else skip(reader);
+        }
+        return version;
+    }
+
+    protected Upload parseUpload(XMLStreamReader reader, boolean urlDecode) throws XMLStreamException {
+        Upload upload = new Upload();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("Key".equals(name)) upload.setKey(urlDecode ? decode(reader.getElementText()) : reader.getElementText());
+            else if ("UploadId".equals(name)) upload.setUploadId(reader.getElementText());
+            else if ("Initiator".equals(name) || "RequestInitiator".equals(name)) upload.setInitiator(parseUser(reader));
+            else if ("Owner".equals(name)) upload.setOwner(parseUser(reader));
+            else if ("StorageClass".equals(name)) upload.setStorageClass(parseStorageClass(reader.getElementText()));
+            else if ("Initiated".equals(name)) upload.setInitiated(parseDate(reader.getElementText()));
+            else skip(reader);
+        }
+        return upload;
+    }
+
+    protected QueryObject parseQueryObject(XMLStreamReader reader) throws XMLStreamException {
+        QueryObject object = new QueryObject();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("objectName".equals(name)) object.setObjectName(reader.getElementText());
+            else if ("objectId".equals(name)) object.setObjectId(reader.getElementText());
+            else if ("versionId".equals(name)) object.setVersionId(reader.getElementText());
+            else if ("queryMds".equals(name)) object.getQueryMds().add(parseQueryMetadata(reader));
+            else skip(reader);
+        }
+        return object;
+    }
+
+    protected QueryMetadata parseQueryMetadata(XMLStreamReader reader) throws XMLStreamException {
+        QueryMetadata metadata = new QueryMetadata();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("type".equals(name)) {
+                String type = reader.getElementText().trim();
+                try {
+                    metadata.setType(QueryMetadataType.valueOf(type));
+                } catch (IllegalArgumentException e) {
+                    metadata.setType(null);
+                }
+            } else if ("mdMap".equals(name)) {
+                while (nextChild(reader)) {
+                    if (!"entry".equals(reader.getLocalName())) {
+                        skip(reader);
+                        continue;
+                    }
+                    String key = null, value = null;
+                    while (nextChild(reader)) {
+                        if ("key".equals(reader.getLocalName())) key = reader.getElementText();
+                        else if ("value".equals(reader.getLocalName())) value = reader.getElementText();
+                        else skip(reader);
+                    }
+                    metadata.getMdMap().put(key, value);
+                }
+            } else skip(reader);
+        }
+        return metadata;
+    }
+
+    protected CanonicalUser parseUser(XMLStreamReader reader) throws XMLStreamException {
+        CanonicalUser user = new CanonicalUser();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("ID".equals(name)) user.setId(reader.getElementText());
+            else if ("DisplayName".equals(name)) user.setDisplayName(reader.getElementText());
+            else skip(reader);
+        }
+        return user;
+    }
+
+    protected String parseCommonPrefix(XMLStreamReader reader) throws XMLStreamException {
+        String prefix = null;
+        while (nextChild(reader)) {
+            if ("Prefix".equals(reader.getLocalName())) prefix = reader.getElementText();
+            else skip(reader);
+        }
+        return prefix;
+    }
+
+    /**
+     * Entries are decoded when the page is complete (when <code>EncodingType</code> is known), unless they go to a
+     * handler right away
+     */
+    private boolean decodeNow(ListingHandler<?> handler, EncodingType encodingType) {
+        return handler != null && encodingType == EncodingType.url;
+    }
+
+    private XMLStreamReader open(InputStream in, String rootElement) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+        // position on the root element
+        while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext()) throw new XMLStreamException("no root element");
+        }
+        if (!rootElement.equals(reader.getLocalName())) {
+            String name = reader.getLocalName();
+            reader.close();
+            throw new UnexpectedRootException(rootElement, name);
+        }
+        return reader;
+    }
+
+    /**
+     * Advances to the next child element of the current element. Returns false (positioned on the current element's
+     * end tag) when there are no more children.
+     */
+    private boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) return true;
+            if (event == XMLStreamConstants.END_ELEMENT) return false;
+        }
+        return false;
+    }
+
+    /**
+     * Skips the current element (including all of its children)
+     */
+    private void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
+    private void decodeAll(List<String> values) {
+        for (int i = 0; i < values.size(); i++) {
+            values.set(i, decode(values.get(i)));
+        }
+    }
+
+    private String decode(String value) {
+        return RestUtil.urlDecode(value, false);
+    }
+
+    private Date parseDate(String value) throws XMLStreamException {
+        try {
+            return dateAdapter.unmarshal(value.trim());
+        } catch (Exception e) {
+            throw new XMLStreamException("invalid date: " + value, e);
+        }
+    }
+
+    private Integer parseInteger(String value) throws XMLStreamException {
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new XMLStreamException("invalid integer: " + value, e);
+        }
+    }
+
+    private Long parseLong(String value) throws XMLStreamException {
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new XMLStreamException("invalid long: " + value, e);
+        }
+    }
+
+    private boolean parseBoolean(String value) {
+        value = value.trim();
+        return "true".equals(value) || "1".equals(value);
+    }
+
+    private EncodingType parseEncodingType(String value) {
+        try {
+            return EncodingType.valueOf(value.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private StorageClass parseStorageClass(String value) {
+        try {
+            return StorageClass.valueOf(value.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thrown when a response is not the expected listing (i.e. an <code>Error</code> document)
+     */
+    public static class UnexpectedRootException extends XMLStreamException {
+        private String elementName;
+
+        public UnexpectedRootException(String expected, String elementName) {
+            super("expected " + expected + " but the response is " + elementName);
+            this.elementName = elementName;
+        }
+
+        /**
+         * Returns the local name of the root element that was found
+         */
+        public String getElementName() {
+            return elementName;
+        }
+    }
+}
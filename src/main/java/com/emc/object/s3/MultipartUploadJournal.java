@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.MultipartPartETag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A local checkpoint file that records the state of a multipart upload (upload ID, object size, part size and the ETag
+ * of each completed part) so that a failed upload can be resumed later without re-sending completed parts. The journal
+ * is a simple line-based text file; each completed part is appended (and synced to disk) as soon as it finishes.
+ */
+public class MultipartUploadJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(MultipartUploadJournal.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String PROP_BUCKET = "bucket";
+    private static final String PROP_KEY = "key";
+    private static final String PROP_UPLOAD_ID = "uploadId";
+    private static final String PROP_OBJECT_SIZE = "objectSize";
+    private static final String PROP_PART_SIZE = "partSize";
+    private static final String PROP_PART = "part";
+
+    /**
+     * Reads an existing journal. Returns <code>null</code> if the file does not exist or cannot be parsed.
+     */
+    public static MultipartUploadJournal read(File file) throws IOException {
+        if (!file.exists()) return null;
+
+        MultipartUploadJournal journal = new MultipartUploadJournal(file);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int eq = line.indexOf('=');
+                if (eq < 0) continue; // partial (torn) line
+                String name = line.substring(0, eq), value = URLDecoder.decode(line.substring(eq + 1), ENCODING);
+
+                if (PROP_BUCKET.equals(name)) journal.bucket = value;
+                else if (PROP_KEY.equals(name)) journal.key = value;
+                else if (PROP_UPLOAD_ID.equals(name)) journal.uploadId = value;
+                else if (PROP_OBJECT_SIZE.equals(name)) journal.objectSize = Long.parseLong(value);
+                else if (PROP_PART_SIZE.equals(name)) journal.partSize = Long.parseLong(value);
+                else if (PROP_PART.equals(name)) {
+                    int colon = value.indexOf(':');
+                    if (colon < 0) continue;
+                    journal.parts.put(Integer.parseInt(value.substring(0, colon)), value.substring(colon + 1));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("could not parse upload journal " + file.getPath(), e);
+            return null;
+        } finally {
+            reader.close();
+        }
+
+        if (journal.uploadId == null || journal.objectSize <= 0 || journal.partSize <= 0) {
+            log.warn("upload journal {} is incomplete and will be ignored", file.getPath());
+            return null;
+        }
+        return journal;
+    }
+
+    private File file;
+    private String bucket;
+    private String key;
+    private String uploadId;
+    private long objectSize;
+    private long partSize;
+    private final SortedMap<Integer, String> parts = new TreeMap<Integer, String>();
+
+    private MultipartUploadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates a new journal for the specified upload, overwriting any existing file.
+     */
+    public MultipartUploadJournal(File file, String bucket, String key, String uploadId, long objectSize, long partSize)
+            throws IOException {
+        this.file = file;
+        this.bucket = bucket;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.objectSize = objectSize;
+        this.partSize = partSize;
+
+        write(header(), false);
+    }
+
+    /**
+     * Returns whether this journal describes an upload of the same object with the same size.
+     */
+    public boolean matches(String bucket, String key, long objectSize) {
+        return bucket.equals(this.bucket) && key.equals(this.key) && objectSize == this.objectSize;
+    }
+
+    /**
+     * Records a completed part. This is synchronized and the journal is synced to disk before returning.
+     */
+    public synchronized void partCompleted(MultipartPartETag part) throws IOException {
+        write(line(PROP_PART, part.getPartNumber() + ":" + part.getETag()), true);
+        parts.put(part.getPartNumber(), part.getETag());
+    }
+
+    /**
+     * Replaces all completed parts (i.e. with the parts that could be verified on the server) and rewrites the journal.
+     * The new journal is written to a temporary file first, so the existing one stays intact if the rewrite fails.
+     */
+    public synchronized void setParts(SortedMap<Integer, String> parts) throws IOException {
+        StringBuilder data = new StringBuilder(header());
+        for (Map.Entry<Integer, String> part : parts.entrySet()) {
+            data.append(line(PROP_PART, part.getKey() + ":" + part.getValue()));
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data.toString().getBytes(ENCODING));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // some platforms cannot rename over an existing file
+            if (!file.delete() || !tempFile.renameTo(file))
+                throw new IOException("could not replace upload journal " + file.getPath());
+        }
+
+        this.parts.clear();
+        this.parts.putAll(parts);
+    }
+
+    /**
+     * Deletes the journal file (after the upload is complete or is abandoned)
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) log.warn("could not delete upload journal {}", file.getPath());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public long getObjectSize() {
+        return objectSize;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Returns a copy of the completed parts (part number to ETag)
+     */
+    public synchronized SortedMap<Integer, String> getParts() {
+        return new TreeMap<Integer, String>(parts);
+    }
+
+    private String header() throws UnsupportedEncodingException {
+        return line(PROP_BUCKET, bucket) + line(PROP_KEY, key) + line(PROP_UPLOAD_ID, uploadId)
+                + line(PROP_OBJECT_SIZE, Long.toString(objectSize)) + line(PROP_PART_SIZE, Long.toString(partSize));
+    }
+
+    private String line(String name, String value) throws UnsupportedEncodingException {
+        return name + "=" + URLEncoder.encode(value, ENCODING) + "\n";
+    }
+
+    private void write(String data, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(data.getBytes(ENCODING));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,647 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import com.emc.object.s3.bean.*;
+import com.emc.object.s3.request.*;
+import com.emc.object.util.InputStreamSegment;
+import com.emc.object.util.ProgressListener;
+import com.emc.object.util.TaskWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds one object from an ordered list of sources (local files and/or existing objects) using multipart upload,
+ * without concatenating them locally first. The sources are laid out end to end and mapped to parts:
+ * <ul>
+ * <li>an object source of at least {@link LargeFileUploader#MIN_PART_SIZE} becomes one or more
+ * {@link S3Client#copyPart(CopyPartRequest) copied} parts (server-side; no data passes through the client)</li>
+ * <li>a file source of at least the minimum part size becomes one or more uploaded parts (read directly from the
+ * file)</li>
+ * <li>smaller sources are merged with their neighbours into uploaded parts, since every part but the last must be at
+ * least the minimum size. Objects that are merged this way are read with a (ranged) GET, so keep small objects
+ * together or to a minimum if you want to avoid moving their data through the client.</li>
+ * </ul>
+ * Large sources are split into parts of about {@link #setPartSize(long) partSize}. Parts are transferred several at a
+ * time, with the same retry and progress model as {@link LargeFileUploader}. Object sources are read with a HEAD first,
+ * and all copies and reads of them are conditional on that ETag. If anything fails, the upload is aborted.
+ * <p>
+ * Example:
+ * <pre><code>
+ * new ObjectAssembler(s3Client, "logs", "2017/01/01/all.log")
+ *         .addFile(new File("/var/log/app/app.log.1"))
+ *         .addObject("logs", "2017/01/01/host1.log")
+ *         .addObject("logs", "2017/01/01/host2.log")
+ *         .withThreads(16).assemble();
+ * </code></pre>
+ */
+public class ObjectAssembler implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ObjectAssembler.class);
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final long DEFAULT_PART_SIZE = LargeFileUploader.DEFAULT_PART_SIZE;
+    public static final int DEFAULT_PART_RETRIES = LargeFileUploader.DEFAULT_PART_RETRIES;
+    public static final long DEFAULT_PART_RETRY_DELAY = LargeFileUploader.DEFAULT_PART_RETRY_DELAY;
+
+    private S3Client s3Client;
+    private String bucket;
+    private String key;
+    private List<Source> sources = new ArrayList<Source>();
+
+    private S3ObjectMetadata objectMetadata;
+    private AccessControlList acl;
+    private CannedAcl cannedAcl;
+    private long minPartSize = LargeFileUploader.MIN_PART_SIZE;
+    private long partSize = DEFAULT_PART_SIZE;
+    private int threads = DEFAULT_THREADS;
+    private int partRetries = DEFAULT_PART_RETRIES;
+    private long partRetryDelay = DEFAULT_PART_RETRY_DELAY;
+    private ExecutorService executorService;
+    private ProgressListener progressListener;
+
+    private long fullSize;
+    private String eTag;
+    private AtomicLong bytesCopied = new AtomicLong();
+    private AtomicLong bytesUploaded = new AtomicLong();
+    private int partCount;
+
+    public ObjectAssembler(S3Client s3Client, String bucket, String key) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    /**
+     * Appends a local file
+     */
+    public ObjectAssembler addFile(File file) {
+        if (!file.isFile() || !file.canRead()) throw new IllegalArgumentException("cannot read file: " + file.getPath());
+        sources.add(new Source(file, null, null, null));
+        return this;
+    }
+
+    /**
+     * Appends an existing object
+     */
+    public ObjectAssembler addObject(String sourceBucket, String sourceKey) {
+        return addObject(sourceBucket, sourceKey, null);
+    }
+
+    /**
+     * Appends a specific version of an existing object
+     */
+    public ObjectAssembler addObject(String sourceBucket, String sourceKey, String sourceVersionId) {
+        sources.add(new Source(null, sourceBucket, sourceKey, sourceVersionId));
+        return this;
+    }
+
+    @Override
+    public void run() {
+        assemble();
+    }
+
+    public void assemble() {
+        if (sources.isEmpty()) throw new IllegalArgumentException("no sources to assemble");
+        if (partSize < minPartSize)
+            throw new IllegalArgumentException(String.format("part size (%,dk) is below the minimum part size (%,dk)",
+                    partSize / 1024, minPartSize / 1024));
+        if (partSize > LargeFileUploader.MAX_PART_SIZE / 2) // parts split from large sources may be up to 2x
+            throw new IllegalArgumentException(String.format("part size (%,dk) must be at most half the maximum part size (%,dk)",
+                    partSize / 1024, LargeFileUploader.MAX_PART_SIZE / 1024));
+
+        if (executorService == null) executorService = Executors.newFixedThreadPool(threads);
+
+        String uploadId = null;
+        TaskWindow<MultipartPartETag> tasks = new TaskWindow<MultipartPartETag>(executorService);
+        try {
+            readSourceSizes();
+            List<Part> parts = planParts();
+            if (parts.size() > LargeFileUploader.MAX_PARTS)
+                throw new IllegalArgumentException(String.format("%d parts is more than the maximum (%d); increase the part size",
+                        parts.size(), LargeFileUploader.MAX_PARTS));
+            partCount = parts.size();
+
+            InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key);
+            initRequest.setObjectMetadata(objectMetadata);
+            initRequest.setAcl(acl);
+            initRequest.setCannedAcl(cannedAcl);
+            uploadId = s3Client.initiateMultipartUpload(initRequest).getUploadId();
+
+            // transfer parts (only a bounded window of parts is queued or in flight at any time)
+            SortedSet<MultipartPartETag> partETags = new TreeSet<MultipartPartETag>();
+            for (Part part : parts) {
+                partETags.addAll(tasks.awaitCapacity(threads * 2));
+                tasks.submit(new PartTask(uploadId, part));
+            }
+            partETags.addAll(tasks.awaitAll());
+
+            CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(bucket, key, uploadId)
+                    .withParts(partETags);
+            eTag = s3Client.completeMultipartUpload(compRequest).getRawETag();
+
+            log.info(String.format("assembled %s/%s from %d sources in %d parts (%,dk copied, %,dk uploaded)",
+                    bucket, key, sources.size(), parts.size(), bytesCopied.get() / 1024, bytesUploaded.get() / 1024));
+        } catch (Exception e) {
+
+            // stop any parts that are still queued or in flight
+            tasks.cancelAll();
+
+            if (uploadId != null) {
+                try {
+                    s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                } catch (Throwable t) {
+                    log.warn("could not abort upload after failure", t);
+                }
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException("error during assembly", e);
+        } finally {
+            // make sure all spawned threads are shut down
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Reads the size of each file and the size and ETag of each object (objects are read concurrently)
+     */
+    protected void readSourceSizes() throws InterruptedException, ExecutionException {
+        List<Future<S3ObjectMetadata>> heads = new ArrayList<Future<S3ObjectMetadata>>();
+        for (final Source source : sources) {
+            if (source.file != null) {
+                heads.add(null);
+            } else {
+                heads.add(executorService.submit(new Callable<S3ObjectMetadata>() {
+                    @Override
+                    public S3ObjectMetadata call() {
+                        return s3Client.getObjectMetadata(new GetObjectMetadataRequest(source.bucket, source.key)
+                                .withVersionId(source.versionId).withFields(S3ObjectMetadata.Field.ContentLength,
+                                        S3ObjectMetadata.Field.ETag));
+                    }
+                }));
+            }
+        }
+        fullSize = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            Source source = sources.get(i);
+            if (source.file != null) {
+                source.size = source.file.length();
+            } else {
+                S3ObjectMetadata metadata = heads.get(i).get();
+                source.size = metadata.getContentLength();
+                source.eTag = metadata.getETag();
+            }
+            fullSize += source.size;
+        }
+    }
+
+    /**
+     * Maps the sources to parts. Every part except the last is at least <code>minPartSize</code>. Parts within a
+     * single large object are copied; all other parts are uploaded.
+     */
+    protected List<Part> planParts() {
+        List<Part> parts = new ArrayList<Part>();
+        Part pending = new Part(false);
+        for (Source source : sources) {
+            if (source.size == 0) continue;
+            long position = 0;
+
+            // top up a pending part that is too small to stand on its own
+            if (pending.size > 0 && pending.size < minPartSize) {
+                long length = Math.min(minPartSize - pending.size, source.size);
+                pending.add(new Segment(source, 0, length));
+                position = length;
+            }
+
+            long remaining = source.size - position;
+            if (remaining >= minPartSize) {
+                if (pending.size > 0) {
+                    parts.add(pending);
+                    pending = new Part(false);
+                }
+                // split evenly into parts of at least partSize (and less than twice partSize)
+                long count = Math.max(1, remaining / partSize);
+                for (long i = 0; i < count; i++) {
+                    long length = remaining / count + (i < remaining % count ? 1 : 0);
+                    Part part = new Part(source.file == null);
+                    part.add(new Segment(source, position, length));
+                    parts.add(part);
+                    position += length;
+                }
+            } else if (remaining > 0) {
+                pending.add(new Segment(source, position, remaining));
+                if (pending.size >= partSize) {
+                    parts.add(pending);
+                    pending = new Part(false);
+                }
+            }
+        }
+        if (pending.size > 0 || parts.isEmpty()) parts.add(pending); // an empty result still needs one part
+
+        for (int i = 0; i < parts.size(); i++) {
+            parts.get(i).partNumber = i + 1;
+        }
+        return parts;
+    }
+
+    protected void transferred(long size) {
+        long total = bytesCopied.get() + bytesUploaded.get();
+        if (progressListener != null) {
+            progressListener.transferred(size);
+            progressListener.progress(total, fullSize);
+        }
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the total size of the assembled object (available after the assembly starts)
+     */
+    public long getFullSize() {
+        return fullSize;
+    }
+
+    /**
+     * Returns the number of bytes copied server-side
+     */
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     * Returns the number of bytes uploaded through the client (files and merged small objects)
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    /**
+     * Returns the ETag of the assembled object
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    public S3ObjectMetadata getObjectMetadata() {
+        return objectMetadata;
+    }
+
+    public void setObjectMetadata(S3ObjectMetadata objectMetadata) {
+        this.objectMetadata = objectMetadata;
+    }
+
+    public AccessControlList getAcl() {
+        return acl;
+    }
+
+    public void setAcl(AccessControlList acl) {
+        this.acl = acl;
+    }
+
+    public CannedAcl getCannedAcl() {
+        return cannedAcl;
+    }
+
+    public void setCannedAcl(CannedAcl cannedAcl) {
+        this.cannedAcl = cannedAcl;
+    }
+
+    public long getMinPartSize() {
+        return minPartSize;
+    }
+
+    /**
+     * Sets the minimum size of every part but the last (the server's limit). Default is
+     * {@link LargeFileUploader#MIN_PART_SIZE}
+     */
+    public void setMinPartSize(long minPartSize) {
+        this.minPartSize = minPartSize;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the target size of parts split from large sources (and of merged parts). Default is
+     * {@link #DEFAULT_PART_SIZE}
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of parts transferred concurrently. Ignored if an executor service is provided. Default is
+     * {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getPartRetries() {
+        return partRetries;
+    }
+
+    public void setPartRetries(int partRetries) {
+        this.partRetries = partRetries;
+    }
+
+    public long getPartRetryDelay() {
+        return partRetryDelay;
+    }
+
+    public void setPartRetryDelay(long partRetryDelay) {
+        this.partRetryDelay = partRetryDelay;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Allows for providing a custom thread executor (i.e. for custom thread factories). Note that if you
+     * set a custom executor service, the <code>threads</code> property will be ignored.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Sets a listener for progress (reported as each part completes)
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public ObjectAssembler withObjectMetadata(S3ObjectMetadata objectMetadata) {
+        setObjectMetadata(objectMetadata);
+        return this;
+    }
+
+    public ObjectAssembler withAcl(AccessControlList acl) {
+        setAcl(acl);
+        return this;
+    }
+
+    public ObjectAssembler withCannedAcl(CannedAcl cannedAcl) {
+        setCannedAcl(cannedAcl);
+        return this;
+    }
+
+    public ObjectAssembler withMinPartSize(long minPartSize) {
+        setMinPartSize(minPartSize);
+        return this;
+    }
+
+    public ObjectAssembler withPartSize(long partSize) {
+        setPartSize(partSize);
+        return this;
+    }
+
+    public ObjectAssembler withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public ObjectAssembler withPartRetries(int partRetries) {
+        setPartRetries(partRetries);
+        return this;
+    }
+
+    public ObjectAssembler withPartRetryDelay(long partRetryDelay) {
+        setPartRetryDelay(partRetryDelay);
+        return this;
+    }
+
+    public ObjectAssembler withExecutorService(ExecutorService executorService) {
+        setExecutorService(executorService);
+        return this;
+    }
+
+    public ObjectAssembler withProgressListener(ProgressListener progressListener) {
+        setProgressListener(progressListener);
+        return this;
+    }
+
+    /**
+     * A local file or an existing object
+     */
+    static class Source {
+        final File file;
+        final String bucket;
+        final String key;
+        final String versionId;
+        long size;
+        String eTag;
+
+        Source(File file, String bucket, String key, String versionId) {
+            this.file = file;
+            this.bucket = bucket;
+            this.key = key;
+            this.versionId = versionId;
+        }
+
+        @Override
+        public String toString() {
+            return file != null ? file.getPath() : bucket + "/" + key;
+        }
+    }
+
+    /**
+     * A byte range of a source
+     */
+    static class Segment {
+        final Source source;
+        final long offset;
+        final long length;
+
+        Segment(Source source, long offset, long length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * One part of the upload: either a copied range of one object, or uploaded from one or more segments
+     */
+    static class Part {
+        final boolean copy;
+        final List<Segment> segments = new ArrayList<Segment>();
+        int partNumber;
+        long size;
+
+        Part(boolean copy) {
+            this.copy = copy;
+        }
+
+        void add(Segment segment) {
+            segments.add(segment);
+            size += segment.length;
+        }
+    }
+
+    protected class PartTask extends RetryingTask<MultipartPartETag> {
+        private String uploadId;
+        private Part part;
+
+        PartTask(String uploadId, Part part) {
+            super(partRetries, partRetryDelay);
+            this.uploadId = uploadId;
+            this.part = part;
+        }
+
+        @Override
+        protected MultipartPartETag attempt() throws IOException {
+            MultipartPartETag partETag = part.copy ? copyPart() : uploadPart();
+            (part.copy ? bytesCopied : bytesUploaded).addAndGet(part.size);
+            transferred(part.size);
+            return partETag;
+        }
+
+        private MultipartPartETag copyPart() {
+            Segment segment = part.segments.get(0);
+            Source source = segment.source;
+            CopyPartRequest request = new CopyPartRequest(source.bucket, source.key, bucket, key, uploadId, part.partNumber)
+                    .withSourceRange(Range.fromOffsetLength(segment.offset, segment.length));
+            request.setSourceVersionId(source.versionId);
+            request.setIfSourceMatch(source.eTag);
+            return new MultipartPartETag(part.partNumber, s3Client.copyPart(request).getRawETag());
+        }
+
+        private MultipartPartETag uploadPart() throws IOException {
+            InputStream partStream = new SegmentInputStream(part.segments);
+            try {
+                UploadPartRequest request = new UploadPartRequest(bucket, key, uploadId, part.partNumber, partStream)
+                        .withContentLength(part.size);
+                return s3Client.uploadPart(request);
+            } finally {
+                partStream.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "transferring part " + part.partNumber;
+        }
+    }
+
+    /**
+     * Reads a list of segments in sequence, opening each (file or ranged GET) only when it is reached
+     */
+    private class SegmentInputStream extends InputStream {
+        private Iterator<Segment> segments;
+        private InputStream current;
+
+        SegmentInputStream(List<Segment> segments) {
+            this.segments = segments.iterator();
+        }
+
+        private boolean nextSegment() throws IOException {
+            closeCurrent();
+            if (!segments.hasNext()) return false;
+            Segment segment = segments.next();
+            Source source = segment.source;
+            if (source.file != null) {
+                current = new InputStreamSegment(new FileInputStream(source.file), segment.offset, segment.length);
+            } else {
+                GetObjectRequest request = new GetObjectRequest(source.bucket, source.key)
+                        .withVersionId(source.versionId).withIfMatch(source.eTag)
+                        .withRange(Range.fromOffsetLength(segment.offset, segment.length));
+                GetObjectResult<InputStream> result = s3Client.getObject(request, InputStream.class);
+                // a failed If-Match returns null
+                if (result == null)
+                    throw new S3Exception("object " + source.bucket + "/" + source.key + " has changed", 412);
+                current = result.getObject();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int c = read(b, 0, 1);
+            return c < 0 ? c : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (current != null || nextSegment()) {
+                int c = current.read(b, off, len);
+                if (c >= 0) return c;
+                closeCurrent();
+            }
+            return -1;
+        }
+
+        private void closeCurrent() throws IOException {
+            if (current != null) {
+                InputStream stream = current;
+                current = null;
+                stream.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeCurrent();
+            while (segments.hasNext()) segments.next();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.*;
+import com.emc.object.s3.request.ListObjectsRequest;
+import com.emc.object.s3.request.ListVersionsRequest;
+import com.emc.object.s3.request.QueryObjectsRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Iterable} view over a paged listing (list-objects, list-versions or query-objects). Pages are fetched
+ * lazily as the iterator is consumed, and up to {@link #setPrefetchPages(int) prefetchPages} pages are fetched in the
+ * background ahead of the caller, so the next request is already on the wire while the current page is processed.
+ * <p>
+ * Each call to {@link #iterator()} starts a new listing from the first page. Background fetches only ever run ahead by
+ * the prefetch depth, so an iterator that is abandoned part-way does not hold any threads.
+ * <p>
+ * Example:
+ * <pre><code>
+ * for (S3Object object : PagedIterable.objects(s3Client, new ListObjectsRequest(bucket).withPrefix(prefix))) {
+ *     ...
+ * }
+ * </code></pre>
+ *
+ * @param <P> the page (result) type
+ * @param <T> the item type
+ */
+public abstract class PagedIterable<P, T> implements Iterable<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(PagedIterable.class);
+
+    public static final int DEFAULT_PREFETCH_PAGES = 1;
+
+    // shared by all iterables that don't specify an executor; idle threads expire
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "s3-page-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Returns an iterable over all objects matching <code>request</code> (common prefixes are not included)
+     */
+    public static PagedIterable<ListObjectsResult, S3Object> objects(final S3Client s3Client,
+                                                                      final ListObjectsRequest request) {
+        return new PagedIterable<ListObjectsResult, S3Object>(s3Client) {
+            @Override
+            protected ListObjectsResult firstPage() {
+                return getS3Client().listObjects(request);
+            }
+
+            @Override
+            protected ListObjectsResult nextPage(ListObjectsResult lastPage) {
+                return getS3Client().listMoreObjects(lastPage);
+            }
+
+            @Override
+            protected boolean isTruncated(ListObjectsResult page) {
+                return page.isTruncated();
+            }
+
+            @Override
+            protected List<S3Object> getItems(ListObjectsResult page) {
+                return page.getObjects();
+            }
+        };
+    }
+
+    /**
+     * Returns an iterable over all versions and delete markers matching <code>request</code>
+     */
+    public static PagedIterable<ListVersionsResult, AbstractVersion> versions(final S3Client s3Client,
+                                                                              final ListVersionsRequest request) {
+        return new PagedIterable<ListVersionsResult, AbstractVersion>(s3Client) {
+            @Override
+            protected ListVersionsResult firstPage() {
+                return getS3Client().listVersions(request);
+            }
+
+            @Override
+            protected ListVersionsResult nextPage(ListVersionsResult lastPage) {
+                return getS3Client().listMoreVersions(lastPage);
+            }
+
+            @Override
+            protected boolean isTruncated(ListVersionsResult page) {
+                return page.isTruncated();
+            }
+
+            @Override
+            protected List<AbstractVersion> getItems(ListVersionsResult page) {
+                return page.getVersions();
+            }
+        };
+    }
+
+    /**
+     * Returns an iterable over all metadata search results matching <code>request</code>
+     */
+    public static PagedIterable<QueryObjectsResult, QueryObject> queryResults(final S3Client s3Client,
+                                                                              final QueryObjectsRequest request) {
+        return new PagedIterable<QueryObjectsResult, QueryObject>(s3Client) {
+            @Override
+            protected QueryObjectsResult firstPage() {
+                return getS3Client().queryObjects(request);
+            }
+
+            @Override
+            protected QueryObjectsResult nextPage(QueryObjectsResult lastPage) {
+                return getS3Client().queryMoreObjects(lastPage);
+            }
+
+            @Override
+            protected boolean isTruncated(QueryObjectsResult page) {
+                return page.isTruncated();
+            }
+
+            @Override
+            protected List<QueryObject> getItems(QueryObjectsResult page) {
+                return page.getObjects();
+            }
+        };
+    }
+
+    private S3Client s3Client;
+    private int prefetchPages = DEFAULT_PREFETCH_PAGES;
+    private ExecutorService executorService;
+
+    public PagedIterable(S3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    protected abstract P firstPage();
+
+    protected abstract P nextPage(P lastPage);
+
+    protected abstract boolean isTruncated(P page);
+
+    protected abstract List<T> getItems(P page);
+
+    @Override
+    public Iterator<T> iterator() {
+        return new PageIterator();
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Sets the maximum number of pages to fetch ahead of the caller. 0 disables prefetching (each page is fetched
+     * in the caller's thread when it is needed). Default is {@link #DEFAULT_PREFETCH_PAGES}
+     */
+    public void setPrefetchPages(int prefetchPages) {
+        if (prefetchPages < 0) throw new IllegalArgumentException("prefetchPages must be >= 0");
+        this.prefetchPages = prefetchPages;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Sets the executor used for background page fetches. By default, a shared pool of daemon threads is used
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public PagedIterable<P, T> withPrefetchPages(int prefetchPages) {
+        setPrefetchPages(prefetchPages);
+        return this;
+    }
+
+    public PagedIterable<P, T> withExecutorService(ExecutorService executorService) {
+        setExecutorService(executorService);
+        return this;
+    }
+
+    private class PageIterator implements Iterator<T> {
+        private final int prefetch = prefetchPages;
+        private final ExecutorService executor = executorService != null ? executorService : DEFAULT_EXECUTOR;
+
+        // guarded by this
+        private final LinkedList<P> readyPages = new LinkedList<P>();
+        private P lastPage;
+        private boolean started, fetching, lastPageFetched;
+        private RuntimeException error;
+
+        private Iterator<T> items = Collections.<T>emptyList().iterator();
+
+        @Override
+        public boolean hasNext() {
+            while (!items.hasNext()) {
+                P page = takePage();
+                if (page == null) return false;
+                List<T> pageItems = getItems(page);
+                if (pageItems != null) items = pageItems.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return items.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private synchronized P takePage() {
+            if (prefetch == 0) {
+                if (lastPageFetched) return null;
+                P page = started ? nextPage(lastPage) : firstPage();
+                pageFetched(page);
+                return readyPages.removeFirst();
+            }
+
+            startFetch();
+            try {
+                while (readyPages.isEmpty() && error == null && (fetching || !lastPageFetched)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException("interrupted while waiting for next page", e);
+            }
+            if (!readyPages.isEmpty()) {
+                P page = readyPages.removeFirst();
+                startFetch(); // make room for the next page
+                return page;
+            }
+            if (error != null) throw error;
+            return null;
+        }
+
+        // must hold lock
+        private void startFetch() {
+            if (fetching || lastPageFetched || error != null || readyPages.size() >= prefetch) return;
+            fetching = true;
+            final P previous = lastPage;
+            final boolean first = !started;
+            started = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        P page = first ? firstPage() : nextPage(previous);
+                        synchronized (PageIterator.this) {
+                            fetching = false;
+                            pageFetched(page);
+                            startFetch();
+                            PageIterator.this.notifyAll();
+                        }
+                    } catch (Throwable t) {
+                        log.debug("error fetching page", t);
+                        synchronized (PageIterator.this) {
+                            fetching = false;
+                            error = t instanceof RuntimeException ? (RuntimeException) t
+                                    : new RuntimeException("error fetching page", t);
+                            PageIterator.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        // must hold lock
+        private void pageFetched(P page) {
+            started = true;
+            lastPage = page;
+            readyPages.add(page);
+            if (!isTruncated(page)) lastPageFetched = true;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.EncodingType;
+import com.emc.object.s3.bean.ListObjectsResult;
+import com.emc.object.s3.bean.S3Object;
+import com.emc.object.s3.request.ListObjectsRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lists a bucket (or a prefix within it) using several concurrent listings instead of paging serially through the
+ * whole keyspace. The keyspace is split into disjoint key ranges at a set of split points <code>k1 &lt; k2 &lt; ... &lt;
+ * kn</code>, giving the partitions <code>(-&infin;, k1], (k1, k2], ..., (kn, &infin;)</code>. Each partition is listed
+ * by starting at its lower bound (as the marker) and stopping after its upper bound.
+ * <p>
+ * Split points are either {@link #setSplitPoints(List) supplied} by the caller (i.e. from a previous inventory or
+ * known key distribution) or discovered by listing with a {@link #setDelimiter(String) delimiter}. Discovery uses the
+ * common prefixes at the top level, or deeper if {@link #setDiscoveryDepth(int) discoveryDepth} allows it and there are
+ * too few prefixes. Objects are handed to the caller through a bounded queue as they are listed. By default they are
+ * returned in no particular order. When {@link #setOrdered(boolean) ordered}, they are returned in global key order. In
+ * that case each partition is buffered separately and the partitions are returned one after another.
+ * <p>
+ * Example:
+ * <pre><code>
+ * ParallelBucketLister lister = new ParallelBucketLister(s3Client, "my-bucket").withThreads(16);
+ * Iterator&lt;S3Object&gt; objects = lister.iterator();
+ * while (objects.hasNext()) { ... }
+ * </code></pre>
+ * Iterating to the end releases all resources; call {@link #close()} to stop early.
+ */
+public class ParallelBucketLister implements Iterable<S3Object> {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBucketLister.class);
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final String DEFAULT_DELIMITER = "/";
+    public static final int DEFAULT_DISCOVERY_DEPTH = 2;
+    public static final int DEFAULT_MAX_DISCOVERY_PAGES = 10;
+
+    private S3Client s3Client;
+    private String bucket;
+    private String prefix;
+    private String startAfter;
+    private String delimiter = DEFAULT_DELIMITER;
+    private List<String> splitPoints;
+    private int threads = DEFAULT_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean ordered;
+    private Integer maxKeys;
+    private EncodingType encodingType;
+    private int discoveryDepth = DEFAULT_DISCOVERY_DEPTH;
+    private int maxDiscoveryPages = DEFAULT_MAX_DISCOVERY_PAGES;
+
+    private List<Partition> partitions;
+    private PartitionedQueue<S3Object> results;
+    private AtomicLong listRequests = new AtomicLong();
+    private AtomicLong objectCount = new AtomicLong();
+
+    public ParallelBucketLister(S3Client s3Client, String bucket) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+    }
+
+    /**
+     * Starts listing and returns an iterator over the objects. Can only be called once.
+     */
+    @Override
+    public synchronized Iterator<S3Object> iterator() {
+        if (partitions != null) throw new IllegalStateException("lister has already been started");
+
+        List<String> points = splitPoints != null ? sortSplitPoints(splitPoints) : discoverSplitPoints();
+        partitions = createPartitions(points);
+        log.debug("listing {} in {} partitions", bucket, partitions.size());
+
+        results = new PartitionedQueue<S3Object>("listing bucket " + bucket, partitions, threads, queueSize, ordered);
+        return results.start();
+    }
+
+    /**
+     * Stops listing (if still running)
+     */
+    public void close() {
+        if (results != null) results.close();
+    }
+
+    /**
+     * Waits for all listing threads to stop (after {@link #close()} or the end of the listing). Returns false if the
+     * timeout elapsed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return results == null || results.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Discovers split points by listing common prefixes (breadth-first, up to <code>discoveryDepth</code> levels,
+     * expanding further only while there are fewer prefixes than threads)
+     */
+    protected List<String> discoverSplitPoints() {
+        if (delimiter == null || discoveryDepth <= 0) return Collections.emptyList();
+
+        List<String> level = Collections.singletonList(prefix == null ? "" : prefix);
+        List<String> points = new ArrayList<String>();
+        for (int depth = 0; depth < discoveryDepth && !level.isEmpty() && points.size() < threads; depth++) {
+            List<String> next = new ArrayList<String>();
+            for (String levelPrefix : level) {
+                next.addAll(listCommonPrefixes(levelPrefix));
+            }
+            if (next.isEmpty()) break;
+            points = next;
+            level = next;
+        }
+        return sortSplitPoints(points);
+    }
+
+    /**
+     * Lists the common prefixes directly under <code>levelPrefix</code> (up to <code>maxDiscoveryPages</code> pages;
+     * the rest of the keyspace is still covered by the last partition)
+     */
+    protected List<String> listCommonPrefixes(String levelPrefix) {
+        List<String> prefixes = new ArrayList<String>();
+        ListObjectsRequest request = new ListObjectsRequest(bucket).withPrefix(levelPrefix).withDelimiter(delimiter)
+                .withMaxKeys(maxKeys).withEncodingType(encodingType);
+        listRequests.incrementAndGet();
+        ListObjectsResult result = s3Client.listObjects(request);
+        prefixes.addAll(result.getCommonPrefixes());
+        for (int page = 1; result.isTruncated() && page < maxDiscoveryPages; page++) {
+            listRequests.incrementAndGet();
+            result = s3Client.listMoreObjects(result);
+            prefixes.addAll(result.getCommonPrefixes());
+        }
+        if (result.isTruncated())
+            log.info("stopped discovering prefixes under '{}' after {} pages", levelPrefix, maxDiscoveryPages);
+        return prefixes;
+    }
+
+    protected List<Partition> createPartitions(List<String> points) {
+        List<Partition> partitions = new ArrayList<Partition>();
+        String lower = startAfter;
+        for (String point : points) {
+            if (lower != null && KEY_ORDER.compare(point, lower) <= 0) continue; // before the start
+            partitions.add(new Partition(lower, point));
+            lower = point;
+        }
+        partitions.add(new Partition(lower, null));
+        return partitions;
+    }
+
+    /**
+     * Sorts (in S3 key order) and de-duplicates split points
+     */
+    static List<String> sortSplitPoints(Collection<String> points) {
+        SortedSet<String> sorted = new TreeSet<String>(KEY_ORDER);
+        sorted.addAll(points);
+        return new ArrayList<String>(sorted);
+    }
+
+    /**
+     * Orders keys the way S3 does (by UTF-8 bytes, which is code point order rather than Java's UTF-16 order)
+     */
+    static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0, j = 0;
+            while (i < a.length() && j < b.length()) {
+                int ca = a.codePointAt(i), cb = b.codePointAt(j);
+                if (ca != cb) return ca < cb ? -1 : 1;
+                i += Character.charCount(ca);
+                j += Character.charCount(cb);
+            }
+            if (i < a.length()) return 1;
+            return j < b.length() ? -1 : 0;
+        }
+    };
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Returns the number of partitions (available after listing starts)
+     */
+    public int getPartitionCount() {
+        return partitions == null ? 0 : partitions.size();
+    }
+
+    /**
+     * Returns the number of list requests made so far (including discovery)
+     */
+    public long getListRequestCount() {
+        return listRequests.get();
+    }
+
+    /**
+     * Returns the number of objects listed so far
+     */
+    public long getObjectCount() {
+        return objectCount.get();
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Limits the listing to keys that start with <code>prefix</code>
+     */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getStartAfter() {
+        return startAfter;
+    }
+
+    /**
+     * Lists only keys after <code>startAfter</code> (i.e. to resume a previous listing)
+     */
+    public void setStartAfter(String startAfter) {
+        this.startAfter = startAfter;
+    }
+
+    public String getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Sets the delimiter used to discover split points. Note the listing itself is always recursive. Default is
+     * {@link #DEFAULT_DELIMITER}
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    public List<String> getSplitPoints() {
+        return splitPoints;
+    }
+
+    /**
+     * Sets the split points to use (instead of discovering them). Each split point is the last key (inclusive) of a
+     * partition, so markers from a previous listing can be used directly.
+     */
+    public void setSplitPoints(List<String> splitPoints) {
+        this.splitPoints = splitPoints;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of partitions to list concurrently. Default is {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the maximum number of objects buffered ahead of the caller. Default is {@link #DEFAULT_QUEUE_SIZE}
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Returns objects in global key order (each partition is buffered separately). Default is false.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public Integer getMaxKeys() {
+        return maxKeys;
+    }
+
+    /**
+     * Sets the page size of each list request (default is the server's default, usually 1000)
+     */
+    public void setMaxKeys(Integer maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public EncodingType getEncodingType() {
+        return encodingType;
+    }
+
+    public void setEncodingType(EncodingType encodingType) {
+        this.encodingType = encodingType;
+    }
+
+    public int getDiscoveryDepth() {
+        return discoveryDepth;
+    }
+
+    /**
+     * Sets the maximum number of delimiter levels to descend when discovering split points. Default is
+     * {@link #DEFAULT_DISCOVERY_DEPTH}
+     */
+    public void setDiscoveryDepth(int discoveryDepth) {
+        this.discoveryDepth = discoveryDepth;
+    }
+
+    public int getMaxDiscoveryPages() {
+        return maxDiscoveryPages;
+    }
+
+    /**
+     * Sets the maximum number of pages to list per prefix when discovering split points. Default is
+     * {@link #DEFAULT_MAX_DISCOVERY_PAGES}
+     */
+    public void setMaxDiscoveryPages(int maxDiscoveryPages) {
+        this.maxDiscoveryPages = maxDiscoveryPages;
+    }
+
+    public ParallelBucketLister withPrefix(String prefix) {
+        setPrefix(prefix);
+        return this;
+    }
+
+    public ParallelBucketLister withStartAfter(String startAfter) {
+        setStartAfter(startAfter);
+        return this;
+    }
+
+    public ParallelBucketLister withDelimiter(String delimiter) {
+        setDelimiter(delimiter);
+        return this;
+    }
+
+    public ParallelBucketLister withSplitPoints(List<String> splitPoints) {
+        setSplitPoints(splitPoints);
+        return this;
+    }
+
+    public ParallelBucketLister withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public ParallelBucketLister withQueueSize(int queueSize) {
+        setQueueSize(queueSize);
+        return this;
+    }
+
+    public ParallelBucketLister withOrdered(boolean ordered) {
+        setOrdered(ordered);
+        return this;
+    }
+
+    public ParallelBucketLister withMaxKeys(Integer maxKeys) {
+        setMaxKeys(maxKeys);
+        return this;
+    }
+
+    public ParallelBucketLister withEncodingType(EncodingType encodingType) {
+        setEncodingType(encodingType);
+        return this;
+    }
+
+    public ParallelBucketLister withDiscoveryDepth(int discoveryDepth) {
+        setDiscoveryDepth(discoveryDepth);
+        return this;
+    }
+
+    public ParallelBucketLister withMaxDiscoveryPages(int maxDiscoveryPages) {
+        setMaxDiscoveryPages(maxDiscoveryPages);
+        return this;
+    }
+
+    /**
+     * Lists the keys in (<code>after</code>, <code>last</code>]
+     */
+    protected class Partition extends PartitionedQueue.Partition<S3Object> {
+        private String after;
+        private String last;
+
+        Partition(String after, String last) {
+            this.after = after;
+            this.last = last;
+        }
+
+        @Override
+        protected void produce() throws InterruptedException {
+            ListObjectsRequest request = new ListObjectsRequest(bucket).withPrefix(prefix).withMarker(after)
+                    .withMaxKeys(maxKeys).withEncodingType(encodingType);
+            listRequests.incrementAndGet();
+            ListObjectsResult result = s3Client.listObjects(request);
+            while (true) {
+                for (S3Object object : result.getObjects()) {
+                    if (last != null && KEY_ORDER.compare(object.getKey(), last) > 0) return;
+                    put(object);
+                    objectCount.incrementAndGet();
+                }
+                if (!result.isTruncated() || isClosed()) return;
+                listRequests.incrementAndGet();
+                result = s3Client.listMoreObjects(result);
+            }
+        }
+
+        public String getAfter() {
+            return after;
+        }
+
+        public String getLast() {
+            return last;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + (after == null ? "" : after) + ", " + (last == null ? "" : last) + "]";
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import com.emc.object.s3.bean.GetObjectResult;
+import com.emc.object.s3.request.GetObjectRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+
+/**
+ * An input stream that reads an object using several concurrent range requests while delivering the bytes strictly
+ * in order. Up to <code>threads</code> consecutive ranges of <code>partSize</code> bytes are fetched ahead of the
+ * reader; each is held in a pooled buffer until the reader reaches it (a bounded reorder buffer), so memory usage is
+ * roughly <code>(threads + 1) * partSize</code>. This allows piping large objects into decompressors, parsers, etc. at
+ * parallel-download speed without staging them to disk.
+ * <p>
+ * Unless an object size is provided, the object's size and ETag are read (HEAD) when the stream is created, and every
+ * range is requested with <code>If-Match</code> on the ETag so that a change to the object during the read causes an
+ * error instead of corrupt data. If a range fails, the stream stops and every further read throws the same error.
+ * Fetching starts on the first read; settings must be changed before that. Always close the stream to stop any
+ * outstanding requests.
+ */
+public class ParallelObjectInputStream extends InputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelObjectInputStream.class);
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024; // 8MB
+
+    private S3Client s3Client;
+    private String bucket;
+    private String key;
+    private long objectSize;
+    private String eTag;
+    private int threads = DEFAULT_THREADS;
+    private int partSize = DEFAULT_PART_SIZE;
+    private ExecutorService executorService;
+    private boolean shutdownExecutor;
+
+    private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private BlockingQueue<byte[]> bufferPool = new LinkedBlockingQueue<byte[]>();
+    private long nextOffset; // offset of the next range to request
+    private byte[] current;
+    private int currentPos, currentLength;
+    private long position;
+    private boolean started, closed;
+    private IOException failure; // the stream cannot continue past a failed range
+
+    /**
+     * Creates a stream for <code>bucket/key</code>. The object's size and ETag are read immediately.
+     */
+    public ParallelObjectInputStream(S3Client s3Client, String bucket, String key) {
+        this(s3Client, bucket, key, 0);
+        S3ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+        this.objectSize = metadata.getContentLength();
+        this.eTag = metadata.getETag();
+    }
+
+    /**
+     * Creates a stream for <code>bucket/key</code> of a known size (no HEAD request is made and ranges are not
+     * conditional unless an ETag is also {@link #setETag(String) set})
+     */
+    public ParallelObjectInputStream(S3Client s3Client, String bucket, String key, long objectSize) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.objectSize = objectSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) return -1;
+        position++;
+        return current[currentPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensureData()) return -1;
+        int count = Math.min(len, currentLength - currentPos);
+        System.arraycopy(current, currentPos, b, off, count);
+        currentPos += count;
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) return 0;
+        return current == null ? 0 : currentLength - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (Future<byte[]> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        current = null;
+        bufferPool.clear();
+        if (shutdownExecutor) executorService.shutdownNow();
+    }
+
+    /**
+     * Makes sure there is unread data in the current buffer, advancing to the next range if necessary. Returns false
+     * at the end of the object.
+     */
+    protected boolean ensureData() throws IOException {
+        if (closed) throw new IOException("stream is closed");
+        if (failure != null) throw failure;
+        if (current != null && currentPos < currentLength) return true;
+
+        if (!started) start();
+
+        // recycle the buffer we just finished
+        if (current != null) {
+            bufferPool.offer(current);
+            current = null;
+        }
+
+        if (pending.isEmpty()) return false; // end of object
+
+        Future<byte[]> next = pending.removeFirst();
+        long rangeOffset = position;
+        try {
+            current = next.get();
+        } catch (InterruptedException e) {
+            throw failed(new IOException("interrupted while waiting for range at offset " + rangeOffset, e));
+        } catch (ExecutionException e) {
+            throw failed(new IOException("error reading range at offset " + rangeOffset, e.getCause()));
+        }
+        currentPos = 0;
+        currentLength = (int) Math.min(partSize, objectSize - rangeOffset);
+
+        // keep the read-ahead window full
+        submitNext();
+        return true;
+    }
+
+    /**
+     * Records <code>failure</code> (so later reads throw it too) and stops the remaining ranges
+     */
+    private IOException failed(IOException failure) {
+        this.failure = failure;
+        for (Future<byte[]> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        return failure;
+    }
+
+    protected void start() {
+        if (partSize <= 0) throw new IllegalArgumentException("partSize must be positive");
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(threads);
+            shutdownExecutor = true;
+        }
+        started = true;
+        for (int i = 0; i < threads; i++) {
+            submitNext();
+        }
+    }
+
+    private void submitNext() {
+        if (nextOffset >= objectSize) return;
+        long length = Math.min(partSize, objectSize - nextOffset);
+        byte[] buffer = bufferPool.poll();
+        if (buffer == null) buffer = new byte[partSize];
+        pending.add(executorService.submit(new RangeTask(Range.fromOffsetLength(nextOffset, length), buffer)));
+        nextOffset += length;
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getObjectSize() {
+        return objectSize;
+    }
+
+    /**
+     * Returns the number of bytes read so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Sets the ETag to require (via <code>If-Match</code>) for each range
+     */
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of ranges to fetch concurrently (and to buffer ahead of the reader). Default is
+     * {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the size of each range. Default is {@link #DEFAULT_PART_SIZE}
+     */
+    public void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Allows for providing a custom thread executor (i.e. a shared pool or a
+     * {@link TransferManager#newTransferExecutor(TransferManager.Priority) transfer manager}). The executor will not be
+     * shut down when the stream is closed.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public ParallelObjectInputStream withETag(String eTag) {
+        setETag(eTag);
+        return this;
+    }
+
+    public ParallelObjectInputStream withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public ParallelObjectInputStream withPartSize(int partSize) {
+        setPartSize(partSize);
+        return this;
+    }
+
+    public ParallelObjectInputStream withExecutorService(ExecutorService executorService) {
+        setExecutorService(executorService);
+        return this;
+    }
+
+    /**
+     * Reads a full range into a buffer
+     */
+    private class RangeTask implements Callable<byte[]> {
+        private Range range;
+        private byte[] buffer;
+
+        RangeTask(Range range, byte[] buffer) {
+            this.range = range;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(range);
+            if (eTag != null) request.withIfMatch(eTag);
+            GetObjectResult<InputStream> result = s3Client.getObject(request, InputStream.class);
+            if (result == null) throw new S3Exception("object " + bucket + "/" + key + " has changed", 412);
+
+            InputStream is = result.getObject();
+            try {
+                int length = (int) (range.getLast() - range.getFirst() + 1), read = 0;
+                while (read < length) {
+                    int r = is.read(buffer, read, length - read);
+                    if (r < 0) throw new IOException(String.format("premature end of range %s (read %d of %d bytes)",
+                            range, read, length));
+                    read += r;
+                }
+                return buffer;
+            } finally {
+                try {
+                    is.close();
+                } catch (Throwable t) {
+                    log.warn("could not close object stream", t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.*;
+import com.emc.object.s3.request.QueryObjectsRequest;
+import com.emc.object.util.Iso8601DateTimeAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a metadata search query as several concurrent sub-queries, each restricted to a disjoint range of one indexed
+ * key (the <em>split key</em>, i.e. <code>LastModified</code>, <code>Size</code> or an indexed
+ * <code>x-amz-meta-</code> key). Given split points <code>p1 &lt; p2 &lt; ... &lt; pn</code>, the sub-queries are
+ * <pre>
+ *     (query) and (key&lt;p1)
+ *     (query) and (key&gt;=p1) and (key&lt;p2)
+ *     ...
+ *     (query) and (key&gt;=pn)
+ * </pre>
+ * so together they return exactly the objects the original query returns (objects that have no value for the split
+ * key can't match any range and are not returned). Each sub-query pages independently and its results are handed to
+ * the caller through a bounded queue as they are parsed. When {@link #setOrdered(boolean) ordered}, the sub-queries
+ * are sorted by the split key and drained one after another, so the results come back in split key order (each page
+ * is then parsed completely before it is queued).
+ * <p>
+ * Split points are values of the split key's datatype ({@link Number}, {@link Date} or {@link String}); use the
+ * <code>splitRange</code> methods to divide a known range evenly. The datatype is looked up with
+ * {@link S3Client#listBucketMetadataSearchKeys(String)} unless {@link #setDatatype(MetadataSearchDatatype) set}.
+ * <p>
+ * Example:
+ * <pre><code>
+ * QueryObjectsRequest request = new QueryObjectsRequest(bucket).withQuery("x-amz-meta-retention&gt;0");
+ * ParallelQueryExecutor executor = new ParallelQueryExecutor(s3Client, request, "LastModified")
+ *         .withSplitPoints(ParallelQueryExecutor.splitRange(startDate, new Date(), 32)).withThreads(16);
+ * for (QueryObject object : executor) { ... }
+ * </code></pre>
+ */
+public class ParallelQueryExecutor implements Iterable<QueryObject> {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelQueryExecutor.class);
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /**
+     * Returns <code>partitions - 1</code> evenly spaced split points between <code>min</code> and <code>max</code>
+     */
+    public static List<Long> splitRange(long min, long max, int partitions) {
+        List<Long> points = new ArrayList<Long>();
+        for (int i = 1; i < partitions; i++) {
+            points.add(min + (long) ((double) (max - min) * i / partitions));
+        }
+        return points;
+    }
+
+    /**
+     * Returns <code>partitions - 1</code> evenly spaced split points between <code>min</code> and <code>max</code>
+     */
+    public static List<Date> splitRange(Date min, Date max, int partitions) {
+        List<Date> points = new ArrayList<Date>();
+        for (Long time : splitRange(min.getTime(), max.getTime(), partitions)) {
+            points.add(new Date(time));
+        }
+        return points;
+    }
+
+    /**
+     * Returns <code>partitions - 1</code> evenly spaced split points between <code>min</code> and <code>max</code>
+     */
+    public static List<BigDecimal> splitRange(BigDecimal min, BigDecimal max, int partitions) {
+        List<BigDecimal> points = new ArrayList<BigDecimal>();
+        BigDecimal step = max.subtract(min).divide(BigDecimal.valueOf(partitions), 10, RoundingMode.HALF_UP);
+        for (int i = 1; i < partitions; i++) {
+            points.add(min.add(step.multiply(BigDecimal.valueOf(i))).stripTrailingZeros());
+        }
+        return points;
+    }
+
+    private S3Client s3Client;
+    private QueryObjectsRequest request;
+    private String splitKey;
+    private MetadataSearchDatatype datatype;
+    private List<?> splitPoints;
+    private int threads = DEFAULT_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean ordered;
+
+    private List<Partition> partitions;
+    private PartitionedQueue<QueryObject> results;
+    private AtomicLong queryCount = new AtomicLong();
+    private AtomicLong objectCount = new AtomicLong();
+
+    /**
+     * @param request  the query to run (its query expression, attributes, include-older-versions and max-keys are
+     *                 used for every sub-query; its marker is ignored)
+     * @param splitKey the indexed key to partition on
+     */
+    public ParallelQueryExecutor(S3Client s3Client, QueryObjectsRequest request, String splitKey) {
+        this.s3Client = s3Client;
+        this.request = request;
+        this.splitKey = splitKey;
+    }
+
+    /**
+     * Starts the sub-queries and returns an iterator over the results. Can only be called once.
+     */
+    @Override
+    public synchronized Iterator<QueryObject> iterator() {
+        if (partitions != null) throw new IllegalStateException("query has already been started");
+        if (ordered && request.getSorted() != null && !request.getSorted().equalsIgnoreCase(splitKey))
+            throw new IllegalArgumentException("ordered results require sorting by the split key (" + splitKey + ")");
+
+        if (datatype == null) datatype = lookupDatatype();
+        partitions = createPartitions(formatSplitPoints());
+        log.debug("querying {} in {} partitions on {}", request.getBucketName(), partitions.size(), splitKey);
+
+        results = new PartitionedQueue<QueryObject>("querying bucket " + request.getBucketName(), partitions, threads,
+                queueSize, ordered);
+        return results.start();
+    }
+
+    /**
+     * Stops the sub-queries (if still running)
+     */
+    public void close() {
+        if (results != null) results.close();
+    }
+
+    /**
+     * Waits for all query threads to stop (after {@link #close()} or the end of the results). Returns false if the
+     * timeout elapsed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return results == null || results.awaitTermination(timeout, unit);
+    }
+
+    protected MetadataSearchDatatype lookupDatatype() {
+        MetadataSearchList keys = s3Client.listBucketMetadataSearchKeys(request.getBucketName());
+        for (MetadataSearchKey key : keys.getIndexableKeys()) {
+            if (splitKey.equalsIgnoreCase(key.getName())) return key.getDatatype();
+        }
+        throw new IllegalArgumentException(splitKey + " is not an indexed key in bucket " + request.getBucketName());
+    }
+
+    /**
+     * Sorts and de-duplicates the split points and formats them as query arguments
+     */
+    @SuppressWarnings("unchecked")
+    protected List<String> formatSplitPoints() {
+        if (splitPoints == null) return Collections.emptyList();
+
+        SortedSet<Comparable> sorted = new TreeSet<Comparable>();
+        for (Object point : splitPoints) {
+            sorted.add(normalize(point));
+        }
+
+        List<String> formatted = new ArrayList<String>();
+        for (Comparable point : sorted) {
+            String argument = formatArgument(point);
+            if (formatted.isEmpty() || !formatted.get(formatted.size() - 1).equals(argument)) formatted.add(argument);
+        }
+        return formatted;
+    }
+
+    private Comparable<?> normalize(Object point) {
+        switch (datatype) {
+            case integer:
+            case decimal:
+                if (point instanceof Number || point instanceof String) return new BigDecimal(point.toString());
+                break;
+            case datetime:
+                if (point instanceof Date) return point.getClass() == Date.class ? (Date) point : new Date(((Date) point).getTime());
+                break;
+            case string:
+                if (point instanceof String) return (String) point;
+                break;
+        }
+        throw new IllegalArgumentException("split point " + point + " does not match datatype " + datatype
+                + " of " + splitKey);
+    }
+
+    private String formatArgument(Object value) {
+        switch (datatype) {
+            case integer:
+                return ((BigDecimal) value).setScale(0, RoundingMode.FLOOR).toPlainString();
+            case decimal:
+                return ((BigDecimal) value).toPlainString();
+            case datetime:
+                return Iso8601DateTimeAdapter.getFormat().format((Date) value);
+            default:
+                String string = (String) value;
+                if (string.indexOf('\'') >= 0)
+                    throw new IllegalArgumentException("string split points cannot contain quotes: " + string);
+                return "'" + string + "'";
+        }
+    }
+
+    protected List<Partition> createPartitions(List<String> points) {
+        List<Partition> partitions = new ArrayList<Partition>();
+        String lower = null;
+        for (String point : points) {
+            partitions.add(new Partition(lower, point));
+            lower = point;
+        }
+        partitions.add(new Partition(lower, null));
+        return partitions;
+    }
+
+    /**
+     * Builds the query expression for the range [<code>lower</code>, <code>upper</code>) (either may be null for an
+     * open end)
+     */
+    protected String buildQuery(String lower, String upper) {
+        StringBuilder query = new StringBuilder();
+        if (request.getQuery() != null && request.getQuery().trim().length() > 0)
+            query.append("(").append(request.getQuery()).append(")");
+        if (lower != null) {
+            if (query.length() > 0) query.append(" and ");
+            query.append("(").append(splitKey).append(">=").append(lower).append(")");
+        }
+        if (upper != null) {
+            if (query.length() > 0) query.append(" and ");
+            query.append("(").append(splitKey).append("<").append(upper).append(")");
+        }
+        if (query.length() == 0) // no split points and no query
+            throw new IllegalArgumentException("a query expression or split points are required");
+        return query.toString();
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public QueryObjectsRequest getRequest() {
+        return request;
+    }
+
+    public String getSplitKey() {
+        return splitKey;
+    }
+
+    /**
+     * Returns the number of sub-queries (available after the query starts)
+     */
+    public int getPartitionCount() {
+        return partitions == null ? 0 : partitions.size();
+    }
+
+    /**
+     * Returns the number of query requests made so far (all pages of all sub-queries)
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Returns the number of results received so far
+     */
+    public long getObjectCount() {
+        return objectCount.get();
+    }
+
+    public MetadataSearchDatatype getDatatype() {
+        return datatype;
+    }
+
+    /**
+     * Sets the datatype of the split key (skips looking it up)
+     */
+    public void setDatatype(MetadataSearchDatatype datatype) {
+        this.datatype = datatype;
+    }
+
+    public List<?> getSplitPoints() {
+        return splitPoints;
+    }
+
+    /**
+     * Sets the split points ({@link Number}s for integer and decimal keys, {@link Date}s for datetime keys and
+     * {@link String}s for string keys). Each split point is the first value (inclusive) of a partition. With no split
+     * points, the query runs as a single partition.
+     */
+    public void setSplitPoints(List<?> splitPoints) {
+        this.splitPoints = splitPoints;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of sub-queries to run concurrently. Default is {@link #DEFAULT_THREADS}
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the maximum number of results buffered ahead of the caller. Default is {@link #DEFAULT_QUEUE_SIZE}
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Returns results sorted by the split key (sub-queries are sorted by the split key and buffered separately).
+     * The request must not sort by a different key. Default is false.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public ParallelQueryExecutor withDatatype(MetadataSearchDatatype datatype) {
+        setDatatype(datatype);
+        return this;
+    }
+
+    public ParallelQueryExecutor withSplitPoints(List<?> splitPoints) {
+        setSplitPoints(splitPoints);
+        return this;
+    }
+
+    public ParallelQueryExecutor withThreads(int threads) {
+        setThreads(threads);
+        return this;
+    }
+
+    public ParallelQueryExecutor withQueueSize(int queueSize) {
+        setQueueSize(queueSize);
+        return this;
+    }
+
+    public ParallelQueryExecutor withOrdered(boolean ordered) {
+        setOrdered(ordered);
+        return this;
+    }
+
+    /**
+     * Runs the query for [<code>lower</code>, <code>upper</code>). Unordered, results are queued as they are parsed.
+     * Ordered, this partition's queue may not be drained for a long time, so each page is parsed completely before it
+     * is queued (instead of stalling the response stream mid-parse).
+     */
+    protected class Partition extends PartitionedQueue.Partition<QueryObject> {
+        private String lower;
+        private String upper;
+
+        Partition(String lower, String upper) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        protected void produce() throws InterruptedException {
+            QueryObjectsRequest subRequest = new QueryObjectsRequest(request.getBucketName())
+                    .withQuery(buildQuery(lower, upper))
+                    .withAttributes(request.getAttributes())
+                    .withSorted(ordered ? splitKey : request.getSorted())
+                    .withIncludeOlderVersions(request.getIncludeOlderVersions())
+                    .withMaxKeys(request.getMaxKeys())
+                    .withEncodingType(request.getEncodingType());
+            final List<QueryObject> page = new ArrayList<QueryObject>();
+            ListingHandler<QueryObject> handler = new ListingHandler<QueryObject>() {
+                @Override
+                public void handle(QueryObject entry) {
+                    if (ordered) {
+                        page.add(entry);
+                        return;
+                    }
+                    try {
+                        put(entry);
+                        objectCount.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException("interrupted", e);
+                    }
+                }
+            };
+            while (!isClosed()) {
+                queryCount.incrementAndGet();
+                QueryObjectsResult result = s3Client.queryObjects(subRequest, handler);
+                for (QueryObject entry : page) {
+                    put(entry);
+                    objectCount.incrementAndGet();
+                }
+                page.clear();
+                if (!result.isTruncated()) break;
+                subRequest.setMarker(result.getNextMarker());
+            }
+        }
+
+        public String getLower() {
+            return lower;
+        }
+
+        public String getUpper() {
+            return upper;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + (lower == null ? "" : lower) + ", " + (upper == null ? "" : upper) + ")";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * Runs a list of partitions (each producing its results in order) on a thread pool and hands the results to a single
+ * consumer through bounded queues. Unordered, all partitions share one queue. Ordered, each partition has its own
+ * queue and the queues are drained one after another, so results come back in partition order. Shared by
+ * {@link ParallelBucketLister} and {@link ParallelQueryExecutor}.
+ * <p>
+ * The first partition error (or an interrupt of the consumer) stops everything and is thrown from the iterator.
+ * {@link #close()} stops the partitions early; the partition threads never block on a full queue after that.
+ */
+class PartitionedQueue<T> implements Iterator<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionedQueue.class);
+
+    // marks the end of a partition in a queue
+    private static final Object END = new Object();
+
+    // how often a waiting consumer checks whether the queue was closed
+    private static final long CLOSE_CHECK_INTERVAL = 100;
+
+    private final String description;
+    private final List<? extends Partition<T>> partitions;
+    private final int threads;
+    private final int queueSize;
+    private final boolean ordered;
+    private ExecutorService executorService;
+    private volatile boolean closed;
+
+    private int partitionIndex; // current partition (ordered) or number of ended partitions (unordered)
+    private T next;
+
+    /**
+     * @param description describes the operation in error messages (i.e. "listing bucket foo")
+     * @param queueSize   the maximum number of results buffered ahead of the consumer (across all partitions)
+     */
+    PartitionedQueue(String description, List<? extends Partition<T>> partitions, int threads, int queueSize,
+                     boolean ordered) {
+        this.description = description;
+        this.partitions = partitions;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Starts all partitions
+     */
+    synchronized PartitionedQueue<T> start() {
+        if (executorService != null) throw new IllegalStateException("already started");
+        BlockingQueue<Object> sharedQueue = ordered ? null : new LinkedBlockingQueue<Object>(queueSize);
+        int partitionQueueSize = Math.max(1000, queueSize / threads);
+        executorService = Executors.newFixedThreadPool(threads);
+        for (Partition<T> partition : partitions) {
+            partition.owner = this;
+            partition.queue = ordered ? new LinkedBlockingQueue<Object>(partitionQueueSize) : sharedQueue;
+            executorService.submit(partition); // in partition order, so ordered consumption cannot deadlock
+        }
+        executorService.shutdown();
+        return this;
+    }
+
+    /**
+     * Stops all partitions (if still running); the iterator ends
+     */
+    void close() {
+        closed = true;
+        if (executorService != null) executorService.shutdownNow();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService == null || executorService.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) next = take();
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T take() {
+        try {
+            while (partitionIndex < partitions.size()) {
+                Partition<T> current = partitions.get(ordered ? partitionIndex : 0);
+                BlockingQueue<Object> queue = current.queue;
+                Object item = null;
+                while (item == null) {
+                    if (closed) return null; // no more ends will arrive
+                    item = queue.poll(CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                if (item != END) return (T) item;
+
+                // a partition has ended; check all ended partitions for errors
+                partitionIndex++;
+                for (Partition<T> partition : partitions) {
+                    if (partition.error != null) {
+                        close();
+                        throw new RuntimeException("error " + description + " partition " + partition,
+                                partition.error);
+                    }
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            close();
+            throw new RuntimeException("interrupted while " + description, e);
+        }
+    }
+
+    /**
+     * Produces one partition's results in order
+     */
+    abstract static class Partition<T> implements Runnable {
+        private PartitionedQueue<T> owner;
+        private BlockingQueue<Object> queue;
+        private volatile Throwable error;
+
+        /**
+         * Produces all results of this partition with {@link #put(Object)}, stopping early if {@link #isClosed()}
+         */
+        protected abstract void produce() throws Exception;
+
+        protected void put(T result) throws InterruptedException {
+            queue.put(result);
+        }
+
+        protected boolean isClosed() {
+            return owner.closed;
+        }
+
+        @Override
+        public final void run() {
+            try {
+                produce();
+            } catch (Throwable t) {
+                if (!owner.closed && !(t instanceof InterruptedException)) log.warn("error in partition " + this, t);
+                error = t;
+            } finally {
+                // after close, nobody is waiting for the end (and the queue may be full)
+                if (!owner.closed) {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        log.debug("interrupted while ending partition {}", this);
+                    }
+                }
+            }
+        }
+    }
+}
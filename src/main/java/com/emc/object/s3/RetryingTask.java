@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A task that is retried with exponential backoff when an attempt fails with a {@link #isRetryable(Throwable)
+ * retryable} error. The parts of multipart transfers and the objects of bulk operations use this, so each can be
+ * retried on its own. Subclasses describe themselves in {@link #toString()} for the retry log.
+ */
+public abstract class RetryingTask<T> implements Callable<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(RetryingTask.class);
+
+    private final int maxRetries;
+    private final long retryDelay;
+
+    /**
+     * @param maxRetries the number of retries after the first attempt
+     * @param retryDelay the delay (ms) before the first retry; it doubles for every further retry
+     */
+    protected RetryingTask(int maxRetries, long retryDelay) {
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Makes one attempt
+     */
+    protected abstract T attempt() throws Exception;
+
+    /**
+     * Called after every failed attempt (before deciding whether to retry), i.e. to roll back progress
+     */
+    protected void attemptFailed(Exception e) {
+    }
+
+    @Override
+    public T call() throws Exception {
+        int attempt = 0;
+        while (true) {
+            try {
+                return attempt();
+            } catch (Exception e) {
+                attemptFailed(e);
+                if (Thread.currentThread().isInterrupted() || !isRetryable(e) || ++attempt > maxRetries) throw e;
+
+                long delay = retryDelay << Math.min(attempt - 1, 20);
+                log.warn(String.format("error %s [%s]; retrying in %dms (%d of %d)", this, e, delay, attempt,
+                        maxRetries));
+                if (delay > 0) Thread.sleep(delay); // cancellation will interrupt the sleep
+            }
+        }
+    }
+
+    /**
+     * Returns {@link #isRetryableError(Throwable)} by default
+     */
+    protected boolean isRetryable(Throwable t) {
+        return isRetryableError(t);
+    }
+
+    /**
+     * Client errors (4xx, including failed conditions on a changed object) and 501 responses are not retried. All
+     * other errors (5xx responses, IO errors, checksum failures) are. Interrupts are never retried.
+     */
+    public static boolean isRetryableError(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof S3Exception) {
+                int code = ((S3Exception) t).getHttpCode();
+                return code >= 500 && code != 501;
+            }
+            if (t instanceof InterruptedException) return false;
+        }
+        return true;
+    }
+}
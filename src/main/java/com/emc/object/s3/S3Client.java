@@ -230,6 +230,12 @@ public interface S3Client {
      */
     QueryObjectsResult queryObjects(QueryObjectsRequest request);
 
+    /**
+     * Queries objects in a bucket, passing each matching object to <code>handler</code> as it is read from the
+     * response. The returned result holds the paging state, but no objects
+     */
+    QueryObjectsResult queryObjects(QueryObjectsRequest request, ListingHandler<QueryObject> handler);
+
     /**
      * Gets the next page of objects using the results of a previous query-objects call
      */
@@ -250,6 +256,12 @@ public interface S3Client {
      */
     ListObjectsResult listObjects(ListObjectsRequest request);
 
+    /**
+     * Lists objects in a bucket, passing each object to <code>handler</code> as it is read from the response. The
+     * returned result holds the paging state and common prefixes, but no objects
+     */
+    ListObjectsResult listObjects(ListObjectsRequest request, ListingHandler<S3Object> handler);
+
     /**
      * Gets the next page of objects using the results of a previous list-objects call
      */
@@ -265,6 +277,12 @@ public interface S3Client {
      */
     ListVersionsResult listVersions(ListVersionsRequest request);
 
+    /**
+     * Lists versions in a bucket, passing each version to <code>handler</code> as it is read from the response. The
+     * returned result holds the paging state and common prefixes, but no versions
+     */
+    ListVersionsResult listVersions(ListVersionsRequest request, ListingHandler<AbstractVersion> handler);
+
     /**
      * Gets the next page of object versions using the results of a previous list-versions call
      */
@@ -394,6 +412,13 @@ public interface S3Client {
 
     ListMultipartUploadsResult listMultipartUploads(ListMultipartUploadsRequest request);
 
+    /**
+     * Lists multipart uploads in a bucket, passing each upload to <code>handler</code> as it is read from the
+     * response. The returned result holds the paging state and common prefixes, but no uploads
+     */
+    ListMultipartUploadsResult listMultipartUploads(ListMultipartUploadsRequest request,
+                                                    ListingHandler<Upload> handler);
+
     String initiateMultipartUpload(String bucketName, String key);
 
     InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request);
@@ -82,6 +82,7 @@ public class S3Config extends ObjectConfig<S3Config> {
     protected int retryBufferSize = DEFAULT_RETRY_BUFFER_SIZE;
     protected float faultInjectionRate = 0.0f;
     protected boolean signMetadataSearch = true;
+    protected boolean warmUpEnabled = false;
 
     /**
      * Empty constructor for internal use only!
@@ -127,6 +128,7 @@ public class S3Config extends ObjectConfig<S3Config> {
         this.retryBufferSize = other.retryBufferSize;
         this.faultInjectionRate = other.faultInjectionRate;
         this.signMetadataSearch = other.signMetadataSearch;
+        this.warmUpEnabled = other.warmUpEnabled;
     }
 
     @Override
@@ -258,6 +260,20 @@ public class S3Config extends ObjectConfig<S3Config> {
         this.signMetadataSearch = signMetadataSearch;
     }
 
+    @ConfigUriProperty
+    public boolean isWarmUpEnabled() {
+        return warmUpEnabled;
+    }
+
+    /**
+     * Set to true to create the (shared) JAXB context for the S3 XML beans when the client is constructed, instead of
+     * on the first request that needs it. The context is created once per JVM, so this only affects the first client.
+     * Default is false
+     */
+    public void setWarmUpEnabled(boolean warmUpEnabled) {
+        this.warmUpEnabled = warmUpEnabled;
+    }
+
     public S3Config withUseVHost(boolean useVHost) {
         setUseVHost(useVHost);
         return this;
@@ -303,6 +319,11 @@ public class S3Config extends ObjectConfig<S3Config> {
         return this;
     }
 
+    public S3Config withWarmUpEnabled(boolean warmUpEnabled) {
+        setWarmUpEnabled(warmUpEnabled);
+        return this;
+    }
+
     @Override
     public String toString() {
         return "S3Config{" +
@@ -315,6 +336,7 @@ public class S3Config extends ObjectConfig<S3Config> {
                 ", retryBufferSize=" + retryBufferSize +
                 ", faultInjectionRate=" + faultInjectionRate +
                 ", signMetadataSearch=" + signMetadataSearch +
+                ", warmUpEnabled=" + warmUpEnabled +
                 "} " + super.toString();
     }
 }
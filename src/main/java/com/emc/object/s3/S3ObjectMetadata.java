@@ -34,6 +34,16 @@ public class S3ObjectMetadata {
     public static final String EXPIRY_DATE = "expiry-date=";
     public static final String RULE_ID = "rule-id=";
 
+    /**
+     * Metadata fields that can be selected when parsing headers (see {@link #fromHeaders(Map, Set)})
+     */
+    public enum Field {
+        CacheControl, ContentDisposition, ContentEncoding, ContentLength, ContentMd5, ContentType, ETag, HttpExpires,
+        LastModified, VersionId, RetentionPeriod, RetentionPolicy, Expiration, UserMetadata
+    }
+
+    private static final Set<Field> ALL_FIELDS = Collections.unmodifiableSet(EnumSet.allOf(Field.class));
+
     private String cacheControl;
     private String contentDisposition;
     private String contentEncoding;
@@ -51,32 +61,58 @@ public class S3ObjectMetadata {
     private Map<String, String> userMetadata = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 
     public static <T> S3ObjectMetadata fromHeaders(Map<String, List<T>> headers) {
+        return fromHeaders(headers, null);
+    }
+
+    /**
+     * Parses only the specified fields from <code>headers</code> (all fields if <code>fields</code> is null). Fields
+     * that are not parsed are left null (user metadata is left empty).
+     */
+    public static <T> S3ObjectMetadata fromHeaders(Map<String, List<T>> headers, Set<Field> fields) {
+        if (fields == null) fields = ALL_FIELDS;
         S3ObjectMetadata objectMetadata = new S3ObjectMetadata();
-        objectMetadata.cacheControl = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CACHE_CONTROL);
-        objectMetadata.contentDisposition = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_DISPOSITION);
-        objectMetadata.contentEncoding = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_ENCODING);
-        if (RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_LENGTH) != null)
-            objectMetadata.contentLength = Long.parseLong(RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_LENGTH));
-        objectMetadata.contentMd5 = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_MD5);
-        objectMetadata.contentType = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_TYPE);
-        objectMetadata.eTag = RestUtil.getFirstAsString(headers, RestUtil.HEADER_ETAG, true);
-        objectMetadata.httpExpires = RestUtil.headerParse(
-                RestUtil.stripQuotes(RestUtil.getFirstAsString(headers, RestUtil.HEADER_EXPIRES)));
-
-        // prefer x-emc-mtime (has millisecond granularity)
-        String mtime = RestUtil.getFirstAsString(headers, RestUtil.EMC_MTIME);
-        if (mtime != null && mtime.length() > 0) objectMetadata.lastModified = new Date(Long.parseLong(mtime));
-        else
-            objectMetadata.lastModified = RestUtil.headerParse(RestUtil.getFirstAsString(headers, RestUtil.HEADER_LAST_MODIFIED));
-
-        objectMetadata.versionId = RestUtil.getFirstAsString(headers, S3Constants.AMZ_VERSION_ID);
-        if (RestUtil.getFirstAsString(headers, RestUtil.EMC_RETENTION_PERIOD) != null) {
-            objectMetadata.retentionPeriod = Long.parseLong(RestUtil.getFirstAsString(headers, RestUtil.EMC_RETENTION_PERIOD));
+        if (fields.contains(Field.CacheControl))
+            objectMetadata.cacheControl = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CACHE_CONTROL);
+        if (fields.contains(Field.ContentDisposition))
+            objectMetadata.contentDisposition = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_DISPOSITION);
+        if (fields.contains(Field.ContentEncoding))
+            objectMetadata.contentEncoding = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_ENCODING);
+        if (fields.contains(Field.ContentLength)) {
+            String contentLength = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_LENGTH);
+            if (contentLength != null) objectMetadata.contentLength = Long.parseLong(contentLength);
+        }
+        if (fields.contains(Field.ContentMd5))
+            objectMetadata.contentMd5 = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_MD5);
+        if (fields.contains(Field.ContentType))
+            objectMetadata.contentType = RestUtil.getFirstAsString(headers, RestUtil.HEADER_CONTENT_TYPE);
+        if (fields.contains(Field.ETag))
+            objectMetadata.eTag = RestUtil.getFirstAsString(headers, RestUtil.HEADER_ETAG, true);
+        if (fields.contains(Field.HttpExpires))
+            objectMetadata.httpExpires = RestUtil.headerParse(
+                    RestUtil.stripQuotes(RestUtil.getFirstAsString(headers, RestUtil.HEADER_EXPIRES)));
+
+        if (fields.contains(Field.LastModified)) {
+            // prefer x-emc-mtime (has millisecond granularity)
+            String mtime = RestUtil.getFirstAsString(headers, RestUtil.EMC_MTIME);
+            if (mtime != null && mtime.length() > 0) objectMetadata.lastModified = new Date(Long.parseLong(mtime));
+            else
+                objectMetadata.lastModified = RestUtil.headerParse(RestUtil.getFirstAsString(headers, RestUtil.HEADER_LAST_MODIFIED));
+        }
+
+        if (fields.contains(Field.VersionId))
+            objectMetadata.versionId = RestUtil.getFirstAsString(headers, S3Constants.AMZ_VERSION_ID);
+        if (fields.contains(Field.RetentionPeriod)) {
+            String retentionPeriod = RestUtil.getFirstAsString(headers, RestUtil.EMC_RETENTION_PERIOD);
+            if (retentionPeriod != null) objectMetadata.retentionPeriod = Long.parseLong(retentionPeriod);
+        }
+        if (fields.contains(Field.RetentionPolicy))
+            objectMetadata.retentionPolicy = RestUtil.getFirstAsString(headers, RestUtil.EMC_RETENTION_POLICY);
+        if (fields.contains(Field.Expiration)) {
+            objectMetadata.expirationDate = getExpirationDate(headers);
+            objectMetadata.expirationRuleId = getExpirationRuleId(headers);
         }
-        objectMetadata.retentionPolicy = RestUtil.getFirstAsString(headers, RestUtil.EMC_RETENTION_POLICY);
-        objectMetadata.expirationDate = getExpirationDate(headers);
-        objectMetadata.expirationRuleId = getExpirationRuleId(headers);
-        objectMetadata.userMetadata = getUserMetadata(headers);
+        if (fields.contains(Field.UserMetadata))
+            objectMetadata.userMetadata = getUserMetadata(headers);
         return objectMetadata;
     }
 
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import com.emc.object.s3.bean.GetObjectResult;
+import com.emc.object.s3.request.GetObjectRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A random-access channel over an object, for readers that seek around and issue many small reads (columnar file
+ * readers, zip central directories, media seeking, etc.). Instead of one request per read, the object is read in
+ * fixed-size, aligned blocks that are kept in an LRU cache:
+ * <ul>
+ * <li>a read that misses several adjacent blocks fetches them all with a single ranged GET</li>
+ * <li>when reads are sequential, the next {@link #setReadAheadBlocks(int) readAheadBlocks} blocks are fetched
+ * asynchronously (also with a single GET) so they are ready when the reader gets there</li>
+ * </ul>
+ * This provides the same <code>position</code>/<code>size</code> API as Java 7's <code>SeekableByteChannel</code>
+ * (read-only), plus positional reads that do not move the channel position. Unless an object size is provided, the
+ * object's size and ETag are read (HEAD) when the channel is created, and every block is requested with
+ * <code>If-Match</code> on the ETag so a change to the object causes an error instead of mixed data.
+ * <p>
+ * Like other channels, only one thread should read at a time. Memory usage is roughly
+ * <code>(cacheBlocks + readAheadBlocks) * blockSize</code>. Always close the channel to stop any read-ahead.
+ */
+public class SeekableObjectChannel implements ReadableByteChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(SeekableObjectChannel.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024; // 1MB
+    public static final int DEFAULT_CACHE_BLOCKS = 32;
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+
+    private S3Client s3Client;
+    private String bucket;
+    private String key;
+    private long size;
+    private String eTag;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int cacheBlocks = DEFAULT_CACHE_BLOCKS;
+    private int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+    private ExecutorService executorService;
+    private boolean shutdownExecutor;
+
+    private long position;
+    private long lastReadEnd = -1;
+    private volatile boolean open = true;
+
+    private final Object lock = new Object();
+    private Map<Long, byte[]> cache;
+    private Map<Long, Future<?>> inFlight = new HashMap<Long, Future<?>>();
+
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong cacheHits = new AtomicLong();
+    private AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Creates a channel for <code>bucket/key</code>. The object's size and ETag are read immediately.
+     */
+    public SeekableObjectChannel(S3Client s3Client, String bucket, String key) {
+        this(s3Client, bucket, key, 0);
+        S3ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+        this.size = metadata.getContentLength();
+        this.eTag = metadata.getETag();
+    }
+
+    /**
+     * Creates a channel for <code>bucket/key</code> of a known size (no HEAD request is made and blocks are not
+     * conditional unless an ETag is also {@link #setETag(String) set})
+     */
+    public SeekableObjectChannel(S3Client s3Client, String bucket, String key, long size) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.size = size;
+    }
+
+    /**
+     * Reads from the current position and advances it by the number of bytes read
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) position += read;
+        return read;
+    }
+
+    /**
+     * Reads from the specified position without changing the channel's position. Reads as many bytes as fit in
+     * <code>dst</code> (up to the end of the object). Returns -1 if <code>position</code> is at or past the end.
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (position < 0) throw new IllegalArgumentException("position must not be negative");
+        if (position >= size) return -1;
+        if (!dst.hasRemaining()) return 0;
+
+        boolean sequential = position == lastReadEnd;
+        long end = Math.min(size, position + dst.remaining()), pos = position;
+        while (pos < end) {
+            long block = pos / blockSize;
+            byte[] data = getBlock(block, (end - 1) / blockSize);
+            int offset = (int) (pos - block * blockSize);
+            int length = (int) Math.min(data.length - offset, end - pos);
+            dst.put(data, offset, length);
+            pos += length;
+        }
+        lastReadEnd = pos;
+
+        // sequential access; fetch the next blocks before they are needed
+        if (sequential && readAheadBlocks > 0 && pos < size) readAhead(pos / blockSize);
+
+        return (int) (pos - position);
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public SeekableObjectChannel position(long newPosition) {
+        if (newPosition < 0) throw new IllegalArgumentException("position must not be negative");
+        this.position = newPosition;
+        return this;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        if (!open) return;
+        open = false;
+        synchronized (lock) {
+            for (Future<?> future : inFlight.values()) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+            if (cache != null) cache.clear();
+        }
+        if (shutdownExecutor) executorService.shutdownNow();
+    }
+
+    /**
+     * Returns a block from the cache, waiting for it if it is being read ahead, or fetching it (along with any
+     * adjacent missing blocks up to <code>lastNeeded</code>) if it is not cached.
+     */
+    protected byte[] getBlock(long block, long lastNeeded) throws IOException {
+        Future<?> pending;
+        synchronized (lock) {
+            byte[] data = getCache().get(block);
+            if (data != null) {
+                cacheHits.incrementAndGet();
+                return data;
+            }
+            pending = inFlight.get(block);
+        }
+
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while waiting for block " + block, e);
+            } catch (Exception e) {
+                log.debug("read-ahead of block {} failed; reading it directly", block);
+            }
+            synchronized (lock) {
+                byte[] data = getCache().get(block);
+                if (data != null) {
+                    cacheHits.incrementAndGet();
+                    return data;
+                }
+            }
+        }
+
+        // merge the run of adjacent missing blocks into one request (no more than the cache can hold)
+        cacheMisses.incrementAndGet();
+        long last = block;
+        synchronized (lock) {
+            while (last < lastNeeded && last - block + 1 < cacheBlocks
+                    && !getCache().containsKey(last + 1) && !inFlight.containsKey(last + 1)) last++;
+        }
+        Map<Long, byte[]> blocks = fetch(block, last);
+        synchronized (lock) {
+            getCache().putAll(blocks);
+        }
+        return blocks.get(block);
+    }
+
+    /**
+     * Asynchronously fetches upcoming blocks when fewer than half of the next <code>readAheadBlocks</code> blocks
+     * (starting at <code>currentBlock</code>) are cached or in flight. A full window of missing blocks is then fetched
+     * with one request, so sequential reads make roughly one request per <code>readAheadBlocks</code> blocks.
+     */
+    protected void readAhead(long currentBlock) {
+        long lastBlock = (size - 1) / blockSize;
+        synchronized (lock) {
+            // find the first block that is not cached or in flight
+            long first = currentBlock;
+            while (first <= lastBlock && (getCache().containsKey(first) || inFlight.containsKey(first))) first++;
+            if (first > lastBlock || first - currentBlock > readAheadBlocks / 2) return;
+
+            // fetch the contiguous run of missing blocks (up to a full window)
+            long last = first, windowEnd = Math.min(lastBlock, first + readAheadBlocks - 1);
+            while (last < windowEnd && !getCache().containsKey(last + 1) && !inFlight.containsKey(last + 1)) last++;
+
+            FutureTask<Void> task = new FutureTask<Void>(new ReadAheadTask(first, last));
+            for (long block = first; block <= last; block++) {
+                inFlight.put(block, task);
+            }
+            getExecutorService().execute(task);
+        }
+    }
+
+    /**
+     * Fetches blocks <code>firstBlock</code> through <code>lastBlock</code> with one ranged request
+     */
+    protected Map<Long, byte[]> fetch(long firstBlock, long lastBlock) throws IOException {
+        long first = firstBlock * blockSize, last = Math.min((lastBlock + 1) * blockSize, size) - 1;
+        GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(new Range(first, last));
+        if (eTag != null) request.withIfMatch(eTag);
+        requestCount.incrementAndGet();
+        GetObjectResult<InputStream> result = s3Client.getObject(request, InputStream.class);
+        if (result == null) throw new S3Exception("object " + bucket + "/" + key + " has changed", 412);
+
+        Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>();
+        InputStream is = result.getObject();
+        try {
+            for (long block = firstBlock; block <= lastBlock; block++) {
+                long blockStart = block * blockSize;
+                byte[] data = new byte[(int) (Math.min(blockStart + blockSize, size) - blockStart)];
+                int read = 0;
+                while (read < data.length) {
+                    int r = is.read(data, read, data.length - read);
+                    if (r < 0) throw new IOException(String.format("premature end of range %d-%d (block %d)",
+                            first, last, block));
+                    read += r;
+                }
+                blocks.put(block, data);
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (Throwable t) {
+                log.warn("could not close object stream", t);
+            }
+        }
+        return blocks;
+    }
+
+    private Map<Long, byte[]> getCache() {
+        if (cache == null) {
+            final int capacity = cacheBlocks;
+            cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+        return cache;
+    }
+
+    private ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = Executors.newSingleThreadExecutor();
+            shutdownExecutor = true;
+        }
+        return executorService;
+    }
+
+    public S3Client getS3Client() {
+        return s3Client;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Sets the ETag to require (via <code>If-Match</code>) for each block
+     */
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the size (and alignment) of each cached block. Must be set before the first read. Default is
+     * {@link #DEFAULT_BLOCK_SIZE}
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) throw new IllegalArgumentException("blockSize must be positive");
+        this.blockSize = blockSize;
+    }
+
+    public int getCacheBlocks() {
+        return cacheBlocks;
+    }
+
+    /**
+     * Sets the number of blocks kept in the LRU cache. Must be set before the first read. Default is
+     * {@link #DEFAULT_CACHE_BLOCKS}
+     */
+    public void setCacheBlocks(int cacheBlocks) {
+        this.cacheBlocks = cacheBlocks;
+    }
+
+    public int getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+
+    /**
+     * Sets the number of blocks to read ahead when reads are sequential (0 disables read-ahead). Default is
+     * {@link #DEFAULT_READ_AHEAD_BLOCKS}
+     */
+    public void setReadAheadBlocks(int readAheadBlocks) {
+        this.readAheadBlocks = readAheadBlocks;
+    }
+
+    /**
+     * Allows for providing a custom executor for read-ahead. The executor will not be shut down when the channel is
+     * closed.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * Returns the number of GET requests made so far
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of block lookups served from the cache (including read-ahead)
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Returns the number of block lookups that required a (synchronous) request
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public SeekableObjectChannel withETag(String eTag) {
+        setETag(eTag);
+        return this;
+    }
+
+    public SeekableObjectChannel withBlockSize(int blockSize) {
+        setBlockSize(blockSize);
+        return this;
+    }
+
+    public SeekableObjectChannel withCacheBlocks(int cacheBlocks) {
+        setCacheBlocks(cacheBlocks);
+        return this;
+    }
+
+    public SeekableObjectChannel withReadAheadBlocks(int readAheadBlocks) {
+        setReadAheadBlocks(readAheadBlocks);
+        return this;
+    }
+
+    public SeekableObjectChannel withExecutorService(ExecutorService executorService) {
+        setExecutorService(executorService);
+        return this;
+    }
+
+    private class ReadAheadTask implements Callable<Void> {
+        private long firstBlock;
+        private long lastBlock;
+
+        ReadAheadTask(long firstBlock, long lastBlock) {
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                Map<Long, byte[]> blocks = fetch(firstBlock, lastBlock);
+                synchronized (lock) {
+                    if (open) getCache().putAll(blocks);
+                }
+                return null;
+            } finally {
+                synchronized (lock) {
+                    for (long block = firstBlock; block <= lastBlock; block++) {
+                        inFlight.remove(block);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs many uploads and downloads on a single, bounded pool of worker threads. Instead of each
+ * {@link LargeFileUploader} and {@link LargeFileDownloader} creating its own thread pool, the parts of all transfers
+ * submitted to this manager are scheduled on one pool of <code>threads</code> workers (which is also the budget of
+ * concurrent requests, so the client's connection pool should be sized to match).
+ * <p>
+ * Parts are scheduled fairly: within a {@link Priority} class, transfers with queued parts take turns (round-robin),
+ * one part at a time, so a new transfer does not wait behind a large one and a large one is not starved by new ones.
+ * Higher priority classes always run first, so parts of an {@link Priority#INTERACTIVE} transfer pre-empt (at part
+ * boundaries) any queued parts of {@link Priority#BULK} transfers.
+ * <p>
+ * Each transfer is coordinated by its own lightweight thread (at most <code>maxActiveTransfers</code> at a time;
+ * additional transfers are queued and admitted in priority order). Coordinators do not make requests themselves; the
+ * single PUT or GET of a small upload or download also runs on the worker pool. Each submission returns a
+ * {@link TransferHandle} that can be used to wait for or cancel the transfer. Always call {@link #shutdown()} when
+ * finished with the manager.
+ */
+public class TransferManager {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferManager.class);
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_MAX_ACTIVE_TRANSFERS = 64;
+
+    public enum Priority {
+        INTERACTIVE, NORMAL, BULK
+    }
+
+    private int threads;
+    private int maxActiveTransfers;
+    private ThreadPoolExecutor workerPool;
+    private ThreadPoolExecutor transferPool;
+    private AtomicLong sequence = new AtomicLong();
+
+    public TransferManager() {
+        this(DEFAULT_THREADS, DEFAULT_MAX_ACTIVE_TRANSFERS);
+    }
+
+    public TransferManager(int threads, int maxActiveTransfers) {
+        this.threads = threads;
+        this.maxActiveTransfers = maxActiveTransfers;
+        this.workerPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PartQueue());
+        this.transferPool = new ThreadPoolExecutor(maxActiveTransfers, maxActiveTransfers, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Submits an upload with {@link Priority#NORMAL} priority
+     */
+    public TransferHandle<LargeFileUploader> upload(LargeFileUploader uploader) {
+        return upload(uploader, Priority.NORMAL);
+    }
+
+    /**
+     * Submits an upload. The uploader's executor service will be replaced with one that schedules its parts on this
+     * manager's worker pool.
+     */
+    public TransferHandle<LargeFileUploader> upload(LargeFileUploader uploader, Priority priority) {
+        uploader.setExecutorService(newTransferExecutor(priority));
+        return submit(uploader, priority);
+    }
+
+    /**
+     * Submits a download with {@link Priority#NORMAL} priority
+     */
+    public TransferHandle<LargeFileDownloader> download(LargeFileDownloader downloader) {
+        return download(downloader, Priority.NORMAL);
+    }
+
+    /**
+     * Submits a download. The downloader's executor service will be replaced with one that schedules its parts on this
+     * manager's worker pool.
+     */
+    public TransferHandle<LargeFileDownloader> download(LargeFileDownloader downloader, Priority priority) {
+        downloader.setExecutorService(newTransferExecutor(priority));
+        return submit(downloader, priority);
+    }
+
+    /**
+     * Submits an arbitrary transfer whose parts are (or will be) scheduled via an executor obtained from
+     * {@link #newTransferExecutor(Priority)}.
+     */
+    public <T extends Runnable> TransferHandle<T> submit(T transfer, Priority priority) {
+        if (transferPool.isShutdown()) throw new IllegalStateException("transfer manager is shut down");
+        QueuedTransfer future = new QueuedTransfer(transfer, priority, sequence.getAndIncrement());
+        transferPool.execute(future);
+        return new TransferHandle<T>(transfer, priority, future);
+    }
+
+    /**
+     * Creates an executor for a single transfer. Tasks submitted to the returned executor run on this manager's shared
+     * worker pool, scheduled fairly against other transfers in the same priority class. Shutting down the returned
+     * executor does not affect the worker pool: {@link ExecutorService#shutdownNow()} removes (and cancels) only this
+     * executor's queued tasks and interrupts only its running ones, and the executor is terminated once its own tasks
+     * are done.
+     */
+    public ExecutorService newTransferExecutor(Priority priority) {
+        return new TransferExecutor(priority);
+    }
+
+    /**
+     * Returns true if the executor was created by {@link #newTransferExecutor(Priority)} (of any manager)
+     */
+    static boolean isTransferExecutor(ExecutorService executor) {
+        return executor instanceof TransferExecutor;
+    }
+
+    /**
+     * Stops accepting new transfers. Transfers already submitted will complete.
+     */
+    public void shutdown() {
+        transferPool.shutdown();
+        // workers are still needed by active transfers; they will exit when the transfers are done
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transferPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    log.warn("interrupted while waiting for transfers to finish");
+                } finally {
+                    workerPool.shutdown();
+                }
+            }
+        }, "transfer-manager-shutdown").start();
+    }
+
+    /**
+     * Cancels all transfers (interrupting them) and stops all threads
+     */
+    public void shutdownNow() {
+        for (Runnable queued : transferPool.shutdownNow()) {
+            ((Future<?>) queued).cancel(false);
+        }
+        workerPool.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!transferPool.awaitTermination(timeout, unit)) return false;
+        return workerPool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getMaxActiveTransfers() {
+        return maxActiveTransfers;
+    }
+
+    /**
+     * Returns the number of parts (of all transfers) waiting for a worker
+     */
+    public int getQueuedParts() {
+        return workerPool.getQueue().size();
+    }
+
+    /**
+     * A handle to a submitted transfer
+     */
+    public static class TransferHandle<T> {
+        private T transfer;
+        private Priority priority;
+        private Future<?> future;
+
+        TransferHandle(T transfer, Priority priority, Future<?> future) {
+            this.transfer = transfer;
+            this.priority = priority;
+            this.future = future;
+        }
+
+        /**
+         * Waits for the transfer to complete and returns it
+         *
+         * @throws ExecutionException if the transfer failed
+         */
+        public T get() throws InterruptedException, ExecutionException {
+            future.get();
+            return transfer;
+        }
+
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            future.get(timeout, unit);
+            return transfer;
+        }
+
+        /**
+         * Cancels the transfer. If it is already running, it is interrupted, which cancels its remaining parts and
+         * aborts the transfer.
+         */
+        public boolean cancel() {
+            return future.cancel(true);
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public T getTransfer() {
+            return transfer;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * Executor view of the worker pool for a single transfer. Tracks its own tasks (queued or running) so it can be
+     * shut down and awaited on its own.
+     */
+    private class TransferExecutor extends AbstractExecutorService {
+        private Priority priority;
+        private boolean shutdown;
+        private int inFlight; // tasks queued or running
+        private Set<Thread> running = new HashSet<Thread>();
+
+        TransferExecutor(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (shutdown) throw new RejectedExecutionException("transfer executor is shut down");
+                inFlight++;
+            }
+            try {
+                workerPool.execute(new ScheduledPart(new TrackedTask(command), this, priority));
+            } catch (RejectedExecutionException e) {
+                finished(1);
+                throw e;
+            }
+        }
+
+        /**
+         * Only affects this view (the shared worker pool is not shut down)
+         */
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        /**
+         * Removes (and cancels) this view's queued tasks and interrupts its running ones (the shared worker pool is not
+         * shut down). Returns the removed tasks.
+         */
+        @Override
+        public List<Runnable> shutdownNow() {
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            synchronized (this) {
+                shutdown = true;
+                for (ScheduledPart part : ((PartQueue) workerPool.getQueue()).removeAll(this)) {
+                    tasks.add(((TrackedTask) part.task).task);
+                }
+                for (Thread thread : running) {
+                    thread.interrupt();
+                }
+            }
+            finished(tasks.size());
+            for (Runnable task : tasks) {
+                if (task instanceof Future) ((Future<?>) task).cancel(false);
+            }
+            return tasks;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && inFlight == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (millis <= 0) return false;
+                wait(millis);
+            }
+            return true;
+        }
+
+        private synchronized void finished(int count) {
+            inFlight -= count;
+            if (inFlight == 0) notifyAll();
+        }
+
+        /**
+         * A task of this view; records the worker thread while it runs (so it can be interrupted)
+         */
+        private class TrackedTask implements Runnable {
+            private Runnable task;
+
+            TrackedTask(Runnable task) {
+                this.task = task;
+            }
+
+            @Override
+            public void run() {
+                synchronized (TransferExecutor.this) {
+                    running.add(Thread.currentThread());
+                }
+                try {
+                    task.run();
+                } finally {
+                    synchronized (TransferExecutor.this) {
+                        running.remove(Thread.currentThread());
+                    }
+                    finished(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * A transfer waiting to be admitted, ordered by priority, then by submission order
+     */
+    static class QueuedTransfer extends FutureTask<Void> implements Comparable<QueuedTransfer> {
+        private Priority priority;
+        private long sequence;
+
+        QueuedTransfer(Runnable transfer, Priority priority, long sequence) {
+            super(transfer, null);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedTransfer other) {
+            if (priority != other.priority) return priority.compareTo(other.priority);
+            if (sequence != other.sequence) return sequence < other.sequence ? -1 : 1;
+            return 0;
+        }
+    }
+
+    /**
+     * A part task of a single transfer (<code>owner</code> identifies the transfer)
+     */
+    static class ScheduledPart implements Runnable {
+        private Runnable task;
+        private Object owner;
+        private Priority priority;
+
+        ScheduledPart(Runnable task, Object owner, Priority priority) {
+            this.task = task;
+            this.owner = owner;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * The worker queue. Parts are queued per transfer, and within each priority class the transfers are served
+     * round-robin (one part each in turn). A transfer that has no more queued parts leaves the rotation and re-joins it
+     * at the end when it queues another part.
+     */
+    static class PartQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+        private final List<LinkedHashMap<Object, LinkedList<ScheduledPart>>> levels =
+                new ArrayList<LinkedHashMap<Object, LinkedList<ScheduledPart>>>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private int count;
+
+        PartQueue() {
+            for (int i = 0; i < Priority.values().length; i++) {
+                levels.add(new LinkedHashMap<Object, LinkedList<ScheduledPart>>());
+            }
+        }
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            if (!(runnable instanceof ScheduledPart))
+                throw new IllegalArgumentException("only transfer parts can be queued");
+            ScheduledPart part = (ScheduledPart) runnable;
+            lock.lock();
+            try {
+                LinkedHashMap<Object, LinkedList<ScheduledPart>> level = levels.get(part.priority.ordinal());
+                LinkedList<ScheduledPart> parts = level.get(part.owner);
+                if (parts == null) {
+                    parts = new LinkedList<ScheduledPart>();
+                    level.put(part.owner, parts);
+                }
+                parts.add(part);
+                count++;
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(Runnable runnable) {
+            offer(runnable);
+        }
+
+        @Override
+        public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+            return offer(runnable);
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (count == 0) notEmpty.await();
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (count == 0) {
+                    if (nanos <= 0) return null;
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                for (LinkedHashMap<Object, LinkedList<ScheduledPart>> level : levels) {
+                    if (!level.isEmpty()) return level.values().iterator().next().getFirst();
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof ScheduledPart)) return false;
+            ScheduledPart part = (ScheduledPart) o;
+            lock.lock();
+            try {
+                LinkedHashMap<Object, LinkedList<ScheduledPart>> level = levels.get(part.priority.ordinal());
+                LinkedList<ScheduledPart> parts = level.get(part.owner);
+                if (parts == null || !parts.remove(part)) return false;
+                if (parts.isEmpty()) level.remove(part.owner);
+                count--;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            lock.lock();
+            try {
+                int n = 0;
+                while (n < maxElements && count > 0) {
+                    c.add(dequeue());
+                    n++;
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes and returns all queued parts of the transfer identified by <code>owner</code>
+         */
+        List<ScheduledPart> removeAll(Object owner) {
+            lock.lock();
+            try {
+                List<ScheduledPart> removed = new ArrayList<ScheduledPart>();
+                for (LinkedHashMap<Object, LinkedList<ScheduledPart>> level : levels) {
+                    LinkedList<ScheduledPart> parts = level.remove(owner);
+                    if (parts != null) removed.addAll(parts);
+                }
+                count -= removed.size();
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns a snapshot of the queued parts (removal via the iterator is not supported)
+         */
+        @Override
+        public Iterator<Runnable> iterator() {
+            lock.lock();
+            try {
+                List<Runnable> parts = new ArrayList<Runnable>();
+                for (LinkedHashMap<Object, LinkedList<ScheduledPart>> level : levels) {
+                    for (LinkedList<ScheduledPart> transferParts : level.values()) {
+                        parts.addAll(transferParts);
+                    }
+                }
+                return Collections.unmodifiableList(parts).iterator();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // lock must be held
+        private ScheduledPart dequeue() {
+            for (LinkedHashMap<Object, LinkedList<ScheduledPart>> level : levels) {
+                if (level.isEmpty()) continue;
+                Map.Entry<Object, LinkedList<ScheduledPart>> next = level.entrySet().iterator().next();
+                ScheduledPart part = next.getValue().removeFirst();
+
+                // move the transfer to the end of the rotation (or drop it if it has no more parts)
+                level.remove(next.getKey());
+                if (!next.getValue().isEmpty()) level.put(next.getKey(), next.getValue());
+                count--;
+                return part;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the concurrency and part size of a transfer based on measured throughput and latency. Completed parts are
+ * reported to the tuner, which evaluates aggregate throughput once per round (one round completes when
+ * <code>concurrency</code> parts have finished).
+ * <p>
+ * Concurrency is tuned by hill-climbing: while throughput keeps improving (by more than
+ * {@link #IMPROVEMENT_THRESHOLD}), concurrency is increased; when it stops improving, the best setting is restored
+ * and held. The tuner periodically probes again, in case conditions have changed. Part size (for parts not yet
+ * started) is doubled when parts finish too quickly for per-request overhead to be negligible, and halved when parts
+ * take too long (to limit the cost of a retry). At all times, <code>concurrency * partSize</code> is kept under the
+ * configured memory cap.
+ * <p>
+ * This class is thread-safe.
+ */
+public class TransferTuner {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferTuner.class);
+
+    public static final double IMPROVEMENT_THRESHOLD = 0.05; // 5%
+    public static final long MIN_TARGET_PART_TIME = 2000; // 2 seconds
+    public static final long MAX_TARGET_PART_TIME = 30000; // 30 seconds
+    public static final int STABLE_ROUNDS_BEFORE_PROBE = 10;
+
+    private String name;
+    private int maxConcurrency;
+    private long minPartSize;
+    private long maxPartSize;
+    private long memoryCap;
+    private boolean tunePartSize = true;
+
+    private int concurrency;
+    private long partSize;
+
+    private int bestConcurrency;
+    private double bestThroughput;
+    private boolean probing = true;
+    private int stableRounds;
+
+    private long roundStart = -1;
+    private long roundBytes;
+    private long roundPartTime;
+    private int roundParts;
+
+    /**
+     * @param name           a name for the transfer (used in log messages)
+     * @param concurrency    the starting concurrency
+     * @param maxConcurrency the maximum concurrency (i.e. thread count)
+     * @param partSize       the starting part size
+     * @param minPartSize    the minimum part size
+     * @param maxPartSize    the maximum part size
+     * @param memoryCap      the maximum number of bytes allowed in flight (<code>concurrency * partSize</code>)
+     */
+    public TransferTuner(String name, int concurrency, int maxConcurrency, long partSize, long minPartSize,
+                         long maxPartSize, long memoryCap) {
+        if (concurrency < 1 || maxConcurrency < concurrency)
+            throw new IllegalArgumentException("concurrency must be between 1 and maxConcurrency");
+        if (minPartSize > maxPartSize)
+            throw new IllegalArgumentException("minPartSize must not be greater than maxPartSize");
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.minPartSize = minPartSize;
+        this.maxPartSize = maxPartSize;
+        this.memoryCap = memoryCap;
+        this.partSize = Math.max(minPartSize, Math.min(maxPartSize, partSize));
+        this.concurrency = Math.max(1, Math.min(concurrency, maxConcurrencyFor(this.partSize)));
+        this.bestConcurrency = this.concurrency;
+        log.info(String.format("[%s] auto-tune starting with concurrency %d and part size %,dk (max concurrency %d, memory cap %,dk)",
+                name, this.concurrency, this.partSize / 1024, maxConcurrency, memoryCap / 1024));
+    }
+
+    /**
+     * Reports a completed part of <code>bytes</code> size that took <code>durationMs</code> to transfer.
+     */
+    public synchronized void partCompleted(long bytes, long durationMs) {
+        long now = now();
+        if (roundStart < 0) roundStart = now - durationMs;
+        roundBytes += bytes;
+        roundPartTime += durationMs;
+        roundParts++;
+
+        if (roundParts >= concurrency) {
+            long elapsed = Math.max(1, now - roundStart);
+            endRound((double) roundBytes * 1000 / elapsed, roundPartTime / roundParts);
+            roundStart = now;
+            roundBytes = roundPartTime = roundParts = 0;
+        }
+    }
+
+    protected void endRound(double throughput, long avgPartTime) {
+        int lastConcurrency = concurrency;
+        long lastPartSize = partSize;
+
+        // concurrency (hill-climbing)
+        if (probing) {
+            if (throughput > bestThroughput * (1 + IMPROVEMENT_THRESHOLD)) {
+                bestThroughput = throughput;
+                bestConcurrency = concurrency;
+                if (concurrency < maxConcurrencyFor(partSize)) concurrency++;
+                else probing = false;
+            } else {
+                // no significant improvement; go back to the best setting and hold
+                concurrency = Math.min(bestConcurrency, maxConcurrencyFor(partSize));
+                probing = false;
+                stableRounds = 0;
+            }
+        } else {
+            // track current conditions
+            if (concurrency == bestConcurrency) bestThroughput = throughput;
+            if (++stableRounds >= STABLE_ROUNDS_BEFORE_PROBE && concurrency < maxConcurrencyFor(partSize)) {
+                probing = true;
+                concurrency++;
+            }
+        }
+
+        // part size (latency)
+        if (tunePartSize) {
+            if (avgPartTime < MIN_TARGET_PART_TIME && partSize * 2 <= maxPartSize
+                    && (long) concurrency * partSize * 2 <= memoryCap) {
+                partSize *= 2;
+            } else if (avgPartTime > MAX_TARGET_PART_TIME && partSize / 2 >= minPartSize) {
+                partSize /= 2;
+            }
+        }
+
+        if (concurrency != lastConcurrency || partSize != lastPartSize) {
+            log.info(String.format("[%s] auto-tune: %,.1f MB/s, %dms/part -> concurrency %d, part size %,dk",
+                    name, throughput / 1024 / 1024, avgPartTime, concurrency, partSize / 1024));
+        } else {
+            log.debug(String.format("[%s] auto-tune: %,.1f MB/s, %dms/part (no change)",
+                    name, throughput / 1024 / 1024, avgPartTime));
+        }
+    }
+
+    protected int maxConcurrencyFor(long partSize) {
+        return (int) Math.max(1, Math.min(maxConcurrency, memoryCap / partSize));
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    public synchronized long getPartSize() {
+        return partSize;
+    }
+
+    public synchronized boolean isTunePartSize() {
+        return tunePartSize;
+    }
+
+    /**
+     * Set to false to keep the part size fixed (i.e. when parts must all be the same size)
+     */
+    public synchronized void setTunePartSize(boolean tunePartSize) {
+        this.tunePartSize = tunePartSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getMemoryCap() {
+        return memoryCap;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s[concurrency=%d, partSize=%,dk]", name, concurrency, partSize / 1024);
+    }
+}
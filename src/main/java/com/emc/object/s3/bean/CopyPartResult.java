@@ -69,7 +69,7 @@ public class CopyPartResult extends ObjectResponse {
         return firstHeader(S3Constants.AMZ_SOURCE_VERSION_ID);
     }
 
-    @XmlElement(name = "ETag")
+    @XmlElement(name = "LastModified")
     public Date getLastModified() {
         return lastModified;
     }
@@ -29,6 +29,7 @@ package com.emc.object.s3.bean;
 
 import com.emc.object.ObjectResponse;
 import com.emc.object.s3.S3ObjectMetadata;
+import com.emc.object.util.RestUtil;
 
 public class GetObjectResult<T> extends ObjectResponse {
     private T object;
@@ -37,6 +38,24 @@ public class GetObjectResult<T> extends ObjectResponse {
         return S3ObjectMetadata.fromHeaders(getHeaders());
     }
 
+    /**
+     * Returns the full size of the object from the <code>Content-Range</code> header of a ranged response, or
+     * <code>null</code> if the response is not ranged (or the size is unknown)
+     */
+    public Long getObjectSize() {
+        String contentRange = firstHeader(RestUtil.HEADER_CONTENT_RANGE);
+        if (contentRange == null) return null;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return null;
+        String size = contentRange.substring(slash + 1).trim();
+        if ("*".equals(size)) return null;
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public T getObject() {
         return object;
     }
@@ -228,6 +228,7 @@ public class LifecycleRule {
     }
 
     @XmlEnum
+    @XmlType(name = "LifecycleRuleStatus") // unique type name, so all beans can share one JAXB context
     public static enum Status {
         Enabled, Disabled
     }
@@ -179,4 +179,11 @@ public class ListMultipartUploadsResult {
         }
         return prefixes;
     }
+
+    public void setCommonPrefixes(List<String> commonPrefixes) {
+        _commonPrefixes = new ArrayList<CommonPrefix>();
+        for (String prefix : commonPrefixes) {
+            _commonPrefixes.add(new CommonPrefix(prefix));
+        }
+    }
 }
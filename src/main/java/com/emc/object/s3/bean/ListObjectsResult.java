@@ -159,4 +159,11 @@ public class ListObjectsResult implements UrlEncodable {
         }
         return prefixes;
     }
+
+    public void setCommonPrefixes(List<String> commonPrefixes) {
+        _commonPrefixes = new ArrayList<CommonPrefix>();
+        for (String prefix : commonPrefixes) {
+            _commonPrefixes.add(new CommonPrefix(prefix));
+        }
+    }
 }
@@ -177,4 +177,11 @@ public class ListVersionsResult implements UrlEncodable {
         }
         return prefixes;
     }
+
+    public void setCommonPrefixes(List<String> commonPrefixes) {
+        _commonPrefixes = new ArrayList<CommonPrefix>();
+        for (String prefix : commonPrefixes) {
+            _commonPrefixes.add(new CommonPrefix(prefix));
+        }
+    }
 }
@@ -28,6 +28,7 @@ package com.emc.object.s3.bean;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlEnum;
+import javax.xml.bind.annotation.XmlType;
 
 public class PingItem {
     public static final String MAINTENANCE_MODE = "MAINTENANCE_MODE";
@@ -74,6 +75,7 @@ public class PingItem {
     }
 
     @XmlEnum
+    @XmlType(name = "PingStatus") // unique type name, so all beans can share one JAXB context
     public enum Status {
         OFF, UNKNOWN, ON
     }
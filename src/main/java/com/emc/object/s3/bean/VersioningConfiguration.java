@@ -29,6 +29,7 @@ package com.emc.object.s3.bean;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlEnum;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
 
 @XmlRootElement(name = "VersioningConfiguration")
 public class VersioningConfiguration {
@@ -44,6 +45,7 @@ public class VersioningConfiguration {
     }
 
     @XmlEnum
+    @XmlType(name = "VersioningStatus") // unique type name, so all beans can share one JAXB context
     public static enum Status {
         Enabled, Suspended
     }
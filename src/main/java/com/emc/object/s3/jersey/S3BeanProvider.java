@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3.jersey;
+
+import com.emc.object.s3.bean.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads and writes the S3 XML beans (the root elements in {@link com.emc.object.s3.bean}) using a single
+ * {@link JAXBContext} shared by all clients in the JVM, and pools of unmarshallers and marshallers.
+ * {@link BucketPolicy} is sent as JSON, so it is left to Jersey.
+ * <p>
+ * Jersey's default JAXB provider creates a context per bean type per client (the first call of each type is very
+ * expensive) and a new marshaller or unmarshaller for every request. This provider creates the context once
+ * (optionally up front, see {@link #warmUp()}) and reuses marshallers between requests. It is not registered with
+ * Jersey; {@link S3JerseyClient} calls {@link #read(Class, InputStream)} and {@link #toBytes(Object)} directly for
+ * bean types. Types outside of the S3 bean package (i.e. application beans sent as object content) are not handled
+ * here and still go through Jersey.
+ */
+public class S3BeanProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(S3BeanProvider.class);
+
+    public static final int MAX_POOL_SIZE = 32;
+
+    @SuppressWarnings("unchecked")
+    private static final Set<Class<?>> BEAN_TYPES = new HashSet<Class<?>>(Arrays.asList(
+            AccessControlList.class, CompleteMultipartUpload.class,
+            CompleteMultipartUploadResult.class, CopyObjectResult.class, CopyPartResult.class, CorsConfiguration.class,
+            DeleteError.class, DeleteMarker.class, DeleteObjects.class, DeleteObjectsResult.class, DeleteSuccess.class,
+            InitiateMultipartUploadResult.class, LifecycleConfiguration.class, ListBucketsResult.class,
+            ListDataNode.class, ListMultipartUploadsResult.class, ListObjectsResult.class, ListPartsResult.class,
+            ListVersionsResult.class, LocationConstraint.class, MetadataSearchList.class, PingResponse.class,
+            QueryObjectsResult.class, Version.class, VersioningConfiguration.class));
+
+    private static S3BeanProvider instance;
+
+    /**
+     * Returns the shared instance (the context is created on first use)
+     */
+    public static synchronized S3BeanProvider getInstance() {
+        if (instance == null) instance = new S3BeanProvider();
+        return instance;
+    }
+
+    /**
+     * Creates the shared context and primes the marshaller pools, so the first request doesn't pay for it
+     */
+    public static void warmUp() {
+        long start = System.currentTimeMillis();
+        S3BeanProvider provider = getInstance();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            provider.write(new VersioningConfiguration(), out);
+            provider.read(VersioningConfiguration.class, new java.io.ByteArrayInputStream(out.toByteArray()));
+        } catch (IOException e) {
+            log.warn("JAXB warm-up failed", e);
+        }
+        log.debug("JAXB warm-up took {}ms", System.currentTimeMillis() - start);
+    }
+
+    private final JAXBContext context;
+    private final XMLInputFactory inputFactory;
+    private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+    private final Queue<Marshaller> marshallers = new ConcurrentLinkedQueue<Marshaller>();
+
+    protected S3BeanProvider() {
+        try {
+            context = JAXBContext.newInstance(BEAN_TYPES.toArray(new Class[BEAN_TYPES.size()]));
+        } catch (JAXBException e) {
+            throw new RuntimeException("could not create JAXB context for S3 beans", e);
+        }
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Returns true if <code>type</code> is one of the S3 XML beans
+     */
+    public boolean isBeanType(Class<?> type) {
+        return BEAN_TYPES.contains(type);
+    }
+
+    /**
+     * Unmarshals an S3 bean from <code>in</code> (does not close the stream)
+     */
+    public <T> T read(Class<T> type, InputStream in) throws IOException {
+        Unmarshaller unmarshaller = unmarshallers.poll();
+        try {
+            if (unmarshaller == null) unmarshaller = context.createUnmarshaller();
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                return type.cast(unmarshaller.unmarshal(reader));
+            } finally {
+                reader.close();
+            }
+        } catch (JAXBException e) {
+            throw new IOException("could not unmarshal " + type.getSimpleName(), e);
+        } catch (XMLStreamException e) {
+            throw new IOException("could not unmarshal " + type.getSimpleName(), e);
+        } finally {
+            if (unmarshaller != null && unmarshallers.size() < MAX_POOL_SIZE) unmarshallers.offer(unmarshaller);
+        }
+    }
+
+    /**
+     * Marshals an S3 bean (UTF-8) to <code>out</code> (does not close the stream)
+     */
+    public void write(Object bean, OutputStream out) throws IOException {
+        Marshaller marshaller = marshallers.poll();
+        try {
+            if (marshaller == null) {
+                marshaller = context.createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+            }
+            marshaller.marshal(bean, out);
+        } catch (JAXBException e) {
+            throw new IOException("could not marshal " + bean.getClass().getSimpleName(), e);
+        } finally {
+            if (marshaller != null && marshallers.size() < MAX_POOL_SIZE) marshallers.offer(marshaller);
+        }
+    }
+
+    /**
+     * Marshals an S3 bean to a byte array (UTF-8)
+     */
+    public byte[] toBytes(Object bean) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(bean, out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e.getCause());
+        }
+    }
+}
@@ -39,8 +39,8 @@ import com.emc.rest.smart.ecs.EcsHostListProvider;
 import com.sun.jersey.api.client.*;
 import com.sun.jersey.api.client.config.ClientConfig;
 
-import java.io.InputStream;
-import java.io.StringReader;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
 import java.net.URL;
 import java.util.Date;
 import java.util.List;
@@ -125,10 +125,14 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
     public static final int DEFAULT_CONNECT_TIMEOUT = 15000; // 15 seconds
     public static final int DEFAULT_READ_TIMEOUT = 60000; // 60 seconds
 
+    private static final int ERROR_BUFFER_SIZE = 64 * 1024; // error documents are much smaller
+
     protected S3Config s3Config;
     protected Client client;
     protected LoadBalancer loadBalancer;
     protected S3SignerV2 signer;
+    protected ListingParser listingParser = new ListingParser();
+    protected S3BeanProvider beanProvider;
 
     public S3JerseyClient(S3Config s3Config) {
         this(s3Config, null);
@@ -145,6 +149,9 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
         s3Config = (S3Config) super.getObjectConfig();
         this.signer = new S3SignerV2(s3Config);
 
+        if (s3Config.isWarmUpEnabled()) S3BeanProvider.warmUp();
+        beanProvider = S3BeanProvider.getInstance();
+
         SmartConfig smartConfig = s3Config.toSmartConfig();
         loadBalancer = smartConfig.getLoadBalancer();
 
@@ -451,11 +458,25 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
 
     @Override
     public QueryObjectsResult queryObjects(QueryObjectsRequest request) {
+        return queryObjects(request, null);
+    }
+
+    @Override
+    public QueryObjectsResult queryObjects(QueryObjectsRequest request, ListingHandler<QueryObject> handler) {
         String query = request.getQuery();
         if(query == null || query.isEmpty()) {
             throw new IllegalArgumentException("QueryObjectsRequest must contain a query expression.");
         }
-        QueryObjectsResult result = executeRequest(client, request, QueryObjectsResult.class);
+        ClientResponse response = executeRequest(client, request);
+        InputStream in = listingStream(response);
+        QueryObjectsResult result;
+        try {
+            result = listingParser.parseQueryObjects(in, handler);
+        } catch (XMLStreamException e) {
+            throw listingError(response, in, "query-objects", e);
+        } finally {
+            response.close();
+        }
         result.setQuery(query);
         result.setAttributes(request.getAttributes());
         result.setSorted(request.getSorted());
@@ -486,10 +507,21 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
 
     @Override
     public ListObjectsResult listObjects(ListObjectsRequest request) {
-        ListObjectsResult result = executeRequest(client, request, ListObjectsResult.class);
-        if (result.isTruncated() && result.getNextMarker() == null)
-            result.setNextMarker(result.getObjects().get(result.getObjects().size() - 1).getKey());
-        return result;
+        return listObjects(request, null);
+    }
+
+    @Override
+    public ListObjectsResult listObjects(ListObjectsRequest request, ListingHandler<S3Object> handler) {
+        // the parser sets next-marker to the last key when the server doesn't provide one
+        ClientResponse response = executeRequest(client, request);
+        InputStream in = listingStream(response);
+        try {
+            return listingParser.parseListObjects(in, handler);
+        } catch (XMLStreamException e) {
+            throw listingError(response, in, "list-objects", e);
+        } finally {
+            response.close();
+        }
     }
 
     @Override
@@ -509,7 +541,20 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
 
     @Override
     public ListVersionsResult listVersions(ListVersionsRequest request) {
-        return executeRequest(client, request, ListVersionsResult.class);
+        return listVersions(request, null);
+    }
+
+    @Override
+    public ListVersionsResult listVersions(ListVersionsRequest request, ListingHandler<AbstractVersion> handler) {
+        ClientResponse response = executeRequest(client, request);
+        InputStream in = listingStream(response);
+        try {
+            return listingParser.parseListVersions(in, handler);
+        } catch (XMLStreamException e) {
+            throw listingError(response, in, "list-versions", e);
+        } finally {
+            response.close();
+        }
     }
 
     @Override
@@ -643,7 +688,7 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
     @Override
     public S3ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
         try {
-            return S3ObjectMetadata.fromHeaders(executeAndClose(client, request).getHeaders());
+            return S3ObjectMetadata.fromHeaders(executeAndClose(client, request).getHeaders(), request.getFields());
         } catch (S3Exception e) {
             // a 304 or 412 means If-* headers were used and a condition failed
             if (e.getHttpCode() == 304 || e.getHttpCode() == 412) return null;
@@ -683,7 +728,21 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
 
     @Override
     public ListMultipartUploadsResult listMultipartUploads(ListMultipartUploadsRequest request) {
-        return executeRequest(client, request, ListMultipartUploadsResult.class);
+        return listMultipartUploads(request, null);
+    }
+
+    @Override
+    public ListMultipartUploadsResult listMultipartUploads(ListMultipartUploadsRequest request,
+                                                           ListingHandler<Upload> handler) {
+        ClientResponse response = executeRequest(client, request);
+        InputStream in = listingStream(response);
+        try {
+            return listingParser.parseListMultipartUploads(in, handler);
+        } catch (XMLStreamException e) {
+            throw listingError(response, in, "list-multipart-uploads", e);
+        } finally {
+            response.close();
+        }
     }
 
     @Override
@@ -728,11 +787,42 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
         executeAndClose(client, request);
     }
 
+    /**
+     * Returns the body of a listing response for the streaming parser. The start of the body is kept, so an error
+     * document sent with a 200 status can be re-read by {@link #listingError(ClientResponse, InputStream, String,
+     * XMLStreamException)}.
+     */
+    protected InputStream listingStream(ClientResponse response) {
+        InputStream in = new BufferedInputStream(response.getEntityInputStream());
+        in.mark(ERROR_BUFFER_SIZE);
+        return in;
+    }
+
+    /**
+     * Returns the exception to throw when a listing response could not be parsed. Some S3 responses return a 200
+     * right away, but may fail and include an error XML package instead of the expected entity; that is parsed by
+     * {@link ErrorFilter#parseErrorResponse(Reader, int)}.
+     */
+    protected RuntimeException listingError(ClientResponse response, InputStream in, String operation,
+                                            XMLStreamException e) {
+        if (e instanceof ListingParser.UnexpectedRootException
+                && "Error".equals(((ListingParser.UnexpectedRootException) e).getElementName())) {
+            try {
+                in.reset();
+                return ErrorFilter.parseErrorResponse(new InputStreamReader(in, "UTF-8"), response.getStatus());
+            } catch (IOException ignored) {
+                // the error is larger than the kept buffer; report the parse error instead
+            }
+        }
+        return new RuntimeException("could not parse " + operation + " response", e);
+    }
+
     @Override
     protected <T> T executeRequest(Client client, ObjectRequest request, Class<T> responseType) {
         ClientResponse response = executeRequest(client, request);
         try {
-            T responseEntity = response.getEntity(responseType);
+            T responseEntity = beanProvider.isBeanType(responseType)
+                    ? readBean(response, responseType) : response.getEntity(responseType);
             fillResponseEntity(responseEntity, response);
             return responseEntity;
         } catch (ClientHandlerException e) {
@@ -749,6 +839,32 @@ public class S3JerseyClient extends AbstractJerseyClient implements S3Client {
         }
     }
 
+    /**
+     * Reads S3 beans through the shared context instead of Jersey's JAXB provider. The (small) body is buffered so it
+     * can still be parsed as an error response if unmarshalling fails
+     */
+    protected <T> T readBean(ClientResponse response, Class<T> beanType) {
+        response.bufferEntity(); // also releases the connection
+        InputStream in = response.getEntityInputStream();
+        try {
+            return beanProvider.read(beanType, in);
+        } catch (IOException e) {
+            try {
+                in.reset(); // buffered, so the error check can read it again
+            } catch (IOException ignored) {
+                // not possible for a buffered entity
+            }
+            throw new ClientHandlerException(e);
+        }
+    }
+
+    @Override
+    protected Object serializeEntity(Object entity, String contentType) {
+        if (beanProvider.isBeanType(entity.getClass()) && !contentType.contains("json"))
+            return beanProvider.toBytes(entity);
+        return entity;
+    }
+
     public S3Config getS3Config() {
         return s3Config;
     }
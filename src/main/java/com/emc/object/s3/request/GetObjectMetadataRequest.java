@@ -27,9 +27,37 @@
 package com.emc.object.s3.request;
 
 import com.emc.object.Method;
+import com.emc.object.s3.S3ObjectMetadata;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
 
 public class GetObjectMetadataRequest extends GetObjectRequest<GetObjectMetadataRequest> {
+    private Set<S3ObjectMetadata.Field> fields;
+
     public GetObjectMetadataRequest(String bucketName, String key) {
         super(Method.HEAD, bucketName, key);
     }
+
+    public Set<S3ObjectMetadata.Field> getFields() {
+        return fields;
+    }
+
+    /**
+     * Parses only these fields from the response headers (default is all fields)
+     */
+    public void setFields(Set<S3ObjectMetadata.Field> fields) {
+        this.fields = fields;
+    }
+
+    public GetObjectMetadataRequest withFields(Set<S3ObjectMetadata.Field> fields) {
+        setFields(fields);
+        return this;
+    }
+
+    public GetObjectMetadataRequest withFields(S3ObjectMetadata.Field... fields) {
+        return withFields(fields.length == 0 ? EnumSet.noneOf(S3ObjectMetadata.Field.class)
+                : EnumSet.copyOf(Arrays.asList(fields)));
+    }
 }
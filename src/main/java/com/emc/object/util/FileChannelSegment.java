@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Provides a specific segment of a file as an {@link InputStream} using positional reads on a (potentially shared)
+ * {@link FileChannel}. Because reads are positional, many segments of the same file can be read concurrently from a
+ * single channel without seeking, and the stream can be rewound to any previous position without buffering (mark and
+ * reset are always supported and the read limit is ignored).
+ * <p>
+ * NOTE: closing this stream has no effect and will <em>not</em> close the underlying channel. The owner of the channel is responsible for
+ * closing it after all segments are finished.
+ */
+public class FileChannelSegment extends InputStream {
+    private FileChannel channel;
+    private long offset;
+    private long length;
+    private long position;
+    private long markPosition;
+
+    public FileChannelSegment(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.position = offset;
+        this.markPosition = offset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c < 0 ? c : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long remaining = remaining();
+        if (remaining <= 0) return -1;
+        if (len > remaining) len = (int) remaining;
+        if (len == 0) return 0;
+
+        int c = channel.read(ByteBuffer.wrap(b, off, len), position);
+        if (c < 0) throw new IOException(String.format("unexpected end of file at position %d (segment ends at %d)",
+                position, offset + length));
+        position += c;
+        return c;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        long skipped = Math.min(n, remaining());
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        position = markPosition;
+    }
+
+    /**
+     * Does nothing. The underlying channel is left open and the segment can still be {@link #reset()} (Jersey will
+     * close the entity stream after each attempt, so this is necessary for retries).
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    protected long remaining() {
+        return offset + length - position;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
@@ -41,17 +41,21 @@ public class Iso8601DateTimeAdapter extends XmlAdapter<String, Date> {
     // DateFormat is *not* thread-safe!
     private static final ThreadLocal<DateFormat> iso8601Format = new ThreadLocal<DateFormat>();
 
+    private static final Pattern TZ_PATTERN = Pattern.compile( "([-+])(\\d{2}):?(\\d{2})?$" );
+    private static final Pattern MILLIS_PATTERN = Pattern.compile( "\\.(\\d{3})Z$" );
+
     /**
      * Until Java 7, SimpleDateFormat doesn't support ISO 8601 time zones ('Z', '+0000', '-03', etc.)  This extra
      * parsing ensures that we can *read* them.
      */
     @Override
     public Date unmarshal( String s ) throws Exception {
-        int hourOffset = 0, minuteOffset = 0, millis = 0;
+        Date date = parseUtc( s );
+        if ( date != null ) return date;
 
-        String tzPattern = "([-+])(\\d{2}):?(\\d{2})?$";
+        int hourOffset = 0, minuteOffset = 0, millis = 0;
 
-        Matcher matcher = Pattern.compile( tzPattern ).matcher( s );
+        Matcher matcher = TZ_PATTERN.matcher( s );
         if ( matcher.find() ) {
 
             hourOffset = Integer.parseInt( matcher.group( 2 ) );
@@ -64,18 +68,16 @@ public class Iso8601DateTimeAdapter extends XmlAdapter<String, Date> {
                 minuteOffset *= -1;
             }
 
-            s = s.replaceAll( tzPattern, "" ) + "Z";
+            s = matcher.replaceAll( "" ) + "Z";
         }
 
         // look for milliseconds (SimpleDateFormat does not support optional segments)
-        String millisPattern = "\\.(\\d{3})Z$";
-
-        matcher = Pattern.compile( millisPattern ).matcher( s );
+        matcher = MILLIS_PATTERN.matcher( s );
         if ( matcher.find() ) {
 
             millis = Integer.parseInt( matcher.group( 1 ) );
 
-            s = s.replaceAll( millisPattern, "Z" );
+            s = matcher.replaceAll( "Z" );
         }
 
         Calendar cal = Calendar.getInstance();
@@ -89,6 +91,59 @@ public class Iso8601DateTimeAdapter extends XmlAdapter<String, Date> {
         return cal.getTime();
     }
 
+    /**
+     * Fast path for the format S3 actually sends (<code>yyyy-MM-ddTHH:mm:ss[.SSS]Z</code>), which avoids regex and
+     * SimpleDateFormat entirely. Returns null for anything else (or anything out of range), so the caller can fall
+     * back to the lenient parsing above.
+     */
+    static Date parseUtc( String s ) {
+        int length = s.length();
+        if ( length != 20 && length != 24 ) return null;
+        if ( s.charAt( 4 ) != '-' || s.charAt( 7 ) != '-' || s.charAt( 10 ) != 'T' || s.charAt( 13 ) != ':'
+                || s.charAt( 16 ) != ':' || s.charAt( length - 1 ) != 'Z' ) return null;
+
+        int year = digits( s, 0, 4 ), month = digits( s, 5, 2 ), day = digits( s, 8, 2 );
+        int hour = digits( s, 11, 2 ), minute = digits( s, 14, 2 ), second = digits( s, 17, 2 ), millis = 0;
+        if ( length == 24 ) {
+            if ( s.charAt( 19 ) != '.' ) return null;
+            millis = digits( s, 20, 3 );
+        }
+
+        // stay within the range where Calendar's (Gregorian) rules match and fields don't roll over
+        if ( year < 1600 || month < 1 || month > 12 || day < 1 || day > 28 && day > daysInMonth( year, month )
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0 )
+            return null;
+
+        long days = daysSinceEpoch( year, month, day );
+        return new Date( ( ( ( days * 24 + hour ) * 60 + minute ) * 60 + second ) * 1000 + millis );
+    }
+
+    // returns a negative value if any character is not a digit
+    private static int digits( String s, int offset, int count ) {
+        int value = 0;
+        for ( int i = offset; i < offset + count; i++ ) {
+            char c = s.charAt( i );
+            if ( c < '0' || c > '9' ) return -1;
+            value = value * 10 + ( c - '0' );
+        }
+        return value;
+    }
+
+    private static int daysInMonth( int year, int month ) {
+        if ( month == 2 ) return ( year % 4 == 0 && ( year % 100 != 0 || year % 400 == 0 ) ) ? 29 : 28;
+        return ( month == 4 || month == 6 || month == 9 || month == 11 ) ? 30 : 31;
+    }
+
+    // days from 1970-01-01 in the proleptic Gregorian calendar
+    private static long daysSinceEpoch( int year, int month, int day ) {
+        if ( month <= 2 ) year--;
+        int era = ( year >= 0 ? year : year - 399 ) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = ( 153 * ( month + ( month > 2 ? -3 : 9 ) ) + 2 ) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
     /**
      * We will always write in UTC with no offset, so no need for extra logic here.
      */
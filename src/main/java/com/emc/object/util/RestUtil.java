@@ -47,6 +47,7 @@ public final class RestUtil {
     public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
     public static final String HEADER_CONTENT_LENGTH = "Content-Length";
     public static final String HEADER_CONTENT_MD5 = "Content-MD5";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
     public static final String HEADER_CONTENT_TYPE = "Content-Type";
     public static final String HEADER_DATE = "Date";
     public static final String HEADER_ETAG = "ETag";
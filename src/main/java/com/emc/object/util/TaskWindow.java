@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * A sliding window of tasks running on an {@link ExecutorService}. Callers generate tasks lazily and use
+ * {@link #awaitCapacity(int)} to keep at most a bounded number of tasks queued or in flight, so memory stays constant
+ * regardless of how many tasks a transfer needs in total, and the executor's queue never grows beyond the window.
+ * Results are returned in the order tasks finish, and the first failure is thrown as soon as it is seen.
+ * <p>
+ * This class is <em>not</em> thread-safe; it is meant to be driven by the single thread that generates the tasks.
+ */
+public class TaskWindow<T> {
+    private CompletionService<T> completionService;
+    private Set<Future<T>> pending = new HashSet<Future<T>>();
+
+    public TaskWindow(ExecutorService executorService) {
+        this.completionService = new ExecutorCompletionService<T>(executorService);
+    }
+
+    public Future<T> submit(Callable<T> task) {
+        Future<T> future = completionService.submit(task);
+        pending.add(future);
+        return future;
+    }
+
+    /**
+     * Returns the results of any finished tasks without blocking.
+     *
+     * @throws ExecutionException if any finished task failed
+     */
+    public List<T> poll() throws InterruptedException, ExecutionException {
+        List<T> results = new ArrayList<T>();
+        Future<T> future;
+        while ((future = completionService.poll()) != null) {
+            results.add(complete(future));
+        }
+        return results;
+    }
+
+    /**
+     * Blocks until fewer than <code>windowSize</code> tasks are pending, and returns the results of all tasks that
+     * finished in the meantime.
+     *
+     * @throws ExecutionException if any finished task failed
+     */
+    public List<T> awaitCapacity(int windowSize) throws InterruptedException, ExecutionException {
+        List<T> results = poll();
+        while (pending.size() >= Math.max(1, windowSize)) {
+            results.add(complete(completionService.take()));
+        }
+        return results;
+    }
+
+    /**
+     * Blocks until all pending tasks are finished and returns their results (in the order they finished).
+     *
+     * @throws ExecutionException as soon as any task fails (remaining tasks are not waited for)
+     */
+    public List<T> awaitAll() throws InterruptedException, ExecutionException {
+        return awaitCapacity(1);
+    }
+
+    /**
+     * Cancels (and interrupts) all pending tasks
+     */
+    public void cancelAll() {
+        for (Future<T> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private T complete(Future<T> future) throws InterruptedException, ExecutionException {
+        pending.remove(future);
+        return future.get();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Collections;
+
+public class BucketMigratorTest {
+    private static final long LARGE_SIZE = 20 * 1024 * 1024;
+
+    private StubS3Client client;
+    private File checkpointFile;
+
+    @Before
+    public void setup() throws IOException {
+        client = new StubS3Client();
+        for (int i = 0; i < 100; i++) {
+            client.put("source", String.format("key-%03d", i), i == 10 || i == 50 ? LARGE_SIZE : i, "etag" + i);
+        }
+        checkpointFile = File.createTempFile("migrator-test", ".checkpoint");
+        checkpointFile.delete();
+    }
+
+    @After
+    public void cleanup() {
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void testMigrate() {
+        BucketMigrator migrator = migrator();
+        migrator.run();
+
+        Assert.assertEquals(100, migrator.getObjectsCopied());
+        Assert.assertEquals(0, migrator.getObjectsSkipped());
+        Assert.assertEquals(client.bucket("source").keySet(), client.bucket("target").keySet());
+        Assert.assertEquals("etag5", client.bucket("target").get("key-005").eTag);
+        Assert.assertTrue(client.bucket("target").get("key-010").eTag.endsWith("-5")); // copied in parts
+        Assert.assertEquals(100, client.count("getObjectAcl"));
+    }
+
+    @Test
+    public void testSkipExisting() {
+        client.put("target", "key-001", 1, "etag1"); // up to date
+        client.put("target", "key-002", 2, "other"); // changed
+        client.put("target", "key-003", 99, "etag3"); // changed
+
+        BucketMigrator migrator = migrator().withPreserveAcl(false);
+        migrator.run();
+        Assert.assertEquals(99, migrator.getObjectsCopied());
+        Assert.assertEquals(1, migrator.getObjectsSkipped());
+        Assert.assertEquals("etag2", client.bucket("target").get("key-002").eTag);
+
+        // everything is up to date now (including the objects copied in parts)
+        migrator = migrator().withPreserveAcl(false);
+        migrator.run();
+        Assert.assertEquals(0, migrator.getObjectsCopied());
+        Assert.assertEquals(100, migrator.getObjectsSkipped());
+        Assert.assertEquals(0, client.count("getObjectAcl"));
+    }
+
+    @Test
+    public void testRecopyChangedMultipartTarget() {
+        // same size and a multipart ETag, but no record of the source ETag
+        client.put("target", "key-010", LARGE_SIZE, "abcdef-5");
+        // copied in parts from the current source
+        client.put("target", "key-050", LARGE_SIZE, "abcdef-5").metadata
+                .addUserMetadata(BucketMigrator.SOURCE_ETAG_METADATA, "etag50");
+
+        BucketMigrator migrator = migrator().withPreserveAcl(false);
+        migrator.run();
+        Assert.assertEquals(99, migrator.getObjectsCopied());
+        Assert.assertEquals(1, migrator.getObjectsSkipped());
+        Assert.assertEquals("etag10", client.bucket("target").get("key-010").metadata
+                .getUserMetadata(BucketMigrator.SOURCE_ETAG_METADATA));
+        Assert.assertEquals("abcdef-5", client.bucket("target").get("key-050").eTag);
+    }
+
+    @Test(timeout = 60000)
+    public void testTargetWithExtraKeys() {
+        for (int i = 0; i < 100; i += 10) {
+            client.put("target", String.format("key-%03d", i), i == 10 || i == 50 ? LARGE_SIZE : i, "etag" + i);
+            client.put("target", String.format("key-%03d-extra", i), 1, "extra");
+        }
+        client.put("target", "a-extra", 1, "extra");
+        // enough trailing keys to fill the target listing queues (nothing reads them)
+        for (int i = 0; i < 3 * ParallelBucketLister.DEFAULT_QUEUE_SIZE; i++) {
+            client.put("target", String.format("zz-%05d", i), 1, "extra");
+        }
+        int targetSize = client.bucket("target").size();
+
+        BucketMigrator migrator = migrator().withPreserveAcl(false);
+        migrator.run();
+        Assert.assertEquals(90, migrator.getObjectsCopied());
+        Assert.assertEquals(10, migrator.getObjectsSkipped());
+        Assert.assertEquals(targetSize + 90, client.bucket("target").size());
+        Assert.assertEquals("extra", client.bucket("target").get("key-010-extra").eTag);
+        Assert.assertEquals("extra", client.bucket("target").get("zz-00000").eTag);
+        Assert.assertTrue(client.bucket("target").keySet().containsAll(client.bucket("source").keySet()));
+    }
+
+    @Test
+    public void testCheckpointBacklogAfterFailure() {
+        client.fail("copyObject", "key-030", Integer.MAX_VALUE, 403);
+        BucketMigrator migrator = migrator().withCheckpointFile(checkpointFile).withCheckpointInterval(Long.MAX_VALUE)
+                .withSkipExisting(false);
+        try {
+            migrator.run();
+            Assert.fail("failed object should throw");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(99, migrator.getObjectsCopied());
+        Assert.assertEquals("key-029", migrator.readCheckpoint());
+        // objects after the failure are not held for a checkpoint that can never include them
+        Assert.assertEquals(0, migrator.getCheckpointBacklog());
+    }
+
+    @Test
+    public void testCheckpointResume() throws Exception {
+        client.fail("copyObject", "key-030", Integer.MAX_VALUE, 403);
+        BucketMigrator migrator = migrator().withCheckpointFile(checkpointFile).withCheckpointInterval(0)
+                .withSkipExisting(false);
+        try {
+            migrator.run();
+            Assert.fail("failed object should throw");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(99, migrator.getObjectsCopied());
+        Assert.assertEquals(Collections.singleton("key-030"), migrator.getFailures().keySet());
+
+        // the checkpoint stops before the failed key
+        Assert.assertTrue(checkpointFile.exists());
+        Assert.assertEquals("key-029", migrator.readCheckpoint());
+
+        client.fail("copyObject", "key-030", 0, 403);
+        migrator = migrator().withCheckpointFile(checkpointFile).withSkipExisting(false);
+        migrator.run();
+        Assert.assertEquals(70, migrator.getObjectsCopied());
+        Assert.assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void testCheckpointMismatch() throws Exception {
+        migrator().withCheckpointFile(checkpointFile).withPrefix("key-0").writeCheckpoint(); // nothing finished yet
+        Assert.assertFalse(checkpointFile.exists());
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(checkpointFile), "UTF-8");
+        writer.write("sourceBucket=source\ntargetBucket=target\nprefix=\nlastKey=key-050\n");
+        writer.close();
+        Assert.assertEquals("key-050", migrator().withCheckpointFile(checkpointFile).readCheckpoint());
+        Assert.assertNull(migrator().withCheckpointFile(checkpointFile).withPrefix("key-").readCheckpoint());
+    }
+
+    private BucketMigrator migrator() {
+        return new BucketMigrator(client.proxy(), "source", "target").withThreads(8).withListThreads(2)
+                .withMpuThreshold(LARGE_SIZE).withPartSize(4 * 1024 * 1024).withRetryDelay(1).withMaxRetries(1);
+    }
+}
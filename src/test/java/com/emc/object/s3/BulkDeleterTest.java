@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.DeleteError;
+import com.emc.object.s3.bean.ObjectKey;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.*;
+
+public class BulkDeleterTest {
+    @Test
+    public void testBatching() {
+        TestDeleter deleter = new TestDeleter(keys(2500), 0);
+        deleter.withThreads(4).run();
+
+        Assert.assertEquals(2500, deleter.getKeysDeleted());
+        Assert.assertEquals(3, deleter.getRequestCount());
+        Assert.assertEquals(0, deleter.getRetryCount());
+        Assert.assertEquals(2500, deleter.deleted.size());
+        Assert.assertTrue(deleter.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testRetryFailedKeysOnly() {
+        // every 10th key fails once
+        TestDeleter deleter = new TestDeleter(keys(1000), 1);
+        deleter.withRetryDelay(1).run();
+
+        Assert.assertEquals(1000, deleter.getKeysDeleted());
+        Assert.assertEquals(2, deleter.getRequestCount());
+        Assert.assertEquals(1, deleter.getRetryCount());
+        Assert.assertEquals(Arrays.asList(1000, 100), deleter.requestSizes);
+        Assert.assertTrue(deleter.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testRetriesExhausted() {
+        TestDeleter deleter = new TestDeleter(keys(100), Integer.MAX_VALUE);
+        try {
+            deleter.withMaxRetries(2).withRetryDelay(1).run();
+            Assert.fail("failed keys should throw");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Assert.assertEquals(90, deleter.getKeysDeleted());
+        Assert.assertEquals(3, deleter.getRequestCount());
+        Assert.assertEquals(10, deleter.getFailures().size());
+        Assert.assertEquals("InternalError", deleter.getFailures().get(0).getCode());
+    }
+
+    @Test
+    public void testRequestFailure() {
+        TestDeleter deleter = new TestDeleter(keys(10), 0);
+        deleter.failRequests = 1;
+        deleter.withRetryDelay(1).run();
+
+        Assert.assertEquals(10, deleter.getKeysDeleted());
+        Assert.assertEquals(2, deleter.getRequestCount());
+        Assert.assertEquals(Arrays.asList(10, 10), deleter.requestSizes);
+    }
+
+    @Test
+    public void testPermanentKeyErrors() {
+        TestDeleter deleter = new TestDeleter(keys(100), Integer.MAX_VALUE);
+        deleter.errorCode = S3Constants.ERROR_NO_ACCESS_DENIED;
+        try {
+            deleter.withRetryDelay(1).run();
+            Assert.fail("failed keys should throw");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // recorded without a retry
+        Assert.assertEquals(90, deleter.getKeysDeleted());
+        Assert.assertEquals(1, deleter.getRequestCount());
+        Assert.assertEquals(0, deleter.getRetryCount());
+        Assert.assertEquals(10, deleter.getFailures().size());
+        Assert.assertEquals("AccessDenied", deleter.getFailures().get(0).getCode());
+    }
+
+    @Test
+    public void testPermanentRequestFailure() {
+        TestDeleter deleter = new TestDeleter(keys(10), 0);
+        deleter.failRequests = 1;
+        deleter.requestFailure = new S3Exception("access denied", 403, S3Constants.ERROR_NO_ACCESS_DENIED, null);
+        try {
+            deleter.withRetryDelay(1).run();
+            Assert.fail("failed keys should throw");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Assert.assertEquals(0, deleter.getKeysDeleted());
+        Assert.assertEquals(1, deleter.getRequestCount());
+        Assert.assertEquals(10, deleter.getFailures().size());
+    }
+
+    @Test
+    public void testKeyFile() throws Exception {
+        File file = File.createTempFile("bulk-delete-test", null);
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write("foo\n\nbar/baz\tversion1\n  \nbäz qux\n");
+        writer.close();
+
+        Iterator<ObjectKey> keys = new BulkDeleter.KeyFileIterator(file);
+        ObjectKey key = keys.next();
+        Assert.assertEquals("foo", key.getKey());
+        Assert.assertNull(key.getVersionId());
+        key = keys.next();
+        Assert.assertEquals("bar/baz", key.getKey());
+        Assert.assertEquals("version1", key.getVersionId());
+        Assert.assertEquals("bäz qux", keys.next().getKey());
+        Assert.assertFalse(keys.hasNext());
+    }
+
+    private Iterator<ObjectKey> keys(int count) {
+        List<ObjectKey> keys = new ArrayList<ObjectKey>();
+        for (int i = 0; i < count; i++) {
+            keys.add(new ObjectKey("key-" + i));
+        }
+        return keys.iterator();
+    }
+
+    /**
+     * Fails every 10th key <code>keyFailures</code> times, and the first <code>failRequests</code> requests
+     */
+    private static class TestDeleter extends BulkDeleter {
+        final Set<String> deleted = Collections.synchronizedSet(new HashSet<String>());
+        final List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final Map<String, Integer> attempts = Collections.synchronizedMap(new HashMap<String, Integer>());
+        final int keyFailures;
+        volatile String errorCode = S3Constants.ERROR_INTERNAL;
+        volatile int failRequests;
+        volatile S3Exception requestFailure = new S3Exception("slow down", 503, "SlowDown", null);
+
+        TestDeleter(Iterator<ObjectKey> keys, int keyFailures) {
+            super(null, "bucket", keys);
+            this.keyFailures = keyFailures;
+        }
+
+        @Override
+        protected List<DeleteError> deleteKeys(List<ObjectKey> keys) {
+            requestSizes.add(keys.size());
+            synchronized (this) {
+                if (failRequests > 0) {
+                    failRequests--;
+                    throw requestFailure;
+                }
+            }
+            List<DeleteError> errors = new ArrayList<DeleteError>();
+            for (ObjectKey key : keys) {
+                Integer count = attempts.get(key.getKey());
+                attempts.put(key.getKey(), count == null ? 1 : count + 1);
+                if (key.getKey().endsWith("0") && (count == null ? 0 : count) < keyFailures) {
+                    DeleteError error = new DeleteError();
+                    error.setKey(key.getKey());
+                    error.setCode(errorCode);
+                    errors.add(error);
+                } else {
+                    Assert.assertTrue(deleted.add(key.getKey()));
+                }
+            }
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.ObjectKey;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BulkMetadataFetcherTest {
+    @Test
+    public void testBoundedInFlight() {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            keys.add("key-" + i);
+        }
+        TestFetcher fetcher = new TestFetcher(keys);
+        fetcher.setMaxInFlight(8);
+
+        Set<String> seen = new HashSet<String>();
+        int notFound = 0;
+        for (BulkMetadataFetcher.Result result : fetcher) {
+            Assert.assertTrue(seen.add(result.getKey()));
+            if (result.isNotFound()) {
+                Assert.assertNull(result.getMetadata());
+                notFound++;
+            } else {
+                Assert.assertEquals(Long.valueOf(result.getKey().length()), result.getMetadata().getContentLength());
+            }
+        }
+
+        Assert.assertEquals(new HashSet<String>(keys), seen);
+        Assert.assertEquals(20, notFound);
+        Assert.assertEquals(200, fetcher.getRequestCount());
+        Assert.assertEquals(20, fetcher.getErrorCount());
+        Assert.assertTrue(fetcher.maxConcurrent.get() <= 8);
+        Assert.assertTrue(fetcher.maxConcurrent.get() > 1);
+    }
+
+    @Test
+    public void testEmpty() {
+        TestFetcher fetcher = new TestFetcher(Collections.<String>emptyList());
+        Assert.assertFalse(fetcher.iterator().hasNext());
+    }
+
+    /**
+     * Returns a client holding objects whose size is their key length (keys ending in 5 do not exist)
+     */
+    static S3Client headClient(List<String> keys) {
+        StubS3Client client = new StubS3Client();
+        for (String key : keys) {
+            if (!key.endsWith("5")) client.put("bucket", key, key.getBytes());
+        }
+        return client.proxy();
+    }
+
+    /**
+     * Counts concurrent HEADs (which sleep briefly); keys ending in 5 do not exist
+     */
+    private static class TestFetcher extends BulkMetadataFetcher {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        TestFetcher(List<String> keys) {
+            super(headClient(keys), "bucket", keys);
+        }
+
+        @Override
+        protected Result fetch(ObjectKey key) {
+            int current = concurrent.incrementAndGet();
+            synchronized (maxConcurrent) {
+                if (current > maxConcurrent.get()) maxConcurrent.set(current);
+            }
+            try {
+                Thread.sleep(2);
+                return super.fetch(key);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.AccessControlList;
+import com.emc.object.s3.bean.CannedAcl;
+import com.emc.object.s3.request.CopyObjectRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public class BulkMetadataUpdaterTest {
+    private static final List<String> KEYS = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j");
+
+    @Test
+    public void testFixedMetadataWithoutAcl() {
+        StubS3Client client = client();
+        BulkMetadataUpdater updater = new BulkMetadataUpdater(client.proxy(), "bucket", KEYS.iterator())
+                .withMetadata(new S3ObjectMetadata().addUserMetadata("foo", "bar")).withPreserveAcl(false);
+        updater.run();
+
+        Assert.assertEquals(10, updater.getObjectsUpdated());
+        Assert.assertEquals(10, updater.getRequestCount());
+        Assert.assertEquals(10, client.count("copyObject"));
+        Assert.assertEquals(0, client.count("getObjectAcl"));
+        Assert.assertEquals("bar", copy(client, "a").getObjectMetadata().getUserMetadata("foo"));
+        Assert.assertNull(copy(client, "a").getAcl());
+    }
+
+    @Test
+    public void testPreserveAcl() {
+        StubS3Client client = client();
+        BulkMetadataUpdater updater = new BulkMetadataUpdater(client.proxy(), "bucket", KEYS.iterator())
+                .withMetadata(new S3ObjectMetadata().addUserMetadata("foo", "bar"));
+        AccessControlList acl = client.get("bucket", "a").acl;
+        updater.run();
+
+        Assert.assertEquals(20, updater.getRequestCount());
+        Assert.assertEquals(10, client.count("getObjectAcl"));
+        Assert.assertSame(acl, copy(client, "a").getAcl());
+        Assert.assertSame(acl, client.get("bucket", "a").acl);
+    }
+
+    @Test
+    public void testProvidedAcl() {
+        StubS3Client client = client();
+        BulkMetadataUpdater updater = new BulkMetadataUpdater(client.proxy(), "bucket", KEYS.iterator())
+                .withMetadata(new S3ObjectMetadata()).withCannedAcl(CannedAcl.PublicRead);
+        updater.run();
+
+        Assert.assertEquals(10, updater.getRequestCount());
+        Assert.assertEquals(0, client.count("getObjectAcl"));
+        Assert.assertEquals(CannedAcl.PublicRead, copy(client, "a").getCannedAcl());
+    }
+
+    @Test
+    public void testMetadataTransform() {
+        StubS3Client client = client();
+        BulkMetadataUpdater updater = new BulkMetadataUpdater(client.proxy(), "bucket", KEYS.iterator())
+                .withPreserveAcl(false).withMetadataTransform(new BulkMetadataUpdater.MetadataTransform() {
+                    @Override
+                    public S3ObjectMetadata transform(String key, S3ObjectMetadata metadata) {
+                        if (key.compareTo("e") > 0) return null; // unchanged
+                        return metadata.addUserMetadata("size", "" + metadata.getContentLength());
+                    }
+                });
+        updater.run();
+
+        Assert.assertEquals(5, updater.getObjectsUpdated());
+        Assert.assertEquals(5, updater.getObjectsSkipped());
+        Assert.assertEquals(15, updater.getRequestCount());
+        CopyObjectRequest copy = copy(client, "c");
+        Assert.assertEquals("1", copy.getObjectMetadata().getUserMetadata("size"));
+        Assert.assertEquals(client.get("bucket", "c").eTag, copy.getIfSourceMatch());
+        Assert.assertEquals("1", client.get("bucket", "c").metadata.getUserMetadata("size"));
+    }
+
+    @Test
+    public void testAclOnly() {
+        StubS3Client client = client();
+        BulkMetadataUpdater updater = new BulkMetadataUpdater(client.proxy(), "bucket", KEYS.iterator())
+                .withCannedAcl(CannedAcl.Private);
+        updater.run();
+
+        Assert.assertEquals(10, updater.getRequestCount());
+        Assert.assertEquals(10, client.count("setObjectAcl"));
+        Assert.assertEquals(0, client.count("copyObject"));
+    }
+
+    @Test
+    public void testRetry() {
+        StubS3Client client = client();
+        client.fail("copyObject", "b", 2, 500); // succeeds on the 3rd attempt
+        client.fail("copyObject", "c", 100, 500);
+        client.fail("copyObject", "d", 100, 404);
+        client.fail("copyObject", "e", 100, 409);
+        client.fail("copyObject", "f", 100, 501);
+        client.fail("copyObject", "g", 1, 412); // a concurrent write; read again and retried
+        BulkMetadataUpdater updater = new BulkMetadataUpdater(client.proxy(), "bucket", KEYS.iterator())
+                .withMetadata(new S3ObjectMetadata()).withPreserveAcl(false).withRetryDelay(1).withMaxRetries(3);
+        try {
+            updater.run();
+            Assert.fail("failed keys should throw");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Assert.assertEquals(6, updater.getObjectsUpdated());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("c", "d", "e", "f")), updater.getFailures().keySet());
+        Assert.assertEquals(2 + 3 + 1, updater.getRetryCount()); // b twice, c until maxRetries, g once, d-f never
+    }
+
+    private StubS3Client client() {
+        StubS3Client client = new StubS3Client();
+        for (String key : KEYS) {
+            client.put("bucket", key, key.getBytes());
+        }
+        return client;
+    }
+
+    private CopyObjectRequest copy(StubS3Client client, String key) {
+        for (CopyObjectRequest request : client.requests("copyObject", CopyObjectRequest.class)) {
+            if (request.getKey().equals(key)) {
+                Assert.assertEquals(request.getSourceKey(), request.getKey());
+                return request;
+            }
+        }
+        throw new AssertionError("no copy of " + key);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bulk upload tests that need no S3 endpoint
+ */
+public class BulkUploaderStubTest {
+    @Test
+    public void testDirectoryWalkerSymlinkLoop() throws Exception {
+        File dir = createTempDir();
+        try {
+            File child = new File(dir, "a");
+            Assert.assertTrue(child.mkdir());
+            touch(new File(dir, "file1"));
+            touch(new File(child, "file2"));
+            // a/loop -> dir (an ancestor) would make a naive walk recurse forever
+            Assume.assumeTrue(symlink(dir, new File(child, "loop")));
+            // b -> a is a second route to the same directory
+            Assume.assumeTrue(symlink(child, new File(dir, "b")));
+
+            List<String> paths = new ArrayList<String>();
+            BulkUploader.DirectoryWalker walker = new BulkUploader.DirectoryWalker(dir);
+            while (walker.hasNext()) {
+                paths.add(walker.next().getAbsolutePath().substring(dir.getAbsolutePath().length() + 1));
+            }
+            Assert.assertEquals(Arrays.asList("a" + File.separator + "file2", "file1"), paths);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private File createTempDir() throws Exception {
+        File dir = File.createTempFile("bulk-upload", "");
+        Assert.assertTrue(dir.delete());
+        Assert.assertTrue(dir.mkdir());
+        return dir.getCanonicalFile();
+    }
+
+    private void touch(File file) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(file.getName().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private boolean symlink(File target, File link) {
+        try {
+            Process process = new ProcessBuilder("ln", "-s", target.getAbsolutePath(), link.getAbsolutePath()).start();
+            return process.waitFor() == 0;
+        } catch (Exception e) {
+            return false; // no ln on this platform
+        }
+    }
+
+    // only recurses into real directories; a link is removed without touching its target
+    private void delete(File file) throws Exception {
+        if (file.isDirectory() && file.getCanonicalPath().equals(file.getAbsolutePath())) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) delete(child);
+            }
+        }
+        file.delete();
+    }
+}
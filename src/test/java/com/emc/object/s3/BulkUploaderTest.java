@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.jersey.S3JerseyClient;
+import com.emc.rest.util.StreamUtil;
+import com.emc.util.RandomInputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BulkUploaderTest extends AbstractS3ClientTest {
+    static final int SMALL_FILE_SIZE = 10 * 1024; // 10KB
+    static final int LARGE_FILE_SIZE = 10 * 1024 * 1024; // 10MB
+
+    File tempDir;
+
+    @Override
+    protected String getTestBucketPrefix() {
+        return "bulk-test";
+    }
+
+    @Override
+    protected S3Client createS3Client() throws Exception {
+        return new S3JerseyClient(createS3Config());
+    }
+
+    @Before
+    public void createTempDir() throws Exception {
+        tempDir = File.createTempFile("bulk-test", null);
+        Assert.assertTrue(tempDir.delete());
+        Assert.assertTrue(tempDir.mkdir());
+        tempDir.deleteOnExit();
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            createFile("file-" + i, SMALL_FILE_SIZE);
+            createFile("dir-" + (i % 3) + "/file-" + i, SMALL_FILE_SIZE);
+        }
+        createFile("dir-0/nested/large", LARGE_FILE_SIZE);
+
+        BulkUploader uploader = new BulkUploader(client, getTestBucket(), tempDir)
+                .withPrefix("bulk/").withThreads(4).withMpuThreshold(LARGE_FILE_SIZE / 2)
+                .withPartSize((long) LARGE_FILE_SIZE / 2);
+        uploader.upload();
+
+        Assert.assertEquals(41, uploader.getFilesUploaded());
+        Assert.assertEquals(40 * SMALL_FILE_SIZE + LARGE_FILE_SIZE, uploader.getBytesUploaded());
+        Assert.assertTrue(uploader.getFailures().isEmpty());
+        Assert.assertTrue(uploader.getObjectsPerSecond() > 0);
+
+        Assert.assertEquals(SMALL_FILE_SIZE,
+                client.getObjectMetadata(getTestBucket(), "bulk/dir-1/file-4").getContentLength().longValue());
+        S3ObjectMetadata largeMetadata = client.getObjectMetadata(getTestBucket(), "bulk/dir-0/nested/large");
+        Assert.assertEquals(LARGE_FILE_SIZE, largeMetadata.getContentLength().longValue());
+        Assert.assertTrue(largeMetadata.getETag().contains("-")); // MPU
+    }
+
+    @Test
+    public void testFileListWithFailure() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 5; i++) {
+            files.add(createFile("file-" + i, SMALL_FILE_SIZE));
+        }
+        File missing = new File(tempDir, "missing");
+        files.add(missing);
+
+        BulkUploader uploader = new BulkUploader(client, getTestBucket(), files).withThreads(2);
+        try {
+            uploader.upload();
+            Assert.fail("upload with missing file should fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Assert.assertEquals(5, uploader.getFilesUploaded());
+        Assert.assertEquals(Arrays.asList(missing), new ArrayList<File>(uploader.getFailures().keySet()));
+        Assert.assertEquals(SMALL_FILE_SIZE,
+                client.getObjectMetadata(getTestBucket(), "file-3").getContentLength().longValue());
+    }
+
+    private File createFile(String path, int size) throws Exception {
+        File file = new File(tempDir, path);
+        file.getParentFile().mkdirs();
+        file.deleteOnExit();
+        StreamUtil.copy(new RandomInputStream(size), new FileOutputStream(file), size);
+        return file;
+    }
+}
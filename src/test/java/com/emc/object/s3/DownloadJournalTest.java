@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+public class DownloadJournalTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("download-journal-test", null);
+        file.deleteOnExit();
+
+        String key = "foo/bar baz=%&é";
+        DownloadJournal journal = new DownloadJournal(file, "my-bucket", key, "etag-1", 1000L);
+        journal.rangeCompleted(new Range(100L, 199L));
+        journal.rangeCompleted(new Range(500L, 599L));
+
+        DownloadJournal read = DownloadJournal.read(file);
+        Assert.assertNotNull(read);
+        Assert.assertEquals("my-bucket", read.getBucket());
+        Assert.assertEquals(key, read.getKey());
+        Assert.assertEquals("etag-1", read.getETag());
+        Assert.assertEquals(1000L, read.getObjectSize());
+        Assert.assertEquals(200L, read.getCompletedSize());
+        Assert.assertTrue(read.matches("my-bucket", key, "etag-1", 1000L));
+        Assert.assertFalse(read.matches("my-bucket", key, "etag-2", 1000L));
+        Assert.assertFalse(read.matches("my-bucket", key, "etag-1", 1001L));
+
+        List<Range> missing = read.getMissingRanges();
+        Assert.assertEquals(3, missing.size());
+        assertRange(0, 99, missing.get(0));
+        assertRange(200, 499, missing.get(1));
+        assertRange(600, 999, missing.get(2));
+
+        read.delete();
+        Assert.assertFalse(file.exists());
+        Assert.assertNull(DownloadJournal.read(file));
+    }
+
+    @Test
+    public void testMergeRanges() throws Exception {
+        File file = File.createTempFile("download-journal-test", null);
+        file.deleteOnExit();
+
+        DownloadJournal journal = new DownloadJournal(file, "my-bucket", "key", "etag-1", 1000L);
+        journal.rangeCompleted(new Range(200L, 299L));
+        journal.rangeCompleted(new Range(0L, 99L));
+        journal.rangeCompleted(new Range(400L, 499L));
+        journal.rangeCompleted(new Range(100L, 199L)); // joins the first two
+        journal.rangeCompleted(new Range(250L, 449L)); // overlaps the last two
+
+        List<Range> missing = journal.getMissingRanges();
+        Assert.assertEquals(1, missing.size());
+        assertRange(500, 999, missing.get(0));
+        Assert.assertEquals(500L, journal.getCompletedSize());
+
+        journal.rangeCompleted(new Range(500L, 999L));
+        Assert.assertTrue(journal.getMissingRanges().isEmpty());
+        Assert.assertEquals(1000L, DownloadJournal.read(file).getCompletedSize());
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        File file = File.createTempFile("download-journal-test", null);
+        file.deleteOnExit();
+
+        DownloadJournal journal = new DownloadJournal(file, "my-bucket", "key", "etag-1", 1000L);
+        journal.rangeCompleted(new Range(0L, 99L));
+
+        // simulate a crash in the middle of writing a range
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("ran".getBytes("UTF-8"));
+        out.close();
+
+        DownloadJournal read = DownloadJournal.read(file);
+        Assert.assertNotNull(read);
+        Assert.assertEquals(100L, read.getCompletedSize());
+    }
+
+    @Test
+    public void testIncompleteHeader() throws Exception {
+        File file = File.createTempFile("download-journal-test", null);
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("bucket=my-bucket\nkey=key\n".getBytes("UTF-8"));
+        out.close();
+
+        Assert.assertNull(DownloadJournal.read(file));
+    }
+
+    private void assertRange(long first, long last, Range range) {
+        Assert.assertEquals(first, range.getFirst().longValue());
+        Assert.assertEquals(last, range.getLast().longValue());
+    }
+}
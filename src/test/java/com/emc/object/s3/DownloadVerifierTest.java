@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DownloadVerifierTest {
+    static final int SIZE = 1000 * 1024 + 17;
+
+    byte[] data;
+
+    @Before
+    public void createData() throws Exception {
+        data = new byte[SIZE];
+        new Random(42).nextBytes(data);
+    }
+
+    @Test
+    public void testForETag() {
+        String md5 = "0123456789abcdef0123456789abcdef";
+        Assert.assertNull(DownloadVerifier.forETag(null, SIZE, 0, SIZE));
+        Assert.assertNull(DownloadVerifier.forETag("not-an-md5", SIZE, 0, SIZE));
+
+        DownloadVerifier verifier = DownloadVerifier.forETag("0123456789ABCDEF0123456789abcdef", SIZE, 0, SIZE);
+        Assert.assertNotNull(verifier);
+        Assert.assertFalse(verifier.isMultipart());
+
+        // multipart objects need the upload part size
+        Assert.assertNull(DownloadVerifier.forETag(md5 + "-4", SIZE, 0, SIZE));
+        Assert.assertNull(DownloadVerifier.forETag(md5 + "-4", SIZE, 200 * 1024, SIZE)); // 5 parts
+        Assert.assertNull(DownloadVerifier.forETag(md5 + "-0", SIZE, 256 * 1024, SIZE));
+        verifier = DownloadVerifier.forETag(md5 + "-4", SIZE, 256 * 1024, SIZE);
+        Assert.assertNotNull(verifier);
+        Assert.assertTrue(verifier.isMultipart());
+        Assert.assertEquals(256 * 1024, verifier.getPartSize());
+    }
+
+    @Test
+    public void testSinglePart() throws Exception {
+        String eTag = hex(MessageDigest.getInstance("MD5").digest(data));
+
+        // data arrives out of order from several threads, with a buffer much smaller than the object
+        final DownloadVerifier verifier = DownloadVerifier.forETag(eTag, SIZE, 0, 64 * 1024);
+        final int partSize = 100 * 1024, chunkSize = 16 * 1024;
+        List<Callable<Void>> parts = new ArrayList<Callable<Void>>();
+        for (int offset = 0; offset < SIZE; offset += partSize) {
+            final int start = offset, end = Math.min(offset + partSize, SIZE);
+            parts.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int pos = start; pos < end; pos += chunkSize) {
+                        verifier.update(pos, data, pos, Math.min(chunkSize, end - pos));
+                    }
+                    return null;
+                }
+            });
+        }
+        Collections.reverse(parts);
+        ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+        try {
+            for (Future<Void> future : executor.invokeAll(parts)) future.get();
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(verifier.verify());
+        Assert.assertEquals(eTag, verifier.getActualETag());
+    }
+
+    @Test
+    public void testSinglePartRetry() throws Exception {
+        String eTag = hex(MessageDigest.getInstance("MD5").digest(data));
+        DownloadVerifier verifier = DownloadVerifier.forETag(eTag, SIZE, 0, SIZE);
+
+        // the second half arrives first, then the first half fails part-way and is sent again
+        int half = SIZE / 2;
+        verifier.update(half, data, half, SIZE - half);
+        verifier.update(0, data, 0, 1000);
+        verifier.update(0, data, 0, 500);
+        verifier.update(500, data, 500, half - 500);
+        Assert.assertTrue(verifier.verify());
+    }
+
+    @Test
+    public void testSinglePartCorrupt() throws Exception {
+        String eTag = hex(MessageDigest.getInstance("MD5").digest(data));
+        DownloadVerifier verifier = DownloadVerifier.forETag(eTag, SIZE, 0, SIZE);
+        data[500] = (byte) ~data[500];
+        verifier.update(0, data, 0, SIZE);
+        Assert.assertFalse(verifier.verify());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSinglePartIncomplete() throws Exception {
+        String eTag = hex(MessageDigest.getInstance("MD5").digest(data));
+        DownloadVerifier verifier = DownloadVerifier.forETag(eTag, SIZE, 0, SIZE);
+        verifier.update(0, data, 0, SIZE - 1);
+        verifier.verify();
+    }
+
+    @Test
+    public void testMultipart() throws Exception {
+        long partSize = 256 * 1024;
+        MessageDigest combined = MessageDigest.getInstance("MD5");
+        int parts = 0;
+        for (long offset = 0; offset < SIZE; offset += partSize) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, (int) offset, (int) Math.min(partSize, SIZE - offset));
+            combined.update(md5.digest());
+            parts++;
+        }
+        String eTag = hex(combined.digest()) + "-" + parts;
+
+        DownloadVerifier verifier = DownloadVerifier.forETag(eTag, SIZE, partSize, 0);
+        completeRange(verifier, 3 * partSize, SIZE - 3 * partSize);
+        completeRange(verifier, 0, partSize);
+        completeRange(verifier, 2 * partSize, partSize);
+
+        // a bad digest for one range
+        verifier.rangeCompleted(new Range(partSize, 2 * partSize - 1), new byte[16]);
+        Assert.assertFalse(verifier.verify());
+        Assert.assertNotNull(verifier.getRangeDigest(new Range(partSize, 2 * partSize - 1)));
+        Assert.assertNull(verifier.getRangeDigest(new Range(partSize, 2 * partSize)));
+
+        // replace it with the right one (i.e. after a retry)
+        completeRange(verifier, partSize, partSize);
+        Assert.assertTrue(verifier.verify());
+    }
+
+    private void completeRange(DownloadVerifier verifier, long offset, long length) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(data, (int) offset, (int) length);
+        verifier.rangeCompleted(Range.fromOffsetLength(offset, length), md5.digest());
+    }
+
+    private String hex(byte[] bytes) {
+        return DatatypeConverter.printHexBinary(bytes).toLowerCase();
+    }
+}
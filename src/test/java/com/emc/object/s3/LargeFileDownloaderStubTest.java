@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Downloader tests that run against {@link StubS3Client} (no S3 endpoint needed)
+ */
+public class LargeFileDownloaderStubTest {
+    private static final int OBJECT_SIZE = 20 * 1024 * 1024;
+    private static final long UPLOAD_PART_SIZE = OBJECT_SIZE / 5;
+
+    private StubS3Client client;
+    private byte[] data;
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        client = new StubS3Client();
+        data = new byte[OBJECT_SIZE];
+        new Random(1).nextBytes(data);
+        new LargeFileUploader(client.proxy(), "bucket", "key", new ByteArrayInputStream(data), data.length)
+                .withPartSize(UPLOAD_PART_SIZE).doMultipartUpload();
+        Assert.assertTrue(client.get("bucket", "key").eTag.endsWith("-5"));
+        file = File.createTempFile("lfd-stub-test", null);
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    @Test
+    public void testSkipHeadVerifyMultipart() throws Exception {
+        // the part size does not match the upload part size, so the first range must follow the upload parts
+        LargeFileDownloader lfd = new LargeFileDownloader(client.proxy(), "bucket", "key", file)
+                .withParallelThreshold(OBJECT_SIZE).withPartSize(OBJECT_SIZE / 3).withSkipHead(true)
+                .withVerifyChecksum(true).withUploadPartSize(UPLOAD_PART_SIZE);
+        lfd.download();
+
+        Assert.assertEquals(OBJECT_SIZE, lfd.getBytesTransferred());
+        Assert.assertEquals(0, client.count("getObjectMetadata"));
+        Assert.assertEquals(5, client.count("getObject")); // the first range is reused
+        Assert.assertArrayEquals(data, readFile());
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0, read;
+            while (offset < content.length && (read = in.read(content, offset, content.length - offset)) >= 0)
+                offset += read;
+            return Arrays.copyOf(content, offset);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -26,7 +26,11 @@
  */
 package com.emc.object.s3;
 
+import com.emc.object.Range;
+import com.emc.object.s3.bean.GetObjectResult;
 import com.emc.object.s3.jersey.S3JerseyClient;
+import com.emc.object.s3.request.GetObjectRequest;
+import com.emc.object.util.ChecksumError;
 import com.emc.object.util.ProgressListener;
 import com.emc.rest.util.StreamUtil;
 import com.emc.util.RandomInputStream;
@@ -38,9 +42,14 @@ import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class LargeFileDownloaderTest extends AbstractS3ClientTest {
@@ -117,6 +126,304 @@ public class LargeFileDownloaderTest extends AbstractS3ClientTest {
         Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
     }
 
+    @Test
+    public void testAutoTune() throws Exception {
+        LargeFileDownloader lfd = new LargeFileDownloader(client, getTestBucket(), key, destFile);
+        lfd.withParallelThreshold(FILE_SIZE).withPartSize(LargeFileDownloader.MIN_PART_SIZE).withThreads(2)
+                .withAutoTune(true).download();
+
+        Assert.assertNotNull(lfd.getTuner());
+        Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(new FileInputStream(destFile), MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), destFile.length());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testWriteBufferSize() throws Exception {
+        // a buffer size that does not divide the part size evenly
+        LargeFileDownloader lfd = new LargeFileDownloader(client, getTestBucket(), key, destFile);
+        lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 5).withWriteBufferSize(100 * 1024 + 1).download();
+        Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(new FileInputStream(destFile), MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), destFile.length());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        long uploadPartSize = FILE_SIZE / 5;
+
+        // multipart object (the ranges follow the upload parts, not the part size)
+        LargeFileDownloader lfd = new LargeFileDownloader(client, getTestBucket(), key, destFile);
+        lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 3).withVerifyChecksum(true)
+                .withUploadPartSize(uploadPartSize).download();
+        Assert.assertEquals(FILE_SIZE / 3, lfd.getPartSize());
+        verifyDestFile();
+
+        // single-part object (with a buffer smaller than a range)
+        client.putObject(getTestBucket(), "single", sourceFile, null);
+        destFile.delete();
+        lfd = new LargeFileDownloader(client, getTestBucket(), "single", destFile);
+        lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 8).withThreads(4).withVerifyChecksum(true)
+                .withVerifyBufferSize(FILE_SIZE / 16).download();
+        verifyDestFile();
+    }
+
+    @Test
+    public void testVerifyCorruptRange() throws Exception {
+        long uploadPartSize = FILE_SIZE / 5;
+        client.putObject(getTestBucket(), "single", sourceFile, null);
+
+        for (String key : new String[]{this.key, "single"}) {
+            AtomicInteger corrupted = new AtomicInteger();
+            S3Client faultyClient = corruptingClient(2 * uploadPartSize, corrupted);
+            try {
+                LargeFileDownloader lfd = new LargeFileDownloader(faultyClient, getTestBucket(), key, destFile);
+                lfd.withParallelThreshold(FILE_SIZE).withPartSize(uploadPartSize).withVerifyChecksum(true)
+                        .withUploadPartSize(uploadPartSize).download();
+                Assert.fail("corrupt download of " + key + " should fail");
+            } catch (RuntimeException e) {
+                Assert.assertTrue(e.getCause() instanceof ChecksumError);
+            } finally {
+                faultyClient.destroy();
+            }
+
+            // the object is not fetched again
+            Assert.assertEquals(1, corrupted.get());
+        }
+    }
+
+    @Test
+    public void testUnknownUploadPartSize() throws Exception {
+        AtomicInteger corrupted = new AtomicInteger();
+        S3Client faultyClient = corruptingClient(0, corrupted);
+        try {
+            // a multipart object cannot be verified without its upload part size (and is not fetched again)
+            LargeFileDownloader lfd = new LargeFileDownloader(faultyClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 4).withVerifyChecksum(true).download();
+            Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+            Assert.assertEquals(1, corrupted.get());
+        } finally {
+            faultyClient.destroy();
+        }
+    }
+
+    /**
+     * Returns a client that corrupts one byte of the range starting at <code>offset</code>, each time it is requested
+     */
+    private S3Client corruptingClient(final long offset, final AtomicInteger corrupted) throws Exception {
+        return new S3JerseyClient(createS3Config()) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> GetObjectResult<T> getObject(GetObjectRequest request, Class<T> objectType) {
+                GetObjectResult<T> result = super.getObject(request, objectType);
+                Range range = request.getRange();
+                if (range != null && range.getFirst() == offset) {
+                    corrupted.incrementAndGet();
+                    result.setObject((T) new FilterInputStream((InputStream) result.getObject()) {
+                        boolean first = true;
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int r = super.read(b, off, len);
+                            if (first && r > 0) {
+                                b[off] = (byte) ~b[off];
+                                first = false;
+                            }
+                            return r;
+                        }
+                    });
+                }
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void testSkipHead() throws Exception {
+        final AtomicInteger heads = new AtomicInteger(), gets = new AtomicInteger();
+        S3Client countingClient = new S3JerseyClient(createS3Config()) {
+            @Override
+            public S3ObjectMetadata getObjectMetadata(String bucketName, String key) {
+                heads.incrementAndGet();
+                return super.getObjectMetadata(bucketName, key);
+            }
+
+            @Override
+            public <T> GetObjectResult<T> getObject(GetObjectRequest request, Class<T> objectType) {
+                gets.incrementAndGet();
+                return super.getObject(request, objectType);
+            }
+        };
+
+        try {
+            // parallel
+            LargeFileDownloader lfd = new LargeFileDownloader(countingClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 5).withSkipHead(true).download();
+            Assert.assertEquals(FILE_SIZE, lfd.getObjectSize().longValue());
+            Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+            Assert.assertEquals(0, heads.get());
+            Assert.assertEquals(5, gets.get()); // the first range is reused
+            verifyDestFile();
+
+            // single-GET (first range, then the rest)
+            gets.set(0);
+            destFile.delete();
+            lfd = new LargeFileDownloader(countingClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE + 1).withPartSize(FILE_SIZE / 5).withSkipHead(true).download();
+            Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+            Assert.assertEquals(0, heads.get());
+            Assert.assertEquals(2, gets.get());
+            verifyDestFile();
+
+            // single-GET where the first range is the whole object
+            gets.set(0);
+            destFile.delete();
+            lfd = new LargeFileDownloader(countingClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE + 1).withPartSize(FILE_SIZE * 2).withSkipHead(true).download();
+            Assert.assertEquals(1, gets.get());
+            verifyDestFile();
+
+            // empty object
+            client.putObject(getTestBucket(), "empty", new byte[0], null);
+            lfd = new LargeFileDownloader(countingClient, getTestBucket(), "empty", destFile);
+            lfd.withSkipHead(true).download();
+            Assert.assertEquals(0, lfd.getObjectSize().longValue());
+            Assert.assertEquals(0, destFile.length());
+            Assert.assertEquals(0, heads.get());
+        } finally {
+            countingClient.destroy();
+        }
+    }
+
+    private void verifyDestFile() throws Exception {
+        DigestInputStream dis = new DigestInputStream(new FileInputStream(destFile), MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), destFile.length());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testPartRetry() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+
+        // fail the first 3 range requests with a retryable error
+        S3Client faultyClient = new S3JerseyClient(createS3Config()) {
+            @Override
+            public <T> GetObjectResult<T> getObject(GetObjectRequest request, Class<T> objectType) {
+                if (request.getRange() != null && failures.incrementAndGet() <= 3)
+                    throw new S3Exception("injected fault", 500);
+                return super.getObject(request, objectType);
+            }
+        };
+
+        try {
+            LargeFileDownloader lfd = new LargeFileDownloader(faultyClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 5).withPartRetryDelay(10).download();
+
+            // progress should not include failed attempts
+            Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+        } finally {
+            faultyClient.destroy();
+        }
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(new FileInputStream(destFile), MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), destFile.length());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testResumeFromJournal() throws Exception {
+        long partSize = FILE_SIZE / 5;
+        File journalFile = new File(destFile.getPath() + ".journal");
+        journalFile.deleteOnExit();
+
+        // fail the 4th part with an error that cannot be retried
+        final AtomicInteger ranges = new AtomicInteger();
+        S3Client faultyClient = new S3JerseyClient(createS3Config()) {
+            @Override
+            public <T> GetObjectResult<T> getObject(GetObjectRequest request, Class<T> objectType) {
+                Range range = request.getRange();
+                if (range != null) {
+                    ranges.incrementAndGet();
+                    if (range.getFirst() == 3 * FILE_SIZE / 5) throw new S3Exception("injected fault", 400);
+                }
+                return super.getObject(request, objectType);
+            }
+        };
+
+        try {
+            LargeFileDownloader lfd = new LargeFileDownloader(faultyClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE).withPartSize(partSize).withThreads(1).withJournalFile(journalFile);
+            try {
+                lfd.download();
+                Assert.fail("download should have failed");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        } finally {
+            faultyClient.destroy();
+        }
+
+        // journal should record the first 3 parts (the 5th may also have completed before it was cancelled)
+        DownloadJournal journal = DownloadJournal.read(journalFile);
+        Assert.assertNotNull(journal);
+        long completedParts = journal.getCompletedSize() / partSize;
+        Assert.assertTrue(completedParts == 3 || completedParts == 4);
+
+        // resume; only the missing parts should be requested
+        ranges.set(0);
+        S3Client countingClient = new S3JerseyClient(createS3Config()) {
+            @Override
+            public <T> GetObjectResult<T> getObject(GetObjectRequest request, Class<T> objectType) {
+                if (request.getRange() != null) ranges.incrementAndGet();
+                return super.getObject(request, objectType);
+            }
+        };
+        try {
+            LargeFileDownloader lfd = new LargeFileDownloader(countingClient, getTestBucket(), key, destFile);
+            lfd.withParallelThreshold(FILE_SIZE).withPartSize(partSize).withJournalFile(journalFile).download();
+            Assert.assertEquals(FILE_SIZE, lfd.getBytesTransferred());
+        } finally {
+            countingClient.destroy();
+        }
+        Assert.assertEquals(5 - completedParts, ranges.get());
+        Assert.assertFalse(journalFile.exists());
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(new FileInputStream(destFile), MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), destFile.length());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testResumeChangedObject() throws Exception {
+        File journalFile = new File(destFile.getPath() + ".journal");
+        journalFile.deleteOnExit();
+
+        // journal from a previous version of the object
+        RandomAccessFile raFile = new RandomAccessFile(destFile, "rw");
+        raFile.setLength(FILE_SIZE);
+        raFile.close();
+        DownloadJournal journal = new DownloadJournal(journalFile, getTestBucket(), key, "old-etag", FILE_SIZE);
+        journal.rangeCompleted(new Range(0L, FILE_SIZE / 2 - 1));
+
+        // the journal should be ignored and the whole object downloaded
+        LargeFileDownloader lfd = new LargeFileDownloader(client, getTestBucket(), key, destFile);
+        lfd.withParallelThreshold(FILE_SIZE).withPartSize(FILE_SIZE / 5).withJournalFile(journalFile).download();
+        Assert.assertFalse(journalFile.exists());
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(new FileInputStream(destFile), MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), destFile.length());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
     @Test
     public void testBelowThreshold() throws Exception {
         final AtomicLong bytesTransferred = new AtomicLong(), bytesCompleted = new AtomicLong(), bytesTotal = new AtomicLong();
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploader tests that run against {@link StubS3Client} (no S3 endpoint needed)
+ */
+public class LargeFileUploaderStubTest {
+    private static final int OBJECT_SIZE = 1024;
+
+    @Test
+    public void testSinglePutProvidedExecutor() throws Exception {
+        StubS3Client client = new StubS3Client();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // a caller's executor must still be usable after a single PUT
+            for (String key : new String[]{"key1", "key2"}) {
+                new LargeFileUploader(client.proxy(), "bucket", key, new ByteArrayInputStream(new byte[OBJECT_SIZE]),
+                        OBJECT_SIZE).withExecutorService(executor).upload();
+                Assert.assertEquals(OBJECT_SIZE, client.get("bucket", key).size);
+            }
+            Assert.assertFalse(executor.isShutdown());
+            Assert.assertEquals(2, client.count("putObject"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSinglePutTransferExecutor() throws Exception {
+        StubS3Client client = new StubS3Client();
+        TransferManager manager = new TransferManager(2, 2);
+        try {
+            // a transfer manager's per-transfer view runs the PUT and is done afterwards
+            ExecutorService executor = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            new LargeFileUploader(client.proxy(), "bucket", "key", new ByteArrayInputStream(new byte[OBJECT_SIZE]),
+                    OBJECT_SIZE).withExecutorService(executor).upload();
+            Assert.assertEquals(OBJECT_SIZE, client.get("bucket", "key").size);
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        } finally {
+            manager.shutdownNow();
+        }
+    }
+}
@@ -26,7 +26,10 @@
  */
 package com.emc.object.s3;
 
+import com.emc.object.s3.bean.MultipartPartETag;
 import com.emc.object.s3.jersey.S3JerseyClient;
+import com.emc.object.s3.request.UploadPartRequest;
+import com.emc.object.util.InputStreamSegment;
 import com.emc.object.util.ProgressListener;
 import com.emc.rest.util.StreamUtil;
 import com.emc.util.RandomInputStream;
@@ -36,10 +39,12 @@ import org.junit.Test;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class LargeFileUploaderTest extends AbstractS3ClientTest {
@@ -109,6 +114,168 @@ public class LargeFileUploaderTest extends AbstractS3ClientTest {
         Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
     }
 
+    @Test
+    public void testStreamAboveThreshold() throws Exception {
+        String key = "lfu-stream-mpu-test";
+        long partSize = FILE_SIZE / 5;
+
+        // upload from a (non-seekable) stream in 4MB parts using multiple threads
+        LargeFileUploader lfu = new LargeFileUploader(client, getTestBucket(), key, new FileInputStream(tempFile), FILE_SIZE);
+        lfu.withMpuThreshold(FILE_SIZE).withPartSize(partSize).withThreads(3);
+        lfu.upload();
+
+        // verify MPU
+        S3ObjectMetadata metadata = client.getObjectMetadata(getTestBucket(), key);
+        Assert.assertEquals(FILE_SIZE, metadata.getContentLength().longValue());
+        Assert.assertTrue(metadata.getETag().endsWith("-" + FILE_SIZE / partSize));
+        Assert.assertEquals(FILE_SIZE, lfu.getBytesTransferred());
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(client.readObjectStream(getTestBucket(), key, null),
+                MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), metadata.getContentLength());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testStaleJournal() throws Exception {
+        String key = "lfu-stale-journal-test";
+        File journalFile = File.createTempFile("lfu-journal", null);
+        journalFile.deleteOnExit();
+
+        // journal for a different version of the file
+        String staleUploadId = client.initiateMultipartUpload(getTestBucket(), key);
+        new MultipartUploadJournal(journalFile, getTestBucket(), key, staleUploadId, FILE_SIZE + 1, FILE_SIZE / 5);
+
+        LargeFileUploader lfu = new LargeFileUploader(client, getTestBucket(), key, tempFile);
+        lfu.withPartSize((long) FILE_SIZE / 5).withJournalFile(journalFile);
+        lfu.doMultipartUpload();
+
+        Assert.assertFalse(journalFile.exists());
+        Assert.assertEquals(FILE_SIZE, client.getObjectMetadata(getTestBucket(), key).getContentLength().longValue());
+
+        // the stale upload must be aborted
+        try {
+            client.listParts(getTestBucket(), key, staleUploadId);
+            Assert.fail("stale upload was not aborted");
+        } catch (S3Exception e) {
+            Assert.assertEquals(404, e.getHttpCode());
+        }
+    }
+
+    @Test
+    public void testResumeFromJournal() throws Exception {
+        String key = "lfu-resume-test";
+        long partSize = FILE_SIZE / 5;
+        File journalFile = File.createTempFile("lfu-journal", null);
+        journalFile.deleteOnExit();
+        journalFile.delete();
+
+        // start an upload and send only the first part (simulates a failed upload)
+        String uploadId = client.initiateMultipartUpload(getTestBucket(), key);
+        UploadPartRequest partRequest = new UploadPartRequest(getTestBucket(), key, uploadId, 1,
+                new InputStreamSegment(new FileInputStream(tempFile), 0, partSize)).withContentLength(partSize);
+        MultipartUploadJournal journal = new MultipartUploadJournal(journalFile, getTestBucket(), key, uploadId,
+                FILE_SIZE, partSize);
+        journal.partCompleted(client.uploadPart(partRequest));
+
+        // resume the upload (use a different part size to make sure the journal's part size is used)
+        LargeFileUploader lfu = new LargeFileUploader(client, getTestBucket(), key, tempFile);
+        lfu.withPartSize(partSize * 2).withJournalFile(journalFile);
+        lfu.doMultipartUpload();
+
+        Assert.assertEquals(partSize, lfu.getPartSize());
+        Assert.assertFalse(journalFile.exists());
+        Assert.assertEquals(FILE_SIZE, lfu.getBytesTransferred());
+
+        // verify MPU
+        S3ObjectMetadata metadata = client.getObjectMetadata(getTestBucket(), key);
+        Assert.assertEquals(FILE_SIZE, metadata.getContentLength().longValue());
+        Assert.assertTrue(metadata.getETag().endsWith("-" + FILE_SIZE / partSize));
+
+        // verify content
+        DigestInputStream dis = new DigestInputStream(client.readObjectStream(getTestBucket(), key, null),
+                MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), metadata.getContentLength());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
+    @Test
+    public void testPartRetry() throws Exception {
+        String key = "lfu-part-retry-test";
+        long partSize = FILE_SIZE / 5;
+        final AtomicInteger failures = new AtomicInteger();
+
+        // fail the first 3 part uploads with a retryable error
+        S3Client faultyClient = new S3JerseyClient(createS3Config()) {
+            @Override
+            public MultipartPartETag uploadPart(UploadPartRequest request) {
+                if (failures.incrementAndGet() <= 3) throw new S3Exception("injected fault", 500);
+                return super.uploadPart(request);
+            }
+        };
+
+        try {
+            LargeFileUploader lfu = new LargeFileUploader(faultyClient, getTestBucket(), key, tempFile);
+            lfu.withPartSize(partSize).withPartRetryDelay(10).doMultipartUpload();
+
+            // progress should not include failed attempts
+            Assert.assertEquals(FILE_SIZE, lfu.getBytesTransferred());
+        } finally {
+            faultyClient.destroy();
+        }
+
+        S3ObjectMetadata metadata = client.getObjectMetadata(getTestBucket(), key);
+        Assert.assertEquals(FILE_SIZE, metadata.getContentLength().longValue());
+        Assert.assertTrue(metadata.getETag().endsWith("-" + FILE_SIZE / partSize));
+    }
+
+    @Test
+    public void testPartFailureAbortsUpload() throws Exception {
+        String key = "lfu-part-fail-test";
+
+        // fail the first part with an error that cannot be retried
+        S3Client faultyClient = new S3JerseyClient(createS3Config()) {
+            @Override
+            public MultipartPartETag uploadPart(UploadPartRequest request) {
+                if (request.getPartNumber() == 1) throw new S3Exception("injected fault", 400);
+                return super.uploadPart(request);
+            }
+        };
+
+        try {
+            LargeFileUploader lfu = new LargeFileUploader(faultyClient, getTestBucket(), key, tempFile);
+            lfu.withPartSize((long) FILE_SIZE / 5).withThreads(1).doMultipartUpload();
+            Assert.fail("upload should have failed");
+        } catch (RuntimeException e) {
+            // expected
+        } finally {
+            faultyClient.destroy();
+        }
+
+        // upload should be aborted
+        Assert.assertEquals(0, client.listMultipartUploads(getTestBucket()).getUploads().size());
+    }
+
+    @Test
+    public void testAutoTune() throws Exception {
+        String key = "lfu-auto-tune-test";
+
+        LargeFileUploader lfu = new LargeFileUploader(client, getTestBucket(), key, tempFile);
+        lfu.withPartSize(LargeFileUploader.MIN_PART_SIZE).withThreads(2).withAutoTune(true).doMultipartUpload();
+
+        Assert.assertNotNull(lfu.getTuner());
+        Assert.assertEquals(FILE_SIZE, lfu.getBytesTransferred());
+
+        // verify content
+        S3ObjectMetadata metadata = client.getObjectMetadata(getTestBucket(), key);
+        Assert.assertEquals(FILE_SIZE, metadata.getContentLength().longValue());
+        DigestInputStream dis = new DigestInputStream(client.readObjectStream(getTestBucket(), key, null),
+                MessageDigest.getInstance("MD5"));
+        StreamUtil.copy(dis, new NullStream(), metadata.getContentLength());
+        Assert.assertEquals(md5Hex, DatatypeConverter.printHexBinary(dis.getMessageDigest().digest()).toLowerCase());
+    }
+
     @Test
     public void testBelowThreshold() throws Exception {
         String key = "lfu-single-test";
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.MultipartPartETag;
+import com.emc.object.s3.request.CompleteMultipartUploadRequest;
+import com.emc.object.s3.request.CopyObjectRequest;
+import com.emc.object.s3.request.CopyPartRequest;
+import com.emc.object.s3.request.InitiateMultipartUploadRequest;
+import com.emc.object.util.ProgressListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LargeObjectCopierTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testMultipartCopy() {
+        TestClient client = new TestClient(100 * MB + 123);
+        final AtomicLong progress = new AtomicLong();
+        LargeObjectCopier copier = new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key")
+                .withMpuThreshold(10 * MB).withPartSize(16 * MB).withThreads(4)
+                .withProgressListener(new ProgressListener() {
+                    @Override
+                    public void progress(long completed, long total) {
+                    }
+
+                    @Override
+                    public void transferred(long size) {
+                        progress.addAndGet(size);
+                    }
+                });
+        copier.copy();
+
+        Assert.assertEquals(7, copier.getPartCount());
+        Assert.assertEquals(100 * MB + 123, copier.getBytesCopied());
+        Assert.assertEquals(100 * MB + 123, progress.get());
+        StubS3Client.StubObject target = client.get("bucket", "key");
+        Assert.assertEquals(100 * MB + 123, target.size);
+        Assert.assertEquals(target.eTag, copier.getETag());
+        Assert.assertTrue(target.eTag.endsWith("-7"));
+
+        // ranges are contiguous and cover the whole object
+        SortedMap<Integer, CopyPartRequest> partRequests = new TreeMap<Integer, CopyPartRequest>();
+        for (CopyPartRequest request : client.requests("copyPart", CopyPartRequest.class)) {
+            partRequests.put(request.getPartNumber(), request);
+        }
+        Assert.assertEquals(7, partRequests.size());
+        long offset = 0;
+        for (CopyPartRequest request : partRequests.values()) {
+            Assert.assertEquals(offset, request.getSourceRange().getFirst().longValue());
+            Assert.assertEquals("source-etag", request.getIfSourceMatch());
+            offset = request.getSourceRange().getLast() + 1;
+        }
+        Assert.assertEquals(100 * MB + 123, offset);
+
+        // parts are completed in order, and the source metadata is carried over
+        CompleteMultipartUploadRequest completeRequest =
+                client.requests("completeMultipartUpload", CompleteMultipartUploadRequest.class).get(0);
+        List<MultipartPartETag> parts = new ArrayList<MultipartPartETag>(completeRequest.getParts());
+        Assert.assertEquals(7, parts.size());
+        Assert.assertEquals(1, parts.get(0).getPartNumber().intValue());
+        S3ObjectMetadata metadata = client.requests("initiateMultipartUpload", InitiateMultipartUploadRequest.class)
+                .get(0).getObjectMetadata();
+        Assert.assertEquals("text/plain", metadata.getContentType());
+        Assert.assertEquals("bar", metadata.getUserMetadata("foo"));
+        Assert.assertNull(metadata.getContentLength());
+        Assert.assertEquals("bar", target.metadata.getUserMetadata("foo"));
+    }
+
+    @Test
+    public void testSingleCopy() {
+        TestClient client = new TestClient(5 * MB);
+        LargeObjectCopier copier = new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key")
+                .withMpuThreshold(10 * MB);
+        copier.copy();
+
+        Assert.assertEquals(0, copier.getPartCount());
+        Assert.assertEquals(5 * MB, copier.getBytesCopied());
+        Assert.assertEquals(1, client.requests("copyObject", CopyObjectRequest.class).size());
+        Assert.assertEquals(0, client.count("initiateMultipartUpload"));
+        Assert.assertEquals("source-etag", client.get("bucket", "key").eTag);
+    }
+
+    @Test
+    public void testThreadPool() throws Exception {
+        // a single copy does not create a thread pool
+        TestClient client = new TestClient(5 * MB);
+        LargeObjectCopier copier = new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key")
+                .withMpuThreshold(10 * MB);
+        copier.copy();
+        Assert.assertNull(copier.getExecutorService());
+
+        // the pool created for a multipart copy is shut down
+        copier = new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key2")
+                .withMpuThreshold(0).withPartSize(4 * MB);
+        copier.copy();
+        Assert.assertTrue(copier.getExecutorService().awaitTermination(10, TimeUnit.SECONDS));
+
+        // a provided executor is not shut down
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2; i++) {
+                new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key" + i)
+                        .withMpuThreshold(0).withPartSize(4 * MB).withExecutorService(executor).copy();
+            }
+            Assert.assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPartRetry() {
+        TestClient client = new TestClient(40 * MB);
+        client.failuresByPart.put(2, 2);
+        LargeObjectCopier copier = new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key")
+                .withMpuThreshold(0).withPartSize(8 * MB).withPartRetryDelay(1);
+        copier.copy();
+
+        Assert.assertEquals(5, copier.getPartCount());
+        Assert.assertEquals(7, client.count("copyPart"));
+        Assert.assertTrue(client.getAbortedUploads().isEmpty());
+        Assert.assertEquals(40 * MB, client.get("bucket", "key").size);
+    }
+
+    @Test
+    public void testAbortOnFailure() {
+        TestClient client = new TestClient(40 * MB);
+        client.failuresByPart.put(3, 100);
+        LargeObjectCopier copier = new LargeObjectCopier(client.proxy(), "src-bucket", "src-key", "bucket", "key")
+                .withMpuThreshold(0).withPartSize(8 * MB).withPartRetries(1).withPartRetryDelay(1);
+        try {
+            copier.copy();
+            Assert.fail("copy should fail");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause().getCause() instanceof S3Exception);
+            Assert.assertEquals(500, ((S3Exception) e.getCause().getCause()).getHttpCode());
+        }
+        Assert.assertEquals(1, client.getAbortedUploads().size());
+        Assert.assertEquals(0, client.count("completeMultipartUpload"));
+        Assert.assertNull(client.get("bucket", "key"));
+    }
+
+    /**
+     * Holds a source object of the given size and fails copies of specific part numbers
+     */
+    private static class TestClient extends StubS3Client {
+        final Map<Integer, Integer> failuresByPart = new HashMap<Integer, Integer>();
+
+        TestClient(long size) {
+            put("src-bucket", "src-key", size, "source-etag").metadata.withContentType("text/plain")
+                    .addUserMetadata("foo", "bar");
+        }
+
+        @Override
+        protected synchronized void beforeCall(String method, Object[] args) {
+            if (!method.equals("copyPart")) return;
+            int partNumber = ((CopyPartRequest) args[0]).getPartNumber();
+            Integer failures = failuresByPart.get(partNumber);
+            if (failures != null && failures > 0) {
+                failuresByPart.put(partNumber, failures - 1);
+                throw new S3Exception("Internal Error", 500);
+            }
+        }
+    }
+}
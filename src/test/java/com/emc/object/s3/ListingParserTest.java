@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ListingParserTest {
+    private ListingParser parser = new ListingParser();
+
+    @Test
+    public void testListObjects() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" +
+                "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Name>bucket</Name>" +
+                "<Prefix>my%20dir/</Prefix>" +
+                "<Marker>my%20dir/a</Marker>" +
+                "<MaxKeys>3</MaxKeys>" +
+                "<Delimiter>/</Delimiter>" +
+                "<EncodingType>url</EncodingType>" +
+                "<IsTruncated>true</IsTruncated>" +
+                "<Contents>" +
+                "<Key>my%20dir/b%2Bc</Key>" +
+                "<LastModified>2050-01-01T00:00:00.123Z</LastModified>" +
+                "<ETag>\"396fefef536d5ce46c7537ecf978a360\"</ETag>" +
+                "<Size>217</Size>" +
+                "<Unknown><Nested>ignored</Nested></Unknown>" +
+                "<Owner><ID>ID12345</ID><DisplayName>Foo Bar</DisplayName></Owner>" +
+                "<StorageClass>STANDARD</StorageClass>" +
+                "</Contents>" +
+                "<Contents>" +
+                "<Key>my%20dir/d</Key>" +
+                "<LastModified>2050-01-01T00:00:00Z</LastModified>" +
+                "<ETag>\"d41d8cd98f00b204e9800998ecf8427e\"</ETag>" +
+                "<Size>0</Size>" +
+                "<StorageClass>GLACIER</StorageClass>" +
+                "</Contents>" +
+                "<CommonPrefixes><Prefix>my%20dir/sub%20dir/</Prefix></CommonPrefixes>" +
+                "</ListBucketResult>";
+
+        ListObjectsResult expected = (ListObjectsResult) JAXBContext.newInstance(ListObjectsResult.class)
+                .createUnmarshaller().unmarshal(new StringReader(xml));
+        ListObjectsResult result = parser.parseListObjects(stream(xml), null);
+
+        Assert.assertEquals("my dir/", result.getPrefix());
+        Assert.assertEquals("my dir/b+c", result.getObjects().get(0).getKey());
+        Assert.assertNull(result.getObjects().get(1).getStorageClass());
+
+        Assert.assertEquals(expected.getBucketName(), result.getBucketName());
+        Assert.assertEquals(expected.getPrefix(), result.getPrefix());
+        Assert.assertEquals(expected.getMarker(), result.getMarker());
+        Assert.assertEquals(expected.getMaxKeys(), result.getMaxKeys());
+        Assert.assertEquals(expected.getDelimiter(), result.getDelimiter());
+        Assert.assertEquals(expected.getEncodingType(), result.getEncodingType());
+        Assert.assertEquals(expected.isTruncated(), result.isTruncated());
+        Assert.assertEquals(expected.getCommonPrefixes(), result.getCommonPrefixes());
+        Assert.assertEquals(expected.getObjects().size(), result.getObjects().size());
+        for (int i = 0; i < expected.getObjects().size(); i++) {
+            S3Object object = expected.getObjects().get(i), parsed = result.getObjects().get(i);
+            Assert.assertEquals(object.getKey(), parsed.getKey());
+            Assert.assertEquals(object.getLastModified(), parsed.getLastModified());
+            Assert.assertEquals(object.getETag(), parsed.getETag());
+            Assert.assertEquals(object.getSize(), parsed.getSize());
+            Assert.assertEquals(object.getStorageClass(), parsed.getStorageClass());
+            Assert.assertEquals(object.getOwner(), parsed.getOwner());
+        }
+
+        // no next-marker, so the last key is used
+        Assert.assertEquals("my dir/d", result.getNextMarker());
+
+        // with a handler
+        final List<S3Object> objects = new ArrayList<S3Object>();
+        result = parser.parseListObjects(stream(xml), new ListingHandler<S3Object>() {
+            @Override
+            public void handle(S3Object entry) {
+                objects.add(entry);
+            }
+        });
+        Assert.assertEquals(0, result.getObjects().size());
+        Assert.assertEquals(2, objects.size());
+        Assert.assertEquals("my dir/b+c", objects.get(0).getKey());
+        Assert.assertEquals("my dir/d", result.getNextMarker());
+        Assert.assertEquals(expected.getCommonPrefixes(), result.getCommonPrefixes());
+    }
+
+    @Test
+    public void testEncodingTypeAfterEntries() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" +
+                "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Name>bucket</Name>" +
+                "<Prefix>my%20dir/</Prefix>" +
+                "<IsTruncated>true</IsTruncated>" +
+                "<Contents><Key>my%20dir/b%2Bc</Key><Size>1</Size></Contents>" +
+                "<Contents><Key>my%20dir/d%20e</Key><Size>2</Size></Contents>" +
+                "<EncodingType>url</EncodingType>" +
+                "</ListBucketResult>";
+
+        ListObjectsResult result = parser.parseListObjects(stream(xml), null);
+        Assert.assertEquals("my dir/", result.getPrefix());
+        Assert.assertEquals(2, result.getObjects().size());
+        Assert.assertEquals("my dir/b+c", result.getObjects().get(0).getKey());
+        Assert.assertEquals("my dir/d e", result.getObjects().get(1).getKey());
+        Assert.assertEquals("my dir/d e", result.getNextMarker()); // decoded like the keys
+
+        // with a handler, the next-marker is still decoded
+        result = parser.parseListObjects(stream(xml), new ListingHandler<S3Object>() {
+            @Override
+            public void handle(S3Object entry) {
+            }
+        });
+        Assert.assertEquals("my dir/d e", result.getNextMarker());
+
+        // versions and uploads
+        xml = "<ListVersionsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Version><Key>a%20b</Key><VersionId>1</VersionId></Version>" +
+                "<DeleteMarker><Key>c%20d</Key><VersionId>2</VersionId></DeleteMarker>" +
+                "<EncodingType>url</EncodingType>" +
+                "</ListVersionsResult>";
+        ListVersionsResult versions = parser.parseListVersions(stream(xml), null);
+        Assert.assertEquals("a b", versions.getVersions().get(0).getKey());
+        Assert.assertEquals("c d", versions.getVersions().get(1).getKey());
+
+        xml = "<ListMultipartUploadsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Upload><Key>a%20b</Key><UploadId>1</UploadId></Upload>" +
+                "<EncodingType>url</EncodingType>" +
+                "</ListMultipartUploadsResult>";
+        ListMultipartUploadsResult uploads = parser.parseListMultipartUploads(stream(xml), null);
+        Assert.assertEquals("a b", uploads.getUploads().get(0).getKey());
+    }
+
+    @Test
+    public void testErrorResponse() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<Error><Code>InternalError</Code><Message>failed</Message></Error>";
+        try {
+            parser.parseListObjects(stream(xml), null);
+            Assert.fail("error document should not parse as a listing");
+        } catch (ListingParser.UnexpectedRootException e) {
+            Assert.assertEquals("Error", e.getElementName());
+        }
+        try {
+            parser.parseQueryObjects(stream(xml), null);
+            Assert.fail("error document should not parse as a listing");
+        } catch (ListingParser.UnexpectedRootException e) {
+            Assert.assertEquals("Error", e.getElementName());
+        }
+    }
+
+    @Test
+    public void testListVersions() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" +
+                "<ListVersionsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Name>bucket</Name>" +
+                "<Prefix>my</Prefix>" +
+                "<KeyMarker>key2</KeyMarker>" +
+                "<VersionIdMarker>t46ZenlYTZBnj</VersionIdMarker>" +
+                "<NextKeyMarker>key3</NextKeyMarker>" +
+                "<NextVersionIdMarker>d-d309mfjFrUmoQ0DBsVqmcMV15OI.</NextVersionIdMarker>" +
+                "<MaxKeys>1000</MaxKeys>" +
+                "<Delimiter>/</Delimiter>" +
+                "<IsTruncated>true</IsTruncated>" +
+                "<DeleteMarker>" +
+                "<Key>sourcekey</Key>" +
+                "<VersionId>qDhprLU80sAlCFLu2DWgXAEDgKzWarn-HS_JU0TvYqs.</VersionId>" +
+                "<IsLatest>true</IsLatest>" +
+                "<LastModified>2050-01-01T00:00:00Z</LastModified>" +
+                "<Owner><ID>ID12345</ID><DisplayName>Foo Bar</DisplayName></Owner>" +
+                "</DeleteMarker>" +
+                "<Version>" +
+                "<Key>sourcekey</Key>" +
+                "<VersionId>wxxQ7ezLaL5JN2Sislq66Syxxo0k7uHTUpb9qiiMxNg.</VersionId>" +
+                "<IsLatest>false</IsLatest>" +
+                "<LastModified>2050-01-01T00:00:00Z</LastModified>" +
+                "<ETag>&amp;quot;396fefef536d5ce46c7537ecf978a360&amp;quot;</ETag>" +
+                "<Size>217</Size>" +
+                "<Owner><ID>ID12345</ID><DisplayName>Foo Bar</DisplayName></Owner>" +
+                "<StorageClass>STANDARD</StorageClass>" +
+                "</Version>" +
+                "<CommonPrefixes><Prefix>photos/</Prefix></CommonPrefixes>" +
+                "<CommonPrefixes><Prefix>videos/</Prefix></CommonPrefixes>" +
+                "</ListVersionsResult>";
+
+        ListVersionsResult expected = (ListVersionsResult) JAXBContext.newInstance(ListVersionsResult.class,
+                Version.class, DeleteMarker.class).createUnmarshaller().unmarshal(new StringReader(xml));
+        ListVersionsResult result = parser.parseListVersions(stream(xml), null);
+
+        Assert.assertEquals(expected.getBucketName(), result.getBucketName());
+        Assert.assertEquals(expected.getPrefix(), result.getPrefix());
+        Assert.assertEquals(expected.getKeyMarker(), result.getKeyMarker());
+        Assert.assertEquals(expected.getVersionIdMarker(), result.getVersionIdMarker());
+        Assert.assertEquals(expected.getNextKeyMarker(), result.getNextKeyMarker());
+        Assert.assertEquals(expected.getNextVersionIdMarker(), result.getNextVersionIdMarker());
+        Assert.assertEquals(expected.getMaxKeys(), result.getMaxKeys());
+        Assert.assertEquals(expected.getDelimiter(), result.getDelimiter());
+        Assert.assertEquals(expected.isTruncated(), result.isTruncated());
+        Assert.assertEquals(expected.getCommonPrefixes(), result.getCommonPrefixes());
+        Assert.assertEquals(2, result.getVersions().size());
+        for (int i = 0; i < expected.getVersions().size(); i++) {
+            AbstractVersion version = expected.getVersions().get(i), parsed = result.getVersions().get(i);
+            Assert.assertEquals(version.getClass(), parsed.getClass());
+            Assert.assertEquals(version.getKey(), parsed.getKey());
+            Assert.assertEquals(version.getVersionId(), parsed.getVersionId());
+            Assert.assertEquals(version.isLatest(), parsed.isLatest());
+            Assert.assertEquals(version.getLastModified(), parsed.getLastModified());
+            Assert.assertEquals(version.getOwner(), parsed.getOwner());
+            if (version instanceof Version) {
+                Assert.assertEquals(((Version) version).getETag(), ((Version) parsed).getETag());
+                Assert.assertEquals(((Version) version).getSize(), ((Version) parsed).getSize());
+                Assert.assertEquals(((Version) version).getStorageClass(), ((Version) parsed).getStorageClass());
+            }
+        }
+    }
+
+    @Test
+    public void testListMultipartUploads() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" +
+                "<ListMultipartUploadsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Bucket>bucket</Bucket>" +
+                "<KeyMarker></KeyMarker>" +
+                "<UploadIdMarker></UploadIdMarker>" +
+                "<NextKeyMarker>my-movie.m2ts</NextKeyMarker>" +
+                "<NextUploadIdMarker>YW55IGlkZWEgd2h5IGVsdmluZydzIHVwbG9hZCBmYWlsZWQ</NextUploadIdMarker>" +
+                "<MaxUploads>3</MaxUploads>" +
+                "<IsTruncated>true</IsTruncated>" +
+                "<Upload>" +
+                "<Key>my-divisor</Key>" +
+                "<UploadId>XMgbGlrZSBlbHZpbmcncyBub3QgaGF2aW5nIG11Y2ggbHVjaw</UploadId>" +
+                "<Initiator><ID>arn:aws:iam::111122223333:user/user1</ID><DisplayName>user1</DisplayName></Initiator>" +
+                "<Owner><ID>ID12345</ID><DisplayName>Foo Bar</DisplayName></Owner>" +
+                "<StorageClass>STANDARD</StorageClass>" +
+                "<Initiated>2010-11-10T20:48:33.000Z</Initiated>" +
+                "</Upload>" +
+                "<Upload>" +
+                "<Key>my-movie.m2ts</Key>" +
+                "<UploadId>VXBsb2FkIElEIGZvciBlbHZpbmcncyBteS1tb3ZpZS5tMnRzIHVwbG9hZA</UploadId>" +
+                "<Owner><ID>ID12345</ID><DisplayName>Foo Bar</DisplayName></Owner>" +
+                "<StorageClass>STANDARD</StorageClass>" +
+                "<Initiated>2010-11-10T20:48:33Z</Initiated>" +
+                "</Upload>" +
+                "</ListMultipartUploadsResult>";
+
+        final List<Upload> uploads = new ArrayList<Upload>();
+        ListMultipartUploadsResult result = parser.parseListMultipartUploads(stream(xml), new ListingHandler<Upload>() {
+            @Override
+            public void handle(Upload entry) {
+                uploads.add(entry);
+            }
+        });
+
+        Assert.assertEquals("bucket", result.getBucketName());
+        Assert.assertEquals("", result.getKeyMarker());
+        Assert.assertEquals("my-movie.m2ts", result.getNextKeyMarker());
+        Assert.assertEquals("YW55IGlkZWEgd2h5IGVsdmluZydzIHVwbG9hZCBmYWlsZWQ", result.getNextUploadIdMarker());
+        Assert.assertEquals(3, result.getMaxUploads().intValue());
+        Assert.assertTrue(result.isTruncated());
+        Assert.assertEquals(0, result.getUploads().size());
+        Assert.assertEquals(2, uploads.size());
+
+        Upload upload = uploads.get(0);
+        Assert.assertEquals("my-divisor", upload.getKey());
+        Assert.assertEquals("XMgbGlrZSBlbHZpbmcncyBub3QgaGF2aW5nIG11Y2ggbHVjaw", upload.getUploadId());
+        Assert.assertEquals(new CanonicalUser("arn:aws:iam::111122223333:user/user1", "user1"), upload.getInitiator());
+        Assert.assertEquals(new CanonicalUser("ID12345", "Foo Bar"), upload.getOwner());
+        Assert.assertEquals(StorageClass.STANDARD, upload.getStorageClass());
+        Assert.assertEquals(1289422113000L, upload.getInitiated().getTime());
+        Assert.assertEquals(upload.getInitiated(), uploads.get(1).getInitiated());
+    }
+
+    @Test
+    public void testQueryObjects() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" +
+                "<BucketQueryResult>" +
+                "<Name>bucket</Name>" +
+                "<NextMarker>NO MORE PAGES</NextMarker>" +
+                "<MaxKeys>1000</MaxKeys>" +
+                "<ObjectMatches>" +
+                "<object>" +
+                "<objectName>object1</objectName>" +
+                "<objectId>5c5e56696ee4413109b37a4e3e602032c3642378e410b90c4f19e4b08fb1ec16</objectId>" +
+                "<versionId>0</versionId>" +
+                "<queryMds><type>SYSMD</type>" +
+                "<mdMap>" +
+                "<entry><key>ctype</key><value>application/octet-stream</value></entry>" +
+                "<entry><key>size</key><value>0</value></entry>" +
+                "</mdMap>" +
+                "</queryMds>" +
+                "<queryMds><type>USERMD</type>" +
+                "<mdMap>" +
+                "<entry><key>x-amz-meta-string1</key><value>test</value></entry>" +
+                "</mdMap>" +
+                "</queryMds>" +
+                "</object>" +
+                "<object>" +
+                "<objectName>object2</objectName>" +
+                "<objectId>6d5e56696ee4413109b37a4e3e602032c3642378e410b90c4f19e4b08fb1ec16</objectId>" +
+                "<versionId>0</versionId>" +
+                "</object>" +
+                "</ObjectMatches>" +
+                "</BucketQueryResult>";
+
+        QueryObjectsResult expected = (QueryObjectsResult) JAXBContext.newInstance(QueryObjectsResult.class)
+                .createUnmarshaller().unmarshal(new StringReader(xml));
+        QueryObjectsResult result = parser.parseQueryObjects(stream(xml), null);
+
+        Assert.assertEquals(expected.getBucketName(), result.getBucketName());
+        Assert.assertEquals(expected.getNextMarker(), result.getNextMarker());
+        Assert.assertEquals(expected.getMaxKeys(), result.getMaxKeys());
+        Assert.assertFalse(result.isTruncated());
+        Assert.assertEquals(expected.getObjects(), result.getObjects());
+        Assert.assertEquals(2, result.getObjects().size());
+        Assert.assertEquals("test", result.getObjects().get(0).getQueryMds().get(1).getMdMap().get("x-amz-meta-string1"));
+    }
+
+    private InputStream stream(String xml) throws Exception {
+        return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+    }
+}
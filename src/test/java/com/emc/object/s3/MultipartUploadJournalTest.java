@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.MultipartPartETag;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class MultipartUploadJournalTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("mpu-journal-test", null);
+        file.deleteOnExit();
+
+        String key = "foo/bar baz=%&é";
+        MultipartUploadJournal journal = new MultipartUploadJournal(file, "my-bucket", key, "upload-1", 1000L, 100L);
+        journal.partCompleted(new MultipartPartETag(2, "\"etag-2\""));
+        journal.partCompleted(new MultipartPartETag(1, "etag-1"));
+
+        MultipartUploadJournal read = MultipartUploadJournal.read(file);
+        Assert.assertNotNull(read);
+        Assert.assertEquals("my-bucket", read.getBucket());
+        Assert.assertEquals(key, read.getKey());
+        Assert.assertEquals("upload-1", read.getUploadId());
+        Assert.assertEquals(1000L, read.getObjectSize());
+        Assert.assertEquals(100L, read.getPartSize());
+        Assert.assertEquals(2, read.getParts().size());
+        Assert.assertEquals("etag-1", read.getParts().get(1));
+        Assert.assertEquals("\"etag-2\"", read.getParts().get(2));
+        Assert.assertTrue(read.matches("my-bucket", key, 1000L));
+        Assert.assertFalse(read.matches("my-bucket", key, 1001L));
+
+        read.delete();
+        Assert.assertFalse(file.exists());
+        Assert.assertNull(MultipartUploadJournal.read(file));
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        File file = File.createTempFile("mpu-journal-test", null);
+        file.deleteOnExit();
+
+        MultipartUploadJournal journal = new MultipartUploadJournal(file, "my-bucket", "key", "upload-1", 1000L, 100L);
+        journal.partCompleted(new MultipartPartETag(1, "etag-1"));
+
+        // simulate a crash in the middle of writing a part
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("par".getBytes("UTF-8"));
+        out.close();
+
+        MultipartUploadJournal read = MultipartUploadJournal.read(file);
+        Assert.assertNotNull(read);
+        Assert.assertEquals(1, read.getParts().size());
+    }
+
+    @Test
+    public void testSetParts() throws Exception {
+        File file = File.createTempFile("mpu-journal-test", null);
+        file.deleteOnExit();
+
+        MultipartUploadJournal journal = new MultipartUploadJournal(file, "my-bucket", "key", "upload-1", 1000L, 100L);
+        journal.partCompleted(new MultipartPartETag(1, "etag-1"));
+        journal.partCompleted(new MultipartPartETag(2, "etag-2"));
+
+        SortedMap<Integer, String> parts = new TreeMap<Integer, String>();
+        parts.put(1, "etag-1");
+        parts.put(3, "etag-3");
+        journal.setParts(parts);
+        journal.setParts(parts);
+        Assert.assertEquals(parts, journal.getParts());
+
+        // the journal is rewritten (not appended to)
+        int partLines = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("part=")) partLines++;
+        }
+        reader.close();
+        Assert.assertEquals(2, partLines);
+
+        MultipartUploadJournal read = MultipartUploadJournal.read(file);
+        Assert.assertNotNull(read);
+        Assert.assertEquals("upload-1", read.getUploadId());
+        Assert.assertEquals(parts, read.getParts());
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        File file = File.createTempFile("mpu-journal-test", null);
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("bucket=my-bucket\nkey=foo\n".getBytes("UTF-8"));
+        out.close();
+
+        Assert.assertNull(MultipartUploadJournal.read(file));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.request.CopyPartRequest;
+import com.emc.object.s3.request.GetObjectRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+public class ObjectAssemblerTest {
+    private static final long MIN = 100;
+
+    private List<File> tempFiles = new ArrayList<File>();
+    private StubS3Client client;
+    private ByteArrayOutputStream expected;
+
+    @Before
+    public void setup() {
+        client = new StubS3Client();
+        expected = new ByteArrayOutputStream();
+    }
+
+    @After
+    public void cleanup() {
+        for (File file : tempFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLargeSourcesOnly() throws Exception {
+        ObjectAssembler assembler = assembler().addFile(file(600)).addObject("src", object(1000));
+        List<ObjectAssembler.Part> parts = plan(assembler);
+
+        // the file is split into 2 uploaded parts, the object into 4 copied parts
+        Assert.assertEquals(6, parts.size());
+        Assert.assertFalse(parts.get(1).copy);
+        Assert.assertTrue(parts.get(2).copy);
+
+        assemble(assembler);
+        Assert.assertEquals(0, client.getBytesRead());
+    }
+
+    @Test
+    public void testSmallSourcesAreMerged() throws Exception {
+        ObjectAssembler assembler = assembler();
+        for (int i = 0; i < 10; i++) {
+            if (i % 2 == 0) assembler.addFile(file(30));
+            else assembler.addObject("src", object(30));
+        }
+        List<ObjectAssembler.Part> parts = plan(assembler);
+
+        // 300 bytes merged into parts of at least partSize (250)
+        Assert.assertEquals(2, parts.size());
+        Assert.assertEquals(270, parts.get(0).size);
+        Assert.assertEquals(30, parts.get(1).size);
+        assertPartSizes(parts);
+
+        assemble(assembler);
+        Assert.assertEquals(150, client.getBytesRead());
+    }
+
+    @Test
+    public void testSmallSourceBorrowsFromLargeObject() throws Exception {
+        ObjectAssembler assembler = assembler().addFile(file(40)).addObject("src", object(500)).addFile(file(10));
+        List<ObjectAssembler.Part> parts = plan(assembler);
+
+        // the first part takes 60 bytes of the object; the rest is copied
+        Assert.assertEquals(100, parts.get(0).size);
+        Assert.assertFalse(parts.get(0).copy);
+        Assert.assertTrue(parts.get(1).copy);
+        Assert.assertEquals(440, parts.get(1).size);
+        assertPartSizes(parts);
+
+        assemble(assembler);
+        Assert.assertEquals(60, client.getBytesRead());
+    }
+
+    @Test
+    public void testTinyLastSources() throws Exception {
+        ObjectAssembler assembler = assembler().addObject("src", object(300)).addObject("src", object(5))
+                .addFile(file(0)).addFile(file(7));
+        List<ObjectAssembler.Part> parts = plan(assembler);
+        Assert.assertEquals(12, parts.get(parts.size() - 1).size);
+        assertPartSizes(parts);
+
+        assemble(assembler);
+    }
+
+    @Test
+    public void testAbortOnFailure() throws Exception {
+        client.fail("copyPart", "target", Integer.MAX_VALUE, 500);
+        ObjectAssembler assembler = assembler().addObject("src", object(300)).withPartRetries(0);
+        try {
+            assembler.assemble();
+            Assert.fail("assembly should fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(1, client.getAbortedUploads().size());
+        Assert.assertNull(client.get("bucket", "target"));
+    }
+
+    @Test
+    public void testChangedSourceIsNotRetried() throws Exception {
+        client = new StubS3Client() {
+            @Override
+            protected void beforeCall(String method, Object[] args) {
+                // the source is overwritten between planning and reading
+                if (method.equals("getObject")) put("src", ((GetObjectRequest) args[0]).getKey(), data(30));
+            }
+        };
+        ObjectAssembler assembler = assembler().addFile(file(30)).addObject("src", object(30)).withPartRetries(3);
+        try {
+            assembler.assemble();
+            Assert.fail("assembly should fail");
+        } catch (RuntimeException e) {
+            Throwable t = e;
+            while (t != null && !(t instanceof S3Exception)) t = t.getCause();
+            Assert.assertNotNull("no S3Exception in " + e, t);
+            Assert.assertEquals(412, ((S3Exception) t).getHttpCode());
+        }
+        Assert.assertEquals(1, client.count("getObject"));
+        Assert.assertEquals(1, client.getAbortedUploads().size());
+    }
+
+    private ObjectAssembler assembler() {
+        return new ObjectAssembler(client.proxy(), "bucket", "target").withMinPartSize(MIN).withPartSize(250)
+                .withThreads(4).withPartRetryDelay(1);
+    }
+
+    private List<ObjectAssembler.Part> plan(ObjectAssembler assembler) throws Exception {
+        assembler.setExecutorService(java.util.concurrent.Executors.newSingleThreadExecutor());
+        try {
+            assembler.readSourceSizes();
+        } finally {
+            assembler.getExecutorService().shutdown();
+            assembler.setExecutorService(null);
+        }
+        return assembler.planParts();
+    }
+
+    private void assertPartSizes(List<ObjectAssembler.Part> parts) {
+        for (int i = 0; i < parts.size() - 1; i++) {
+            Assert.assertTrue("part " + (i + 1) + " is too small", parts.get(i).size >= MIN);
+        }
+    }
+
+    private void assemble(ObjectAssembler assembler) {
+        assembler.assemble();
+        Assert.assertArrayEquals(expected.toByteArray(), client.get("bucket", "target").data);
+        // sources are pinned to the version that was planned
+        for (GetObjectRequest request : client.requests("getObject", GetObjectRequest.class)) {
+            Assert.assertNotNull(request.getIfMatch());
+        }
+        for (CopyPartRequest request : client.requests("copyPart", CopyPartRequest.class)) {
+            Assert.assertNotNull(request.getIfSourceMatch());
+        }
+        Assert.assertEquals(expected.size(), assembler.getFullSize());
+        Assert.assertEquals(expected.size(), assembler.getBytesCopied() + assembler.getBytesUploaded());
+    }
+
+    private File file(int size) throws IOException {
+        byte[] data = data(size);
+        File file = File.createTempFile("assembler-test", null);
+        tempFiles.add(file);
+        OutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        expected.write(data);
+        return file;
+    }
+
+    private String object(int size) throws IOException {
+        byte[] data = data(size);
+        String key = "object-" + client.bucket("src").size();
+        client.put("src", key, data);
+        expected.write(data);
+        return key;
+    }
+
+    private byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PagedIterableTest {
+    @Test
+    public void testAllItems() {
+        for (int prefetch = 0; prefetch < 4; prefetch++) {
+            TestPages pages = new TestPages(7, 5, -1);
+            pages.setPrefetchPages(prefetch);
+            List<Integer> items = new ArrayList<Integer>();
+            for (Integer item : pages) {
+                items.add(item);
+            }
+            Assert.assertEquals(35, items.size());
+            for (int i = 0; i < items.size(); i++) {
+                Assert.assertEquals(i, items.get(i).intValue());
+            }
+            Assert.assertEquals(7, pages.fetched.get());
+
+            // each iterator starts over
+            Assert.assertEquals(0, pages.iterator().next().intValue());
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        TestPages pages = new TestPages(1, 0, -1);
+        Assert.assertFalse(pages.iterator().hasNext());
+    }
+
+    @Test
+    public void testPrefetchIsBounded() throws Exception {
+        TestPages pages = new TestPages(100, 10, -1);
+        pages.setPrefetchPages(3);
+        Iterator<Integer> iterator = pages.iterator();
+        iterator.next(); // first page is being consumed
+        Thread.sleep(200);
+        Assert.assertEquals(4, pages.fetched.get());
+
+        for (int i = 1; i < 10; i++) iterator.next(); // end of first page
+        iterator.next(); // second page is being consumed
+        Thread.sleep(200);
+        Assert.assertEquals(5, pages.fetched.get());
+    }
+
+    @Test
+    public void testPrefetchOverlapsConsumer() throws Exception {
+        final int pageCount = 10, pageDelay = 50;
+        TestPages pages = new TestPages(pageCount, 1, -1);
+        pages.delay = pageDelay;
+        pages.setPrefetchPages(2);
+
+        long start = System.currentTimeMillis();
+        for (Integer ignored : pages) {
+            Thread.sleep(pageDelay); // processing takes as long as fetching
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        // serially this would take 2 * pageCount * pageDelay
+        Assert.assertTrue("took " + duration + "ms", duration < pageCount * pageDelay * 3 / 2);
+    }
+
+    @Test
+    public void testError() {
+        for (int prefetch = 0; prefetch < 3; prefetch++) {
+            TestPages pages = new TestPages(5, 3, 2);
+            pages.setPrefetchPages(prefetch);
+            int count = 0;
+            try {
+                for (Integer ignored : pages) {
+                    count++;
+                }
+                Assert.fail("error not thrown");
+            } catch (S3Exception e) {
+                Assert.assertEquals(500, e.getHttpCode());
+            }
+            // items before the failed page are returned
+            Assert.assertEquals(6, count);
+        }
+    }
+
+    static class TestPages extends PagedIterable<Integer, Integer> {
+        int pageCount, pageSize, failPage;
+        long delay;
+        AtomicInteger fetched = new AtomicInteger();
+
+        TestPages(int pageCount, int pageSize, int failPage) {
+            super(null);
+            this.pageCount = pageCount;
+            this.pageSize = pageSize;
+            this.failPage = failPage;
+        }
+
+        @Override
+        protected Integer firstPage() {
+            return fetch(0);
+        }
+
+        @Override
+        protected Integer nextPage(Integer lastPage) {
+            return fetch(lastPage + 1);
+        }
+
+        private Integer fetch(int page) {
+            if (page == failPage) throw new S3Exception("internal error", 500);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            fetched.incrementAndGet();
+            return page;
+        }
+
+        @Override
+        protected boolean isTruncated(Integer page) {
+            return page < pageCount - 1;
+        }
+
+        @Override
+        protected List<Integer> getItems(Integer page) {
+            List<Integer> items = new ArrayList<Integer>();
+            for (int i = 0; i < pageSize; i++) {
+                items.add(page * pageSize + i);
+            }
+            return items;
+        }
+    }
+}
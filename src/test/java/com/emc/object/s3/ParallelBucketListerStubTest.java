@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.S3Object;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lister tests that run against {@link StubS3Client} (no S3 endpoint needed)
+ */
+public class ParallelBucketListerStubTest {
+    @Test
+    public void testCloseWithFullQueue() throws Exception {
+        StubS3Client client = new StubS3Client();
+        for (int i = 0; i < 1000; i++) {
+            client.put("bucket", String.format("key-%04d", i), new byte[0]);
+        }
+
+        // both partitions fill the queue long before the listing is done
+        ParallelBucketLister lister = new ParallelBucketLister(client.proxy(), "bucket")
+                .withThreads(2).withMaxKeys(10).withQueueSize(1).withSplitPoints(Arrays.asList("key-0500"));
+        Iterator<S3Object> objects = lister.iterator();
+        Assert.assertTrue(objects.hasNext());
+        objects.next();
+        Thread.sleep(100);
+        lister.close();
+
+        Assert.assertTrue("listing threads did not stop", lister.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(client.count("listMoreObjects") < 100);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.S3Object;
+import com.emc.object.s3.jersey.S3JerseyClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelBucketListerTest extends AbstractS3ClientTest {
+    @Override
+    protected String getTestBucketPrefix() {
+        return "pbl-test";
+    }
+
+    @Override
+    protected S3Client createS3Client() throws Exception {
+        return new S3JerseyClient(createS3Config());
+    }
+
+    @Test
+    public void testKeyOrder() {
+        // supplementary characters sort after BMP characters in UTF-8 (but not in UTF-16)
+        String supplementary = new String(Character.toChars(0x1F600));
+        Assert.assertTrue(ParallelBucketLister.KEY_ORDER.compare("～", supplementary) < 0);
+        Assert.assertTrue("～".compareTo(supplementary) > 0);
+        Assert.assertTrue(ParallelBucketLister.KEY_ORDER.compare("a", "ab") < 0);
+        Assert.assertTrue(ParallelBucketLister.KEY_ORDER.compare("ab", "a") > 0);
+        Assert.assertEquals(0, ParallelBucketLister.KEY_ORDER.compare("ab", "ab"));
+
+        Assert.assertEquals(Arrays.asList("a/", "b", "c/"),
+                ParallelBucketLister.sortSplitPoints(Arrays.asList("c/", "a/", "b", "a/")));
+    }
+
+    @Test
+    public void testDiscoveredPartitions() throws Exception {
+        List<String> keys = createKeys();
+
+        ParallelBucketLister lister = new ParallelBucketLister(client, getTestBucket())
+                .withThreads(4).withMaxKeys(7).withQueueSize(10);
+        Assert.assertEquals(keys, sortedKeys(lister));
+        // 3 top-level prefixes + 9 second-level prefixes = 10 partitions
+        Assert.assertEquals(10, lister.getPartitionCount());
+        Assert.assertEquals(keys.size(), lister.getObjectCount());
+    }
+
+    @Test
+    public void testOrdered() throws Exception {
+        List<String> keys = createKeys();
+
+        ParallelBucketLister lister = new ParallelBucketLister(client, getTestBucket())
+                .withThreads(3).withMaxKeys(5).withQueueSize(4).withOrdered(true);
+        List<String> listed = new ArrayList<String>();
+        for (S3Object object : lister) {
+            listed.add(object.getKey());
+        }
+        Assert.assertEquals(keys, listed);
+    }
+
+    @Test
+    public void testSplitPointsAndPrefix() throws Exception {
+        List<String> keys = createKeys();
+
+        // split points don't have to be actual keys or prefixes
+        ParallelBucketLister lister = new ParallelBucketLister(client, getTestBucket())
+                .withSplitPoints(Arrays.asList("b/1/file-3", "a", "b/2/zzz", "b/1/file-3")).withPrefix("b/")
+                .withMaxKeys(3).withOrdered(true);
+        List<String> listed = new ArrayList<String>();
+        for (S3Object object : lister) {
+            listed.add(object.getKey());
+        }
+        List<String> expected = new ArrayList<String>();
+        for (String key : keys) {
+            if (key.startsWith("b/")) expected.add(key);
+        }
+        Assert.assertEquals(expected, listed);
+        Assert.assertEquals(4, lister.getPartitionCount());
+    }
+
+    @Test
+    public void testStartAfter() throws Exception {
+        List<String> keys = createKeys();
+
+        ParallelBucketLister lister = new ParallelBucketLister(client, getTestBucket())
+                .withStartAfter("b/1/file-2").withMaxKeys(4).withOrdered(true);
+        List<String> listed = new ArrayList<String>();
+        for (S3Object object : lister) {
+            listed.add(object.getKey());
+        }
+        Assert.assertEquals(keys.subList(keys.indexOf("b/1/file-2") + 1, keys.size()), listed);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        createKeys();
+
+        ParallelBucketLister lister = new ParallelBucketLister(client, getTestBucket())
+                .withThreads(2).withMaxKeys(2).withQueueSize(1);
+        Iterator<S3Object> objects = lister.iterator();
+        Assert.assertTrue(objects.hasNext());
+        objects.next();
+        lister.close();
+        Assert.assertTrue("listing threads did not stop", lister.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private List<String> createKeys() {
+        List<String> keys = new ArrayList<String>();
+        for (String top : new String[]{"a", "b", "c"}) {
+            for (int sub = 0; sub < 3; sub++) {
+                for (int i = 0; i < 5; i++) {
+                    keys.add(top + "/" + sub + "/file-" + i);
+                }
+            }
+        }
+        keys.add("root-file");
+        for (String key : keys) {
+            client.putObject(getTestBucket(), key, new byte[0], null);
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private List<String> sortedKeys(ParallelBucketLister lister) {
+        List<String> listed = new ArrayList<String>();
+        for (S3Object object : lister) {
+            listed.add(object.getKey());
+        }
+        Collections.sort(listed);
+        return listed;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.request.GetObjectRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Stream tests that run against {@link StubS3Client} (no S3 endpoint needed)
+ */
+public class ParallelObjectInputStreamStubTest {
+    private static final int PART_SIZE = 1000;
+
+    @Test
+    public void testReadAfterFailure() throws Exception {
+        // the second range fails once
+        StubS3Client client = new StubS3Client() {
+            private boolean failed;
+
+            @Override
+            protected void beforeCall(String method, Object[] args) {
+                if (method.equals("getObject") && ((GetObjectRequest) args[0]).getRange().getFirst() == PART_SIZE
+                        && !failed) {
+                    failed = true;
+                    throw new S3Exception("injected failure", 500);
+                }
+            }
+        };
+        client.put("bucket", "key", new byte[5 * PART_SIZE]);
+
+        ParallelObjectInputStream stream = new ParallelObjectInputStream(client.proxy(), "bucket", "key")
+                .withThreads(2).withPartSize(PART_SIZE);
+        byte[] buffer = new byte[PART_SIZE];
+        try {
+            Assert.assertEquals(PART_SIZE, stream.read(buffer));
+            IOException failure = null;
+            try {
+                stream.read(buffer);
+                Assert.fail("failed range should throw");
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            // the stream does not skip past the failed range
+            for (int i = 0; i < 3; i++) {
+                try {
+                    stream.read(buffer);
+                    Assert.fail("read after a failure should throw");
+                } catch (IOException e) {
+                    Assert.assertSame(failure, e);
+                }
+            }
+            try {
+                stream.read();
+                Assert.fail("read after a failure should throw");
+            } catch (IOException e) {
+                Assert.assertSame(failure, e);
+            }
+            Assert.assertEquals(PART_SIZE, stream.getPosition());
+        } finally {
+            stream.close();
+        }
+    }
+}
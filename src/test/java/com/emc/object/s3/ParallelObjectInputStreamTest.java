@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.jersey.S3JerseyClient;
+import com.emc.util.RandomInputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ParallelObjectInputStreamTest extends AbstractS3ClientTest {
+    static final int OBJECT_SIZE = 5 * 1024 * 1024 + 123; // not a multiple of the part size
+
+    byte[] data;
+    String key = "parallel-stream-test";
+
+    @Override
+    protected String getTestBucketPrefix() {
+        return "pois-test";
+    }
+
+    @Override
+    protected S3Client createS3Client() throws Exception {
+        return new S3JerseyClient(createS3Config());
+    }
+
+    @Before
+    public void createObject() throws Exception {
+        data = new byte[OBJECT_SIZE];
+        new RandomInputStream(OBJECT_SIZE).read(data);
+        client.putObject(getTestBucket(), key, data, null);
+    }
+
+    @Test
+    public void testReadInOrder() throws Exception {
+        ParallelObjectInputStream in = new ParallelObjectInputStream(client, getTestBucket(), key)
+                .withPartSize(512 * 1024).withThreads(4);
+        Assert.assertEquals(OBJECT_SIZE, in.getObjectSize());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100 * 1024 + 7];
+        try {
+            // mix single-byte and buffered reads
+            out.write(in.read());
+            for (int r = in.read(buffer); r != -1; r = in.read(buffer)) {
+                out.write(buffer, 0, r);
+            }
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+
+        Assert.assertEquals(OBJECT_SIZE, in.getPosition());
+        Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void testKnownSize() throws Exception {
+        ParallelObjectInputStream in = new ParallelObjectInputStream(client, getTestBucket(), key, OBJECT_SIZE)
+                .withPartSize(OBJECT_SIZE).withThreads(2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            for (int r = in.read(buffer); r != -1; r = in.read(buffer)) {
+                out.write(buffer, 0, r);
+            }
+        } finally {
+            in.close();
+        }
+        Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void testObjectChanged() throws Exception {
+        ParallelObjectInputStream in = new ParallelObjectInputStream(client, getTestBucket(), key)
+                .withPartSize(512 * 1024).withThreads(1);
+        try {
+            Assert.assertTrue(in.read() >= 0);
+
+            // overwrite the object while it is being read
+            client.putObject(getTestBucket(), key, "changed", null);
+
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) ;
+            Assert.fail("read of changed object should fail");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.bean.MetadataSearchDatatype;
+import com.emc.object.s3.bean.QueryObject;
+import com.emc.object.s3.bean.QueryObjectsResult;
+import com.emc.object.s3.request.QueryObjectsRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelQueryExecutorTest {
+    @Test
+    public void testSplitRange() {
+        Assert.assertEquals(Arrays.asList(25L, 50L, 75L), ParallelQueryExecutor.splitRange(0L, 100L, 4));
+        Assert.assertEquals(0, ParallelQueryExecutor.splitRange(0L, 100L, 1).size());
+
+        List<Date> dates = ParallelQueryExecutor.splitRange(new Date(0), new Date(3000), 3);
+        Assert.assertEquals(Arrays.asList(new Date(1000), new Date(2000)), dates);
+
+        List<BigDecimal> decimals = ParallelQueryExecutor.splitRange(BigDecimal.ZERO, BigDecimal.ONE, 4);
+        Assert.assertEquals(Arrays.asList(new BigDecimal("0.25"), new BigDecimal("0.5"), new BigDecimal("0.75")),
+                decimals);
+    }
+
+    @Test
+    public void testIntegerSplitPoints() {
+        ParallelQueryExecutor executor = executor("Size", MetadataSearchDatatype.integer)
+                .withSplitPoints(Arrays.asList(200, 100L, new BigDecimal("100.5"), "300"));
+        // sorted, truncated and de-duplicated
+        Assert.assertEquals(Arrays.asList("100", "200", "300"), executor.formatSplitPoints());
+    }
+
+    @Test
+    public void testDatetimeSplitPoints() {
+        ParallelQueryExecutor executor = executor("LastModified", MetadataSearchDatatype.datetime)
+                .withSplitPoints(Arrays.asList(new Date(1000), new Date(0)));
+        Assert.assertEquals(Arrays.asList("1970-01-01T00:00:00Z", "1970-01-01T00:00:01Z"),
+                executor.formatSplitPoints());
+    }
+
+    @Test
+    public void testStringSplitPoints() {
+        ParallelQueryExecutor executor = executor("x-amz-meta-name", MetadataSearchDatatype.string)
+                .withSplitPoints(Arrays.asList("m", "d"));
+        Assert.assertEquals(Arrays.asList("'d'", "'m'"), executor.formatSplitPoints());
+
+        try {
+            executor.withSplitPoints(Arrays.asList("it's")).formatSplitPoints();
+            Assert.fail("quote in split point should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedSplitPoint() {
+        executor("Size", MetadataSearchDatatype.integer).withSplitPoints(Arrays.asList(new Date())).formatSplitPoints();
+    }
+
+    @Test
+    public void testPartitionQueries() {
+        ParallelQueryExecutor executor = executor("Size", MetadataSearchDatatype.integer);
+        List<ParallelQueryExecutor.Partition> partitions = executor.createPartitions(Arrays.asList("100", "200"));
+        Assert.assertEquals(3, partitions.size());
+        Assert.assertEquals("(x-amz-meta-a>1) and (Size<100)",
+                executor.buildQuery(partitions.get(0).getLower(), partitions.get(0).getUpper()));
+        Assert.assertEquals("(x-amz-meta-a>1) and (Size>=100) and (Size<200)",
+                executor.buildQuery(partitions.get(1).getLower(), partitions.get(1).getUpper()));
+        Assert.assertEquals("(x-amz-meta-a>1) and (Size>=200)",
+                executor.buildQuery(partitions.get(2).getLower(), partitions.get(2).getUpper()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOrderedRequiresSplitKeySort() {
+        QueryObjectsRequest request = new QueryObjectsRequest("bucket").withQuery("Size>0").withSorted("LastModified");
+        new ParallelQueryExecutor(null, request, "Size").withDatatype(MetadataSearchDatatype.integer)
+                .withOrdered(true).iterator();
+    }
+
+    @Test
+    public void testOrderedPagesAreBufferedAndCloseStops() throws Exception {
+        QueryClient client = new QueryClient();
+        QueryObjectsRequest request = new QueryObjectsRequest("bucket").withQuery("Size>0").withMaxKeys(100);
+        ParallelQueryExecutor executor = new ParallelQueryExecutor(client.proxy(), request, "Size")
+                .withDatatype(MetadataSearchDatatype.integer).withSplitPoints(Arrays.asList(100))
+                .withThreads(2).withQueueSize(1).withOrdered(true);
+        Iterator<QueryObject> results = executor.iterator();
+        Assert.assertEquals("0", results.next().getObjectName());
+        Thread.sleep(300);
+
+        // both partitions are blocked on their full queues, but not in the middle of a response
+        Assert.assertTrue(client.calls.get() >= 2);
+        Assert.assertEquals(0, client.inFlight.get());
+
+        executor.close();
+        Assert.assertTrue("query threads did not stop", executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertFalse(results.hasNext());
+    }
+
+    private ParallelQueryExecutor executor(String splitKey, MetadataSearchDatatype datatype) {
+        QueryObjectsRequest request = new QueryObjectsRequest("bucket").withQuery("x-amz-meta-a>1");
+        return new ParallelQueryExecutor(null, request, splitKey).withDatatype(datatype);
+    }
+
+    /**
+     * Returns endless pages of results (numbered objects) and counts queries that are still being handled
+     */
+    private static class QueryClient extends StubS3Client {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("queryObjects") || args.length != 2) return super.invoke(proxy, method, args);
+            QueryObjectsRequest request = (QueryObjectsRequest) args[0];
+            ListingHandler<QueryObject> handler = (ListingHandler<QueryObject>) args[1];
+            calls.incrementAndGet();
+            inFlight.incrementAndGet();
+            try {
+                int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+                for (int i = start; i < start + request.getMaxKeys(); i++) {
+                    QueryObject object = new QueryObject();
+                    object.setObjectName("" + i);
+                    handler.handle(object);
+                }
+                QueryObjectsResult result = new QueryObjectsResult();
+                result.setNextMarker("" + (start + request.getMaxKeys()));
+                return result;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class PartitionedQueueTest {
+    @Test
+    public void testOrdered() {
+        PartitionedQueue<Integer> queue = queue(true, 10, 5000, 5000).start();
+        List<Integer> results = new ArrayList<Integer>();
+        while (queue.hasNext()) {
+            results.add(queue.next());
+        }
+        Assert.assertEquals(50000, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(i, results.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testUnordered() {
+        PartitionedQueue<Integer> queue = queue(false, 10, 5000, 5000).start();
+        Set<Integer> results = new HashSet<Integer>();
+        while (queue.hasNext()) {
+            Assert.assertTrue(results.add(queue.next()));
+        }
+        Assert.assertEquals(50000, results.size());
+    }
+
+    @Test
+    public void testError() {
+        PartitionedQueue<Integer> queue = queue(false, 4, 100, 50).start();
+        try {
+            while (queue.hasNext()) {
+                queue.next();
+            }
+            Assert.fail("partition error should be thrown");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().startsWith("error testing partition"));
+            Assert.assertEquals("failed at 50", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseWithFullQueues() throws Exception {
+        for (boolean ordered : new boolean[]{false, true}) {
+            PartitionedQueue<Integer> queue = queue(ordered, 4, 1000000, -1).start();
+            Assert.assertTrue(queue.hasNext());
+            queue.next();
+            Thread.sleep(100);
+            queue.close();
+            Assert.assertTrue("partition threads did not stop", queue.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertFalse(queue.hasNext());
+        }
+    }
+
+    /**
+     * Each partition produces <code>size</code> consecutive numbers (failing at <code>failAt</code>, if not negative)
+     */
+    private PartitionedQueue<Integer> queue(boolean ordered, int partitionCount, final int size, final int failAt) {
+        List<PartitionedQueue.Partition<Integer>> partitions = new ArrayList<PartitionedQueue.Partition<Integer>>();
+        for (int p = 0; p < partitionCount; p++) {
+            final int start = p * size;
+            partitions.add(new PartitionedQueue.Partition<Integer>() {
+                @Override
+                protected void produce() throws Exception {
+                    for (int i = 0; i < size && !isClosed(); i++) {
+                        if (i == failAt) throw new IllegalStateException("failed at " + i);
+                        put(start + i);
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return "" + start;
+                }
+            });
+        }
+        return new PartitionedQueue<Integer>("testing", partitions, 4, 100, ordered);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class RetryingTaskTest {
+    @Test
+    public void testRetryUntilSuccess() throws Exception {
+        FailingTask task = new FailingTask(3, 2, new S3Exception("Internal Error", 500));
+        Assert.assertEquals("done", task.call());
+        Assert.assertEquals(3, task.attempts);
+        Assert.assertEquals(2, task.failures);
+    }
+
+    @Test
+    public void testRetriesExhausted() {
+        FailingTask task = new FailingTask(2, 100, new IOException("connection reset"));
+        try {
+            task.call();
+            Assert.fail("task should fail");
+        } catch (Exception e) {
+            Assert.assertTrue(e instanceof IOException);
+        }
+        Assert.assertEquals(3, task.attempts);
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        FailingTask task = new FailingTask(5, 100, new RuntimeException(new S3Exception("Precondition Failed", 412)));
+        try {
+            task.call();
+            Assert.fail("task should fail");
+        } catch (Exception e) {
+            Assert.assertEquals(412, ((S3Exception) e.getCause()).getHttpCode());
+        }
+        Assert.assertEquals(1, task.attempts);
+        Assert.assertEquals(1, task.failures);
+    }
+
+    @Test
+    public void testRetryableErrors() {
+        Assert.assertTrue(RetryingTask.isRetryableError(new S3Exception("Service Unavailable", 503)));
+        Assert.assertFalse(RetryingTask.isRetryableError(new S3Exception("Not Implemented", 501)));
+        Assert.assertFalse(RetryingTask.isRetryableError(new S3Exception("Not Found", 404)));
+        Assert.assertFalse(RetryingTask.isRetryableError(new RuntimeException(new InterruptedException())));
+        Assert.assertTrue(RetryingTask.isRetryableError(new IOException()));
+    }
+
+    /**
+     * Fails with <code>error</code> for the first <code>failCount</code> attempts
+     */
+    private static class FailingTask extends RetryingTask<String> {
+        final int failCount;
+        final Exception error;
+        int attempts, failures;
+
+        FailingTask(int maxRetries, int failCount, Exception error) {
+            super(maxRetries, 1);
+            this.failCount = failCount;
+            this.error = error;
+        }
+
+        @Override
+        protected String attempt() throws Exception {
+            if (attempts++ < failCount) throw error;
+            return "done";
+        }
+
+        @Override
+        protected void attemptFailed(Exception e) {
+            failures++;
+        }
+    }
+}
@@ -26,9 +26,12 @@
  */
 package com.emc.object.s3;
 
+import com.emc.object.util.RestUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.*;
+
 public class S3ObjectMetadataTest {
     @Test
     public void testCaseInsensitivity() {
@@ -50,4 +53,29 @@ public class S3ObjectMetadataTest {
         Assert.assertEquals("EIGHT", metadata.getUserMetadata("Five"));
         Assert.assertEquals("EIGHT", metadata.getUserMetadata("fIve"));
     }
+
+    @Test
+    public void testFieldProjection() {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put(RestUtil.HEADER_CONTENT_LENGTH, Collections.singletonList("1234"));
+        headers.put(RestUtil.HEADER_CONTENT_TYPE, Collections.singletonList("text/plain"));
+        headers.put(RestUtil.HEADER_ETAG, Collections.singletonList("\"abc\""));
+        headers.put(RestUtil.EMC_MTIME, Collections.singletonList("1000"));
+        headers.put(S3Constants.AMZ_META_PREFIX + "foo", Collections.singletonList("bar"));
+
+        S3ObjectMetadata all = S3ObjectMetadata.fromHeaders(headers);
+        Assert.assertEquals(Long.valueOf(1234), all.getContentLength());
+        Assert.assertEquals("text/plain", all.getContentType());
+        Assert.assertEquals("abc", all.getETag());
+        Assert.assertEquals(new Date(1000), all.getLastModified());
+        Assert.assertEquals("bar", all.getUserMetadata("foo"));
+
+        S3ObjectMetadata some = S3ObjectMetadata.fromHeaders(headers,
+                EnumSet.of(S3ObjectMetadata.Field.ETag, S3ObjectMetadata.Field.ContentLength));
+        Assert.assertEquals(Long.valueOf(1234), some.getContentLength());
+        Assert.assertEquals("abc", some.getETag());
+        Assert.assertNull(some.getContentType());
+        Assert.assertNull(some.getLastModified());
+        Assert.assertTrue(some.getUserMetadata().isEmpty());
+    }
 }
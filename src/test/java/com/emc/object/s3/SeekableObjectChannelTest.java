@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.s3.jersey.S3JerseyClient;
+import com.emc.util.RandomInputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SeekableObjectChannelTest extends AbstractS3ClientTest {
+    static final int OBJECT_SIZE = 2 * 1024 * 1024 + 321;
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    byte[] data;
+    String key = "seekable-channel-test";
+
+    @Override
+    protected String getTestBucketPrefix() {
+        return "soc-test";
+    }
+
+    @Override
+    protected S3Client createS3Client() throws Exception {
+        return new S3JerseyClient(createS3Config());
+    }
+
+    @Before
+    public void createObject() throws Exception {
+        data = new byte[OBJECT_SIZE];
+        new RandomInputStream(OBJECT_SIZE).read(data);
+        client.putObject(getTestBucket(), key, data, null);
+    }
+
+    @Test
+    public void testSequentialRead() throws Exception {
+        SeekableObjectChannel channel = new SeekableObjectChannel(client, getTestBucket(), key)
+                .withBlockSize(BLOCK_SIZE).withReadAheadBlocks(8);
+        Assert.assertEquals(OBJECT_SIZE, channel.size());
+
+        // many small reads
+        ByteBuffer out = ByteBuffer.allocate(OBJECT_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        int reads = 0;
+        try {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                out.put(buffer);
+                buffer.clear();
+                reads++;
+            }
+        } finally {
+            channel.close();
+        }
+
+        Assert.assertEquals(OBJECT_SIZE, channel.position());
+        Assert.assertTrue(Arrays.equals(data, out.array()));
+
+        // blocks are fetched 8 at a time (plus the first read)
+        int blocks = (OBJECT_SIZE + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        Assert.assertTrue(channel.getRequestCount() <= blocks / 8 + 2);
+        Assert.assertTrue(channel.getRequestCount() * 10 < reads);
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        SeekableObjectChannel channel = new SeekableObjectChannel(client, getTestBucket(), key)
+                .withBlockSize(BLOCK_SIZE).withCacheBlocks(8).withReadAheadBlocks(0);
+        Random random = new Random(7);
+        try {
+            // footer, then a few column chunks (typical columnar reader)
+            assertRead(channel, OBJECT_SIZE - 8, 8);
+            assertRead(channel, OBJECT_SIZE - 1000, 992);
+            long requests = channel.getRequestCount();
+            assertRead(channel, OBJECT_SIZE - 500, 100); // cached
+            Assert.assertEquals(requests, channel.getRequestCount());
+
+            for (int i = 0; i < 50; i++) {
+                int position = random.nextInt(OBJECT_SIZE);
+                assertRead(channel, position, Math.min(random.nextInt(3 * BLOCK_SIZE) + 1, OBJECT_SIZE - position));
+            }
+
+            // a read spanning several missing blocks is one request
+            channel.close();
+            channel = new SeekableObjectChannel(client, getTestBucket(), key, OBJECT_SIZE)
+                    .withBlockSize(BLOCK_SIZE).withReadAheadBlocks(0);
+            assertRead(channel, BLOCK_SIZE / 2, 5 * BLOCK_SIZE);
+            Assert.assertEquals(1, channel.getRequestCount());
+
+            // positional read does not move the position
+            channel.position(10);
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            Assert.assertEquals(10, channel.read(buffer, 1000));
+            Assert.assertEquals(10, channel.position());
+
+            // past the end
+            Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(10), OBJECT_SIZE));
+        } finally {
+            channel.close();
+        }
+
+        try {
+            channel.read(ByteBuffer.allocate(10));
+            Assert.fail("read after close should fail");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    private void assertRead(SeekableObjectChannel channel, long position, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        Assert.assertEquals(length, channel.read(buffer));
+        Assert.assertEquals(position + length, channel.position());
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, (int) position, (int) position + length),
+                buffer.array()));
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import com.emc.object.Range;
+import com.emc.object.s3.bean.*;
+import com.emc.object.s3.request.*;
+import com.emc.object.util.RestUtil;
+import com.emc.rest.util.StreamUtil;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * An in-memory {@link S3Client} for unit tests. Objects are kept per bucket in {@link ParallelBucketLister#KEY_ORDER}
+ * and either hold their content or (for large test objects) only a size. Supports listing, HEAD, (ranged) GET,
+ * ACLs, single PUTs, server-side copy and multipart uploads with their If-Match conditions; everything else throws
+ * {@link UnsupportedOperationException}.
+ * <p>
+ * Every call is counted and its request recorded, failures can be injected per method and key with
+ * {@link #fail(String, String, int, int)}, and subclasses can intercept any call in {@link #beforeCall(String, Object[])}.
+ */
+public class StubS3Client implements InvocationHandler {
+    private final Map<String, SortedMap<String, StubObject>> buckets = new HashMap<String, SortedMap<String, StubObject>>();
+    private final Map<String, Upload> uploads = new HashMap<String, Upload>();
+    private final Map<String, List<Object>> requests = new HashMap<String, List<Object>>();
+    private final Map<String, Integer> failures = new HashMap<String, Integer>();
+    private final Map<String, Integer> failureCodes = new HashMap<String, Integer>();
+    private final List<String> abortedUploads = new ArrayList<String>();
+    private int uploadCount;
+    private long bytesRead;
+
+    public S3Client proxy() {
+        return (S3Client) Proxy.newProxyInstance(S3Client.class.getClassLoader(), new Class[]{S3Client.class}, this);
+    }
+
+    public synchronized SortedMap<String, StubObject> bucket(String name) {
+        if (!buckets.containsKey(name))
+            buckets.put(name, new TreeMap<String, StubObject>(ParallelBucketLister.KEY_ORDER));
+        return buckets.get(name);
+    }
+
+    public synchronized StubObject get(String bucket, String key) {
+        return bucket(bucket).get(key);
+    }
+
+    /**
+     * Stores an object with content (its ETag is the MD5 of the content)
+     */
+    public synchronized StubObject put(String bucket, String key, byte[] data) {
+        StubObject object = new StubObject(data, data.length, hex(md5(data)), new S3ObjectMetadata());
+        bucket(bucket).put(key, object);
+        return object;
+    }
+
+    /**
+     * Stores an object without content (it can be listed, HEADed and copied, but not read)
+     */
+    public synchronized StubObject put(String bucket, String key, long size, String eTag) {
+        StubObject object = new StubObject(null, size, eTag, new S3ObjectMetadata());
+        bucket(bucket).put(key, object);
+        return object;
+    }
+
+    /**
+     * The next <code>times</code> calls of <code>method</code> for <code>key</code> throw an {@link S3Exception} with
+     * the given HTTP code (0 times clears the failure)
+     */
+    public synchronized void fail(String method, String key, int times, int httpCode) {
+        failures.put(method + "/" + key, times);
+        failureCodes.put(method + "/" + key, httpCode);
+    }
+
+    public synchronized int count(String method) {
+        List<Object> list = requests.get(method);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Returns the (first) arguments of all calls of <code>method</code> that are of the given type, in call order
+     */
+    public synchronized <T> List<T> requests(String method, Class<T> type) {
+        List<T> result = new ArrayList<T>();
+        List<Object> list = requests.get(method);
+        if (list != null) {
+            for (Object request : list) {
+                if (type.isInstance(request)) result.add(type.cast(request));
+            }
+        }
+        return result;
+    }
+
+    public synchronized List<String> getAbortedUploads() {
+        return new ArrayList<String>(abortedUploads);
+    }
+
+    public synchronized int getOpenUploadCount() {
+        return uploads.size();
+    }
+
+    /**
+     * Bytes returned by GET requests
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Called (without holding the stub's lock) before every call; may throw to fail the call
+     */
+    protected void beforeCall(String method, Object[] args) {
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            try {
+                return method.invoke(this, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        if (args == null) args = new Object[0];
+        record(name, args);
+        beforeCall(name, args);
+
+        // read uploaded content outside of the lock, so parts can be sent in parallel
+        byte[] partData = null;
+        if (name.equals("uploadPart")) {
+            UploadPartRequest request = (UploadPartRequest) args[0];
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtil.copy((InputStream) request.getObject(), out, request.getContentLength());
+            if (request.getContentLength() != null && out.size() != request.getContentLength())
+                throw new IllegalStateException("part " + request.getPartNumber() + " is short: " + out.size());
+            partData = out.toByteArray();
+        } else if (name.equals("putObject") && args[0] instanceof PutObjectRequest) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtil.copy((InputStream) ((PutObjectRequest) args[0]).getObject(), out, Long.MAX_VALUE);
+            partData = out.toByteArray();
+        }
+
+        synchronized (this) {
+            if (name.equals("listObjects")) {
+                if (args[0] instanceof ListObjectsRequest) {
+                    ListObjectsRequest request = (ListObjectsRequest) args[0];
+                    return list(request.getBucketName(), request.getPrefix(), request.getDelimiter(),
+                            request.getMarker(), request.getMaxKeys());
+                }
+                return list((String) args[0], args.length > 1 ? (String) args[1] : null, null, null, null);
+            } else if (name.equals("listMoreObjects")) {
+                ListObjectsResult last = (ListObjectsResult) args[0];
+                return list(last.getBucketName(), last.getPrefix(), last.getDelimiter(), last.getNextMarker(),
+                        last.getMaxKeys());
+            } else if (name.equals("getObjectMetadata")) {
+                String bucket, key;
+                if (args[0] instanceof GetObjectMetadataRequest) {
+                    bucket = ((GetObjectMetadataRequest) args[0]).getBucketName();
+                    key = ((GetObjectMetadataRequest) args[0]).getKey();
+                } else {
+                    bucket = (String) args[0];
+                    key = (String) args[1];
+                }
+                return existing(bucket, key).metadata();
+            } else if (name.equals("getObject") && args[0] instanceof GetObjectRequest) {
+                GetObjectRequest request = (GetObjectRequest) args[0];
+                StubObject object = existing(request.getBucketName(), request.getKey());
+                // like the real client, a failed condition returns null
+                if (request.getIfMatch() != null && !request.getIfMatch().equals(object.eTag)) return null;
+                byte[] data = object.read(request.getRange());
+                bytesRead += data.length;
+                GetObjectResult<InputStream> result = new GetObjectResult<InputStream>();
+                result.setObject(new ByteArrayInputStream(data));
+                result.setHeaders(responseHeaders(object, request.getRange(), data.length));
+                return result;
+            } else if (name.equals("getObjectAcl")) {
+                if (args[0] instanceof GetObjectAclRequest)
+                    return existing(((GetObjectAclRequest) args[0]).getBucketName(),
+                            ((GetObjectAclRequest) args[0]).getKey()).acl;
+                return existing((String) args[0], (String) args[1]).acl;
+            } else if (name.equals("setObjectAcl") && args[0] instanceof SetObjectAclRequest) {
+                SetObjectAclRequest request = (SetObjectAclRequest) args[0];
+                StubObject object = existing(request.getBucketName(), request.getKey());
+                object.acl = request.getAcl();
+                object.cannedAcl = request.getCannedAcl();
+                return null;
+            } else if (name.equals("copyObject") && args[0] instanceof CopyObjectRequest) {
+                CopyObjectRequest request = (CopyObjectRequest) args[0];
+                StubObject source = source(request);
+                S3ObjectMetadata metadata = request.getObjectMetadata() == null
+                        ? source.metadata() : copy(request.getObjectMetadata());
+                StubObject object = new StubObject(source.data, source.size, source.eTag, metadata);
+                object.acl = request.getAcl();
+                object.cannedAcl = request.getCannedAcl();
+                bucket(request.getBucketName()).put(request.getKey(), object);
+                CopyObjectResult result = new CopyObjectResult();
+                result.setETag(object.eTag);
+                return result;
+            } else if (name.equals("putObject") && args[0] instanceof PutObjectRequest) {
+                PutObjectRequest request = (PutObjectRequest) args[0];
+                StubObject object = put(request.getBucketName(), request.getKey(), partData);
+                PutObjectResult result = new PutObjectResult();
+                result.setHeaders(responseHeaders(object, null, 0));
+                return result;
+            } else if (name.equals("initiateMultipartUpload") && args[0] instanceof InitiateMultipartUploadRequest) {
+                InitiateMultipartUploadRequest request = (InitiateMultipartUploadRequest) args[0];
+                String uploadId = "upload-" + (++uploadCount);
+                Upload upload = new Upload(request.getBucketName(), request.getKey(), request.getObjectMetadata());
+                upload.acl = request.getAcl();
+                upload.cannedAcl = request.getCannedAcl();
+                uploads.put(uploadId, upload);
+                InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                result.setUploadId(uploadId);
+                return result;
+            } else if (name.equals("uploadPart")) {
+                UploadPartRequest request = (UploadPartRequest) args[0];
+                StubObject part = new StubObject(partData, partData.length, hex(md5(partData)), null);
+                upload(request.getUploadId()).parts.put(request.getPartNumber(), part);
+                return new MultipartPartETag(request.getPartNumber(), part.eTag);
+            } else if (name.equals("copyPart")) {
+                CopyPartRequest request = (CopyPartRequest) args[0];
+                StubObject source = source(request);
+                Upload upload = upload(request.getUploadId());
+                Range range = request.getSourceRange();
+                StubObject part;
+                if (source.data != null) {
+                    byte[] data = source.read(range);
+                    part = new StubObject(data, data.length, hex(md5(data)), null);
+                } else {
+                    long first = range == null ? 0 : range.getFirst();
+                    long last = range == null ? source.size - 1 : range.getLast();
+                    String eTag = hex(md5((source.eTag + "/" + first + "-" + last).getBytes("UTF-8")));
+                    part = new StubObject(null, last - first + 1, eTag, null);
+                }
+                upload.parts.put(request.getPartNumber(), part);
+                CopyPartResult result = new CopyPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag(part.eTag);
+                return result;
+            } else if (name.equals("completeMultipartUpload")) {
+                CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) args[0];
+                Upload upload = upload(request.getUploadId());
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                ByteArrayOutputStream digests = new ByteArrayOutputStream();
+                boolean hasData = true;
+                long size = 0;
+                for (MultipartPartETag partETag : request.getParts()) {
+                    StubObject part = upload.parts.get(partETag.getPartNumber());
+                    if (part == null || !part.eTag.equals(partETag.getETag()))
+                        throw new S3Exception("Invalid Part", 400);
+                    if (part.data == null) hasData = false;
+                    else content.write(part.data);
+                    size += part.size;
+                    digests.write(DatatypeConverter.parseHexBinary(part.eTag));
+                }
+                String eTag = hex(md5(digests.toByteArray())) + "-" + request.getParts().size();
+                S3ObjectMetadata metadata = upload.metadata == null ? new S3ObjectMetadata() : copy(upload.metadata);
+                StubObject object = new StubObject(hasData ? content.toByteArray() : null, size, eTag, metadata);
+                object.acl = upload.acl;
+                object.cannedAcl = upload.cannedAcl;
+                bucket(upload.bucket).put(upload.key, object);
+                uploads.remove(request.getUploadId());
+                CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+                result.setETag(eTag);
+                return result;
+            } else if (name.equals("abortMultipartUpload")) {
+                AbortMultipartUploadRequest request = (AbortMultipartUploadRequest) args[0];
+                uploads.remove(request.getUploadId());
+                abortedUploads.add(request.getUploadId());
+                return null;
+            }
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private void record(String method, Object[] args) {
+        String key = null;
+        if (args.length > 0 && args[0] instanceof S3ObjectRequest) key = ((S3ObjectRequest) args[0]).getKey();
+        else if (args.length > 1 && args[1] instanceof String) key = (String) args[1];
+        synchronized (this) {
+            if (!requests.containsKey(method)) requests.put(method, new ArrayList<Object>());
+            requests.get(method).add(args.length > 0 ? args[0] : null);
+            Integer times = failures.get(method + "/" + key);
+            if (times != null && times > 0) {
+                failures.put(method + "/" + key, times - 1);
+                int httpCode = failureCodes.get(method + "/" + key);
+                throw new S3Exception("injected failure (" + httpCode + ")", httpCode);
+            }
+        }
+    }
+
+    private StubObject existing(String bucket, String key) {
+        StubObject object = bucket(bucket).get(key);
+        if (object == null) throw new S3Exception("Not Found", 404);
+        return object;
+    }
+
+    private StubObject source(CopyObjectRequest request) {
+        StubObject source = existing(request.getSourceBucketName(), request.getSourceKey());
+        if (request.getIfSourceMatch() != null && !request.getIfSourceMatch().equals(source.eTag))
+            throw new S3Exception("Precondition Failed", 412);
+        return source;
+    }
+
+    private Upload upload(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) throw new S3Exception("No Such Upload", 404);
+        return upload;
+    }
+
+    private ListObjectsResult list(String bucket, String prefix, String delimiter, String marker, Integer maxKeys) {
+        int max = maxKeys == null ? 1000 : maxKeys;
+        ListObjectsResult result = new ListObjectsResult();
+        result.setBucketName(bucket);
+        result.setPrefix(prefix);
+        result.setDelimiter(delimiter);
+        result.setMaxKeys(maxKeys);
+        List<S3Object> objects = new ArrayList<S3Object>();
+        Set<String> commonPrefixes = new TreeSet<String>();
+        SortedMap<String, StubObject> keys = bucket(bucket);
+        if (marker != null) keys = keys.tailMap(marker + "\0");
+        for (Map.Entry<String, StubObject> entry : keys.entrySet()) {
+            String key = entry.getKey();
+            if (prefix != null && !key.startsWith(prefix)) continue;
+            int d = delimiter == null ? -1 : key.indexOf(delimiter, prefix == null ? 0 : prefix.length());
+            String commonPrefix = d >= 0 ? key.substring(0, d + delimiter.length()) : null;
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix)) {
+                result.setNextMarker(key);
+                continue;
+            }
+            if (objects.size() + commonPrefixes.size() >= max) {
+                result.setTruncated(true);
+                break;
+            }
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+            } else {
+                S3Object object = new S3Object();
+                object.setKey(key);
+                object.setSize(entry.getValue().size);
+                object.setETag("\"" + entry.getValue().eTag + "\"");
+                object.setLastModified(entry.getValue().lastModified);
+                objects.add(object);
+            }
+            result.setNextMarker(key);
+        }
+        result.setObjects(objects);
+        result.setCommonPrefixes(new ArrayList<String>(commonPrefixes));
+        return result;
+    }
+
+    private static S3ObjectMetadata copy(S3ObjectMetadata metadata) {
+        S3ObjectMetadata copy = new S3ObjectMetadata();
+        copy.setContentType(metadata.getContentType());
+        copy.setContentEncoding(metadata.getContentEncoding());
+        copy.setContentDisposition(metadata.getContentDisposition());
+        copy.setCacheControl(metadata.getCacheControl());
+        copy.setHttpExpires(metadata.getHttpExpires());
+        for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+            copy.addUserMetadata(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        return DatatypeConverter.printHexBinary(bytes).toLowerCase();
+    }
+
+    /**
+     * Returns the headers of a GET response for <code>object</code> (with a <code>Content-Range</code> if ranged)
+     */
+    private Map<String, List<String>> responseHeaders(StubObject object, Range range, long length) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put(RestUtil.HEADER_CONTENT_LENGTH, Collections.singletonList(Long.toString(length)));
+        headers.put(RestUtil.HEADER_ETAG, Collections.singletonList("\"" + object.eTag + "\""));
+        if (range != null) {
+            long first = range.getFirst();
+            headers.put(RestUtil.HEADER_CONTENT_RANGE, Collections.singletonList(
+                    "bytes " + first + "-" + (first + length - 1) + "/" + object.size));
+        }
+        return headers;
+    }
+
+    public static class StubObject {
+        /**
+         * <code>null</code> for objects stored without content
+         */
+        public final byte[] data;
+        public final long size;
+        public final String eTag;
+        public final Date lastModified = new Date();
+        public final S3ObjectMetadata metadata;
+        public AccessControlList acl = new AccessControlList();
+        public CannedAcl cannedAcl;
+
+        StubObject(byte[] data, long size, String eTag, S3ObjectMetadata metadata) {
+            this.data = data;
+            this.size = size;
+            this.eTag = eTag;
+            this.metadata = metadata;
+        }
+
+        /**
+         * Returns a copy of the stored metadata with the system fields (length, ETag, mtime) filled in
+         */
+        S3ObjectMetadata metadata() {
+            S3ObjectMetadata result = copy(metadata).withContentLength(size);
+            result.setETag(eTag);
+            result.setLastModified(lastModified);
+            return result;
+        }
+
+        byte[] read(Range range) {
+            if (data == null) throw new UnsupportedOperationException("object has no content");
+            if (range == null) return data;
+            long last = range.getLast() == null ? data.length - 1 : Math.min(range.getLast(), data.length - 1);
+            return Arrays.copyOfRange(data, range.getFirst().intValue(), (int) last + 1);
+        }
+    }
+
+    private static class Upload {
+        final String bucket;
+        final String key;
+        final S3ObjectMetadata metadata;
+        final SortedMap<Integer, StubObject> parts = new TreeMap<Integer, StubObject>();
+        AccessControlList acl;
+        CannedAcl cannedAcl;
+
+        Upload(String bucket, String key, S3ObjectMetadata metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TransferManagerTest {
+    @Test
+    public void testFairShareAndPriority() throws Exception {
+        TransferManager manager = new TransferManager(1, 4);
+        try {
+            final CountDownLatch gate = new CountDownLatch(1);
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+            // occupy the only worker so everything else queues
+            ExecutorService blocker = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            Future<?> blocked = blocker.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+
+            ExecutorService bulk = manager.newTransferExecutor(TransferManager.Priority.BULK);
+            ExecutorService a = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            ExecutorService b = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            ExecutorService interactive = manager.newTransferExecutor(TransferManager.Priority.INTERACTIVE);
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 2; i++) futures.add(bulk.submit(record(order, "bulk" + i)));
+            for (int i = 0; i < 3; i++) futures.add(a.submit(record(order, "a" + i)));
+            for (int i = 0; i < 2; i++) futures.add(b.submit(record(order, "b" + i)));
+            futures.add(interactive.submit(record(order, "i0")));
+
+            gate.countDown();
+            blocked.get();
+            for (Future<?> future : futures) future.get();
+
+            Assert.assertEquals(Arrays.asList("i0", "a0", "b0", "a1", "b1", "a2", "bulk0", "bulk1"), order);
+        } finally {
+            manager.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNoStarvation() throws Exception {
+        TransferManager manager = new TransferManager(1, 4);
+        try {
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            ExecutorService old = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            ExecutorService blocker = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+
+            // the old transfer has already run several parts
+            for (int i = 0; i < 3; i++) old.submit(record(order, "old" + i)).get();
+            order.clear();
+
+            final CountDownLatch gate = new CountDownLatch(1);
+            Future<?> blocked = blocker.submit(await(gate));
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 3; i < 5; i++) futures.add(old.submit(record(order, "old" + i)));
+            ExecutorService young = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            for (int i = 0; i < 3; i++) futures.add(young.submit(record(order, "new" + i)));
+
+            gate.countDown();
+            blocked.get();
+            for (Future<?> future : futures) future.get();
+
+            // the transfers take turns; the new one does not jump ahead of the old one
+            Assert.assertEquals(Arrays.asList("old3", "new0", "old4", "new1", "new2"), order);
+        } finally {
+            manager.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAdmissionPriority() throws Exception {
+        TransferManager manager = new TransferManager(2, 1);
+        try {
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            CountDownLatch gate = new CountDownLatch(1);
+            TransferManager.TransferHandle<Runnable> first = manager.submit(await(gate), TransferManager.Priority.BULK);
+            TransferManager.TransferHandle<Runnable> bulk = manager.submit(record(order, "bulk"),
+                    TransferManager.Priority.BULK);
+            TransferManager.TransferHandle<Runnable> normal = manager.submit(record(order, "normal"),
+                    TransferManager.Priority.NORMAL);
+            TransferManager.TransferHandle<Runnable> interactive = manager.submit(record(order, "interactive"),
+                    TransferManager.Priority.INTERACTIVE);
+
+            gate.countDown();
+            first.get();
+            bulk.get();
+            normal.get();
+            interactive.get();
+
+            // queued transfers are admitted by priority
+            Assert.assertEquals(Arrays.asList("interactive", "normal", "bulk"), order);
+        } finally {
+            manager.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTransferHandle() throws Exception {
+        TransferManager manager = new TransferManager(2, 1);
+        try {
+            final CountDownLatch gate = new CountDownLatch(1);
+            Runnable waiting = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            TransferManager.TransferHandle<Runnable> first = manager.submit(waiting, TransferManager.Priority.NORMAL);
+            Runnable failing = new Runnable() {
+                @Override
+                public void run() {
+                    throw new RuntimeException("failed");
+                }
+            };
+            TransferManager.TransferHandle<Runnable> second = manager.submit(failing, TransferManager.Priority.BULK);
+
+            // only one active transfer allowed, so the first blocks the second
+            Assert.assertFalse(second.isDone());
+            Assert.assertTrue(first.cancel());
+            Assert.assertTrue(first.isCancelled());
+
+            try {
+                second.get(10, TimeUnit.SECONDS);
+                Assert.fail("failed transfer should throw");
+            } catch (ExecutionException e) {
+                Assert.assertEquals("failed", e.getCause().getMessage());
+            }
+            Assert.assertSame(failing, second.getTransfer());
+        } finally {
+            manager.shutdown();
+            Assert.assertTrue(manager.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testTransferExecutorShutdown() throws Exception {
+        TransferManager manager = new TransferManager(1, 4);
+        try {
+            final CountDownLatch gate = new CountDownLatch(1);
+            ExecutorService transfer = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            Future<?> running = transfer.submit(await(gate));
+
+            // shut down, but a part is still running
+            transfer.shutdown();
+            Assert.assertTrue(transfer.isShutdown());
+            Assert.assertFalse(transfer.isTerminated());
+            Assert.assertFalse(transfer.awaitTermination(100, TimeUnit.MILLISECONDS));
+
+            gate.countDown();
+            running.get();
+            Assert.assertTrue(transfer.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertTrue(transfer.isTerminated());
+        } finally {
+            manager.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTransferExecutorShutdownNow() throws Exception {
+        TransferManager manager = new TransferManager(1, 4);
+        try {
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            final CountDownLatch started = new CountDownLatch(1);
+            ExecutorService transfer = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            Future<?> running = transfer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        order.add("interrupted");
+                    }
+                }
+            });
+            List<Future<?>> queued = new ArrayList<Future<?>>();
+            for (int i = 0; i < 3; i++) queued.add(transfer.submit(record(order, "queued" + i)));
+            ExecutorService other = manager.newTransferExecutor(TransferManager.Priority.NORMAL);
+            Future<?> otherPart = other.submit(record(order, "other"));
+            started.await();
+
+            // only this transfer's parts are removed and interrupted
+            List<Runnable> removed = transfer.shutdownNow();
+            Assert.assertEquals(3, removed.size());
+            for (Future<?> future : queued) Assert.assertTrue(future.isCancelled());
+            Assert.assertTrue(transfer.awaitTermination(10, TimeUnit.SECONDS));
+            running.get();
+            otherPart.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Arrays.asList("interrupted", "other"), order);
+            Assert.assertEquals(0, manager.getQueuedParts());
+        } finally {
+            manager.shutdownNow();
+        }
+    }
+
+    private Runnable await(final CountDownLatch gate) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+}
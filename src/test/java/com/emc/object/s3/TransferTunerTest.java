@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransferTunerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testConcurrencyClimbsWhileThroughputImproves() {
+        TestTuner tuner = new TestTuner(2, 8, 16 * MB, 4 * MB, 64 * MB, 1024 * MB);
+        tuner.setTunePartSize(false);
+
+        // each part takes 4 seconds regardless of concurrency, so throughput scales linearly
+        for (int i = 0; i < 20; i++) {
+            tuner.round(4000);
+        }
+        Assert.assertEquals(8, tuner.getConcurrency());
+    }
+
+    @Test
+    public void testConcurrencyBacksOffAtSaturation() {
+        TestTuner tuner = new TestTuner(2, 16, 16 * MB, 4 * MB, 64 * MB, 1024 * MB);
+        tuner.setTunePartSize(false);
+
+        // link saturates at 4 concurrent parts (part time grows linearly beyond that)
+        for (int i = 0; i < 8; i++) {
+            int c = tuner.getConcurrency();
+            tuner.round(c <= 4 ? 4000 : 1000L * c);
+        }
+        Assert.assertEquals(4, tuner.getConcurrency());
+    }
+
+    @Test
+    public void testPartSizeGrowsForFastParts() {
+        TestTuner tuner = new TestTuner(2, 2, 4 * MB, 4 * MB, 64 * MB, 1024 * MB);
+        for (int i = 0; i < 3; i++) {
+            tuner.round(500);
+        }
+        Assert.assertEquals(32 * MB, tuner.getPartSize());
+    }
+
+    @Test
+    public void testPartSizeShrinksForSlowParts() {
+        TestTuner tuner = new TestTuner(2, 2, 64 * MB, 4 * MB, 64 * MB, 1024 * MB);
+        tuner.round(60000);
+        Assert.assertEquals(32 * MB, tuner.getPartSize());
+    }
+
+    @Test
+    public void testMemoryCap() {
+        TestTuner tuner = new TestTuner(8, 32, 64 * MB, 4 * MB, 128 * MB, 256 * MB);
+        Assert.assertEquals(4, tuner.getConcurrency());
+
+        for (int i = 0; i < 20; i++) {
+            tuner.round(500);
+            Assert.assertTrue(tuner.getConcurrency() * tuner.getPartSize() <= 256 * MB);
+        }
+    }
+
+    static class TestTuner extends TransferTuner {
+        long time = 0;
+
+        TestTuner(int concurrency, int maxConcurrency, long partSize, long minPartSize, long maxPartSize, long memoryCap) {
+            super("test", concurrency, maxConcurrency, partSize, minPartSize, maxPartSize, memoryCap);
+        }
+
+        /**
+         * completes one round of parts, each taking partTime ms (all in parallel)
+         */
+        void round(long partTime) {
+            int parts = getConcurrency();
+            long partSize = getPartSize();
+            time += partTime;
+            for (int i = 0; i < parts; i++) {
+                partCompleted(partSize, partTime);
+            }
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3.bean;
+
+import com.emc.object.util.RestUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GetObjectResultTest {
+    @Test
+    public void testObjectSize() {
+        Assert.assertNull(resultWithContentRange(null).getObjectSize());
+        Assert.assertEquals(Long.valueOf(1234), resultWithContentRange("bytes 0-99/1234").getObjectSize());
+        Assert.assertEquals(Long.valueOf(5368709120L),
+                resultWithContentRange("bytes 100-199/5368709120").getObjectSize());
+        Assert.assertNull(resultWithContentRange("bytes 0-99/*").getObjectSize());
+        Assert.assertNull(resultWithContentRange("bytes */foo").getObjectSize());
+        Assert.assertNull(resultWithContentRange("garbage").getObjectSize());
+    }
+
+    private GetObjectResult<Object> resultWithContentRange(String contentRange) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        if (contentRange != null) headers.put(RestUtil.HEADER_CONTENT_RANGE, Collections.singletonList(contentRange));
+        GetObjectResult<Object> result = new GetObjectResult<Object>();
+        result.setHeaders(headers);
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3.jersey;
+
+import com.emc.object.s3.bean.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class S3BeanProviderTest {
+    private S3BeanProvider provider = S3BeanProvider.getInstance();
+
+    @Test
+    public void testBeanTypes() {
+        Assert.assertTrue(provider.isBeanType(AccessControlList.class));
+        Assert.assertTrue(provider.isBeanType(ListObjectsResult.class));
+        Assert.assertFalse(provider.isBeanType(S3Object.class)); // not a root element
+        Assert.assertFalse(provider.isBeanType(String.class));
+        Assert.assertFalse(provider.isBeanType(BucketPolicy.class)); // JSON
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" +
+                "<AccessControlPolicy xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Owner><ID>owner</ID><DisplayName>Owner</DisplayName></Owner>" +
+                "<AccessControlList>" +
+                "<Grant>" +
+                "<Grantee xsi:type=\"CanonicalUser\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">" +
+                "<ID>bar</ID><DisplayName>Bar</DisplayName>" +
+                "</Grantee>" +
+                "<Permission>READ</Permission>" +
+                "</Grant>" +
+                "<Grant>" +
+                "<Grantee xsi:type=\"Group\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">" +
+                "<URI>gwar</URI>" +
+                "</Grantee>" +
+                "<Permission>READ_ACP</Permission>" +
+                "</Grant>" +
+                "</AccessControlList>" +
+                "</AccessControlPolicy>";
+
+        AccessControlList acl = provider.read(AccessControlList.class, new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals(new CanonicalUser("owner", "Owner"), acl.getOwner());
+        Assert.assertEquals(2, acl.getGrants().size());
+        Assert.assertTrue(acl.getGrants().contains(new Grant(new CanonicalUser("bar", "Bar"), Permission.READ)));
+        Assert.assertTrue(acl.getGrants().contains(new Grant(new Group("gwar"), Permission.READ_ACP)));
+
+        // afterUnmarshal hooks still run
+        xml = "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<Name>bucket</Name><Prefix>a%20b</Prefix><EncodingType>url</EncodingType>" +
+                "<IsTruncated>false</IsTruncated>" +
+                "<Contents><Key>a%20b/c</Key></Contents>" +
+                "</ListBucketResult>";
+        ListObjectsResult result = provider.read(ListObjectsResult.class, new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals("a b", result.getPrefix());
+        Assert.assertEquals("a b/c", result.getObjects().get(0).getKey());
+    }
+
+    @Test
+    public void testReadCopyPartResult() throws Exception {
+        String xml = "<CopyPartResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" +
+                "<LastModified>2017-01-02T03:04:05.678Z</LastModified>" +
+                "<ETag>\"abc\"</ETag>" +
+                "</CopyPartResult>";
+
+        CopyPartResult result = provider.read(CopyPartResult.class,
+                new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals("abc", result.getRawETag());
+        Assert.assertEquals(1483326245678L, result.getLastModified().getTime());
+    }
+
+    @Test
+    public void testExternalEntitiesAreNotResolved() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>" +
+                "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>&xxe;</Name></ListBucketResult>";
+        try {
+            ListObjectsResult result = provider.read(ListObjectsResult.class,
+                    new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            Assert.assertTrue(result.getBucketName() == null || !result.getBucketName().contains("root"));
+        } catch (IOException e) {
+            // rejecting the document is fine too
+        }
+    }
+
+    @Test
+    public void testRoundTripConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 200; i++) {
+                final int n = i;
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        AccessControlList acl = new AccessControlList();
+                        acl.setOwner(new CanonicalUser("owner" + n, "Owner " + n));
+                        acl.addGrants(new Grant(new CanonicalUser("user" + n, "User"), Permission.WRITE),
+                                new Grant(Group.ALL_USERS, Permission.READ));
+                        byte[] xml = provider.toBytes(acl);
+                        AccessControlList acl2 = provider.read(AccessControlList.class, new ByteArrayInputStream(xml));
+                        Assert.assertEquals(acl.getOwner(), acl2.getOwner());
+                        Assert.assertEquals(acl.getGrants(), acl2.getGrants());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
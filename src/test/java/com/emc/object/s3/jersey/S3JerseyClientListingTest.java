@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.s3.jersey;
+
+import com.emc.object.s3.S3Config;
+import com.emc.object.s3.S3Exception;
+import com.emc.object.s3.ListingParser;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Tests the handling of listing responses (no S3 endpoint needed)
+ */
+public class S3JerseyClientListingTest {
+    private S3JerseyClient client;
+
+    @Before
+    public void setup() throws Exception {
+        client = new S3JerseyClient(new S3Config(new URI("http://localhost:9020")).withSmartClient(false));
+    }
+
+    @After
+    public void shutdown() {
+        client.destroy();
+    }
+
+    @Test
+    public void testErrorWithOkStatus() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<Error><Code>InternalError</Code><Message>failed</Message><RequestId>123</RequestId></Error>";
+        ClientResponse response = new ClientResponse(200, new InBoundHeaders(),
+                new ByteArrayInputStream(xml.getBytes("UTF-8")), null);
+
+        InputStream in = client.listingStream(response);
+        try {
+            client.listingParser.parseListObjects(in, null);
+            Assert.fail("error document should not parse as a listing");
+        } catch (XMLStreamException e) {
+            RuntimeException error = client.listingError(response, in, "list-objects", e);
+            Assert.assertTrue(error instanceof S3Exception);
+            Assert.assertEquals("InternalError", ((S3Exception) error).getErrorCode());
+            Assert.assertEquals("failed", error.getMessage());
+        }
+    }
+
+    @Test
+    public void testMalformedResponse() throws Exception {
+        ClientResponse response = new ClientResponse(200, new InBoundHeaders(),
+                new ByteArrayInputStream("<Other/>".getBytes("UTF-8")), null);
+
+        InputStream in = client.listingStream(response);
+        try {
+            client.listingParser.parseListObjects(in, null);
+            Assert.fail("unexpected document should not parse as a listing");
+        } catch (XMLStreamException e) {
+            RuntimeException error = client.listingError(response, in, "list-objects", e);
+            Assert.assertFalse(error instanceof S3Exception);
+            Assert.assertTrue(e instanceof ListingParser.UnexpectedRootException);
+        }
+    }
+}
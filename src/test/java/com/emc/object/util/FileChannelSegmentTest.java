@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.util;
+
+import com.emc.rest.util.StreamUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+public class FileChannelSegmentTest {
+    private static final String CONTENT = "0123456789Hello Middle!3456789";
+    //                                               1         2
+
+    private File file;
+    private RandomAccessFile raFile;
+    private FileChannel channel;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("fc-segment-test", null);
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        out.write(CONTENT.getBytes("UTF-8"));
+        out.close();
+        raFile = new RandomAccessFile(file, "r");
+        channel = raFile.getChannel();
+    }
+
+    @After
+    public void closeFile() throws Exception {
+        raFile.close();
+    }
+
+    @Test
+    public void testMiddle() throws Exception {
+        InputStream is = new FileChannelSegment(channel, 10, 13);
+        Assert.assertEquals("Hello Middle!", StreamUtil.readAsString(is));
+    }
+
+    @Test
+    public void testBeginningAndEnd() throws Exception {
+        Assert.assertEquals("0123456789", StreamUtil.readAsString(new FileChannelSegment(channel, 0, 10)));
+        Assert.assertEquals("3456789", StreamUtil.readAsString(new FileChannelSegment(channel, 23, 7)));
+    }
+
+    @Test
+    public void testMarkReset() throws Exception {
+        InputStream is = new FileChannelSegment(channel, 10, 13);
+        Assert.assertTrue(is.markSupported());
+        is.mark(0); // read limit is ignored
+
+        Assert.assertEquals("Hello Middle!", StreamUtil.readAsString(is));
+
+        is.reset();
+        Assert.assertEquals("Hello Middle!", StreamUtil.readAsString(is));
+    }
+
+    @Test
+    public void testConcurrentSegmentsShareChannel() throws Exception {
+        InputStream first = new FileChannelSegment(channel, 0, 10);
+        InputStream second = new FileChannelSegment(channel, 10, 13);
+
+        byte[] buffer = new byte[5];
+        Assert.assertEquals(5, second.read(buffer));
+        Assert.assertEquals("Hello", new String(buffer, "UTF-8"));
+        Assert.assertEquals("0123456789", StreamUtil.readAsString(first));
+        Assert.assertEquals(" Middle!", StreamUtil.readAsString(second));
+
+        // closing a segment does not close the channel
+        Assert.assertTrue(channel.isOpen());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class Iso8601DateTimeAdapterTest {
+    @Test
+    public void testFastPathMatchesFormat() throws Exception {
+        SimpleDateFormat seconds = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        SimpleDateFormat millis = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        seconds.setTimeZone(TimeZone.getTimeZone("UTC"));
+        millis.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Random random = new Random(42);
+        long max = 253402300799999L; // 9999-12-31T23:59:59.999Z
+        long min = -11676096000000L; // 1600-01-01T00:00:00Z
+        for (int i = 0; i < 10000; i++) {
+            Date date = new Date(min + (long) (random.nextDouble() * (max - min)));
+            Assert.assertEquals(date, Iso8601DateTimeAdapter.parseUtc(millis.format(date)));
+            Date truncated = new Date(date.getTime() - (date.getTime() % 1000 + 1000) % 1000);
+            Assert.assertEquals(truncated, Iso8601DateTimeAdapter.parseUtc(seconds.format(date)));
+        }
+
+        // leap days
+        Assert.assertEquals(951782400000L, Iso8601DateTimeAdapter.parseUtc("2000-02-29T00:00:00Z").getTime());
+        Assert.assertNull(Iso8601DateTimeAdapter.parseUtc("1900-02-29T00:00:00Z"));
+    }
+
+    @Test
+    public void testUnmarshal() throws Exception {
+        Iso8601DateTimeAdapter adapter = new Iso8601DateTimeAdapter();
+        Assert.assertEquals(new Date(2524608000000L), adapter.unmarshal("2050-01-01T00:00:00Z"));
+        Assert.assertEquals(new Date(2524608000123L), adapter.unmarshal("2050-01-01T00:00:00.123Z"));
+
+        // not handled by the fast path
+        Assert.assertNull(Iso8601DateTimeAdapter.parseUtc("2050-01-01T02:30:00+02:30"));
+        Assert.assertEquals(new Date(2524608000000L), adapter.unmarshal("2050-01-01T02:30:00+02:30"));
+        Assert.assertEquals(new Date(2524608000000L), adapter.unmarshal("2049-12-31T21:00:00-0300"));
+        Assert.assertEquals(new Date(2524608000000L), adapter.unmarshal("2049-12-31T21:00:00-03"));
+        Assert.assertNull(Iso8601DateTimeAdapter.parseUtc("2050-01-01T00:00:60Z"));
+        Assert.assertEquals(new Date(2524608060000L), adapter.unmarshal("2050-01-01T00:00:60Z"));
+    }
+}
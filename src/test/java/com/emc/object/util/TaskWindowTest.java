@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017, EMC Corporation.
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * + Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * + Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * + The name of EMC Corporation may not be used to endorse or promote
+ *   products derived from this software without specific prior written
+ *   permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.emc.object.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TaskWindowTest {
+    private ExecutorService executor;
+
+    @Before
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWindowIsBounded() throws Exception {
+        final AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        TaskWindow<Integer> window = new TaskWindow<Integer>(executor);
+        List<Integer> results = new ArrayList<Integer>();
+
+        for (int i = 0; i < 100; i++) {
+            results.addAll(window.awaitCapacity(3));
+            Assert.assertTrue(window.getPendingCount() < 3);
+            final int n = i;
+            window.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int r = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        if (r > maxRunning.get()) maxRunning.set(r);
+                    }
+                    Thread.sleep(1);
+                    running.decrementAndGet();
+                    return n;
+                }
+            });
+        }
+        results.addAll(window.awaitAll());
+
+        Assert.assertEquals(100, results.size());
+        Assert.assertEquals(0, window.getPendingCount());
+        Assert.assertTrue(maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        final CountDownLatch never = new CountDownLatch(1);
+        TaskWindow<Void> window = new TaskWindow<Void>(executor);
+
+        // a task that blocks until cancelled
+        Future<Void> blocked = window.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                never.await();
+                return null;
+            }
+        });
+        window.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                throw new IllegalStateException("failed");
+            }
+        });
+
+        try {
+            window.awaitAll();
+            Assert.fail("failure was not thrown");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        window.cancelAll();
+        Assert.assertTrue(blocked.isCancelled());
+        Assert.assertEquals(0, window.getPendingCount());
+    }
+}